@@ -0,0 +1,200 @@
+package cis5550.kvs;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Serializable;
+import java.nio.charset.StandardCharsets;
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A row that can't change: the column names, sorted, and their values in two parallel arrays. A lookup is a
+ * binary search, and a row costs two arrays instead of a hash map with an entry object per column. Reading it
+ * needs no locks. Use a {@link Builder} to make a changed copy, or wrap it in a {@link Row} for the mutable API.
+ */
+public final class ImmutableRow implements Serializable {
+    private static final long serialVersionUID = 1L;
+    private static final String[] NO_NAMES = new String[0];
+    private static final byte[][] NO_VALUES = new byte[0][];
+
+    private final String key;
+    private final String[] names;
+    private final byte[][] values;
+
+    private ImmutableRow(String key, String[] names, byte[][] values) {
+        this.key = key;
+        this.names = names;
+        this.values = values;
+    }
+
+    public String key() {
+        return key;
+    }
+
+    public int size() {
+        return names.length;
+    }
+
+    /**
+     * @return the value of the column, or null if the row doesn't have it
+     */
+    public byte[] get(String column) {
+        int index = Arrays.binarySearch(names, column);
+        return index < 0 ? null : values[index];
+    }
+
+    /**
+     * The column names in sorted order
+     */
+    public List<String> columns() {
+        return new AbstractList<>() {
+            @Override
+            public String get(int index) {
+                return names[index];
+            }
+
+            @Override
+            public int size() {
+                return names.length;
+            }
+
+            @Override
+            public boolean contains(Object o) {
+                return o instanceof String name && Arrays.binarySearch(names, name) >= 0;
+            }
+        };
+    }
+
+    public String name(int index) {
+        return names[index];
+    }
+
+    public byte[] value(int index) {
+        return values[index];
+    }
+
+    /**
+     * The row in the same format as {@link Row#toByteArray()}
+     */
+    public byte[] toByteArray() {
+        byte[] keyBytes = key.getBytes();
+        byte[][] nameBytes = new byte[names.length][];
+        byte[][] lengths = new byte[names.length][];
+        int size = keyBytes.length + 1;
+        for (int i = 0; i < names.length; i++) {
+            nameBytes[i] = names[i].getBytes();
+            lengths[i] = String.valueOf(values[i].length).getBytes(StandardCharsets.US_ASCII);
+            size += nameBytes[i].length + lengths[i].length + values[i].length + 3;
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream(size);
+        out.writeBytes(keyBytes);
+        out.write(' ');
+        for (int i = 0; i < names.length; i++) {
+            out.writeBytes(nameBytes[i]);
+            out.write(' ');
+            out.writeBytes(lengths[i]);
+            out.write(' ');
+            out.writeBytes(values[i]);
+            out.write(' ');
+        }
+        return out.toByteArray();
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder s = new StringBuilder(key).append(" {");
+        for (int i = 0; i < names.length; i++) {
+            s.append(i == 0 ? " " : ", ").append(names[i]).append(": ").append(new String(values[i]));
+        }
+        return s.append(" }").toString();
+    }
+
+    public Builder toBuilder() {
+        Builder builder = new Builder(key);
+        for (int i = 0; i < names.length; i++) {
+            builder.put(names[i], values[i]);
+        }
+        return builder;
+    }
+
+    public static Builder builder(String key) {
+        return new Builder(key);
+    }
+
+    /**
+     * Collects columns for a new row; a later put of the same column wins. Columns that arrive in sorted order,
+     * as they do when a row written by {@link #toByteArray()} is read back, are not sorted again.
+     */
+    public static final class Builder {
+        private final String key;
+        private String[] names = new String[8];
+        private byte[][] values = new byte[8][];
+        private int size;
+
+        private Builder(String key) {
+            this.key = key;
+        }
+
+        public Builder put(String column, byte[] value) {
+            if (size == names.length) {
+                names = Arrays.copyOf(names, size * 2);
+                values = Arrays.copyOf(values, size * 2);
+            }
+            names[size] = column;
+            values[size] = value;
+            size++;
+            return this;
+        }
+
+        public Builder put(String column, String value) {
+            return put(column, value.getBytes());
+        }
+
+        public Builder remove(String column) {
+            int kept = 0;
+            for (int i = 0; i < size; i++) {
+                if (!names[i].equals(column)) {
+                    names[kept] = names[i];
+                    values[kept] = values[i];
+                    kept++;
+                }
+            }
+            Arrays.fill(names, kept, size, null);
+            Arrays.fill(values, kept, size, null);
+            size = kept;
+            return this;
+        }
+
+        public ImmutableRow build() {
+            if (size == 0) {
+                return new ImmutableRow(key, NO_NAMES, NO_VALUES);
+            }
+            boolean sorted = true;
+            for (int i = 1; i < size && sorted; i++) {
+                sorted = names[i - 1].compareTo(names[i]) < 0;
+            }
+            if (sorted) {
+                return new ImmutableRow(key, Arrays.copyOf(names, size), Arrays.copyOf(values, size));
+            }
+            // A stable sort keeps puts of the same column in order, so the last one of each run wins
+            Integer[] order = new Integer[size];
+            for (int i = 0; i < size; i++) {
+                order[i] = i;
+            }
+            Arrays.sort(order, (a, b) -> names[a].compareTo(names[b]));
+            String[] sortedNames = new String[size];
+            byte[][] sortedValues = new byte[size][];
+            int count = 0;
+            for (int i = 0; i < size; i++) {
+                int index = order[i];
+                if (count > 0 && sortedNames[count - 1].equals(names[index])) {
+                    count--;
+                }
+                sortedNames[count] = names[index];
+                sortedValues[count] = values[index];
+                count++;
+            }
+            return new ImmutableRow(key, Arrays.copyOf(sortedNames, count), Arrays.copyOf(sortedValues, count));
+        }
+    }
+}
@@ -14,4 +14,6 @@ public interface KVS {
   int count(String tableName) throws FileNotFoundException, IOException;
   boolean rename(String oldTableName, String newTableName) throws IOException;
   void delete(String oldTableName) throws IOException;
+  boolean deleteRow(String tableName, String row) throws IOException;
+  boolean deleteColumn(String tableName, String row, String column) throws IOException;
 };
\ No newline at end of file
@@ -52,18 +52,34 @@ public class KVSClient implements KVS {
     return workers.elementAt(idx).id;
   }
 
+  // Sent with every row read so that workers that can answer in the binary row format do
+  static final Map<String, String> ROW_FORMAT_HEADERS = Map.of(RowCodec.HEADER, String.valueOf(RowCodec.VERSION));
+
   class KVSIterator implements Iterator<Row> {
     InputStream in;
+    boolean binary;
     boolean atEnd;
     Row nextRow;
     int currentRangeIndex;
     String endRowExclusive;
     String startRow;
     String tableName;
+    String columns;
     Vector<String> ranges;
 
     KVSIterator(String tableNameArg, String startRowArg, String endRowExclusiveArg) throws IOException {
+      this(tableNameArg, startRowArg, endRowExclusiveArg, null);
+    }
+
+    KVSIterator(String tableNameArg, String startRowArg, String endRowExclusiveArg, Set<String> columnsArg) throws IOException {
       in = null;
+      columns = null;
+      if (columnsArg != null) {
+        StringBuilder encoded = new StringBuilder();
+        for (String column : columnsArg)
+          encoded.append(encoded.length() == 0 ? "" : ",").append(URLEncoder.encode(column, "UTF-8"));
+        columns = encoded.toString();
+      }
       currentRangeIndex = 0;
       atEnd = false;
       endRowExclusive = endRowExclusiveArg;
@@ -94,6 +110,8 @@ public class KVSClient implements KVS {
         params = "startRow="+startRowArg;
       if (endRowExclusiveArg != null)
         params = (params.equals("") ? "" : (params+"&"))+"endRowExclusive="+endRowExclusiveArg;
+      if (columns != null)
+        params = (params.equals("") ? "" : (params+"&"))+"columns="+columns;
       return "http://"+getWorkerAddress(workerIndexArg)+"/data/"+tableNameArg+(params.equals("") ? "" : "?"+params);
     }
 
@@ -117,8 +135,10 @@ public class KVSClient implements KVS {
             URL url = new URL(ranges.elementAt(currentRangeIndex));
             HttpURLConnection con = (HttpURLConnection)url.openConnection();
             con.setRequestMethod("GET");
+            con.setRequestProperty(RowCodec.HEADER, String.valueOf(RowCodec.VERSION));
             con.connect();
-            in = con.getInputStream();
+            in = new BufferedInputStream(con.getInputStream());
+            binary = RowCodec.accepts(con.getHeaderField(RowCodec.HEADER));
             Row r = fill();
             if (r != null) {
               nextRow = r;
@@ -140,7 +160,7 @@ public class KVSClient implements KVS {
 
     synchronized Row fill() {
       try {
-        Row r = Row.readFrom(in);
+        Row r = binary ? RowCodec.read(in) : Row.readFrom(in);
         return r;
       } catch (Exception e) {
         return null;
@@ -229,12 +249,37 @@ public class KVSClient implements KVS {
     }
   }
 
+  public boolean deleteRow(String tableName, String row) throws IOException {
+    if (!haveWorkers)
+      downloadWorkers();
+
+    HTTP.Response res = HTTP.doRequest("PUT", "http://"+workers.elementAt(workerIndexForKey(row)).address+"/delete/"+java.net.URLEncoder.encode(tableName, "UTF-8")+"/"+java.net.URLEncoder.encode(row, "UTF-8"), null);
+    return (res != null) && (res.statusCode() == 200);
+  }
+
+  public boolean deleteColumn(String tableName, String row, String column) throws IOException {
+    if (!haveWorkers)
+      downloadWorkers();
+
+    HTTP.Response res = HTTP.doRequest("PUT", "http://"+workers.elementAt(workerIndexForKey(row)).address+"/delete/"+java.net.URLEncoder.encode(tableName, "UTF-8")+"/"+java.net.URLEncoder.encode(row, "UTF-8")+"/"+java.net.URLEncoder.encode(column, "UTF-8"), null);
+    return (res != null) && (res.statusCode() == 200);
+  }
+
   public void put(String tableName, String row, String column, byte value[]) throws IOException {
+    put(tableName, row, column, value, 0);
+  }
+
+  /**
+   * Write the column and make the whole row expire ttlSeconds from now; 0 leaves the row's TTL to the table.
+   */
+  public void put(String tableName, String row, String column, byte value[], long ttlSeconds) throws IOException {
     if (!haveWorkers)
       downloadWorkers();
 
     try {
       String target = "http://"+workers.elementAt(workerIndexForKey(row)).address+"/data/"+tableName+"/"+java.net.URLEncoder.encode(row, "UTF-8")+"/"+java.net.URLEncoder.encode(column, "UTF-8");
+      if (ttlSeconds > 0)
+        target = target+"?ttl="+ttlSeconds;
       byte[] response = HTTP.doRequest("PUT", target, value).body();
       String result = new String(response);
       if (!result.equals("OK")) 
@@ -262,13 +307,13 @@ public class KVSClient implements KVS {
     if (!haveWorkers)
       downloadWorkers();
 
-    HTTP.Response resp = HTTP.doRequest("GET", "http://"+workers.elementAt(workerIndexForKey(row)).address+"/data/"+tableName+"/"+java.net.URLEncoder.encode(row, "UTF-8"), null);
+    HTTP.Response resp = HTTP.doRequest("GET", "http://"+workers.elementAt(workerIndexForKey(row)).address+"/data/"+tableName+"/"+java.net.URLEncoder.encode(row, "UTF-8"), null, ROW_FORMAT_HEADERS);
     if (resp.statusCode() == 404)
       return null;
 
     byte[] result = resp.body();
     try {
-      return Row.readFrom(new ByteArrayInputStream(result));
+      return RowCodec.decode(result);
     } catch (Exception e) {
       throw new RuntimeException("Decoding error while reading Row from getRow() URL");
     }
@@ -313,6 +358,22 @@ public class KVSClient implements KVS {
       HTTP.doRequest("PUT", "http://"+w.address+"/persist/"+tableName, null);
   }
 
+  public void freeze(String tableName) throws IOException {
+    if (!haveWorkers)
+      downloadWorkers();
+
+    for (WorkerEntry w : workers) 
+      HTTP.doRequest("PUT", "http://"+w.address+"/freeze/"+java.net.URLEncoder.encode(tableName, "UTF-8"), null);
+  }
+
+  public void setOptions(String tableName, String options) throws IOException {
+    if (!haveWorkers)
+      downloadWorkers();
+
+    for (WorkerEntry w : workers) 
+      HTTP.doRequest("PUT", "http://"+w.address+"/options/"+java.net.URLEncoder.encode(tableName, "UTF-8"), options.getBytes("UTF-8"));
+  }
+
   public Iterator<Row> scan(String tableName) throws FileNotFoundException, IOException {
     return scan(tableName, null, null);
   }
@@ -324,6 +385,17 @@ public class KVSClient implements KVS {
     return new KVSIterator(tableName, startRow, endRowExclusive);
   }
 
+  /**
+   * Scan that only fetches the given columns; column tables then read nothing but those columns.
+   * Column names must not contain commas.
+   */
+  public Iterator<Row> scan(String tableName, String startRow, String endRowExclusive, Set<String> columns) throws FileNotFoundException, IOException {
+    if (!haveWorkers)
+      downloadWorkers();
+
+    return new KVSIterator(tableName, startRow, endRowExclusive, columns);
+  }
+
   public static void main(String args[]) throws Exception {
   	if (args.length < 2) {
       System.err.println("Syntax: client <coordinator> get <tableName> <row> <column>");
@@ -331,6 +403,10 @@ public class KVSClient implements KVS {
       System.err.println("Syntax: client <coordinator> scan <tableName>");
       System.err.println("Syntax: client <coordinator> rename <oldTableName> <newTableName>");
       System.err.println("Syntax: client <coordinator> persist <tableName>");
+      System.err.println("Syntax: client <coordinator> freeze <tableName>");
+      System.err.println("Syntax: client <coordinator> options <tableName> <key=value>...");
+      System.err.println("Syntax: client <coordinator> deleteRow <tableName> <row>");
+      System.err.println("Syntax: client <coordinator> deleteColumn <tableName> <row> <column>");
   		System.exit(1);
   	}
 
@@ -379,6 +455,30 @@ public class KVSClient implements KVS {
         System.exit(1);
       }
       client.persist(args[2]);
+    } else if (args[1].equals("freeze")) {
+      if (args.length != 3) {
+        System.err.println("Syntax: client <coordinator> freeze <tableName>");
+        System.exit(1);
+      }
+      client.freeze(args[2]);
+    } else if (args[1].equals("options")) {
+      if (args.length < 4) {
+        System.err.println("Syntax: client <coordinator> options <tableName> <key=value>...");
+        System.exit(1);
+      }
+      client.setOptions(args[2], String.join("\n", Arrays.copyOfRange(args, 3, args.length)));
+    } else if (args[1].equals("deleteRow")) {
+      if (args.length != 4) {
+        System.err.println("Syntax: client <coordinator> deleteRow <tableName> <row>");
+        System.exit(1);
+      }
+      System.out.println(client.deleteRow(args[2], args[3]) ? "Deleted" : "Not found");
+    } else if (args[1].equals("deleteColumn")) {
+      if (args.length != 5) {
+        System.err.println("Syntax: client <coordinator> deleteColumn <tableName> <row> <column>");
+        System.exit(1);
+      }
+      System.out.println(client.deleteColumn(args[2], args[3], args[4]) ? "Deleted" : "Not found");
     } else {
     	System.err.println("Unknown command: "+args[1]);
     	System.exit(1);
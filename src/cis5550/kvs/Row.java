@@ -2,80 +2,181 @@ package cis5550.kvs;
 
 import java.util.*;
 import java.io.*;
-import java.util.concurrent.ThreadPoolExecutor;
 
+/**
+ * A row as the rest of the system sees it. A row read from storage or the network is backed by an
+ * {@link ImmutableRow}, which is read without locking; the first change copies it into a map.
+ */
 public class Row implements Serializable {
-    ThreadPoolExecutor executor;
     protected String key;
     protected HashMap<String, byte[]> values;
+    // Set until the row is first changed; values is null while it is
+    private volatile ImmutableRow data;
 
     public Row(String keyArg) {
         key = keyArg;
         values = new HashMap<String, byte[]>();
     }
 
-    public synchronized String key() {
+    public Row(ImmutableRow data) {
+        key = data.key();
+        this.data = data;
+    }
+
+    public String key() {
         return key;
     }
 
-    public synchronized Row clone() {
-        Row theClone = new Row(key);
-        for (String s : values.keySet())
-            theClone.values.put(s, values.get(s));
-        return theClone;
+    public Row clone() {
+        ImmutableRow snapshot = data;
+        if (snapshot != null)
+            return new Row(snapshot);
+        synchronized (this) {
+            Row theClone = new Row(key);
+            for (String s : values.keySet())
+                theClone.values.put(s, values.get(s));
+            return theClone;
+        }
+    }
+
+    /**
+     * The row's columns as an immutable row; free for a row that hasn't been changed since it was read
+     */
+    public ImmutableRow toImmutable() {
+        ImmutableRow snapshot = data;
+        if (snapshot != null)
+            return snapshot;
+        ImmutableRow.Builder builder = ImmutableRow.builder(key());
+        for (String column : columns())
+            builder.put(column, getBytes(column));
+        return builder.build();
+    }
+
+    public Set<String> columns() {
+        ImmutableRow snapshot = data;
+        if (snapshot != null) {
+            List<String> names = snapshot.columns();
+            return new AbstractSet<String>() {
+                public Iterator<String> iterator() {
+                    return names.iterator();
+                }
+
+                public int size() {
+                    return names.size();
+                }
+
+                public boolean contains(Object o) {
+                    return names.contains(o);
+                }
+            };
+        }
+        synchronized (this) {
+            return values.keySet();
+        }
     }
 
-    public synchronized Set<String> columns() {
-        return values.keySet();
+    private void makeMutable() {
+        ImmutableRow snapshot = data;
+        if (snapshot == null)
+            return;
+        values = new HashMap<String, byte[]>();
+        for (int i = 0; i < snapshot.size(); i++)
+            values.put(snapshot.name(i), snapshot.value(i));
+        data = null;
     }
 
     public synchronized void put(String key, String value) {
+        makeMutable();
         values.put(key, value.getBytes());
     }
 
     public synchronized void put(String key, byte[] value) {
+        makeMutable();
         values.put(key, value);
     }
 
-    public synchronized String get(String key) {
-        if (values.get(key) == null)
+    public String get(String key) {
+        byte[] value = getBytes(key);
+        if (value == null)
             return null;
-        return new String(values.get(key));
+        return new String(value);
     }
 
-    public synchronized byte[] getBytes(String key) {
-        return values.get(key);
+    public byte[] getBytes(String key) {
+        ImmutableRow snapshot = data;
+        if (snapshot != null)
+            return snapshot.get(key);
+        synchronized (this) {
+            return values.get(key);
+        }
     }
 
+    private static final int MAX_TOKEN = 16384;
+
     static String readStringSpace(InputStream in) throws Exception {
-        byte buffer[] = new byte[16384];
+        byte buffer[] = new byte[64];
         int numRead = 0;
         while (true) {
-            if (numRead == buffer.length)
-                throw new Exception("Format error: Expecting string+space");
-
             int b = in.read();
             if ((b < 0) || (b == 10))
                 return null;
-            buffer[numRead++] = (byte) b;
             if (b == ' ')
-                return new String(buffer, 0, numRead - 1);
+                return new String(buffer, 0, numRead);
+            if (numRead == buffer.length) {
+                if (numRead == MAX_TOKEN)
+                    throw new Exception("Format error: Expecting string+space");
+                buffer = Arrays.copyOf(buffer, Math.min(numRead * 2, MAX_TOKEN));
+            }
+            buffer[numRead++] = (byte) b;
         }
     }
 
     static String readStringSpace(RandomAccessFile in) throws Exception {
-        byte buffer[] = new byte[16384];
+        byte buffer[] = new byte[64];
         int numRead = 0;
         while (true) {
-            if (numRead == buffer.length)
-                throw new Exception("Format error: Expecting string+space");
-
             int b = in.read();
             if ((b < 0) || (b == 10))
                 return null;
-            buffer[numRead++] = (byte) b;
             if (b == ' ')
-                return new String(buffer, 0, numRead - 1);
+                return new String(buffer, 0, numRead);
+            if (numRead == buffer.length) {
+                if (numRead == MAX_TOKEN)
+                    throw new Exception("Format error: Expecting string+space");
+                buffer = Arrays.copyOf(buffer, Math.min(numRead * 2, MAX_TOKEN));
+            }
+            buffer[numRead++] = (byte) b;
+        }
+    }
+
+    /**
+     * Read a value length and the space after it, without making a string of the digits
+     */
+    static int readLength(InputStream in) throws Exception {
+        int length = 0;
+        int digits = 0;
+        while (true) {
+            int b = in.read();
+            if (b == ' ' && digits > 0)
+                return length;
+            if (b < '0' || b > '9' || length > (Integer.MAX_VALUE - 9) / 10)
+                throw new Exception("Format error: Expecting length+space");
+            length = length * 10 + (b - '0');
+            digits++;
+        }
+    }
+
+    static int readLength(RandomAccessFile in) throws Exception {
+        int length = 0;
+        int digits = 0;
+        while (true) {
+            int b = in.read();
+            if (b == ' ' && digits > 0)
+                return length;
+            if (b < '0' || b > '9' || length > (Integer.MAX_VALUE - 9) / 10)
+                throw new Exception("Format error: Expecting length+space");
+            length = length * 10 + (b - '0');
+            digits++;
         }
     }
 
@@ -84,13 +185,13 @@ public class Row implements Serializable {
         if (theKey == null)
             return null;
 
-        Row newRow = new Row(theKey);
+        ImmutableRow.Builder newRow = ImmutableRow.builder(theKey);
         while (true) {
             String keyOrMarker = readStringSpace(in);
             if (keyOrMarker == null)
-                return newRow;
+                return new Row(newRow.build());
 
-            int len = Integer.parseInt(readStringSpace(in));
+            int len = readLength(in);
             byte[] theValue = new byte[len];
             int bytesRead = 0;
             while (bytesRead < len) {
@@ -113,13 +214,13 @@ public class Row implements Serializable {
         if (theKey == null)
             return null;
 
-        Row newRow = new Row(theKey);
+        ImmutableRow.Builder newRow = ImmutableRow.builder(theKey);
         while (true) {
             String keyOrMarker = readStringSpace(in);
             if (keyOrMarker == null)
-                return newRow;
+                return new Row(newRow.build());
 
-            int len = Integer.parseInt(readStringSpace(in));
+            int len = readLength(in);
             byte[] theValue = new byte[len];
             int bytesRead = 0;
             while (bytesRead < len) {
@@ -137,7 +238,14 @@ public class Row implements Serializable {
         }
     }
 
-    public synchronized String toString() {
+    public String toString() {
+        ImmutableRow snapshot = data;
+        if (snapshot != null)
+            return snapshot.toString();
+        return mutableToString();
+    }
+
+    private synchronized String mutableToString() {
         String s = key + " {";
         boolean isFirst = true;
         for (String k : values.keySet()) {
@@ -147,7 +255,14 @@ public class Row implements Serializable {
         return s + " }";
     }
 
-    public synchronized byte[] toByteArray() {
+    public byte[] toByteArray() {
+        ImmutableRow snapshot = data;
+        if (snapshot != null)
+            return snapshot.toByteArray();
+        return mutableToByteArray();
+    }
+
+    private synchronized byte[] mutableToByteArray() {
         ByteArrayOutputStream baos = new ByteArrayOutputStream();
 
         try {
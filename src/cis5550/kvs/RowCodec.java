@@ -0,0 +1,177 @@
+package cis5550.kvs;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.function.IntFunction;
+import java.util.function.ToIntFunction;
+
+/**
+ * Binary encoding of a row: a magic byte, the format version, the key, the number of columns and then per
+ * column a flags byte, the column's name, and the value. Lengths, counts and column numbers are varints.
+ * A column with {@link #COLUMN_NUMBER} set carries a number from the table's column dictionary in place of its name.
+ * <p>
+ * The magic byte can't start a row in the text format of {@link Row#toByteArray()}, which starts with a UTF-8 row
+ * key, so {@link #decode} reads either. Over HTTP a client asks for this format by sending {@link #HEADER} with the
+ * highest version it reads; a worker that understands it answers with the same header, and everyone else keeps
+ * using the text format.
+ */
+public final class RowCodec {
+    public static final String HEADER = "X-Row-Format";
+    public static final int VERSION = 1;
+    // Never a byte of UTF-8
+    private static final byte MAGIC = (byte) 0xC0;
+    public static final int COLUMN_NUMBER = 1;
+
+    private RowCodec() {
+    }
+
+    /**
+     * @return whether a request carrying the header value can take rows in this format
+     */
+    public static boolean accepts(String headerValue) {
+        if (headerValue == null) {
+            return false;
+        }
+        try {
+            return Integer.parseInt(headerValue.trim()) >= VERSION;
+        } catch (NumberFormatException e) {
+            return false;
+        }
+    }
+
+    public static boolean isBinary(byte[] bytes) {
+        return bytes.length > 0 && bytes[0] == MAGIC;
+    }
+
+    public static byte[] encode(Row row) {
+        return encode(row, null);
+    }
+
+    /**
+     * @param columnNumbers gives the number that stands for a column name, or null to write the names
+     */
+    public static byte[] encode(Row row, ToIntFunction<String> columnNumbers) {
+        byte[] key = row.key().getBytes(StandardCharsets.UTF_8);
+        ByteArrayOutputStream out = new ByteArrayOutputStream(64 + key.length);
+        out.write(MAGIC);
+        out.write(VERSION);
+        writeVarint(out, key.length);
+        out.writeBytes(key);
+        writeVarint(out, row.columns().size());
+        for (String column : row.columns()) {
+            byte[] value = row.getBytes(column);
+            if (columnNumbers != null) {
+                out.write(COLUMN_NUMBER);
+                writeVarint(out, columnNumbers.applyAsInt(column));
+            } else {
+                byte[] name = column.getBytes(StandardCharsets.UTF_8);
+                out.write(0);
+                writeVarint(out, name.length);
+                out.writeBytes(name);
+            }
+            writeVarint(out, value.length);
+            out.writeBytes(value);
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Decode a row in this format or the text format
+     */
+    public static Row decode(byte[] bytes) throws Exception {
+        return decode(bytes, null);
+    }
+
+    /**
+     * @param columnNames gives the name a column number stands for, or null if there is none
+     */
+    public static Row decode(byte[] bytes, IntFunction<String> columnNames) throws Exception {
+        InputStream in = new ByteArrayInputStream(bytes);
+        if (!isBinary(bytes)) {
+            return Row.readFrom(in);
+        }
+        return read(in, columnNames);
+    }
+
+    /**
+     * Read the next row of a stream of rows in this format
+     * @return the row, or null at the end of the stream
+     */
+    public static Row read(InputStream in) throws IOException {
+        return read(in, null);
+    }
+
+    private static Row read(InputStream in, IntFunction<String> columnNames) throws IOException {
+        int magic = in.read();
+        if (magic < 0) {
+            return null;
+        }
+        if ((byte) magic != MAGIC) {
+            throw new IOException("Not a binary row");
+        }
+        int version = readByte(in);
+        if (version > VERSION) {
+            throw new IOException("Unsupported row format version " + version);
+        }
+        ImmutableRow.Builder builder = ImmutableRow.builder(new String(readBytes(in, readVarint(in)), StandardCharsets.UTF_8));
+        int count = readVarint(in);
+        for (int i = 0; i < count; i++) {
+            int flags = readByte(in);
+            if ((flags & ~COLUMN_NUMBER) != 0) {
+                throw new IOException("Unknown column flags " + flags);
+            }
+            String column;
+            if ((flags & COLUMN_NUMBER) != 0) {
+                int number = readVarint(in);
+                column = columnNames == null ? null : columnNames.apply(number);
+                if (column == null) {
+                    throw new IOException("Row refers to unknown column number " + number);
+                }
+            } else {
+                column = new String(readBytes(in, readVarint(in)), StandardCharsets.UTF_8);
+            }
+            builder.put(column, readBytes(in, readVarint(in)));
+        }
+        return new Row(builder.build());
+    }
+
+    private static int readByte(InputStream in) throws IOException {
+        int b = in.read();
+        if (b < 0) {
+            throw new EOFException("Row is truncated");
+        }
+        return b;
+    }
+
+    private static byte[] readBytes(InputStream in, int length) throws IOException {
+        byte[] bytes = in.readNBytes(length);
+        if (bytes.length < length) {
+            throw new EOFException("Row is truncated");
+        }
+        return bytes;
+    }
+
+    static void writeVarint(ByteArrayOutputStream out, int value) {
+        while ((value & ~0x7F) != 0) {
+            out.write((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.write(value);
+    }
+
+    static int readVarint(InputStream in) throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            int b = readByte(in);
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed varint");
+    }
+}
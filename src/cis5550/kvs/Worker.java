@@ -1,10 +1,19 @@
 package cis5550.kvs;
 
+import cis5550.model.Expiry;
+import cis5550.model.FrozenTable;
+import cis5550.model.MemoryBudget;
+import cis5550.model.GroupCommit;
+import cis5550.model.MemoryLog;
+import cis5550.model.MemorySnapshot;
 import cis5550.model.PersistentTable;
 import cis5550.model.Table;
+import cis5550.model.TableType;
+import cis5550.model.Trash;
 import cis5550.model.WorkerContext;
 import cis5550.model.WorkerMeta;
 import cis5550.tools.Logger;
+import cis5550.tools.WorkerConfig;
 import cis5550.tools.WorkerChecker;
 import cis5550.tools.WorkerUtils;
 import cis5550.webserver.Server;
@@ -26,7 +35,14 @@ public class Worker extends cis5550.generic.Worker {
     private static final Map<String, Table> tables = new ConcurrentHashMap<>();
     private static String storageDir;
     protected static final ConcurrentNavigableMap<String, WorkerMeta> workers = new ConcurrentSkipListMap<>();
+    private static final String QUARANTINE_DIR = ".quarantine";
     private static final ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(1);
+    // Checkpoints can take a while, so they don't share a thread with replication and worker updates
+    private static final ScheduledExecutorService checkpointer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "memory-checkpoint");
+        thread.setDaemon(true);
+        return thread;
+    });
 
 
     public static void main(String[] args) {
@@ -61,6 +77,8 @@ public class Worker extends cis5550.generic.Worker {
             logger.fatal("Storage directory " + storageDir + " does not exist or is not a directory");
             System.exit(1);
         }
+        Trash.configure(storageDir, WorkerConfig.trashFilesPerSecond());
+        FrozenTable.recoverPending(storageDir);
         File[] folders = dir.listFiles(File::isDirectory);
         if(folders == null){
             logger.fatal("Storage directory " + storageDir + " is empty");
@@ -68,7 +86,28 @@ public class Worker extends cis5550.generic.Worker {
         }
         for(File folder : folders){
             String tableName = folder.getName();
-            tables.put(tableName, new PersistentTable(tableName, storageDir));
+            // Directories starting with '.' hold worker bookkeeping such as quarantined files, not tables
+            if (tableName.startsWith(".")) {
+                continue;
+            }
+            tables.put(tableName, TableType.openTable(tableName, storageDir));
+        }
+        verifyPersistentTables();
+
+        MemoryBudget.configure(storageDir, WorkerConfig.memoryTableBudgetBytes());
+
+        //Rebuild in-memory tables from their last checkpoint and, if enabled, their log
+        MemoryLog memoryLog = null;
+        try {
+            if (WorkerConfig.memoryWalEnabled()) {
+                memoryLog = new MemoryLog(storageDir, new GroupCommit("memory-log", WorkerConfig.groupCommitMillis(), 1 << 20));
+                memoryLog.recover(tables);
+            } else {
+                MemorySnapshot.restore(storageDir, tables);
+            }
+        } catch (IOException e) {
+            logger.fatal("Error while recovering in-memory tables", e);
+            System.exit(1);
         }
 
         //Initialize basic operations
@@ -78,9 +117,12 @@ public class Worker extends cis5550.generic.Worker {
         workerChecker.startChecking();
 
         //Inject workerContext into other tools
-        WorkerContext workerContext = new WorkerContext(tables, storageDir, workerChecker, workers, workerId);
+        WorkerContext workerContext = new WorkerContext(tables, storageDir, workerChecker, workers, workerId, memoryLog);
         WorkerUtils.setWorkerContext(workerContext);
         WorkerRoutes.setWorkerContext(workerContext);
+        startCheckpointThread(workerContext);
+        Expiry.configure(workerContext, WorkerConfig.expiryRowsPerSecond());
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> tables.values().forEach(Table::flush)));
 
         Server.put("/data/:table/:row/:column", WorkerRoutes::putData);
         Server.get("/data/:table/:row/:column", WorkerRoutes::getData);
@@ -91,6 +133,12 @@ public class Worker extends cis5550.generic.Worker {
         Server.get("/count/:table", WorkerRoutes::countKeys);
         Server.put("/rename/:table", WorkerRoutes::renameTable);
         Server.put("/delete/:table", WorkerRoutes::deleteTable);
+        Server.put("/delete/:table/:row", WorkerRoutes::deleteData);
+        Server.put("/delete/:table/:row/:column", WorkerRoutes::deleteData);
+        Server.put("/freeze/:table", WorkerRoutes::freezeTable);
+        Server.put("/checkpoint", WorkerRoutes::checkpoint);
+        Server.get("/options/:table", WorkerRoutes::getOptions);
+        Server.put("/options/:table", WorkerRoutes::setOptions);
         Server.get("/list", (req, res) -> {
             ArrayList<String> tableList = new ArrayList<>(tables.keySet());
             res.write(WorkerUtils.serializeList(tableList));
@@ -98,6 +146,46 @@ public class Worker extends cis5550.generic.Worker {
         });
     }
 
+    /**
+     * Check the row files of every persistent table and move corrupt ones to the quarantine directory,
+     * so that a crash never leaves rows that silently fail to read
+     */
+    private static void verifyPersistentTables() {
+        long start = System.currentTimeMillis();
+        Path quarantineDir = Paths.get(storageDir, QUARANTINE_DIR);
+        int quarantined = 0;
+        int verifiedTables = 0;
+        for (Table table : tables.values()) {
+            if (table instanceof PersistentTable persistentTable) {
+                quarantined += persistentTable.verifyRowFiles(quarantineDir);
+                verifiedTables++;
+            }
+        }
+        logger.info("Verified " + verifiedTables + " persistent tables in " + (System.currentTimeMillis() - start) +
+                " ms, quarantined " + quarantined + " corrupt row files");
+    }
+
+    private static void startCheckpointThread(WorkerContext workerContext) {
+        final MemoryLog memoryLog = workerContext.memoryLog();
+        final long intervalMillis = WorkerConfig.memoryCheckpointSeconds() * 1000;
+        final long[] lastCheckpoint = {System.currentTimeMillis()};
+        final Runnable checkpoint = () -> {
+            try {
+                boolean logFull = memoryLog != null && memoryLog.size() >= WorkerConfig.memoryWalCheckpointBytes();
+                boolean due = intervalMillis > 0 && System.currentTimeMillis() - lastCheckpoint[0] >= intervalMillis
+                        && MemorySnapshot.isStale(tables);
+                if (logFull || due) {
+                    workerContext.checkpoint();
+                    lastCheckpoint[0] = System.currentTimeMillis();
+                }
+            } catch (IOException e) {
+                logger.error("Error while checkpointing in-memory tables", e);
+            }
+        };
+
+        checkpointer.scheduleAtFixedRate(checkpoint, 30, 30, TimeUnit.SECONDS);
+    }
+
     private static void startReplicationThread() {
         final Runnable workerUpdater = () -> {
             try {
@@ -0,0 +1,704 @@
+package cis5550.model;
+
+import cis5550.kvs.Row;
+import cis5550.tools.Logger;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Page-oriented B+tree table kept in a single file of fixed-size pages.
+ * Leaves are chained left to right, so a range scan is one descent plus a walk over the leaves it covers,
+ * and getKeys() is a sorted view that reads keys leaf by leaf instead of building a set.
+ * Decoded tree pages are cached in a LRU buffer pool; values larger than INLINE_VALUE_BYTES live in
+ * chains of overflow pages that bypass the pool. Deleting a row removes its leaf entry without merging leaves,
+ * so a leaf can be left under-full, or empty, until later puts fill it again.
+ * <p>
+ * Page 0 is the meta page: [MAGIC][root][pageCount][keyCount][freeListHead].
+ * <p>
+ * The file is not crash-safe. Tree pages are overwritten in place when the pool evicts them and when the table is
+ * flushed, overflow pages as soon as they are written, and there is no log or page checksum. {@link #flush()} writes
+ * the dirty pages, then the meta page, and forces the file, and the worker flushes every table at shutdown; after
+ * a crash, the file may have lost rows or no longer open.
+ */
+public class BTreeTable implements Table {
+    private static final Logger logger = Logger.getLogger(BTreeTable.class);
+    private static final String FILE_NAME = "btree.db";
+    private static final int PAGE_SIZE = 8192;
+    private static final int MAX_KEY_BYTES = 1024;
+    private static final int INLINE_VALUE_BYTES = 1024;
+    private static final int POOL_PAGES = 2048;
+    private static final int MAGIC = 0xB7EE0001;
+
+    private static final byte LEAF = 1;
+    private static final byte INTERNAL = 2;
+    private static final byte OVERFLOW = 3;
+    private static final byte FREE = 4;
+    private static final int OVERFLOW_HEADER = 1 + 4 + 4;
+    private static final int OVERFLOW_CAPACITY = PAGE_SIZE - OVERFLOW_HEADER;
+
+    private static abstract class Node {
+        final List<String> keys = new ArrayList<>();
+
+        abstract int encodedSize();
+    }
+
+    private static class Leaf extends Node {
+        // Either byte[] for an inline value or an OverflowRef
+        final List<Object> values = new ArrayList<>();
+        int next = -1;
+
+        @Override
+        int encodedSize() {
+            int size = 1 + 2 + 4;
+            for (int i = 0; i < keys.size(); i++) {
+                size += entrySize(keys.get(i), values.get(i));
+            }
+            return size;
+        }
+
+        static int entrySize(String key, Object value) {
+            int size = 2 + key.getBytes(StandardCharsets.UTF_8).length + 1;
+            return size + (value instanceof byte[] bytes ? 4 + bytes.length : 8);
+        }
+    }
+
+    private static class Internal extends Node {
+        final List<Integer> children = new ArrayList<>();
+
+        @Override
+        int encodedSize() {
+            int size = 1 + 2 + 4;
+            for (String key : keys) {
+                size += 2 + key.getBytes(StandardCharsets.UTF_8).length + 4;
+            }
+            return size;
+        }
+    }
+
+    private record OverflowRef(int firstPage, int length) {
+    }
+
+    private record Split(String separator, int rightPage) {
+    }
+
+    private String name;
+    private volatile TableOptions options;
+    private final String storageDir;
+    private final FileChannel channel;
+    private final BufferPool<Node> pool;
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private int root;
+    private int pageCount;
+    private long keyCount;
+    private int freeListHead = -1;
+    private volatile long modifications;
+    private final ColumnDictionary dictionary;
+
+    public BTreeTable(String name, String storageDir) {
+        this.name = name;
+        this.storageDir = storageDir;
+        this.options = TableOptions.load(storageDir, name);
+        this.dictionary = new ColumnDictionary(() -> dir().resolve(ColumnDictionary.FILE_NAME));
+        try {
+            Files.createDirectories(dir());
+            channel = FileChannel.open(dir().resolve(FILE_NAME), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            pool = new BufferPool<>(POOL_PAGES, new BufferPool.PageIO<>() {
+                @Override
+                public Node read(int pageId) throws IOException {
+                    return decode(readPage(pageId));
+                }
+
+                @Override
+                public void write(int pageId, Node page) throws IOException {
+                    writePage(pageId, encode(page));
+                }
+            });
+            if (channel.size() == 0) {
+                pageCount = 2;
+                root = 1;
+                pool.put(root, new Leaf());
+                pool.flush();
+                writeMeta();
+            } else {
+                readMeta();
+            }
+        } catch (IOException e) {
+            logger.error("Error while opening B+tree table " + name, e);
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private Path dir() {
+        return Paths.get(storageDir, name);
+    }
+
+    private void readMeta() throws IOException {
+        ByteBuffer meta = readPage(0);
+        if (meta.getInt() != MAGIC) {
+            throw new IOException("B+tree file of " + name + " has a corrupt meta page");
+        }
+        root = meta.getInt();
+        pageCount = meta.getInt();
+        keyCount = meta.getLong();
+        freeListHead = meta.getInt();
+    }
+
+    private void writeMeta() throws IOException {
+        ByteBuffer meta = ByteBuffer.allocate(PAGE_SIZE);
+        meta.putInt(MAGIC).putInt(root).putInt(pageCount).putLong(keyCount).putInt(freeListHead);
+        meta.clear();
+        writePage(0, meta);
+    }
+
+    private ByteBuffer readPage(int pageId) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(PAGE_SIZE);
+        long position = (long) pageId * PAGE_SIZE;
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                break;
+            }
+        }
+        buffer.clear();
+        return buffer;
+    }
+
+    private void writePage(int pageId, ByteBuffer page) throws IOException {
+        long position = (long) pageId * PAGE_SIZE;
+        page.clear();
+        while (page.hasRemaining()) {
+            channel.write(page, position + page.position());
+        }
+    }
+
+    private static Node decode(ByteBuffer page) {
+        byte type = page.get();
+        int count = page.getShort() & 0xFFFF;
+        if (type == LEAF) {
+            Leaf leaf = new Leaf();
+            leaf.next = page.getInt();
+            for (int i = 0; i < count; i++) {
+                leaf.keys.add(readKey(page));
+                if (page.get() == 0) {
+                    byte[] value = new byte[page.getInt()];
+                    page.get(value);
+                    leaf.values.add(value);
+                } else {
+                    leaf.values.add(new OverflowRef(page.getInt(), page.getInt()));
+                }
+            }
+            return leaf;
+        }
+        Internal internal = new Internal();
+        internal.children.add(page.getInt());
+        for (int i = 0; i < count; i++) {
+            internal.keys.add(readKey(page));
+            internal.children.add(page.getInt());
+        }
+        return internal;
+    }
+
+    private static ByteBuffer encode(Node node) {
+        ByteBuffer page = ByteBuffer.allocate(PAGE_SIZE);
+        if (node instanceof Leaf leaf) {
+            page.put(LEAF).putShort((short) leaf.keys.size()).putInt(leaf.next);
+            for (int i = 0; i < leaf.keys.size(); i++) {
+                writeKey(page, leaf.keys.get(i));
+                if (leaf.values.get(i) instanceof byte[] value) {
+                    page.put((byte) 0).putInt(value.length).put(value);
+                } else {
+                    OverflowRef ref = (OverflowRef) leaf.values.get(i);
+                    page.put((byte) 1).putInt(ref.firstPage()).putInt(ref.length());
+                }
+            }
+        } else {
+            Internal internal = (Internal) node;
+            page.put(INTERNAL).putShort((short) internal.keys.size()).putInt(internal.children.get(0));
+            for (int i = 0; i < internal.keys.size(); i++) {
+                writeKey(page, internal.keys.get(i));
+                page.putInt(internal.children.get(i + 1));
+            }
+        }
+        return page;
+    }
+
+    private static String readKey(ByteBuffer page) {
+        byte[] key = new byte[page.getShort() & 0xFFFF];
+        page.get(key);
+        return new String(key, StandardCharsets.UTF_8);
+    }
+
+    private static void writeKey(ByteBuffer page, String key) {
+        byte[] bytes = key.getBytes(StandardCharsets.UTF_8);
+        page.putShort((short) bytes.length).put(bytes);
+    }
+
+    private int allocatePage() throws IOException {
+        if (freeListHead < 0) {
+            return pageCount++;
+        }
+        int page = freeListHead;
+        ByteBuffer free = readPage(page);
+        free.get();
+        freeListHead = free.getInt();
+        return page;
+    }
+
+    private void freePage(int pageId) throws IOException {
+        pool.discard(pageId);
+        ByteBuffer free = ByteBuffer.allocate(PAGE_SIZE);
+        free.put(FREE).putInt(freeListHead);
+        writePage(pageId, free);
+        freeListHead = pageId;
+    }
+
+    private Object storeValue(byte[] value) throws IOException {
+        if (value.length <= INLINE_VALUE_BYTES) {
+            return value;
+        }
+        int pages = (value.length + OVERFLOW_CAPACITY - 1) / OVERFLOW_CAPACITY;
+        int[] ids = new int[pages];
+        for (int i = 0; i < pages; i++) {
+            ids[i] = allocatePage();
+        }
+        for (int i = 0; i < pages; i++) {
+            int offset = i * OVERFLOW_CAPACITY;
+            int length = Math.min(OVERFLOW_CAPACITY, value.length - offset);
+            ByteBuffer page = ByteBuffer.allocate(PAGE_SIZE);
+            page.put(OVERFLOW).putInt(i + 1 < pages ? ids[i + 1] : -1).putInt(length).put(value, offset, length);
+            writePage(ids[i], page);
+        }
+        return new OverflowRef(ids[0], value.length);
+    }
+
+    private byte[] loadValue(Object stored) throws IOException {
+        if (stored instanceof byte[] value) {
+            return value;
+        }
+        OverflowRef ref = (OverflowRef) stored;
+        byte[] value = new byte[ref.length()];
+        int offset = 0;
+        int pageId = ref.firstPage();
+        while (pageId >= 0 && offset < value.length) {
+            ByteBuffer page = readPage(pageId);
+            page.get();
+            pageId = page.getInt();
+            int length = page.getInt();
+            page.get(value, offset, length);
+            offset += length;
+        }
+        return value;
+    }
+
+    private void releaseValue(Object stored) throws IOException {
+        if (!(stored instanceof OverflowRef ref)) {
+            return;
+        }
+        int pageId = ref.firstPage();
+        while (pageId >= 0) {
+            ByteBuffer page = readPage(pageId);
+            page.get();
+            int next = page.getInt();
+            freePage(pageId);
+            pageId = next;
+        }
+    }
+
+    /**
+     * Index of the child that covers key: the number of separators that are <= key
+     */
+    private static int childIndex(Internal internal, String key) {
+        int pos = Collections.binarySearch(internal.keys, key);
+        return pos >= 0 ? pos + 1 : -pos - 1;
+    }
+
+    private Leaf findLeaf(String key) throws IOException {
+        Node node = pool.get(root);
+        while (node instanceof Internal internal) {
+            node = pool.get(internal.children.get(key == null ? 0 : childIndex(internal, key)));
+        }
+        return (Leaf) node;
+    }
+
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    @Override
+    public TableOptions getOptions() {
+        return options;
+    }
+
+    @Override
+    public void setOptions(TableOptions options) {
+        this.options = options;
+    }
+
+    @Override
+    public void setName(String name) {
+        lock.writeLock().lock();
+        try {
+            this.name = name;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public Row get(String key) {
+        byte[] value = read(key);
+        return value == null ? null : decodeRow(value);
+    }
+
+    private byte[] read(String key) {
+        lock.readLock().lock();
+        try {
+            Leaf leaf = findLeaf(key);
+            int pos = Collections.binarySearch(leaf.keys, key);
+            return pos < 0 ? null : loadValue(leaf.values.get(pos));
+        } catch (IOException e) {
+            logger.error("Error while reading row " + key + " of " + name, e);
+            return null;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public void put(String key, Row row) {
+        if (key.getBytes(StandardCharsets.UTF_8).length > MAX_KEY_BYTES) {
+            throw new IllegalArgumentException("Row key longer than " + MAX_KEY_BYTES + " bytes cannot be stored in " + name);
+        }
+        byte[] value = dictionary.encode(row);
+        lock.writeLock().lock();
+        try {
+            Split split = insert(root, key, storeValue(value));
+            if (split != null) {
+                Internal newRoot = new Internal();
+                newRoot.children.add(root);
+                newRoot.keys.add(split.separator());
+                newRoot.children.add(split.rightPage());
+                root = allocatePage();
+                pool.put(root, newRoot);
+            }
+            modifications++;
+        } catch (IOException e) {
+            logger.error("Error while writing row " + key + " to " + name, e);
+            throw new UncheckedIOException(e);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Remove the row's leaf entry and free its overflow pages
+     * @return false if the row doesn't exist
+     */
+    @Override
+    public boolean deleteRow(String key) {
+        lock.writeLock().lock();
+        try {
+            int pageId = root;
+            Node node = pool.get(pageId);
+            while (node instanceof Internal internal) {
+                pageId = internal.children.get(childIndex(internal, key));
+                node = pool.get(pageId);
+            }
+            Leaf leaf = (Leaf) node;
+            int pos = Collections.binarySearch(leaf.keys, key);
+            if (pos < 0) {
+                return false;
+            }
+            leaf.keys.remove(pos);
+            releaseValue(leaf.values.remove(pos));
+            keyCount--;
+            pool.put(pageId, leaf);
+            modifications++;
+            return true;
+        } catch (IOException e) {
+            logger.error("Error while deleting row " + key + " of " + name, e);
+            throw new UncheckedIOException(e);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private Split insert(int pageId, String key, Object value) throws IOException {
+        Node node = pool.get(pageId);
+        if (node instanceof Leaf leaf) {
+            int pos = Collections.binarySearch(leaf.keys, key);
+            if (pos >= 0) {
+                releaseValue(leaf.values.get(pos));
+                leaf.values.set(pos, value);
+            } else {
+                leaf.keys.add(-pos - 1, key);
+                leaf.values.add(-pos - 1, value);
+                keyCount++;
+            }
+            pool.put(pageId, leaf);
+            return leaf.encodedSize() > PAGE_SIZE ? splitLeaf(pageId, leaf) : null;
+        }
+
+        Internal internal = (Internal) node;
+        int index = childIndex(internal, key);
+        Split split = insert(internal.children.get(index), key, value);
+        if (split == null) {
+            return null;
+        }
+        internal.keys.add(index, split.separator());
+        internal.children.add(index + 1, split.rightPage());
+        pool.put(pageId, internal);
+        return internal.encodedSize() > PAGE_SIZE ? splitInternal(pageId, internal) : null;
+    }
+
+    private Split splitLeaf(int pageId, Leaf leaf) throws IOException {
+        int half = leaf.encodedSize() / 2;
+        int size = 0;
+        int mid = 0;
+        while (mid < leaf.keys.size() - 1 && size < half) {
+            size += Leaf.entrySize(leaf.keys.get(mid), leaf.values.get(mid));
+            mid++;
+        }
+        Leaf right = new Leaf();
+        right.keys.addAll(leaf.keys.subList(mid, leaf.keys.size()));
+        right.values.addAll(leaf.values.subList(mid, leaf.values.size()));
+        leaf.keys.subList(mid, leaf.keys.size()).clear();
+        leaf.values.subList(mid, leaf.values.size()).clear();
+
+        int rightPage = allocatePage();
+        right.next = leaf.next;
+        leaf.next = rightPage;
+        pool.put(rightPage, right);
+        pool.put(pageId, leaf);
+        return new Split(right.keys.get(0), rightPage);
+    }
+
+    private Split splitInternal(int pageId, Internal internal) throws IOException {
+        int mid = internal.keys.size() / 2;
+        String separator = internal.keys.get(mid);
+        Internal right = new Internal();
+        right.keys.addAll(internal.keys.subList(mid + 1, internal.keys.size()));
+        right.children.addAll(internal.children.subList(mid + 1, internal.children.size()));
+        internal.keys.subList(mid, internal.keys.size()).clear();
+        internal.children.subList(mid + 1, internal.children.size()).clear();
+
+        int rightPage = allocatePage();
+        pool.put(rightPage, right);
+        pool.put(pageId, internal);
+        return new Split(separator, rightPage);
+    }
+
+    /**
+     * Walks the leaf chain one leaf at a time, copying entries out under the read lock.
+     * If the tree changed since the previous leaf was read, it re-descends from the root
+     * to the first key after the last one returned.
+     */
+    private class LeafCursor<T> implements Iterator<T> {
+        private final String endExclusive;
+        private final boolean withValues;
+        private final Deque<T> buffer = new ArrayDeque<>();
+        private String lastKey;
+        private String startKey;
+        private int nextLeaf = -1;
+        private long seenModifications = -1;
+        private boolean exhausted;
+
+        LeafCursor(String startKey, String endExclusive, boolean withValues) {
+            this.startKey = startKey;
+            this.endExclusive = endExclusive;
+            this.withValues = withValues;
+        }
+
+        @SuppressWarnings("unchecked")
+        private void fill() {
+            lock.readLock().lock();
+            try {
+                Leaf leaf;
+                int from;
+                if (seenModifications == modifications && nextLeaf >= 0) {
+                    leaf = (Leaf) pool.get(nextLeaf);
+                    from = 0;
+                } else {
+                    String seek = lastKey != null ? lastKey : startKey;
+                    leaf = findLeaf(seek);
+                    from = 0;
+                    if (seek != null) {
+                        int pos = Collections.binarySearch(leaf.keys, seek);
+                        from = pos >= 0 ? (lastKey != null ? pos + 1 : pos) : -pos - 1;
+                    }
+                }
+                seenModifications = modifications;
+                while (true) {
+                    for (int i = from; i < leaf.keys.size(); i++) {
+                        String key = leaf.keys.get(i);
+                        if (endExclusive != null && key.compareTo(endExclusive) >= 0) {
+                            exhausted = true;
+                            return;
+                        }
+                        lastKey = key;
+                        if (withValues) {
+                            Row row = decodeRow(loadValue(leaf.values.get(i)));
+                            if (row != null) {
+                                buffer.add((T) row);
+                            }
+                        } else {
+                            buffer.add((T) key);
+                        }
+                    }
+                    nextLeaf = leaf.next;
+                    if (nextLeaf < 0) {
+                        exhausted = true;
+                        return;
+                    }
+                    if (!buffer.isEmpty()) {
+                        return;
+                    }
+                    leaf = (Leaf) pool.get(nextLeaf);
+                    from = 0;
+                }
+            } catch (IOException e) {
+                logger.error("Error while scanning " + name, e);
+                exhausted = true;
+            } finally {
+                lock.readLock().unlock();
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            if (buffer.isEmpty() && !exhausted) {
+                fill();
+            }
+            return !buffer.isEmpty();
+        }
+
+        @Override
+        public T next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            return buffer.poll();
+        }
+    }
+
+    @Override
+    public Iterator<Row> scan(String startRow, String endRowExclusive) {
+        return new LeafCursor<>(startRow, endRowExclusive, true);
+    }
+
+    /**
+     * Sorted, read-only view of the keys; iterating it walks the leaves
+     */
+    @Override
+    public Set<String> getKeys() {
+        return new AbstractSet<>() {
+            @Override
+            public Iterator<String> iterator() {
+                return new LeafCursor<>(null, null, false);
+            }
+
+            @Override
+            public int size() {
+                return countKeys();
+            }
+
+            @Override
+            public boolean contains(Object o) {
+                return o instanceof String key && read(key) != null;
+            }
+        };
+    }
+
+    @Override
+    public int countKeys() {
+        lock.readLock().lock();
+        try {
+            return (int) keyCount;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public String generateMD5(String rowKey) throws NoSuchAlgorithmException {
+        byte[] value = read(rowKey);
+        if (value == null) {
+            return null;
+        }
+        MessageDigest md = MessageDigest.getInstance("MD5");
+        byte[] hashInBytes = md.digest(value);
+        StringBuilder sb = new StringBuilder();
+        for (byte b : hashInBytes) {
+            sb.append(String.format("%02x", b));
+        }
+        return sb.toString();
+    }
+
+    @Override
+    public List<RowMeta> getRowMetas() {
+        List<RowMeta> rowMetas = new ArrayList<>();
+        for (String key : getKeys()) {
+            try {
+                rowMetas.add(new RowMeta(key, generateMD5(key)));
+            } catch (NoSuchAlgorithmException e) {
+                logger.error("Error generating MD5 for row " + key, e);
+                throw new RuntimeException(e);
+            }
+        }
+        return rowMetas;
+    }
+
+    @Override
+    public Map<String, String> stats() {
+        return dictionary.stats();
+    }
+
+    @Override
+    public void flush() {
+        lock.writeLock().lock();
+        try {
+            pool.flush();
+            writeMeta();
+            channel.force(false);
+        } catch (IOException e) {
+            logger.error("Error while flushing B+tree table " + name, e);
+            throw new UncheckedIOException(e);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public void destroy() throws IOException {
+        lock.writeLock().lock();
+        try {
+            pool.clear();
+            channel.close();
+            dictionary.close();
+            Trash.delete(dir());
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private Row decodeRow(byte[] value) {
+        try {
+            return dictionary.decode(value);
+        } catch (Exception e) {
+            logger.error("Error while decoding row", e);
+            return null;
+        }
+    }
+}
@@ -0,0 +1,529 @@
+package cis5550.model;
+
+import cis5550.kvs.Row;
+import cis5550.tools.Logger;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+/**
+ * Bitcask-style table: every put is appended to the active segment file, and an in-memory key directory
+ * maps each row key to the segment, offset and length of its newest value, so a read is one positioned read.
+ * Closed segments get a hint file listing their keys so startup does not have to read the values,
+ * and segments that are mostly overwritten data are merged in the background.
+ * <p>
+ * Segment record: [crc][keyLen][valueLen][key][value], where the crc covers everything after it.
+ * Hint record: [keyLen][key][valueOffset][valueLen].
+ * <p>
+ * Deleting a row appends a tombstone, a record with valueLen {@link #TOMBSTONE} and no value, so the row's older
+ * values stay deleted when the segments are replayed. A merge takes in every closed segment, so no older value
+ * survives it and it drops the tombstones.
+ */
+public class BitcaskTable implements Table {
+    private static final Logger logger = Logger.getLogger(BitcaskTable.class);
+    private static final long SEGMENT_SIZE = 64L << 20;
+    private static final double MERGE_THRESHOLD = 0.5;
+    private static final int HEADER_SIZE = 12;
+    private static final int TOMBSTONE = -1;
+    private static final String SEGMENT_PREFIX = "seg-";
+    private static final String DATA_SUFFIX = ".data";
+    private static final String HINT_SUFFIX = ".hint";
+    private static final ScheduledExecutorService merger = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "bitcask-merger");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private record Location(long segment, long offset, int length) {
+    }
+
+    private String name;
+    private volatile TableOptions options;
+    private final String storageDir;
+    private final ConcurrentHashMap<String, Location> keyDir = new ConcurrentHashMap<>();
+    private final ConcurrentSkipListMap<Long, FileChannel> segments = new ConcurrentSkipListMap<>();
+    private final ConcurrentHashMap<Long, AtomicLong> deadBytes = new ConcurrentHashMap<>();
+    // Keys deleted by a tombstone in each segment
+    private final ConcurrentHashMap<Long, Set<String>> tombstones = new ConcurrentHashMap<>();
+    private final Object writeLock = new Object();
+    private long nextSegment = 1;
+    private long activeSegment;
+    private FileChannel active;
+    private final ScheduledFuture<?> mergeTask;
+    private volatile boolean destroyed;
+    private final ColumnDictionary dictionary;
+
+    public BitcaskTable(String name, String storageDir) {
+        this.name = name;
+        this.storageDir = storageDir;
+        this.options = TableOptions.load(storageDir, name);
+        this.dictionary = new ColumnDictionary(() -> dir().resolve(ColumnDictionary.FILE_NAME));
+        try {
+            load();
+        } catch (IOException e) {
+            logger.error("Error while opening Bitcask table " + name, e);
+            throw new UncheckedIOException(e);
+        }
+        mergeTask = merger.scheduleWithFixedDelay(this::mergeIfNeeded, 1, 1, TimeUnit.MINUTES);
+    }
+
+    private Path dir() {
+        return Paths.get(storageDir, name);
+    }
+
+    private Path segmentPath(long segment, String suffix) {
+        return dir().resolve(SEGMENT_PREFIX + segment + suffix);
+    }
+
+    private void load() throws IOException {
+        Files.createDirectories(dir());
+        TreeSet<Long> ids = new TreeSet<>();
+        File[] files = Objects.requireNonNull(dir().toFile().listFiles(File::isFile));
+        for (File file : files) {
+            String fileName = file.getName();
+            if (fileName.endsWith(".tmp")) {
+                Files.delete(file.toPath());
+            } else if (fileName.startsWith(SEGMENT_PREFIX) && fileName.endsWith(DATA_SUFFIX)) {
+                ids.add(Long.parseLong(fileName.substring(SEGMENT_PREFIX.length(), fileName.length() - DATA_SUFFIX.length())));
+            }
+        }
+
+        // Later segments override earlier ones, so load them in order
+        for (long segment : ids) {
+            FileChannel channel = FileChannel.open(segmentPath(segment, DATA_SUFFIX), StandardOpenOption.READ, StandardOpenOption.WRITE);
+            segments.put(segment, channel);
+            deadBytes.put(segment, new AtomicLong());
+            if (Files.exists(segmentPath(segment, HINT_SUFFIX))) {
+                loadHint(segment);
+            } else {
+                scanSegment(segment, channel);
+                writeHint(segment);
+            }
+        }
+        nextSegment = ids.isEmpty() ? 1 : ids.last() + 1;
+        openActiveSegment();
+        logger.info("Loaded " + keyDir.size() + " keys from " + ids.size() + " segments of " + name);
+    }
+
+    private void loadHint(long segment) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(segmentPath(segment, HINT_SUFFIX)), 1 << 16))) {
+            while (true) {
+                int keyLength;
+                try {
+                    keyLength = in.readInt();
+                } catch (EOFException e) {
+                    return;
+                }
+                byte[] key = new byte[keyLength];
+                in.readFully(key);
+                Location location = new Location(segment, in.readLong(), in.readInt());
+                if (location.length() == TOMBSTONE) {
+                    forget(new String(key, StandardCharsets.UTF_8), segment);
+                } else {
+                    track(new String(key, StandardCharsets.UTF_8), location);
+                }
+            }
+        }
+    }
+
+    /**
+     * Rebuild the key directory entries of a segment that has no hint file, cutting off a torn tail
+     */
+    private void scanSegment(long segment, FileChannel channel) throws IOException {
+        long position = 0;
+        long size = channel.size();
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(segmentPath(segment, DATA_SUFFIX)), 1 << 16))) {
+            while (position + HEADER_SIZE <= size) {
+                int crc = in.readInt();
+                int keyLength = in.readInt();
+                int valueLength = in.readInt();
+                int bodyLength = keyLength + Math.max(valueLength, 0);
+                if (keyLength < 0 || valueLength < TOMBSTONE || position + HEADER_SIZE + bodyLength > size) {
+                    break;
+                }
+                byte[] body = new byte[bodyLength];
+                in.readFully(body);
+                if (checksum(keyLength, valueLength, body) != crc) {
+                    break;
+                }
+                String key = new String(body, 0, keyLength, StandardCharsets.UTF_8);
+                if (valueLength == TOMBSTONE) {
+                    forget(key, segment);
+                } else {
+                    track(key, new Location(segment, position + HEADER_SIZE + keyLength, valueLength));
+                }
+                position += HEADER_SIZE + bodyLength;
+            }
+        }
+        if (position < size) {
+            logger.warn("Truncating torn tail of segment " + segment + " in " + name + " at offset " + position);
+            channel.truncate(position);
+        }
+    }
+
+    private void writeHint(long segment) throws IOException {
+        Path tmp = segmentPath(segment, HINT_SUFFIX + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp), 1 << 16))) {
+            // Tombstones first: a key that is live in this segment was written again after it was deleted
+            for (String key : tombstones.getOrDefault(segment, Set.of())) {
+                byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+                out.writeInt(keyBytes.length);
+                out.write(keyBytes);
+                out.writeLong(0);
+                out.writeInt(TOMBSTONE);
+            }
+            for (Map.Entry<String, Location> entry : keyDir.entrySet()) {
+                Location location = entry.getValue();
+                if (location.segment() != segment) {
+                    continue;
+                }
+                byte[] key = entry.getKey().getBytes(StandardCharsets.UTF_8);
+                out.writeInt(key.length);
+                out.write(key);
+                out.writeLong(location.offset());
+                out.writeInt(location.length());
+            }
+        }
+        Files.move(tmp, segmentPath(segment, HINT_SUFFIX), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /**
+     * Point the key at its new location and account for the bytes it used to occupy
+     */
+    private void track(String key, Location location) {
+        Location previous = keyDir.put(key, location);
+        if (previous != null) {
+            deadBytes.computeIfAbsent(previous.segment(), s -> new AtomicLong()).addAndGet(HEADER_SIZE + key.length() + previous.length());
+        }
+    }
+
+    /**
+     * Drop the key for a tombstone in the segment; the tombstone itself is dead as soon as it is written
+     */
+    private void forget(String key, long segment) {
+        Location previous = keyDir.remove(key);
+        if (previous != null) {
+            deadBytes.computeIfAbsent(previous.segment(), s -> new AtomicLong()).addAndGet(HEADER_SIZE + key.length() + previous.length());
+        }
+        deadBytes.computeIfAbsent(segment, s -> new AtomicLong()).addAndGet(HEADER_SIZE + key.length());
+        tombstones.computeIfAbsent(segment, s -> ConcurrentHashMap.newKeySet()).add(key);
+    }
+
+    private void openActiveSegment() throws IOException {
+        activeSegment = nextSegment++;
+        active = FileChannel.open(segmentPath(activeSegment, DATA_SUFFIX), StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        segments.put(activeSegment, active);
+        deadBytes.put(activeSegment, new AtomicLong());
+    }
+
+    /**
+     * Close the active segment, write its hint file and start a new one. Must hold writeLock.
+     */
+    private void rollActiveSegment() throws IOException {
+        long closed = activeSegment;
+        openActiveSegment();
+        writeHint(closed);
+    }
+
+    private static int checksum(int keyLength, int valueLength, byte[] body) {
+        CRC32 crc = new CRC32();
+        crc.update(ByteBuffer.allocate(8).putInt(keyLength).putInt(valueLength).array());
+        crc.update(body);
+        return (int) crc.getValue();
+    }
+
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    @Override
+    public TableOptions getOptions() {
+        return options;
+    }
+
+    @Override
+    public void setOptions(TableOptions options) {
+        this.options = options;
+    }
+
+    @Override
+    public void setName(String name) {
+        synchronized (writeLock) {
+            this.name = name;
+        }
+    }
+
+    @Override
+    public Row get(String key) {
+        byte[] value = read(key);
+        if (value == null) {
+            return null;
+        }
+        try {
+            return dictionary.decode(value);
+        } catch (Exception e) {
+            logger.error("Error while decoding row " + key + " of " + name, e);
+            return null;
+        }
+    }
+
+    private byte[] read(String key) {
+        while (true) {
+            Location location = keyDir.get(key);
+            if (location == null) {
+                return null;
+            }
+            FileChannel channel = segments.get(location.segment());
+            if (channel == null) {
+                // The segment was merged away after we looked the key up
+                continue;
+            }
+            ByteBuffer buffer = ByteBuffer.allocate(location.length());
+            try {
+                while (buffer.hasRemaining()) {
+                    if (channel.read(buffer, location.offset() + buffer.position()) < 0) {
+                        throw new EOFException("Segment " + location.segment() + " of " + name + " is shorter than expected");
+                    }
+                }
+                return buffer.array();
+            } catch (ClosedChannelException e) {
+                if (destroyed) {
+                    return null;
+                }
+            } catch (IOException e) {
+                logger.error("Error while reading row " + key + " of " + name, e);
+                return null;
+            }
+        }
+    }
+
+    @Override
+    public void put(String key, Row row) {
+        byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+        byte[] value = dictionary.encode(row);
+        byte[] body = new byte[keyBytes.length + value.length];
+        System.arraycopy(keyBytes, 0, body, 0, keyBytes.length);
+        System.arraycopy(value, 0, body, keyBytes.length, value.length);
+        ByteBuffer record = ByteBuffer.allocate(HEADER_SIZE + body.length);
+        record.putInt(checksum(keyBytes.length, value.length, body)).putInt(keyBytes.length).putInt(value.length).put(body);
+        record.flip();
+
+        synchronized (writeLock) {
+            try {
+                long offset = append(record);
+                track(key, new Location(activeSegment, offset + HEADER_SIZE + keyBytes.length, value.length));
+                rollIfFull();
+            } catch (IOException e) {
+                logger.error("Error while appending row " + key + " to " + name, e);
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+
+    /**
+     * Append a tombstone for the row
+     * @return false if the row doesn't exist
+     */
+    @Override
+    public boolean deleteRow(String key) {
+        byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer record = ByteBuffer.allocate(HEADER_SIZE + keyBytes.length);
+        record.putInt(checksum(keyBytes.length, TOMBSTONE, keyBytes)).putInt(keyBytes.length).putInt(TOMBSTONE).put(keyBytes);
+        record.flip();
+
+        synchronized (writeLock) {
+            if (!keyDir.containsKey(key)) {
+                return false;
+            }
+            try {
+                append(record);
+                forget(key, activeSegment);
+                rollIfFull();
+            } catch (IOException e) {
+                logger.error("Error while deleting row " + key + " of " + name, e);
+                throw new UncheckedIOException(e);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Write the record at the end of the active segment. Must hold writeLock.
+     * @return the record's offset
+     */
+    private long append(ByteBuffer record) throws IOException {
+        long offset = active.size();
+        while (record.hasRemaining()) {
+            active.write(record, offset + record.position());
+        }
+        return offset;
+    }
+
+    private void rollIfFull() throws IOException {
+        if (active.size() >= SEGMENT_SIZE) {
+            rollActiveSegment();
+        }
+    }
+
+    @Override
+    public Set<String> getKeys() {
+        return keyDir.keySet();
+    }
+
+    @Override
+    public int countKeys() {
+        return keyDir.size();
+    }
+
+    @Override
+    public String generateMD5(String rowKey) throws NoSuchAlgorithmException {
+        byte[] value = read(rowKey);
+        if (value == null) {
+            return null;
+        }
+        MessageDigest md = MessageDigest.getInstance("MD5");
+        byte[] hashInBytes = md.digest(value);
+        StringBuilder sb = new StringBuilder();
+        for (byte b : hashInBytes) {
+            sb.append(String.format("%02x", b));
+        }
+        return sb.toString();
+    }
+
+    @Override
+    public List<RowMeta> getRowMetas() {
+        List<RowMeta> rowMetas = new ArrayList<>();
+        for (String key : keyDir.keySet()) {
+            try {
+                rowMetas.add(new RowMeta(key, generateMD5(key)));
+            } catch (NoSuchAlgorithmException e) {
+                logger.error("Error generating MD5 for row " + key, e);
+                throw new RuntimeException(e);
+            }
+        }
+        return rowMetas;
+    }
+
+    @Override
+    public Map<String, String> stats() {
+        return dictionary.stats();
+    }
+
+    private void mergeIfNeeded() {
+        if (destroyed) {
+            return;
+        }
+        try {
+            long total = 0;
+            long dead = 0;
+            for (Map.Entry<Long, FileChannel> entry : segments.headMap(activeSegment).entrySet()) {
+                total += entry.getValue().size();
+                dead += deadBytes.get(entry.getKey()).get();
+            }
+            if (total > 0 && (double) dead / total >= MERGE_THRESHOLD) {
+                merge();
+            }
+        } catch (IOException e) {
+            logger.error("Error while merging segments of " + name, e);
+        }
+    }
+
+    /**
+     * Copy the live values of every closed segment into a single new segment and drop the old ones.
+     * The merged segment takes an id below the new active segment, so anything written during
+     * the merge still wins when the segments are replayed at startup. Tombstones are not copied: every segment
+     * older than the merged one is an input, so there is no value left for them to hide.
+     */
+    void merge() throws IOException {
+        long mergedSegment;
+        List<Long> inputs;
+        synchronized (writeLock) {
+            mergedSegment = nextSegment++;
+            rollActiveSegment();
+            inputs = new ArrayList<>(segments.headMap(mergedSegment).keySet());
+        }
+        if (inputs.isEmpty()) {
+            return;
+        }
+
+        Path mergedPath = segmentPath(mergedSegment, DATA_SUFFIX);
+        int moved = 0;
+        try (FileChannel out = FileChannel.open(mergedPath, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            Set<Long> inputSet = new HashSet<>(inputs);
+            long offset = 0;
+            for (Map.Entry<String, Location> entry : keyDir.entrySet()) {
+                if (!inputSet.contains(entry.getValue().segment())) {
+                    continue;
+                }
+                byte[] value = read(entry.getKey());
+                if (value == null) {
+                    continue;
+                }
+                byte[] keyBytes = entry.getKey().getBytes(StandardCharsets.UTF_8);
+                byte[] body = new byte[keyBytes.length + value.length];
+                System.arraycopy(keyBytes, 0, body, 0, keyBytes.length);
+                System.arraycopy(value, 0, body, keyBytes.length, value.length);
+                ByteBuffer record = ByteBuffer.allocate(HEADER_SIZE + body.length);
+                record.putInt(checksum(keyBytes.length, value.length, body)).putInt(keyBytes.length).putInt(value.length).put(body);
+                record.flip();
+                while (record.hasRemaining()) {
+                    offset += out.write(record, offset);
+                }
+                // A put may have landed after we read the value; only repoint keys that still live in an input
+                if (keyDir.replace(entry.getKey(), entry.getValue(), new Location(mergedSegment, offset - value.length, value.length))) {
+                    moved++;
+                }
+            }
+            out.force(true);
+        }
+
+        segments.put(mergedSegment, FileChannel.open(mergedPath, StandardOpenOption.READ, StandardOpenOption.WRITE));
+        deadBytes.put(mergedSegment, new AtomicLong());
+        writeHint(mergedSegment);
+        for (long segment : inputs) {
+            FileChannel channel = segments.remove(segment);
+            deadBytes.remove(segment);
+            tombstones.remove(segment);
+            channel.close();
+            Files.deleteIfExists(segmentPath(segment, DATA_SUFFIX));
+            Files.deleteIfExists(segmentPath(segment, HINT_SUFFIX));
+        }
+        logger.info("Merged " + inputs.size() + " segments of " + name + " into segment " + mergedSegment + " holding " + moved + " keys");
+    }
+
+    @Override
+    public void destroy() throws IOException {
+        destroyed = true;
+        mergeTask.cancel(false);
+        synchronized (writeLock) {
+            for (FileChannel channel : segments.values()) {
+                channel.close();
+            }
+            segments.clear();
+            keyDir.clear();
+            tombstones.clear();
+        }
+        dictionary.close();
+        Trash.delete(dir());
+    }
+}
@@ -0,0 +1,103 @@
+package cis5550.model;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Fixed-size Bloom filter over string keys.
+ * A key is mapped to numHashes bit positions by double hashing one 64-bit hash, so mightContain never
+ * returns false for a key that was added and returns true for an absent key with roughly the configured
+ * false positive probability.
+ */
+public class BloomFilter {
+    private final long[] bits;
+    private final long bitCount;
+    private final int numHashes;
+
+    private BloomFilter(long[] bits, int numHashes) {
+        this.bits = bits;
+        this.bitCount = (long) bits.length * 64;
+        this.numHashes = numHashes;
+    }
+
+    /**
+     * Size a filter for the expected number of keys and the target false positive probability
+     */
+    public static BloomFilter create(long expectedKeys, double falsePositiveRate) {
+        long keys = Math.max(1, expectedKeys);
+        long bitCount = (long) Math.ceil(-keys * Math.log(falsePositiveRate) / (Math.log(2) * Math.log(2)));
+        int numHashes = (int) Math.max(1, Math.round((double) bitCount / keys * Math.log(2)));
+        return new BloomFilter(new long[(int) Math.max(1, (bitCount + 63) / 64)], numHashes);
+    }
+
+    public void add(String key) {
+        addHash(hash(key));
+    }
+
+    /**
+     * Add a key by the value {@link #hash(String)} returned for it
+     */
+    public void addHash(long hash) {
+        int h1 = (int) hash;
+        int h2 = (int) (hash >>> 32);
+        for (int i = 1; i <= numHashes; i++) {
+            long bit = Math.floorMod(h1 + (long) i * h2, bitCount);
+            bits[(int) (bit >>> 6)] |= 1L << bit;
+        }
+    }
+
+    public boolean mightContain(String key) {
+        long hash = hash(key);
+        int h1 = (int) hash;
+        int h2 = (int) (hash >>> 32);
+        for (int i = 1; i <= numHashes; i++) {
+            long bit = Math.floorMod(h1 + (long) i * h2, bitCount);
+            if ((bits[(int) (bit >>> 6)] & (1L << bit)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public long sizeInBytes() {
+        return (long) bits.length * 8;
+    }
+
+    /**
+     * 64-bit FNV-1a over the UTF-8 bytes of the key, with a final avalanche so both halves are usable
+     */
+    public static long hash(String key) {
+        long h = 0xcbf29ce484222325L;
+        for (byte b : key.getBytes(StandardCharsets.UTF_8)) {
+            h ^= b & 0xff;
+            h *= 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    /**
+     * Serialized as [numHashes][wordCount][word]*
+     */
+    public void writeTo(DataOutputStream out) throws IOException {
+        out.writeInt(numHashes);
+        out.writeInt(bits.length);
+        for (long word : bits) {
+            out.writeLong(word);
+        }
+    }
+
+    public static BloomFilter readFrom(ByteBuffer buffer) {
+        int numHashes = buffer.getInt();
+        long[] bits = new long[buffer.getInt()];
+        buffer.asLongBuffer().get(bits);
+        buffer.position(buffer.position() + bits.length * 8);
+        return new BloomFilter(bits, numHashes);
+    }
+}
@@ -0,0 +1,114 @@
+package cis5550.model;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Fixed-capacity cache of decoded pages with LRU eviction.
+ * Dirty pages are written back through the PageIO when they are evicted or flushed.
+ */
+public class BufferPool<T> {
+    public interface PageIO<T> {
+        T read(int pageId) throws IOException;
+
+        void write(int pageId, T page) throws IOException;
+    }
+
+    private static class Frame<T> {
+        private T page;
+        private boolean dirty;
+
+        Frame(T page, boolean dirty) {
+            this.page = page;
+            this.dirty = dirty;
+        }
+    }
+
+    private final int capacity;
+    private final PageIO<T> io;
+    private final LinkedHashMap<Integer, Frame<T>> frames;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    public BufferPool(int capacity, PageIO<T> io) {
+        this.capacity = capacity;
+        this.io = io;
+        this.frames = new LinkedHashMap<>(capacity * 4 / 3 + 1, 0.75f, true);
+    }
+
+    public synchronized T get(int pageId) throws IOException {
+        Frame<T> frame = frames.get(pageId);
+        if (frame != null) {
+            hits.incrementAndGet();
+            return frame.page;
+        }
+        misses.incrementAndGet();
+        T page = io.read(pageId);
+        frames.put(pageId, new Frame<>(page, false));
+        evict();
+        return page;
+    }
+
+    /**
+     * Install a new or modified page; it is written back on eviction or the next flush
+     */
+    public synchronized void put(int pageId, T page) throws IOException {
+        Frame<T> frame = frames.get(pageId);
+        if (frame == null) {
+            frames.put(pageId, new Frame<>(page, true));
+            evict();
+        } else {
+            frame.page = page;
+            frame.dirty = true;
+        }
+    }
+
+    /**
+     * Forget a page without writing it back
+     */
+    public synchronized void discard(int pageId) {
+        frames.remove(pageId);
+    }
+
+    public synchronized void flush() throws IOException {
+        for (Map.Entry<Integer, Frame<T>> entry : frames.entrySet()) {
+            Frame<T> frame = entry.getValue();
+            if (frame.dirty) {
+                io.write(entry.getKey(), frame.page);
+                frame.dirty = false;
+            }
+        }
+    }
+
+    public synchronized void clear() {
+        frames.clear();
+    }
+
+    private void evict() throws IOException {
+        Iterator<Map.Entry<Integer, Frame<T>>> it = frames.entrySet().iterator();
+        while (frames.size() > capacity && it.hasNext()) {
+            Map.Entry<Integer, Frame<T>> eldest = it.next();
+            if (eldest.getValue().dirty) {
+                io.write(eldest.getKey(), eldest.getValue().page);
+            }
+            it.remove();
+            evictions.incrementAndGet();
+        }
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public long getEvictions() {
+        return evictions.get();
+    }
+}
@@ -0,0 +1,12 @@
+package cis5550.model;
+
+import java.util.Iterator;
+
+/**
+ * An iterator that holds on to files until it is exhausted or closed. A caller that may stop early should close
+ * it, and closing it twice, or after it is exhausted, does nothing.
+ */
+public interface CloseableIterator<T> extends Iterator<T>, AutoCloseable {
+    @Override
+    void close();
+}
@@ -0,0 +1,242 @@
+package cis5550.model;
+
+import cis5550.kvs.ImmutableRow;
+import cis5550.kvs.Row;
+import cis5550.kvs.RowCodec;
+import cis5550.tools.Logger;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * Numbers the column names of one table. Rows a table keeps on the heap share the dictionary's copy of each name,
+ * and rows it keeps off the heap or in whole-row files on disk store the name's number instead of the name (the
+ * per-column layout of {@link ColumnLog} still spells out the name in every record); names are only turned
+ * back into strings when a row leaves the table. Numbers are handed out in order and never change, so a table
+ * that keeps rows on disk also keeps its dictionary there, in {@link #FILE_NAME} next to the rows, as a list of
+ * names appended to as new ones turn up.
+ */
+public final class ColumnDictionary {
+    private static final Logger logger = Logger.getLogger(ColumnDictionary.class);
+    public static final String FILE_NAME = "columns.dict";
+    // Rough heap cost of a String apart from its characters
+    private static final int STRING_OVERHEAD = 40;
+
+    private final ConcurrentHashMap<String, Integer> ids = new ConcurrentHashMap<>();
+    private volatile String[] names = new String[16];
+    private volatile int size;
+    private final Supplier<Path> file;
+    private FileChannel channel;
+    private final AtomicLong savedBytes = new AtomicLong();
+
+    /**
+     * A dictionary that lives only as long as its table
+     */
+    public ColumnDictionary() {
+        this.file = null;
+    }
+
+    /**
+     * A dictionary kept in a file; the supplier gives the file's current path, which changes when the table is renamed
+     */
+    public ColumnDictionary(Supplier<Path> file) {
+        this.file = file;
+        Path path = file.get();
+        if (!Files.exists(path)) {
+            return;
+        }
+        try {
+            ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(path));
+            int end = 0;
+            while (buffer.remaining() >= 4) {
+                int length = buffer.getInt();
+                if (length < 0 || length > buffer.remaining()) {
+                    break;
+                }
+                byte[] name = new byte[length];
+                buffer.get(name);
+                add(new String(name, StandardCharsets.UTF_8));
+                end = buffer.position();
+            }
+            if (end < buffer.limit()) {
+                // A name whose write was cut short by a crash; no row can refer to it
+                logger.warn("Dropping a partly written column name at the end of " + path);
+                try (FileChannel truncate = FileChannel.open(path, StandardOpenOption.WRITE)) {
+                    truncate.truncate(end);
+                }
+            }
+        } catch (IOException e) {
+            logger.error("Error while reading the column dictionary " + path, e);
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private void add(String name) {
+        if (size == names.length) {
+            names = Arrays.copyOf(names, size * 2);
+        }
+        // Publish the size before the number, so a caller that finds the number can always look up its name
+        int id = size;
+        names[id] = name;
+        size = id + 1;
+        ids.put(name, id);
+    }
+
+    /**
+     * @return the column's number, numbering it if it is new
+     */
+    public int id(String column) {
+        Integer id = ids.get(column);
+        if (id != null) {
+            return id;
+        }
+        synchronized (this) {
+            id = ids.get(column);
+            if (id != null) {
+                return id;
+            }
+            if (file != null) {
+                append(column);
+            }
+            add(column);
+            return size - 1;
+        }
+    }
+
+    /**
+     * @return the column's number, or -1 if no row of the table has had it
+     */
+    public int find(String column) {
+        Integer id = ids.get(column);
+        return id == null ? -1 : id;
+    }
+
+    /**
+     * @return the name with the given number, or null if there is none
+     */
+    public String name(int id) {
+        // Read the size first: the array it was published with, or any later one, holds that many names
+        int count = size;
+        String[] current = names;
+        return id >= 0 && id < count ? current[id] : null;
+    }
+
+    /**
+     * The dictionary's copy of the column name
+     */
+    public String intern(String column) {
+        String name = name(id(column));
+        if (name != column) {
+            savedBytes.addAndGet(STRING_OVERHEAD + column.length());
+        }
+        return name;
+    }
+
+    /**
+     * A compact copy of the row whose column names are the dictionary's copies
+     */
+    public Row intern(Row row) {
+        ImmutableRow.Builder builder = ImmutableRow.builder(row.key());
+        for (String column : row.columns()) {
+            builder.put(intern(column), row.getBytes(column));
+        }
+        return new Row(builder.build());
+    }
+
+    /**
+     * Count bytes a caller saved by storing a column's number in place of its name
+     */
+    void saved(long bytes) {
+        savedBytes.addAndGet(bytes);
+    }
+
+    private void append(String column) {
+        byte[] name = column.getBytes(StandardCharsets.UTF_8);
+        try {
+            if (channel == null) {
+                Path path = file.get();
+                Files.createDirectories(path.getParent());
+                channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+            }
+            ByteBuffer record = ByteBuffer.allocate(4 + name.length).putInt(name.length).put(name);
+            record.flip();
+            while (record.hasRemaining()) {
+                channel.write(record);
+            }
+            // Rows that use the number may be made durable before the dictionary would otherwise be
+            channel.force(false);
+        } catch (IOException e) {
+            logger.error("Error while adding column " + column + " to the dictionary", e);
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * The row in the {@link RowCodec} format with column numbers in place of names
+     */
+    public byte[] encode(Row row) {
+        long[] saved = {0};
+        byte[] encoded = RowCodec.encode(row, column -> {
+            int id = id(column);
+            saved[0] += column.length() - varintSize(id);
+            return id;
+        });
+        savedBytes.addAndGet(saved[0]);
+        return encoded;
+    }
+
+    /**
+     * Decode a row from {@link #encode}, or one in the text format of {@link Row#toByteArray()}
+     */
+    public Row decode(byte[] bytes) throws Exception {
+        return RowCodec.decode(bytes, this::name);
+    }
+
+    static int varintSize(int value) {
+        int size = 1;
+        while ((value & ~0x7F) != 0) {
+            value >>>= 7;
+            size++;
+        }
+        return size;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public long bytesSaved() {
+        return savedBytes.get();
+    }
+
+    public Map<String, String> stats() {
+        Map<String, String> stats = new LinkedHashMap<>();
+        stats.put("dictionary columns", String.valueOf(size));
+        stats.put("dictionary bytes saved", String.valueOf(savedBytes.get()));
+        return stats;
+    }
+
+    public synchronized void close() {
+        if (channel == null) {
+            return;
+        }
+        try {
+            channel.close();
+        } catch (IOException e) {
+            logger.error("Error while closing the column dictionary", e);
+        }
+        channel = null;
+    }
+}
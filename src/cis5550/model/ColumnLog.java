@@ -0,0 +1,252 @@
+package cis5550.model;
+
+import cis5550.kvs.ImmutableRow;
+import cis5550.kvs.Row;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32C;
+
+/**
+ * Row file layout that stores each column as its own record, so one column can be replaced by appending a
+ * record instead of rewriting the row.
+ * <p>
+ * A file is [MAGIC] followed by records [crc32c][flags][nameLength:short][valueLength][name][value]; the checksum
+ * covers everything after itself, and the name's length limits a column name to {@link #MAX_NAME_BYTES}. The last record of a column wins, and a value length of -1 removes the column.
+ * A record cut short by a crash is ignored, and the next append overwrites it. The column directory, each
+ * column's newest record, is built from the record headers alone, and can be carried forward over an append
+ * without reading the file again.
+ */
+final class ColumnLog {
+    static final byte[] MAGIC = {0, 'T', 'D', 'K'};
+    static final int RECORD_HEADER_SIZE = 4 + 1 + 2 + 4;
+    static final int MAX_NAME_BYTES = 0xFFFF;
+    private static final byte COMPRESSED = 1;
+
+    private ColumnLog() {
+    }
+
+    /**
+     * Where a column's newest record sits in the file
+     */
+    record Entry(long offset, int length, byte flags, int nameLength, int valueLength, int crc) {
+    }
+
+    /**
+     * The newest record of every column, where the next record goes, and how many complete records the file holds
+     */
+    record Directory(Map<String, Entry> columns, long end, int records) {
+        long liveBytes() {
+            long live = MAGIC.length;
+            for (Entry entry : columns.values()) {
+                live += entry.length();
+            }
+            return live;
+        }
+
+        long deadBytes() {
+            return end - liveBytes();
+        }
+
+        /**
+         * Records that a newer record of their column, or a removal, made redundant
+         */
+        int deadRecords() {
+            return records - columns.size();
+        }
+
+        /**
+         * The directory once the records from {@link #record} have been written at the end of the file
+         */
+        Directory append(List<byte[]> appended) {
+            Map<String, Entry> newest = new HashMap<>(columns);
+            long position = end;
+            for (byte[] record : appended) {
+                ByteBuffer header = ByteBuffer.wrap(record);
+                int crc = header.getInt();
+                byte flags = header.get();
+                int nameLength = Short.toUnsignedInt(header.getShort());
+                int valueLength = header.getInt();
+                String column = new String(record, RECORD_HEADER_SIZE, nameLength, StandardCharsets.UTF_8);
+                if (valueLength < 0) {
+                    newest.remove(column);
+                } else {
+                    newest.put(column, new Entry(position, record.length, flags, nameLength, valueLength, crc));
+                }
+                position += record.length;
+            }
+            return new Directory(newest, position, records + appended.size());
+        }
+    }
+
+    static boolean isColumnLog(byte[] file) {
+        return file.length >= MAGIC.length && Arrays.equals(file, 0, MAGIC.length, MAGIC, 0, MAGIC.length);
+    }
+
+    static boolean isColumnLog(FileChannel channel) throws IOException {
+        ByteBuffer magic = ByteBuffer.allocate(MAGIC.length);
+        readFully(channel, magic, 0);
+        return magic.position() == MAGIC.length && Arrays.equals(magic.array(), MAGIC);
+    }
+
+    /**
+     * @throws IllegalArgumentException if the column's name is too long for the name length of a record
+     */
+    static void checkName(String column) {
+        // A char is at most three UTF-8 bytes, so only long names need encoding to check
+        if ((long) column.length() * 3 > MAX_NAME_BYTES && column.getBytes(StandardCharsets.UTF_8).length > MAX_NAME_BYTES) {
+            throw new IllegalArgumentException("Column name longer than " + MAX_NAME_BYTES + " bytes cannot be stored");
+        }
+    }
+
+    /**
+     * Encode one column; a null value removes the column
+     */
+    static byte[] record(String column, byte[] value, Compression compression) {
+        byte[] name = column.getBytes(StandardCharsets.UTF_8);
+        if (name.length > MAX_NAME_BYTES) {
+            throw new IllegalArgumentException("Column name longer than " + MAX_NAME_BYTES + " bytes cannot be stored");
+        }
+        byte flags = 0;
+        byte[] stored = value;
+        if (value != null) {
+            stored = compression.encode(value);
+            if (stored != value) {
+                flags = COMPRESSED;
+            }
+        }
+        int storedLength = stored == null ? 0 : stored.length;
+        ByteBuffer buffer = ByteBuffer.allocate(RECORD_HEADER_SIZE + name.length + storedLength);
+        buffer.position(4);
+        buffer.put(flags).putShort((short) name.length).putInt(stored == null ? -1 : stored.length).put(name);
+        if (stored != null) {
+            buffer.put(stored);
+        }
+        CRC32C crc = new CRC32C();
+        crc.update(buffer.array(), 4, buffer.capacity() - 4);
+        buffer.putInt(0, (int) crc.getValue());
+        return buffer.array();
+    }
+
+    /**
+     * A complete file holding every column of row
+     */
+    static byte[] encode(Row row, Compression compression) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(MAGIC, 0, MAGIC.length);
+        for (String column : row.columns()) {
+            byte[] record = record(column, row.getBytes(column), compression);
+            out.write(record, 0, record.length);
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Rebuild the row from a whole file
+     * @throws IOException if a complete record fails its checksum
+     */
+    static Row decode(String rowKey, byte[] file) throws IOException {
+        Map<String, byte[]> values = new HashMap<>();
+        ByteBuffer buffer = ByteBuffer.wrap(file);
+        buffer.position(MAGIC.length);
+        while (buffer.remaining() >= RECORD_HEADER_SIZE) {
+            int start = buffer.position();
+            int crc = buffer.getInt();
+            byte flags = buffer.get();
+            int nameLength = Short.toUnsignedInt(buffer.getShort());
+            int valueLength = buffer.getInt();
+            int storedLength = Math.max(valueLength, 0);
+            if (buffer.remaining() < (long) nameLength + storedLength) {
+                break;
+            }
+            CRC32C check = new CRC32C();
+            check.update(file, start + 4, RECORD_HEADER_SIZE - 4 + nameLength + storedLength);
+            if ((int) check.getValue() != crc) {
+                throw new IOException("Column record at " + start + " fails its checksum");
+            }
+            String column = new String(file, buffer.position(), nameLength, StandardCharsets.UTF_8);
+            buffer.position(buffer.position() + nameLength);
+            if (valueLength < 0) {
+                values.remove(column);
+                continue;
+            }
+            byte[] value = Arrays.copyOfRange(file, buffer.position(), buffer.position() + storedLength);
+            buffer.position(buffer.position() + storedLength);
+            values.put(column, (flags & COMPRESSED) != 0 ? Compression.decode(value) : value);
+        }
+        ImmutableRow.Builder row = ImmutableRow.builder(rowKey);
+        values.forEach(row::put);
+        return new Row(row.build());
+    }
+
+    /**
+     * Read the record headers, skipping names of other columns and all values
+     */
+    static Directory scan(FileChannel channel) throws IOException {
+        Map<String, Entry> columns = new HashMap<>();
+        long size = channel.size();
+        long position = MAGIC.length;
+        int records = 0;
+        ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_SIZE);
+        while (position + RECORD_HEADER_SIZE <= size) {
+            header.clear();
+            readFully(channel, header, position);
+            header.flip();
+            int crc = header.getInt();
+            byte flags = header.get();
+            int nameLength = Short.toUnsignedInt(header.getShort());
+            int valueLength = header.getInt();
+            long length = (long) RECORD_HEADER_SIZE + nameLength + Math.max(valueLength, 0);
+            if (position + length > size) {
+                break;
+            }
+            ByteBuffer name = ByteBuffer.allocate(nameLength);
+            readFully(channel, name, position + RECORD_HEADER_SIZE);
+            String column = new String(name.array(), StandardCharsets.UTF_8);
+            if (valueLength < 0) {
+                columns.remove(column);
+            } else {
+                columns.put(column, new Entry(position, (int) length, flags, nameLength, valueLength, crc));
+            }
+            position += length;
+            records++;
+        }
+        return new Directory(columns, position, records);
+    }
+
+    /**
+     * Read one column's value with a positioned read and check its record
+     */
+    static byte[] readValue(FileChannel channel, Entry entry) throws IOException {
+        ByteBuffer record = ByteBuffer.allocate(entry.length() - 4);
+        readFully(channel, record, entry.offset() + 4);
+        if (record.hasRemaining()) {
+            throw new EOFException("Column record at " + entry.offset() + " is truncated");
+        }
+        CRC32C check = new CRC32C();
+        check.update(record.array());
+        if ((int) check.getValue() != entry.crc()) {
+            throw new IOException("Column record at " + entry.offset() + " fails its checksum");
+        }
+        int valueStart = RECORD_HEADER_SIZE - 4 + entry.nameLength();
+        byte[] value = Arrays.copyOfRange(record.array(), valueStart, valueStart + entry.valueLength());
+        return (entry.flags() & COMPRESSED) != 0 ? Compression.decode(value) : value;
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int n = channel.read(buffer, position + buffer.position());
+            if (n < 0) {
+                return;
+            }
+        }
+    }
+}
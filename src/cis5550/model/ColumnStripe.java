@@ -0,0 +1,506 @@
+package cis5550.model;
+
+import cis5550.kvs.ImmutableRow;
+import cis5550.kvs.Row;
+import cis5550.tools.Logger;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+
+/**
+ * Immutable, column-major run of rows.
+ * A stripe is a directory holding the sorted row keys, the list of column names and one file per column,
+ * so reading a few columns of every row only touches those columns' files.
+ * <p>
+ * keys: [count] ([keyLen][key])*<br>
+ * columns: [count] ([nameLen][name])*, column i is stored in col-i.dat<br>
+ * col-i.dat, plain: [PLAIN] ([valueLen][value])* [offset]* [offsetsStart], a missing value has length -1<br>
+ * col-i.dat, dictionary: [DICTIONARY][valueCount] ([valueLen][value])* [code]*, a missing value has code -1<br>
+ * deleted: the deletion bitmap, as {@link BitSet#toByteArray()}; only written if some row is deleted
+ * <p>
+ * A column is dictionary-encoded when it has few distinct values compared to its number of rows.
+ * A deleted row keeps its key, with no values, so it hides the row in older stripes.
+ */
+public class ColumnStripe {
+    private static final Logger logger = Logger.getLogger(ColumnStripe.class);
+    private static final String KEYS_FILE = "keys";
+    private static final String COLUMNS_FILE = "columns";
+    private static final String DELETED_FILE = "deleted";
+    private static final byte PLAIN = 0;
+    private static final byte DICTIONARY = 1;
+    private static final int MAX_DICTIONARY_SIZE = 1 << 16;
+
+    private volatile Path dir;
+    private final long sequence;
+    private final String[] keys;
+    private final BitSet deleted;
+    private final Map<String, Column> columns = new LinkedHashMap<>();
+    private final AtomicInteger refs = new AtomicInteger(1);
+
+    /**
+     * Value source for one column while a stripe is written
+     */
+    public interface ColumnSource {
+        byte[] value(int row) throws IOException;
+    }
+
+    private ColumnStripe(Path dir, long sequence) throws IOException {
+        this.dir = dir;
+        this.sequence = sequence;
+        ByteBuffer keyBytes = ByteBuffer.wrap(Files.readAllBytes(dir.resolve(KEYS_FILE)));
+        keys = new String[keyBytes.getInt()];
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = readString(keyBytes);
+        }
+        Path deletedFile = dir.resolve(DELETED_FILE);
+        deleted = Files.exists(deletedFile) ? BitSet.valueOf(Files.readAllBytes(deletedFile)) : new BitSet();
+        ByteBuffer columnBytes = ByteBuffer.wrap(Files.readAllBytes(dir.resolve(COLUMNS_FILE)));
+        int count = columnBytes.getInt();
+        for (int i = 0; i < count; i++) {
+            columns.put(readString(columnBytes), new Column(i));
+        }
+    }
+
+    public static ColumnStripe open(Path dir, long sequence) throws IOException {
+        return new ColumnStripe(dir, sequence);
+    }
+
+    /**
+     * Write rows, sorted by key, as a new stripe at dir and open it; a null row is a deleted one
+     */
+    public static ColumnStripe write(Path dir, long sequence, List<String> keys, List<Row> rows) throws IOException {
+        Set<String> columnNames = new TreeSet<>();
+        BitSet deleted = new BitSet();
+        for (int i = 0; i < rows.size(); i++) {
+            if (rows.get(i) == null) {
+                deleted.set(i);
+            } else {
+                columnNames.addAll(rows.get(i).columns());
+            }
+        }
+        Map<String, ColumnSource> sources = new LinkedHashMap<>();
+        for (String column : columnNames) {
+            sources.put(column, i -> rows.get(i) == null ? null : rows.get(i).getBytes(column));
+        }
+        return write(dir, sequence, keys, sources, deleted);
+    }
+
+    /**
+     * Write a stripe one column at a time. The directory is written under a temporary name and renamed into
+     * place once it is complete.
+     */
+    public static ColumnStripe write(Path dir, long sequence, List<String> keys, Map<String, ColumnSource> sources) throws IOException {
+        return write(dir, sequence, keys, sources, new BitSet());
+    }
+
+    private static ColumnStripe write(Path dir, long sequence, List<String> keys, Map<String, ColumnSource> sources, BitSet deleted) throws IOException {
+        Path tmp = dir.resolveSibling(dir.getFileName() + ".tmp");
+        Files.createDirectories(tmp);
+        if (!deleted.isEmpty()) {
+            Files.write(tmp.resolve(DELETED_FILE), deleted.toByteArray());
+        }
+
+        try (DataOutputStream out = newOutput(tmp.resolve(KEYS_FILE))) {
+            out.writeInt(keys.size());
+            for (String key : keys) {
+                writeString(out, key);
+            }
+        }
+        try (DataOutputStream out = newOutput(tmp.resolve(COLUMNS_FILE))) {
+            out.writeInt(sources.size());
+            for (String column : sources.keySet()) {
+                writeString(out, column);
+            }
+        }
+        int index = 0;
+        for (ColumnSource source : sources.values()) {
+            byte[][] values = new byte[keys.size()][];
+            for (int i = 0; i < values.length; i++) {
+                values[i] = source.value(i);
+            }
+            writeColumn(tmp.resolve(columnFile(index++)), values);
+        }
+
+        try (Stream<Path> files = Files.list(tmp)) {
+            for (Path file : files.toList()) {
+                try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+                    channel.force(true);
+                }
+            }
+        }
+        Files.move(tmp, dir, StandardCopyOption.ATOMIC_MOVE);
+        return new ColumnStripe(dir, sequence);
+    }
+
+    private static void writeColumn(Path path, byte[][] values) throws IOException {
+        Map<ByteBuffer, Integer> dictionary = new LinkedHashMap<>();
+        for (byte[] value : values) {
+            if (value != null) {
+                dictionary.putIfAbsent(ByteBuffer.wrap(value), dictionary.size());
+                if (dictionary.size() > MAX_DICTIONARY_SIZE) {
+                    break;
+                }
+            }
+        }
+        boolean useDictionary = values.length >= 16 && dictionary.size() <= Math.min(MAX_DICTIONARY_SIZE, values.length / 4);
+
+        try (DataOutputStream out = newOutput(path)) {
+            if (useDictionary) {
+                out.writeByte(DICTIONARY);
+                out.writeInt(dictionary.size());
+                for (ByteBuffer value : dictionary.keySet()) {
+                    out.writeInt(value.remaining());
+                    out.write(value.array());
+                }
+                for (byte[] value : values) {
+                    out.writeInt(value == null ? -1 : dictionary.get(ByteBuffer.wrap(value)));
+                }
+            } else {
+                out.writeByte(PLAIN);
+                long[] offsets = new long[values.length];
+                long offset = 1;
+                for (int i = 0; i < values.length; i++) {
+                    offsets[i] = offset;
+                    if (values[i] == null) {
+                        out.writeInt(-1);
+                        offset += 4;
+                    } else {
+                        out.writeInt(values[i].length);
+                        out.write(values[i]);
+                        offset += 4 + values[i].length;
+                    }
+                }
+                for (long rowOffset : offsets) {
+                    out.writeLong(rowOffset);
+                }
+                out.writeLong(offset);
+            }
+        }
+    }
+
+    private static DataOutputStream newOutput(Path path) throws IOException {
+        OutputStream out = Files.newOutputStream(path);
+        return new DataOutputStream(new BufferedOutputStream(out, 1 << 16));
+    }
+
+    private static String columnFile(int index) {
+        return "col-" + index + ".dat";
+    }
+
+    public long getSequence() {
+        return sequence;
+    }
+
+    public Path getDir() {
+        return dir;
+    }
+
+    public int size() {
+        return keys.length;
+    }
+
+    public String key(int row) {
+        return keys[row];
+    }
+
+    /**
+     * @return whether the row is a deletion that hides the key in older stripes
+     */
+    public boolean isDeleted(int row) {
+        return deleted.get(row);
+    }
+
+    public Set<String> columnNames() {
+        return columns.keySet();
+    }
+
+    /**
+     * @return the position of key in this stripe, or a negative value as in Arrays.binarySearch
+     */
+    public int indexOf(String key) {
+        return Arrays.binarySearch(keys, key);
+    }
+
+    /**
+     * @return the position of the first key >= key
+     */
+    public int lowerBound(String key) {
+        if (key == null) {
+            return 0;
+        }
+        int pos = indexOf(key);
+        return pos >= 0 ? pos : -pos - 1;
+    }
+
+    public byte[] value(String column, int row) throws IOException {
+        Column reader = columns.get(column);
+        return reader == null ? null : reader.value(row);
+    }
+
+    /**
+     * Sequential reader over one column for scans; rows must be requested in increasing order
+     * @return null if the stripe has no such column
+     */
+    public Cursor cursor(String column) throws IOException {
+        Column reader = columns.get(column);
+        return reader == null ? null : reader.cursor();
+    }
+
+    /**
+     * Reads a column front to back through a large buffer instead of one positioned read per value
+     */
+    public static class Cursor {
+        private static final int BUFFER_SIZE = 64 * 1024;
+        private final FileChannel channel;
+        private final byte[][] dictionary;
+        private final long codesStart;
+        private ByteBuffer buffer = ByteBuffer.allocate(0);
+        private long bufferStart;
+        private long position = 1;
+        private int row;
+
+        private Cursor(FileChannel channel, byte[][] dictionary, long codesStart) {
+            this.channel = channel;
+            this.dictionary = dictionary;
+            this.codesStart = codesStart;
+        }
+
+        public byte[] value(int targetRow) throws IOException {
+            if (dictionary != null) {
+                int code = bytes(codesStart + 4L * targetRow, 4).getInt();
+                return code < 0 ? null : dictionary[code];
+            }
+            while (row < targetRow) {
+                int length = bytes(position, 4).getInt();
+                position += 4 + Math.max(0, length);
+                row++;
+            }
+            int length = bytes(position, 4).getInt();
+            byte[] value = null;
+            if (length >= 0) {
+                value = new byte[length];
+                bytes(position + 4, length).get(value);
+            }
+            position += 4 + Math.max(0, length);
+            row++;
+            return value;
+        }
+
+        private ByteBuffer bytes(long at, int length) throws IOException {
+            if (at < bufferStart || at + length > bufferStart + buffer.limit()) {
+                buffer = ColumnStripe.read(channel, at, (int) Math.min(Math.max(BUFFER_SIZE, length), channel.size() - at));
+                bufferStart = at;
+            }
+            return buffer.slice((int) (at - bufferStart), length);
+        }
+    }
+
+    /**
+     * Assemble a row from the given columns, or from all of them if columns is null
+     */
+    public Row row(int row, Set<String> columnNames) throws IOException {
+        ImmutableRow.Builder result = ImmutableRow.builder(keys[row]);
+        for (Map.Entry<String, Column> column : columns.entrySet()) {
+            if (columnNames == null || columnNames.contains(column.getKey())) {
+                byte[] value = column.getValue().value(row);
+                if (value != null) {
+                    result.put(column.getKey(), value);
+                }
+            }
+        }
+        return new Row(result.build());
+    }
+
+    public long sizeOnDisk() {
+        try (Stream<Path> files = Files.list(dir)) {
+            return files.mapToLong(file -> file.toFile().length()).sum();
+        } catch (IOException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * Number of columns stored with a dictionary
+     */
+    public int dictionaryColumns() {
+        int count = 0;
+        for (Column column : columns.values()) {
+            try {
+                if (column.load().dictionary != null) {
+                    count++;
+                }
+            } catch (IOException e) {
+                logger.error("Error while opening a column of " + dir, e);
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Point the stripe at its new location after the directory holding it was moved
+     */
+    public void moveTo(Path tableDir) {
+        dir = tableDir.resolve(dir.getFileName());
+        for (Column column : columns.values()) {
+            column.reopen();
+        }
+    }
+
+    /**
+     * Take a reference so the files are not closed while they are being read
+     * @return false if the stripe has already been retired
+     */
+    public boolean tryAcquire() {
+        while (true) {
+            int current = refs.get();
+            if (current <= 0) {
+                return false;
+            }
+            if (refs.compareAndSet(current, current + 1)) {
+                return true;
+            }
+        }
+    }
+
+    public void release() {
+        if (refs.decrementAndGet() == 0) {
+            close();
+            try (Stream<Path> files = Files.walk(dir)) {
+                for (Path file : files.sorted(Comparator.reverseOrder()).toList()) {
+                    Files.deleteIfExists(file);
+                }
+            } catch (IOException e) {
+                logger.error("Error while removing retired stripe " + dir, e);
+            }
+        }
+    }
+
+    /**
+     * Drop the owner's reference; the files are deleted once the last reader is done with them
+     */
+    public void retire() {
+        release();
+    }
+
+    public void close() {
+        for (Column column : columns.values()) {
+            column.reopen();
+        }
+    }
+
+    /**
+     * Lazily opened reader for one column file
+     */
+    private class Column {
+        private final int index;
+        private FileChannel channel;
+        private byte[][] dictionary;
+        private long codesStart;
+        private long offsetsStart;
+
+        Column(int index) {
+            this.index = index;
+        }
+
+        private synchronized Column load() throws IOException {
+            if (channel == null) {
+                channel = FileChannel.open(dir.resolve(columnFile(index)), StandardOpenOption.READ);
+                byte kind = read(0, 1).get();
+                if (kind == DICTIONARY) {
+                    ByteBuffer header = read(1, 4);
+                    dictionary = new byte[header.getInt()][];
+                    long position = 5;
+                    for (int i = 0; i < dictionary.length; i++) {
+                        int length = read(position, 4).getInt();
+                        dictionary[i] = read(position + 4, length).array();
+                        position += 4 + length;
+                    }
+                    codesStart = position;
+                } else {
+                    offsetsStart = read(channel.size() - 8, 8).getLong();
+                }
+            }
+            return this;
+        }
+
+        /**
+         * Close the file so it is reopened at the stripe's current location on the next read
+         */
+        synchronized void reopen() {
+            if (channel != null) {
+                try {
+                    channel.close();
+                } catch (IOException e) {
+                    logger.error("Error while closing a column of " + dir, e);
+                }
+                channel = null;
+                dictionary = null;
+            }
+        }
+
+        synchronized Cursor cursor() throws IOException {
+            load();
+            return new Cursor(channel, dictionary, codesStart);
+        }
+
+        byte[] value(int row) throws IOException {
+            FileChannel file;
+            byte[][] dict;
+            long codes;
+            long offsets;
+            synchronized (this) {
+                load();
+                file = channel;
+                dict = dictionary;
+                codes = codesStart;
+                offsets = offsetsStart;
+            }
+            if (dict != null) {
+                int code = ColumnStripe.read(file, codes + 4L * row, 4).getInt();
+                return code < 0 ? null : dict[code];
+            }
+            long offset = ColumnStripe.read(file, offsets + 8L * row, 8).getLong();
+            int length = ColumnStripe.read(file, offset, 4).getInt();
+            return length < 0 ? null : ColumnStripe.read(file, offset + 4, length).array();
+        }
+
+        private ByteBuffer read(long position, int length) throws IOException {
+            return ColumnStripe.read(channel, position, length);
+        }
+    }
+
+    private static ByteBuffer read(FileChannel channel, long position, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new IOException("Unexpected end of column file");
+            }
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    private static void writeString(DataOutputStream out, String s) throws IOException {
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.getInt()];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
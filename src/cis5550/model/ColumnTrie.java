@@ -0,0 +1,211 @@
+package cis5550.model;
+
+import java.util.function.BiConsumer;
+
+/**
+ * Persistent hash array mapped trie from column names to values.
+ * Every update returns a new trie and copies only the nodes on the path to the changed column, so the versions of
+ * a row share all the columns they have in common. Each level of the trie uses five bits of the column name's
+ * hash; names whose hashes are equal in all 32 bits end up together in a collision node.
+ */
+final class ColumnTrie {
+    static final ColumnTrie EMPTY = new ColumnTrie(Node.EMPTY, 0);
+    private static final Object MISSING = new Object();
+
+    private final Node root;
+    private final int size;
+
+    private ColumnTrie(Node root, int size) {
+        this.root = root;
+        this.size = size;
+    }
+
+    int size() {
+        return size;
+    }
+
+    boolean contains(String column) {
+        return root.find(column, column.hashCode(), 0) != MISSING;
+    }
+
+    byte[] get(String column) {
+        Object value = root.find(column, column.hashCode(), 0);
+        return value == MISSING ? null : (byte[]) value;
+    }
+
+    ColumnTrie with(String column, byte[] value) {
+        boolean[] added = new boolean[1];
+        Node newRoot = root.with(column, column.hashCode(), value, 0, added);
+        return newRoot == root ? this : new ColumnTrie(newRoot, added[0] ? size + 1 : size);
+    }
+
+    ColumnTrie without(String column) {
+        Node newRoot = root.without(column, column.hashCode(), 0);
+        if (newRoot == root) {
+            return this;
+        }
+        return newRoot == null ? EMPTY : new ColumnTrie(newRoot, size - 1);
+    }
+
+    void forEach(BiConsumer<String, byte[]> action) {
+        root.forEach(action);
+    }
+
+    /**
+     * A level of the trie. Slot pairs hold either [column, value] or [null, child node]; in a collision node they
+     * hold only columns and the bitmap is unused.
+     */
+    private static final class Node {
+        private static final Node EMPTY = new Node(0, new Object[0], false);
+
+        private final int bitmap;
+        private final Object[] slots;
+        private final boolean collision;
+
+        private Node(int bitmap, Object[] slots, boolean collision) {
+            this.bitmap = bitmap;
+            this.slots = slots;
+            this.collision = collision;
+        }
+
+        private Object find(String column, int hash, int shift) {
+            Node node = this;
+            while (true) {
+                if (node.collision) {
+                    for (int i = 0; i < node.slots.length; i += 2) {
+                        if (column.equals(node.slots[i])) {
+                            return node.slots[i + 1];
+                        }
+                    }
+                    return MISSING;
+                }
+                int bit = 1 << ((hash >>> shift) & 31);
+                if ((node.bitmap & bit) == 0) {
+                    return MISSING;
+                }
+                int index = 2 * Integer.bitCount(node.bitmap & (bit - 1));
+                Object name = node.slots[index];
+                if (name == null) {
+                    node = (Node) node.slots[index + 1];
+                    shift += 5;
+                    continue;
+                }
+                return column.equals(name) ? node.slots[index + 1] : MISSING;
+            }
+        }
+
+        private Node with(String column, int hash, byte[] value, int shift, boolean[] added) {
+            if (collision) {
+                for (int i = 0; i < slots.length; i += 2) {
+                    if (column.equals(slots[i])) {
+                        return slots[i + 1] == value ? this : replace(i + 1, value);
+                    }
+                }
+                added[0] = true;
+                return new Node(0, insert(slots.length, column, value), true);
+            }
+            int bit = 1 << ((hash >>> shift) & 31);
+            int index = 2 * Integer.bitCount(bitmap & (bit - 1));
+            if ((bitmap & bit) == 0) {
+                added[0] = true;
+                return new Node(bitmap | bit, insert(index, column, value), false);
+            }
+            Object name = slots[index];
+            Object current = slots[index + 1];
+            if (name == null) {
+                Node child = (Node) current;
+                Node newChild = child.with(column, hash, value, shift + 5, added);
+                return newChild == child ? this : replace(index + 1, newChild);
+            }
+            if (column.equals(name)) {
+                return current == value ? this : replace(index + 1, value);
+            }
+            added[0] = true;
+            Node split = pair((String) name, (byte[]) current, column, hash, value, shift + 5);
+            Object[] copy = slots.clone();
+            copy[index] = null;
+            copy[index + 1] = split;
+            return new Node(bitmap, copy, false);
+        }
+
+        /**
+         * @return the node without the column, or null if that leaves it empty
+         */
+        private Node without(String column, int hash, int shift) {
+            if (collision) {
+                for (int i = 0; i < slots.length; i += 2) {
+                    if (column.equals(slots[i])) {
+                        return slots.length == 2 ? null : new Node(0, remove(i), true);
+                    }
+                }
+                return this;
+            }
+            int bit = 1 << ((hash >>> shift) & 31);
+            if ((bitmap & bit) == 0) {
+                return this;
+            }
+            int index = 2 * Integer.bitCount(bitmap & (bit - 1));
+            Object name = slots[index];
+            if (name == null) {
+                Node child = (Node) slots[index + 1];
+                Node newChild = child.without(column, hash, shift + 5);
+                if (newChild == child) {
+                    return this;
+                }
+                if (newChild != null) {
+                    return replace(index + 1, newChild);
+                }
+            } else if (!column.equals(name)) {
+                return this;
+            }
+            return slots.length == 2 ? null : new Node(bitmap & ~bit, remove(index), false);
+        }
+
+        private static Node pair(String name1, byte[] value1, String name2, int hash2, byte[] value2, int shift) {
+            if (shift >= 32) {
+                return new Node(0, new Object[]{name1, value1, name2, value2}, true);
+            }
+            int fragment1 = (name1.hashCode() >>> shift) & 31;
+            int fragment2 = (hash2 >>> shift) & 31;
+            if (fragment1 == fragment2) {
+                return new Node(1 << fragment1, new Object[]{null, pair(name1, value1, name2, hash2, value2, shift + 5)}, false);
+            }
+            Object[] slots = fragment1 < fragment2
+                    ? new Object[]{name1, value1, name2, value2}
+                    : new Object[]{name2, value2, name1, value1};
+            return new Node((1 << fragment1) | (1 << fragment2), slots, false);
+        }
+
+        private Node replace(int index, Object value) {
+            Object[] copy = slots.clone();
+            copy[index] = value;
+            return new Node(bitmap, copy, collision);
+        }
+
+        private Object[] insert(int index, String column, byte[] value) {
+            Object[] copy = new Object[slots.length + 2];
+            System.arraycopy(slots, 0, copy, 0, index);
+            copy[index] = column;
+            copy[index + 1] = value;
+            System.arraycopy(slots, index, copy, index + 2, slots.length - index);
+            return copy;
+        }
+
+        private Object[] remove(int index) {
+            Object[] copy = new Object[slots.length - 2];
+            System.arraycopy(slots, 0, copy, 0, index);
+            System.arraycopy(slots, index + 2, copy, index, slots.length - index - 2);
+            return copy;
+        }
+
+        private void forEach(BiConsumer<String, byte[]> action) {
+            for (int i = 0; i < slots.length; i += 2) {
+                if (slots[i] == null) {
+                    ((Node) slots[i + 1]).forEach(action);
+                } else {
+                    action.accept((String) slots[i], (byte[]) slots[i + 1]);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,722 @@
+package cis5550.model;
+
+import cis5550.kvs.ImmutableRow;
+import cis5550.kvs.Row;
+import cis5550.kvs.RowCodec;
+import cis5550.tools.Logger;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+/**
+ * Column-major table for scan-heavy workloads.
+ * Writes go to a write-ahead log and an in-memory memtable, which is flushed to an immutable
+ * {@link ColumnStripe} once it is full. A scan that asks for a few columns only reads those columns' files.
+ * Once enough stripes pile up they are merged into one.
+ * <p>
+ * Deleting a row logs a record with no row and leaves a tombstone in the memtable, which the flush turns into a
+ * set bit in the stripe's deletion bitmap. Either one hides the row's older versions; a merge takes in every
+ * stripe, so it drops deleted rows altogether.
+ */
+public class ColumnarTable implements Table {
+    private static final Logger logger = Logger.getLogger(ColumnarTable.class);
+    private static final long MEMTABLE_FLUSH_BYTES = 8L << 20;
+    private static final int COMPACTION_TRIGGER = 4;
+    private static final String WAL_PREFIX = "wal-";
+    private static final String WAL_SUFFIX = ".log";
+    private static final String STRIPE_PREFIX = "stripe-";
+    private static final ExecutorService background = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "columnar-background");
+        thread.setDaemon(true);
+        return thread;
+    });
+    // Memtable entry of a deleted row, compared by identity
+    private static final Row DELETED = new Row("");
+
+    private String name;
+    private volatile TableOptions options;
+    private final String storageDir;
+    private final Object writeLock = new Object();
+    private final AtomicLong nextSequence = new AtomicLong(1);
+    private volatile State state;
+    private volatile boolean destroyed;
+
+    private record MemTable(WriteAheadLog wal, ConcurrentSkipListMap<String, Row> rows, AtomicLong bytes) {
+        MemTable(WriteAheadLog wal) {
+            this(wal, new ConcurrentSkipListMap<>(), new AtomicLong());
+        }
+    }
+
+    /**
+     * Immutable view of the table's components; memtables and stripes are ordered newest first
+     */
+    private record State(MemTable active, List<MemTable> immutables, List<ColumnStripe> stripes) {
+    }
+
+    public ColumnarTable(String name, String storageDir) {
+        this.name = name;
+        this.storageDir = storageDir;
+        this.options = TableOptions.load(storageDir, name);
+        try {
+            recover();
+        } catch (IOException e) {
+            logger.error("Error while opening columnar table " + name, e);
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private Path dir() {
+        return Paths.get(storageDir, name);
+    }
+
+    private void recover() throws IOException {
+        Path dir = dir();
+        Files.createDirectories(dir);
+
+        List<ColumnStripe> stripes = new ArrayList<>();
+        TreeMap<Long, Path> logs = new TreeMap<>();
+        long maxSequence = 0;
+        File[] files = Objects.requireNonNull(dir.toFile().listFiles());
+        for (File file : files) {
+            String fileName = file.getName();
+            if (fileName.endsWith(".tmp")) {
+                deleteRecursively(file.toPath());
+            } else if (file.isDirectory() && fileName.startsWith(STRIPE_PREFIX)) {
+                long sequence = Long.parseLong(fileName.substring(STRIPE_PREFIX.length()));
+                stripes.add(ColumnStripe.open(file.toPath(), sequence));
+                maxSequence = Math.max(maxSequence, sequence);
+            } else if (fileName.startsWith(WAL_PREFIX) && fileName.endsWith(WAL_SUFFIX)) {
+                long sequence = Long.parseLong(fileName.substring(WAL_PREFIX.length(), fileName.length() - WAL_SUFFIX.length()));
+                logs.put(sequence, file.toPath());
+                maxSequence = Math.max(maxSequence, sequence);
+            }
+        }
+        stripes.sort(Comparator.comparingLong(ColumnStripe::getSequence).reversed());
+        nextSequence.set(maxSequence + 1);
+
+        // Whatever is still in a log was never flushed; write it out as the newest stripe before accepting writes
+        TreeMap<String, Row> recovered = new TreeMap<>();
+        for (Path log : logs.values()) {
+            try (WriteAheadLog wal = new WriteAheadLog(log)) {
+                int count = wal.replay(record -> {
+                    ByteBuffer buffer = ByteBuffer.wrap(record);
+                    byte[] key = new byte[buffer.getInt()];
+                    buffer.get(key);
+                    Row row = buffer.hasRemaining() ? decode(Arrays.copyOfRange(record, buffer.position(), record.length)) : DELETED;
+                    if (row != null) {
+                        recovered.put(new String(key, StandardCharsets.UTF_8), row);
+                    }
+                });
+                logger.info("Replayed " + count + " records from " + log);
+            }
+        }
+        if (!recovered.isEmpty()) {
+            long sequence = nextSequence.getAndIncrement();
+            stripes.add(0, ColumnStripe.write(stripePath(sequence), sequence, new ArrayList<>(recovered.keySet()), live(recovered.values())));
+        }
+        for (Path log : logs.values()) {
+            Files.delete(log);
+        }
+
+        state = new State(new MemTable(newLog()), List.of(), List.copyOf(stripes));
+        if (stripes.size() >= COMPACTION_TRIGGER) {
+            background.submit(this::compact);
+        }
+    }
+
+    private Path stripePath(long sequence) {
+        return dir().resolve(STRIPE_PREFIX + sequence);
+    }
+
+    private WriteAheadLog newLog() throws IOException {
+        return new WriteAheadLog(dir().resolve(WAL_PREFIX + nextSequence.getAndIncrement() + WAL_SUFFIX));
+    }
+
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    @Override
+    public TableOptions getOptions() {
+        return options;
+    }
+
+    @Override
+    public void setOptions(TableOptions options) {
+        this.options = options;
+    }
+
+    @Override
+    public void setName(String name) {
+        synchronized (writeLock) {
+            this.name = name;
+            Path dir = dir();
+            State current = state;
+            current.active().wal().moveTo(dir);
+            current.immutables().forEach(memTable -> memTable.wal().moveTo(dir));
+            current.stripes().forEach(stripe -> stripe.moveTo(dir));
+        }
+    }
+
+    @Override
+    public Row get(String key) {
+        while (true) {
+            State current = state;
+            Row row = current.active().rows().get(key);
+            if (row != null) {
+                return row == DELETED ? null : row;
+            }
+            for (MemTable memTable : current.immutables()) {
+                row = memTable.rows().get(key);
+                if (row != null) {
+                    return row == DELETED ? null : row;
+                }
+            }
+            boolean retired = false;
+            for (ColumnStripe stripe : current.stripes()) {
+                int index = stripe.indexOf(key);
+                if (index < 0) {
+                    continue;
+                }
+                if (!stripe.tryAcquire()) {
+                    retired = true;
+                    break;
+                }
+                try {
+                    return stripe.isDeleted(index) ? null : stripe.row(index, null);
+                } catch (IOException e) {
+                    logger.error("Error while reading row " + key + " from " + stripe.getDir(), e);
+                    return null;
+                } finally {
+                    stripe.release();
+                }
+            }
+            // A compaction swapped the stripes underneath us; try again against the new state
+            if (!retired) {
+                return null;
+            }
+        }
+    }
+
+    @Override
+    public void put(String key, Row row) {
+        write(key, RowCodec.encode(row), row.clone());
+    }
+
+    /**
+     * Log a record with no row and leave a tombstone in the memtable
+     * @return false if the row doesn't exist
+     */
+    @Override
+    public boolean deleteRow(String key) {
+        if (get(key) == null) {
+            return false;
+        }
+        write(key, new byte[0], DELETED);
+        return true;
+    }
+
+    private void write(String key, byte[] value, Row row) {
+        byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer record = ByteBuffer.allocate(4 + keyBytes.length + value.length);
+        record.putInt(keyBytes.length).put(keyBytes).put(value);
+
+        synchronized (writeLock) {
+            MemTable active = state.active();
+            try {
+                active.wal().append(record.array());
+            } catch (IOException e) {
+                logger.error("Error while appending row " + key + " to the log of " + name, e);
+                throw new UncheckedIOException(e);
+            }
+            active.rows().put(key, row);
+            if (active.bytes().addAndGet(keyBytes.length + value.length) >= MEMTABLE_FLUSH_BYTES) {
+                rotate();
+            }
+        }
+    }
+
+    /**
+     * Swap in a fresh memtable and flush the full one in the background. Must hold writeLock.
+     */
+    private void rotate() {
+        State current = state;
+        MemTable full = current.active();
+        MemTable fresh;
+        try {
+            fresh = new MemTable(newLog());
+        } catch (IOException e) {
+            logger.error("Error while creating a new log for " + name + ", keeping the current memtable", e);
+            return;
+        }
+        List<MemTable> immutables = new ArrayList<>();
+        immutables.add(full);
+        immutables.addAll(current.immutables());
+        state = new State(fresh, List.copyOf(immutables), current.stripes());
+        background.submit(() -> flush(full));
+    }
+
+    private void flush(MemTable memTable) {
+        if (destroyed) {
+            return;
+        }
+        try {
+            long sequence = nextSequence.getAndIncrement();
+            ColumnStripe stripe = ColumnStripe.write(stripePath(sequence), sequence,
+                    new ArrayList<>(memTable.rows().keySet()), live(memTable.rows().values()));
+            int stripeCount;
+            synchronized (writeLock) {
+                State current = state;
+                List<MemTable> immutables = new ArrayList<>(current.immutables());
+                immutables.remove(memTable);
+                List<ColumnStripe> stripes = new ArrayList<>();
+                stripes.add(stripe);
+                stripes.addAll(current.stripes());
+                state = new State(current.active(), List.copyOf(immutables), List.copyOf(stripes));
+                stripeCount = stripes.size();
+                memTable.wal().close();
+                Files.deleteIfExists(memTable.wal().getPath());
+            }
+            logger.debug("Flushed memtable of " + name + " to " + stripe.getDir());
+            if (stripeCount >= COMPACTION_TRIGGER) {
+                compact();
+            }
+        } catch (IOException e) {
+            logger.error("Error while flushing memtable of " + name, e);
+        }
+    }
+
+    /**
+     * Merge every stripe into one, keeping the newest version of each row.
+     * The output is written column by column, reading each input column front to back.
+     */
+    private void compact() {
+        if (destroyed) {
+            return;
+        }
+        List<ColumnStripe> inputs = state.stripes();
+        if (inputs.size() < 2) {
+            return;
+        }
+        List<ColumnStripe> acquired = acquireAll(inputs);
+        if (acquired == null) {
+            return;
+        }
+        try {
+            List<String> keys = new ArrayList<>();
+            List<int[]> plan = new ArrayList<>();
+            Set<String> columns = new TreeSet<>();
+            List<Source> sources = new ArrayList<>();
+            for (ColumnStripe stripe : acquired) {
+                sources.add(new StripeSource(stripe, 0, Set.of()));
+                columns.addAll(stripe.columnNames());
+            }
+            MergingIterator merged = new MergingIterator(sources, null);
+            while (merged.hasNextKey()) {
+                Source winner = merged.nextSource();
+                keys.add(winner.key());
+                plan.add(new int[]{sources.indexOf(winner), ((StripeSource) winner).index});
+                merged.advance(winner);
+            }
+
+            Map<String, ColumnStripe.ColumnSource> columnSources = new LinkedHashMap<>();
+            for (String column : columns) {
+                ColumnStripe.Cursor[] cursors = new ColumnStripe.Cursor[acquired.size()];
+                columnSources.put(column, row -> {
+                    int[] from = plan.get(row);
+                    ColumnStripe stripe = acquired.get(from[0]);
+                    if (cursors[from[0]] == null) {
+                        cursors[from[0]] = stripe.cursor(column);
+                        if (cursors[from[0]] == null) {
+                            return null;
+                        }
+                    }
+                    return cursors[from[0]].value(from[1]);
+                });
+            }
+            long sequence = nextSequence.getAndIncrement();
+            ColumnStripe result = ColumnStripe.write(stripePath(sequence), sequence, keys, columnSources);
+            synchronized (writeLock) {
+                State current = state;
+                List<ColumnStripe> stripes = new ArrayList<>(current.stripes());
+                stripes.removeAll(inputs);
+                stripes.add(result);
+                state = new State(current.active(), current.immutables(), List.copyOf(stripes));
+            }
+            inputs.forEach(ColumnStripe::retire);
+            logger.debug("Compacted " + inputs.size() + " stripes of " + name + " into " + result.getDir());
+        } catch (IOException e) {
+            logger.error("Error while compacting " + name, e);
+        } finally {
+            acquired.forEach(ColumnStripe::release);
+        }
+    }
+
+    /**
+     * @return the acquired stripes, or null if one of them was retired in the meantime
+     */
+    private static List<ColumnStripe> acquireAll(List<ColumnStripe> stripes) {
+        List<ColumnStripe> acquired = new ArrayList<>();
+        for (ColumnStripe stripe : stripes) {
+            if (!stripe.tryAcquire()) {
+                acquired.forEach(ColumnStripe::release);
+                return null;
+            }
+            acquired.add(stripe);
+        }
+        return acquired;
+    }
+
+    @Override
+    public Iterator<Row> scan(String startRow, String endRowExclusive) {
+        return scan(startRow, endRowExclusive, null);
+    }
+
+    /**
+     * Merge the memtables and stripes into one sorted stream of rows holding only the requested columns.
+     * Stripe columns that were not asked for are never read. The stripes stay acquired until the stream is exhausted
+     * or closed.
+     */
+    @Override
+    public Iterator<Row> scan(String startRow, String endRowExclusive, Set<String> columns) {
+        while (true) {
+            State current = state;
+            List<ColumnStripe> acquired = acquireAll(current.stripes());
+            if (acquired == null) {
+                continue;
+            }
+            List<Source> sources = new ArrayList<>();
+            sources.add(new MemSource(current.active().rows(), startRow, columns));
+            for (MemTable memTable : current.immutables()) {
+                sources.add(new MemSource(memTable.rows(), startRow, columns));
+            }
+            for (ColumnStripe stripe : acquired) {
+                sources.add(new StripeSource(stripe, stripe.lowerBound(startRow), columns));
+            }
+            MergingIterator merged = new MergingIterator(sources, endRowExclusive);
+            return new CloseableIterator<>() {
+                private boolean released;
+
+                @Override
+                public synchronized void close() {
+                    if (!released) {
+                        released = true;
+                        acquired.forEach(ColumnStripe::release);
+                    }
+                }
+
+                @Override
+                public boolean hasNext() {
+                    boolean hasNext = merged.hasNextKey();
+                    if (!hasNext) {
+                        close();
+                    }
+                    return hasNext;
+                }
+
+                @Override
+                public Row next() {
+                    if (!hasNext()) {
+                        throw new NoSuchElementException();
+                    }
+                    Source winner = merged.nextSource();
+                    try {
+                        return winner.row();
+                    } catch (IOException e) {
+                        logger.error("Error while scanning " + name, e);
+                        throw new UncheckedIOException(e);
+                    } finally {
+                        merged.advance(winner);
+                    }
+                }
+            };
+        }
+    }
+
+    @Override
+    public Set<String> getKeys() {
+        Set<String> keys = new TreeSet<>();
+        scan(null, null, Set.of()).forEachRemaining(row -> keys.add(row.key()));
+        return keys;
+    }
+
+    @Override
+    public int countKeys() {
+        int count = 0;
+        Iterator<Row> rows = scan(null, null, Set.of());
+        while (rows.hasNext()) {
+            rows.next();
+            count++;
+        }
+        return count;
+    }
+
+    @Override
+    public String generateMD5(String rowKey) throws NoSuchAlgorithmException {
+        Row row = get(rowKey);
+        if (row == null) {
+            return null;
+        }
+        MessageDigest md = MessageDigest.getInstance("MD5");
+        byte[] hashInBytes = md.digest(row.toByteArray());
+        StringBuilder sb = new StringBuilder();
+        for (byte b : hashInBytes) {
+            sb.append(String.format("%02x", b));
+        }
+        return sb.toString();
+    }
+
+    @Override
+    public List<RowMeta> getRowMetas() {
+        List<RowMeta> rowMetas = new ArrayList<>();
+        for (String key : getKeys()) {
+            try {
+                rowMetas.add(new RowMeta(key, generateMD5(key)));
+            } catch (NoSuchAlgorithmException e) {
+                logger.error("Error generating MD5 for row " + key, e);
+                throw new RuntimeException(e);
+            }
+        }
+        return rowMetas;
+    }
+
+    @Override
+    public Map<String, String> stats() {
+        List<ColumnStripe> stripes = state.stripes();
+        Map<String, String> stats = new LinkedHashMap<>();
+        stats.put("stripes", String.valueOf(stripes.size()));
+        stats.put("dictionary columns", String.valueOf(stripes.stream().mapToInt(ColumnStripe::dictionaryColumns).sum()));
+        stats.put("stripe bytes", String.valueOf(stripes.stream().mapToLong(ColumnStripe::sizeOnDisk).sum()));
+        return stats;
+    }
+
+    @Override
+    public void destroy() throws IOException {
+        destroyed = true;
+        synchronized (writeLock) {
+            State current = state;
+            current.active().wal().close();
+            for (MemTable memTable : current.immutables()) {
+                memTable.wal().close();
+            }
+            current.stripes().forEach(ColumnStripe::retire);
+        }
+        Trash.delete(dir());
+    }
+
+    private static void deleteRecursively(Path path) throws IOException {
+        try (Stream<Path> paths = Files.walk(path)) {
+            for (Path file : paths.sorted(Comparator.reverseOrder()).toList()) {
+                Files.deleteIfExists(file);
+            }
+        }
+    }
+
+    private static Row decode(byte[] value) {
+        try {
+            return RowCodec.decode(value);
+        } catch (Exception e) {
+            logger.error("Error while decoding row", e);
+            return null;
+        }
+    }
+
+    /**
+     * The rows for a new stripe, with null in place of each tombstone
+     */
+    private static List<Row> live(Collection<Row> rows) {
+        List<Row> result = new ArrayList<>(rows.size());
+        for (Row row : rows) {
+            result.add(row == DELETED ? null : row);
+        }
+        return result;
+    }
+
+    private static Row project(Row row, Set<String> columns) {
+        if (columns == null) {
+            return row;
+        }
+        ImmutableRow.Builder projected = ImmutableRow.builder(row.key());
+        for (String column : row.columns()) {
+            if (columns.contains(column)) {
+                projected.put(column, row.getBytes(column));
+            }
+        }
+        return new Row(projected.build());
+    }
+
+    /**
+     * Sorted run of rows that builds a row only when it is asked for
+     */
+    private interface Source {
+        /**
+         * @return the current key, or null once the source is exhausted
+         */
+        String key();
+
+        Row row() throws IOException;
+
+        /**
+         * @return whether the current key is a deletion
+         */
+        boolean deleted();
+
+        void advance();
+    }
+
+    private static class MemSource implements Source {
+        private final Iterator<Map.Entry<String, Row>> entries;
+        private final Set<String> columns;
+        private Map.Entry<String, Row> current;
+
+        MemSource(ConcurrentSkipListMap<String, Row> rows, String startRow, Set<String> columns) {
+            this.entries = (startRow == null ? rows : rows.tailMap(startRow)).entrySet().iterator();
+            this.columns = columns;
+            advance();
+        }
+
+        @Override
+        public String key() {
+            return current == null ? null : current.getKey();
+        }
+
+        @Override
+        public Row row() {
+            return project(current.getValue(), columns);
+        }
+
+        @Override
+        public boolean deleted() {
+            return current.getValue() == DELETED;
+        }
+
+        @Override
+        public void advance() {
+            current = entries.hasNext() ? entries.next() : null;
+        }
+    }
+
+    private static class StripeSource implements Source {
+        private final ColumnStripe stripe;
+        private final Set<String> columns;
+        private final Map<String, ColumnStripe.Cursor> cursors = new HashMap<>();
+        private int index;
+
+        StripeSource(ColumnStripe stripe, int index, Set<String> columns) {
+            this.stripe = stripe;
+            this.index = index;
+            this.columns = columns;
+        }
+
+        @Override
+        public String key() {
+            return index < stripe.size() ? stripe.key(index) : null;
+        }
+
+        @Override
+        public Row row() throws IOException {
+            ImmutableRow.Builder row = ImmutableRow.builder(stripe.key(index));
+            for (String column : stripe.columnNames()) {
+                if (columns != null && !columns.contains(column)) {
+                    continue;
+                }
+                ColumnStripe.Cursor cursor = cursors.get(column);
+                if (cursor == null) {
+                    cursor = stripe.cursor(column);
+                    cursors.put(column, cursor);
+                }
+                byte[] value = cursor.value(index);
+                if (value != null) {
+                    row.put(column, value);
+                }
+            }
+            return new Row(row.build());
+        }
+
+        @Override
+        public boolean deleted() {
+            return stripe.isDeleted(index);
+        }
+
+        @Override
+        public void advance() {
+            index++;
+        }
+    }
+
+    /**
+     * K-way merge of sorted sources. Sources are ordered newest first; when several hold the same key,
+     * only the newest one is returned and the others skip past it. A key whose newest source deleted it is skipped.
+     */
+    private static class MergingIterator {
+        private record Head(Source source, int rank) {
+        }
+
+        private final String endExclusive;
+        private final PriorityQueue<Head> heads = new PriorityQueue<>(
+                Comparator.comparing((Head head) -> head.source().key()).thenComparingInt(Head::rank));
+        private final Map<Source, Integer> ranks = new IdentityHashMap<>();
+
+        MergingIterator(List<Source> sources, String endExclusive) {
+            this.endExclusive = endExclusive;
+            for (int i = 0; i < sources.size(); i++) {
+                ranks.put(sources.get(i), i);
+                if (sources.get(i).key() != null) {
+                    heads.add(new Head(sources.get(i), i));
+                }
+            }
+        }
+
+        boolean hasNextKey() {
+            while (true) {
+                Head head = heads.peek();
+                if (head == null || (endExclusive != null && head.source().key().compareTo(endExclusive) >= 0)) {
+                    return false;
+                }
+                if (!head.source().deleted()) {
+                    return true;
+                }
+                advance(nextSource());
+            }
+        }
+
+        /**
+         * The newest source holding the smallest key; older sources holding the same key are moved past it.
+         * The caller reads the row and then hands the source back through {@link #advance(Source)}.
+         */
+        Source nextSource() {
+            Head winner = heads.poll();
+            String key = winner.source().key();
+            while (!heads.isEmpty() && heads.peek().source().key().equals(key)) {
+                Head shadowed = heads.poll();
+                shadowed.source().advance();
+                if (shadowed.source().key() != null) {
+                    heads.add(shadowed);
+                }
+            }
+            return winner.source();
+        }
+
+        void advance(Source source) {
+            source.advance();
+            if (source.key() != null) {
+                heads.add(new Head(source, ranks.get(source)));
+            }
+        }
+    }
+}
@@ -0,0 +1,109 @@
+package cis5550.model;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Codecs for data at rest.
+ * Encoded data starts with a small header, [MAGIC][codec][rawLength], so it can sit next to data written
+ * without a header: anything that doesn't start with MAGIC is returned as it is.
+ */
+public enum Compression {
+    NONE((byte) 0),
+    DEFLATE((byte) 1);
+
+    private static final byte[] MAGIC = {0, 'T', 'D', 'C'};
+    private static final int HEADER_SIZE = MAGIC.length + 1 + 4;
+
+    private final byte id;
+
+    Compression(byte id) {
+        this.id = id;
+    }
+
+    public static Compression fromName(String name) {
+        return valueOf(name.trim().toUpperCase());
+    }
+
+    /**
+     * Compress raw with this codec. If that doesn't make it smaller the raw bytes are returned unchanged.
+     */
+    public byte[] encode(byte[] raw) {
+        if (this == NONE) {
+            return raw;
+        }
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try {
+            deflater.setInput(raw);
+            deflater.finish();
+            ByteArrayOutputStream out = new ByteArrayOutputStream(raw.length / 2 + HEADER_SIZE);
+            out.write(MAGIC, 0, MAGIC.length);
+            out.write(id);
+            out.write(ByteBuffer.allocate(4).putInt(raw.length).array(), 0, 4);
+            byte[] buffer = new byte[8192];
+            while (!deflater.finished()) {
+                out.write(buffer, 0, deflater.deflate(buffer));
+                if (out.size() >= raw.length) {
+                    return raw;
+                }
+            }
+            return out.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    public static boolean isEncoded(byte[] stored) {
+        if (stored.length < HEADER_SIZE) {
+            return false;
+        }
+        for (int i = 0; i < MAGIC.length; i++) {
+            if (stored[i] != MAGIC[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Undo {@link #encode(byte[])} with whichever codec the header names
+     */
+    public static byte[] decode(byte[] stored) throws IOException {
+        if (!isEncoded(stored)) {
+            return stored;
+        }
+        ByteBuffer header = ByteBuffer.wrap(stored, MAGIC.length, HEADER_SIZE - MAGIC.length);
+        byte codec = header.get();
+        int rawLength = header.getInt();
+        if (codec == NONE.id) {
+            byte[] raw = new byte[rawLength];
+            System.arraycopy(stored, HEADER_SIZE, raw, 0, rawLength);
+            return raw;
+        }
+        if (codec != DEFLATE.id) {
+            throw new IOException("Unknown compression codec " + codec);
+        }
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(stored, HEADER_SIZE, stored.length - HEADER_SIZE);
+            byte[] raw = new byte[rawLength];
+            int length = 0;
+            while (length < rawLength) {
+                int n = inflater.inflate(raw, length, rawLength - length);
+                if (n == 0 && (inflater.finished() || inflater.needsInput())) {
+                    throw new IOException("Compressed data is truncated");
+                }
+                length += n;
+            }
+            return raw;
+        } catch (DataFormatException e) {
+            throw new IOException("Compressed data is corrupt", e);
+        } finally {
+            inflater.end();
+        }
+    }
+}
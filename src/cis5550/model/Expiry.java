@@ -0,0 +1,456 @@
+package cis5550.model;
+
+import cis5550.tools.KeyEncoder;
+import cis5550.tools.Logger;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Time-to-live of rows and tables.
+ * A row gets a deadline when it is written with a TTL, either its own or the table's rowTtlSeconds option. Once
+ * the deadline passes the row is hidden from reads, scans and counts right away, and a background sweeper deletes
+ * it from the table at a bounded rate. A table with the tableTtlSeconds option is dropped, through the trash like
+ * any other delete, once it hasn't been written to for that long.
+ * <p>
+ * Row deadlines are kept per table in an append-only file under .expiry, so they survive a restart. The time of a
+ * table's last write is not; after a restart every table's clock starts over.
+ */
+public class Expiry {
+    private static final Logger logger = Logger.getLogger(Expiry.class);
+    public static final String EXPIRY_DIR = ".expiry";
+    private static final String FILE_SUFFIX = ".ttl";
+    private static volatile Expiry shared;
+
+    private final WorkerContext context;
+    private final Path dir;
+    private final long rowsPerSecond;
+    private final Map<String, Deadlines> deadlines = new ConcurrentHashMap<>();
+    private final Map<String, Long> lastWrites = new ConcurrentHashMap<>();
+    private final Set<String> undeletable = ConcurrentHashMap.newKeySet();
+    private final long startTime = System.currentTimeMillis();
+    private final AtomicLong sweptRows = new AtomicLong();
+    private final AtomicLong droppedTables = new AtomicLong();
+
+    private record Deadline(long at, String key) {
+    }
+
+    private static final Comparator<Deadline> BY_TIME = Comparator.comparingLong(Deadline::at).thenComparing(Deadline::key);
+
+    /**
+     * The row deadlines of one table, in memory and in the table's deadline file
+     */
+    private static final class Deadlines {
+        private final Map<String, Long> byKey = new ConcurrentHashMap<>();
+        private final ConcurrentSkipListSet<Deadline> queue = new ConcurrentSkipListSet<>(BY_TIME);
+        private Path file;
+        private DataOutputStream out;
+        private long records;
+        // Deadlines in the queue before countedBelow, so each passed deadline is counted once rather than per call
+        private Deadline countedBelow = new Deadline(Long.MIN_VALUE, "");
+        private int passed;
+
+        private Deadlines(Path file) {
+            this.file = file;
+        }
+
+        private void load() throws IOException {
+            if (!Files.exists(file)) {
+                return;
+            }
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+                while (true) {
+                    String key;
+                    long at;
+                    try {
+                        int length = in.readInt();
+                        if (length < 0 || length > 1 << 20) {
+                            break;
+                        }
+                        byte[] encoded = new byte[length];
+                        in.readFully(encoded);
+                        key = new String(encoded, StandardCharsets.UTF_8);
+                        at = in.readLong();
+                    } catch (EOFException e) {
+                        // A record cut short by a crash is dropped; the file is rewritten below
+                        break;
+                    }
+                    apply(key, at);
+                    records++;
+                }
+            }
+            compact();
+        }
+
+        private void apply(String key, long at) {
+            Long old = at == 0 ? byKey.remove(key) : byKey.put(key, at);
+            if (old != null) {
+                dequeue(new Deadline(old, key));
+            }
+            if (at != 0 && queue.add(new Deadline(at, key)) && BY_TIME.compare(new Deadline(at, key), countedBelow) < 0) {
+                passed++;
+            }
+        }
+
+        private synchronized void dequeue(Deadline deadline) {
+            if (queue.remove(deadline) && BY_TIME.compare(deadline, countedBelow) < 0) {
+                passed--;
+            }
+        }
+
+        /**
+         * Set the row's deadline, or clear it with 0
+         */
+        private synchronized void set(String key, long at) throws IOException {
+            if (at == 0 && !byKey.containsKey(key)) {
+                return;
+            }
+            apply(key, at);
+            if (out == null) {
+                Files.createDirectories(file.getParent());
+                out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file.toFile(), true)));
+            }
+            byte[] encoded = key.getBytes(StandardCharsets.UTF_8);
+            out.writeInt(encoded.length);
+            out.write(encoded);
+            out.writeLong(at);
+            out.flush();
+            if (++records > 2L * byKey.size() + 1024) {
+                compact();
+            }
+        }
+
+        /**
+         * Rewrite the file with only the current deadlines
+         */
+        private synchronized void compact() throws IOException {
+            close();
+            Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+            Files.createDirectories(file.getParent());
+            try (DataOutputStream tmpOut = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+                for (Map.Entry<String, Long> entry : byKey.entrySet()) {
+                    byte[] encoded = entry.getKey().getBytes(StandardCharsets.UTF_8);
+                    tmpOut.writeInt(encoded.length);
+                    tmpOut.write(encoded);
+                    tmpOut.writeLong(entry.getValue());
+                }
+            }
+            Files.move(tmp, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            records = byKey.size();
+        }
+
+        private synchronized void close() throws IOException {
+            if (out != null) {
+                out.close();
+                out = null;
+            }
+        }
+
+        private boolean isExpired(String key, long now) {
+            Long at = byKey.get(key);
+            return at != null && at <= now;
+        }
+
+        /**
+         * Counts only the deadlines that passed since the last call
+         */
+        private synchronized int expired(long now) {
+            Deadline bound = new Deadline(now + 1, "");
+            if (BY_TIME.compare(bound, countedBelow) > 0) {
+                passed += queue.subSet(countedBelow, true, bound, false).size();
+                countedBelow = bound;
+            }
+            return passed;
+        }
+    }
+
+    private Expiry(WorkerContext context, long rowsPerSecond) {
+        this.context = context;
+        this.dir = Paths.get(context.storageDir(), EXPIRY_DIR);
+        this.rowsPerSecond = rowsPerSecond;
+    }
+
+    /**
+     * Load the row deadlines of the worker's tables and start the sweeper; call once the tables are loaded
+     */
+    public static void configure(WorkerContext context, long rowsPerSecond) {
+        Expiry expiry = new Expiry(context, rowsPerSecond);
+        File[] files = expiry.dir.toFile().listFiles(file -> file.getName().endsWith(FILE_SUFFIX));
+        if (files != null) {
+            for (File file : files) {
+                String encoded = file.getName();
+                String table = KeyEncoder.decode(encoded.substring(0, encoded.length() - FILE_SUFFIX.length()));
+                if (!context.tables().containsKey(table)) {
+                    // The table is gone, for instance a memory table that was not checkpointed
+                    file.delete();
+                    continue;
+                }
+                Deadlines tableDeadlines = new Deadlines(file.toPath());
+                try {
+                    tableDeadlines.load();
+                    expiry.deadlines.put(table, tableDeadlines);
+                } catch (IOException e) {
+                    logger.error("Error while reading row deadlines of table " + table + ", its rows won't expire", e);
+                }
+            }
+        }
+        Thread sweeper = new Thread(expiry::sweep, "expiry-sweeper");
+        sweeper.setDaemon(true);
+        sweeper.start();
+        shared = expiry;
+    }
+
+    /**
+     * @return null if expiry is not configured
+     */
+    public static Expiry shared() {
+        return shared;
+    }
+
+    /**
+     * Record a write to a row; call it before the write is applied. A row whose deadline has passed is deleted
+     * first, so the write starts a new row instead of bringing expired columns back.
+     * @param ttlSeconds the row's own TTL, or null to use the table's rowTtlSeconds option
+     */
+    public static void written(String table, String key, Long ttlSeconds) {
+        Expiry expiry = shared;
+        if (expiry == null) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        expiry.lastWrites.put(table, now);
+        Table tableObj = expiry.context.tables().get(table);
+        long ttl = ttlSeconds != null ? ttlSeconds : tableObj == null ? 0 : tableObj.getOptions().rowTtlSeconds();
+        Deadlines tableDeadlines = ttl > 0
+                ? expiry.deadlines.computeIfAbsent(table, name -> new Deadlines(expiry.fileOf(name)))
+                : expiry.deadlines.get(table);
+        if (tableDeadlines == null) {
+            return;
+        }
+        try {
+            synchronized (tableDeadlines) {
+                if (tableDeadlines.isExpired(key, now)) {
+                    expiry.deleteRow(table, tableObj, key);
+                    tableDeadlines.set(key, 0);
+                }
+                if (ttl > 0) {
+                    tableDeadlines.set(key, now + TimeUnit.SECONDS.toMillis(ttl));
+                }
+            }
+        } catch (IOException e) {
+            logger.error("Error while recording the deadline of row " + key + " in " + table, e);
+        }
+    }
+
+    /**
+     * Forget the deadline of a row that was deleted
+     */
+    public static void deleted(String table, String key) {
+        Expiry expiry = shared;
+        Deadlines tableDeadlines = expiry == null ? null : expiry.deadlines.get(table);
+        if (tableDeadlines == null) {
+            return;
+        }
+        try {
+            tableDeadlines.set(key, 0);
+        } catch (IOException e) {
+            logger.error("Error while clearing the deadline of row " + key + " in " + table, e);
+        }
+    }
+
+    /**
+     * @return true if the row's deadline has passed, whether or not the sweeper has deleted it yet
+     */
+    public static boolean isExpired(String table, String key) {
+        Expiry expiry = shared;
+        Deadlines tableDeadlines = expiry == null ? null : expiry.deadlines.get(table);
+        return tableDeadlines != null && tableDeadlines.isExpired(key, System.currentTimeMillis());
+    }
+
+    /**
+     * @return how many rows of the table have expired but are still stored
+     */
+    public static int expiredRows(String table) {
+        Expiry expiry = shared;
+        Deadlines tableDeadlines = expiry == null ? null : expiry.deadlines.get(table);
+        return tableDeadlines == null ? 0 : tableDeadlines.expired(System.currentTimeMillis());
+    }
+
+    /**
+     * Move a table's deadlines to its new name
+     */
+    public static void renamed(String oldName, String newName) {
+        Expiry expiry = shared;
+        if (expiry == null) {
+            return;
+        }
+        Long lastWrite = expiry.lastWrites.remove(oldName);
+        if (lastWrite != null) {
+            expiry.lastWrites.put(newName, lastWrite);
+        }
+        Deadlines tableDeadlines = expiry.deadlines.remove(oldName);
+        if (tableDeadlines == null) {
+            return;
+        }
+        synchronized (tableDeadlines) {
+            try {
+                tableDeadlines.close();
+                Path target = expiry.fileOf(newName);
+                if (Files.exists(tableDeadlines.file)) {
+                    Files.move(tableDeadlines.file, target, StandardCopyOption.REPLACE_EXISTING);
+                }
+                tableDeadlines.file = target;
+            } catch (IOException e) {
+                logger.error("Error while moving row deadlines of " + oldName + " to " + newName, e);
+            }
+        }
+        expiry.deadlines.put(newName, tableDeadlines);
+    }
+
+    /**
+     * Forget everything about a table that was deleted
+     */
+    public static void dropped(String table) {
+        Expiry expiry = shared;
+        if (expiry == null) {
+            return;
+        }
+        expiry.lastWrites.remove(table);
+        expiry.undeletable.remove(table);
+        Deadlines tableDeadlines = expiry.deadlines.remove(table);
+        if (tableDeadlines == null) {
+            return;
+        }
+        synchronized (tableDeadlines) {
+            try {
+                tableDeadlines.close();
+                Files.deleteIfExists(tableDeadlines.file);
+            } catch (IOException e) {
+                logger.error("Error while deleting row deadlines of " + table, e);
+            }
+        }
+    }
+
+    private Path fileOf(String table) {
+        return dir.resolve(KeyEncoder.encode(table) + FILE_SUFFIX);
+    }
+
+    /**
+     * @return false if the table can't delete rows, in which case its expired rows stay hidden instead
+     */
+    private boolean deleteRow(String table, Table tableObj, String key) {
+        if (tableObj == null) {
+            return false;
+        }
+        try {
+            tableObj.deleteRow(key);
+            return true;
+        } catch (UnsupportedOperationException e) {
+            if (undeletable.add(table)) {
+                logger.warn("Expired rows of " + table + " are hidden but can't be removed: " + e.getMessage());
+            }
+            return false;
+        }
+    }
+
+    private void sweep() {
+        long intervalNanos = rowsPerSecond > 0 ? TimeUnit.SECONDS.toNanos(1) / rowsPerSecond : 0;
+        while (true) {
+            try {
+                TimeUnit.SECONDS.sleep(1);
+            } catch (InterruptedException e) {
+                return;
+            }
+            dropExpiredTables();
+            long next = System.nanoTime();
+            for (Map.Entry<String, Deadlines> entry : deadlines.entrySet()) {
+                String table = entry.getKey();
+                Deadlines tableDeadlines = entry.getValue();
+                if (undeletable.contains(table)) {
+                    continue;
+                }
+                long now = System.currentTimeMillis();
+                for (Deadline deadline : tableDeadlines.queue.headSet(new Deadline(now + 1, ""))) {
+                    long wait = next - System.nanoTime();
+                    if (wait > 0) {
+                        try {
+                            TimeUnit.NANOSECONDS.sleep(wait);
+                        } catch (InterruptedException e) {
+                            return;
+                        }
+                    }
+                    synchronized (tableDeadlines) {
+                        // The row may have been written again since the deadline was read
+                        if (!Long.valueOf(deadline.at()).equals(tableDeadlines.byKey.get(deadline.key()))) {
+                            tableDeadlines.dequeue(deadline);
+                            continue;
+                        }
+                        // Through the table's gate, so a freeze can't drop the delete
+                        boolean[] deleted = new boolean[1];
+                        context.write(table, () -> deleted[0] = deleteRow(table, context.tables().get(table), deadline.key()));
+                        if (!deleted[0]) {
+                            break;
+                        }
+                        try {
+                            tableDeadlines.set(deadline.key(), 0);
+                        } catch (IOException e) {
+                            logger.error("Error while clearing the deadline of row " + deadline.key() + " in " + table, e);
+                        }
+                    }
+                    sweptRows.incrementAndGet();
+                    next = Math.max(next, System.nanoTime() - intervalNanos) + intervalNanos;
+                }
+            }
+        }
+    }
+
+    private void dropExpiredTables() {
+        long now = System.currentTimeMillis();
+        for (Table table : context.tables().values()) {
+            long ttl;
+            try {
+                ttl = table.getOptions().tableTtlSeconds();
+            } catch (NumberFormatException e) {
+                continue;
+            }
+            String name = table.getName();
+            if (ttl <= 0 || now - lastWrites.getOrDefault(name, startTime) < TimeUnit.SECONDS.toMillis(ttl)) {
+                continue;
+            }
+            try {
+                if (context.dropTable(name)) {
+                    droppedTables.incrementAndGet();
+                    logger.info("Dropped table " + name + " after " + ttl + " s without writes");
+                }
+            } catch (IOException e) {
+                logger.error("Error while dropping expired table " + name, e);
+            }
+        }
+    }
+
+    public Map<String, String> stats() {
+        long now = System.currentTimeMillis();
+        long pending = 0;
+        for (Deadlines tableDeadlines : deadlines.values()) {
+            pending += tableDeadlines.expired(now);
+        }
+        Map<String, String> stats = new LinkedHashMap<>();
+        stats.put("tables with row TTLs", String.valueOf(deadlines.size()));
+        stats.put("expired rows pending", String.valueOf(pending));
+        stats.put("swept rows", String.valueOf(sweptRows.get()));
+        stats.put("dropped tables", String.valueOf(droppedTables.get()));
+        return stats;
+    }
+}
@@ -0,0 +1,393 @@
+package cis5550.model;
+
+import cis5550.kvs.Row;
+import cis5550.kvs.RowCodec;
+import cis5550.tools.Logger;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.stream.Stream;
+
+/**
+ * Read-only table backed by one sorted, memory-mapped file.
+ * A finished table is frozen into this form so that reads are lock-free lookups into the page cache
+ * and the table occupies a single file instead of one per row.
+ * <p>
+ * Layout: [keyLen][key][valueLen][value]* sorted by key, where a value is the row in the {@link RowCodec} format
+ * (files frozen before that hold the text format, which decodes the same way), then a sparse index holding the key and offset
+ * of every INDEX_INTERVAL-th record as [count] ([keyLen][key][offset])*, then the footer
+ * [indexOffset][entryCount][MAGIC].
+ */
+public class FrozenTable implements Table {
+    private static final Logger logger = Logger.getLogger(FrozenTable.class);
+    public static final String FILE_NAME = "frozen.dat";
+    private static final String PENDING_SUFFIX = ".frozen";
+    private static final int INDEX_INTERVAL = 64;
+    private static final int FOOTER_SIZE = 8 + 8 + 4;
+    private static final int MAGIC = 0xF2022E01;
+    private static final long REGION_SIZE = 1L << 30;
+
+    private String name;
+    private volatile TableOptions options;
+    private final String storageDir;
+    private final MappedByteBuffer[] regions;
+    private final long dataEnd;
+    private final long entryCount;
+    private final String[] indexKeys;
+    private final long[] indexOffsets;
+
+    public FrozenTable(String name, String storageDir) {
+        this.name = name;
+        this.storageDir = storageDir;
+        this.options = TableOptions.load(storageDir, name);
+        try (FileChannel channel = FileChannel.open(Paths.get(storageDir, name, FILE_NAME), StandardOpenOption.READ)) {
+            long size = channel.size();
+            int regionCount = (int) ((size + REGION_SIZE - 1) / REGION_SIZE);
+            regions = new MappedByteBuffer[regionCount];
+            for (int i = 0; i < regionCount; i++) {
+                long start = i * REGION_SIZE;
+                regions[i] = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(REGION_SIZE, size - start));
+            }
+
+            ByteBuffer footer = ByteBuffer.wrap(read(size - FOOTER_SIZE, FOOTER_SIZE));
+            dataEnd = footer.getLong();
+            entryCount = footer.getLong();
+            if (footer.getInt() != MAGIC) {
+                throw new IOException("Frozen file of " + name + " has a corrupt footer");
+            }
+            ByteBuffer index = ByteBuffer.wrap(read(dataEnd, (int) (size - FOOTER_SIZE - dataEnd)));
+            int count = index.getInt();
+            indexKeys = new String[count];
+            indexOffsets = new long[count];
+            for (int i = 0; i < count; i++) {
+                byte[] key = new byte[index.getInt()];
+                index.get(key);
+                indexKeys[i] = new String(key, StandardCharsets.UTF_8);
+                indexOffsets[i] = index.getLong();
+            }
+        } catch (IOException e) {
+            logger.error("Error while opening frozen table " + name, e);
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    public static boolean isFrozen(String name, String storageDir) {
+        return Files.exists(Paths.get(storageDir, name, FILE_NAME));
+    }
+
+    /**
+     * Write every row of the source table into a sorted file, drop the source's own storage and
+     * open the result. The file is completed next to the table directory first, so a crash before it is
+     * moved into place can be finished by {@link #recoverPending(String)}. The caller keeps writes away from
+     * the source until the frozen table has replaced it.
+     * @param memoryLog the log of in-memory tables, or null; a memory table's drop is logged once the file is
+     *                  complete, so a restart doesn't bring the table back next to its frozen copy
+     */
+    public static FrozenTable freeze(Table source, String storageDir, MemoryLog memoryLog) throws IOException {
+        String name = source.getName();
+        Path tmp = Paths.get(storageDir, name + PENDING_SUFFIX + ".tmp");
+        Path pending = Paths.get(storageDir, name + PENDING_SUFFIX);
+        long start = System.currentTimeMillis();
+
+        long entryCount = 0;
+        List<String> indexKeys = new ArrayList<>();
+        List<Long> indexOffsets = new ArrayList<>();
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp), 1 << 16))) {
+            long offset = 0;
+            Iterator<String> keys = new TreeSet<>(source.getKeys()).iterator();
+            while (keys.hasNext()) {
+                String key = keys.next();
+                Row row = source.get(key);
+                if (row == null) {
+                    continue;
+                }
+                if (entryCount % INDEX_INTERVAL == 0) {
+                    indexKeys.add(key);
+                    indexOffsets.add(offset);
+                }
+                byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+                byte[] value = RowCodec.encode(row);
+                out.writeInt(keyBytes.length);
+                out.write(keyBytes);
+                out.writeInt(value.length);
+                out.write(value);
+                offset += 8 + keyBytes.length + value.length;
+                entryCount++;
+            }
+            out.writeInt(indexKeys.size());
+            for (int i = 0; i < indexKeys.size(); i++) {
+                byte[] keyBytes = indexKeys.get(i).getBytes(StandardCharsets.UTF_8);
+                out.writeInt(keyBytes.length);
+                out.write(keyBytes);
+                out.writeLong(indexOffsets.get(i));
+            }
+            out.writeLong(offset);
+            out.writeLong(entryCount);
+            out.writeInt(MAGIC);
+        }
+        try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.WRITE)) {
+            channel.force(true);
+        }
+        Files.move(tmp, pending, StandardCopyOption.ATOMIC_MOVE);
+
+        if (source instanceof MemoryTable && memoryLog != null) {
+            memoryLog.logDrop(name);
+        }
+        TableOptions options = source.getOptions();
+        source.destroy();
+        install(name, storageDir);
+        options.save(storageDir, name);
+        logger.info("Froze " + entryCount + " rows of " + name + " in " + (System.currentTimeMillis() - start) + " ms");
+        return new FrozenTable(name, storageDir);
+    }
+
+    private static void install(String name, String storageDir) throws IOException {
+        Path dir = Paths.get(storageDir, name);
+        Files.createDirectories(dir);
+        Files.move(Paths.get(storageDir, name + PENDING_SUFFIX), dir.resolve(FILE_NAME), StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Finish freezes that were interrupted after their file was complete
+     */
+    public static void recoverPending(String storageDir) {
+        File[] pending = new File(storageDir).listFiles(file -> file.isFile() && file.getName().endsWith(PENDING_SUFFIX));
+        if (pending == null) {
+            return;
+        }
+        for (File file : pending) {
+            String name = file.getName().substring(0, file.getName().length() - PENDING_SUFFIX.length());
+            try {
+                Path dir = Paths.get(storageDir, name);
+                if (Files.isDirectory(dir)) {
+                    try (Stream<Path> paths = Files.walk(dir)) {
+                        for (Path path : paths.sorted(Comparator.reverseOrder()).toList()) {
+                            Files.deleteIfExists(path);
+                        }
+                    }
+                }
+                install(name, storageDir);
+                logger.info("Finished interrupted freeze of " + name);
+            } catch (IOException e) {
+                logger.error("Error while finishing interrupted freeze of " + name, e);
+            }
+        }
+    }
+
+    private byte[] read(long position, int length) {
+        byte[] bytes = new byte[length];
+        int copied = 0;
+        while (copied < length) {
+            long at = position + copied;
+            MappedByteBuffer region = regions[(int) (at / REGION_SIZE)];
+            int offset = (int) (at % REGION_SIZE);
+            int n = Math.min(length - copied, region.limit() - offset);
+            region.get(offset, bytes, copied, n);
+            copied += n;
+        }
+        return bytes;
+    }
+
+    private int readInt(long position) {
+        return ByteBuffer.wrap(read(position, 4)).getInt();
+    }
+
+    /**
+     * Offset of the first record whose key is >= key, starting from the closest sparse index entry
+     */
+    private long seek(String key) {
+        if (key == null || indexKeys.length == 0) {
+            return 0;
+        }
+        int pos = Arrays.binarySearch(indexKeys, key);
+        if (pos >= 0) {
+            return indexOffsets[pos];
+        }
+        int block = -pos - 2;
+        long offset = block < 0 ? 0 : indexOffsets[block];
+        while (offset < dataEnd) {
+            int keyLength = readInt(offset);
+            String recordKey = new String(read(offset + 4, keyLength), StandardCharsets.UTF_8);
+            if (recordKey.compareTo(key) >= 0) {
+                return offset;
+            }
+            offset += 8 + keyLength + readInt(offset + 4 + keyLength);
+        }
+        return dataEnd;
+    }
+
+    private byte[] readValue(String key) {
+        long offset = seek(key);
+        if (offset >= dataEnd) {
+            return null;
+        }
+        int keyLength = readInt(offset);
+        if (!new String(read(offset + 4, keyLength), StandardCharsets.UTF_8).equals(key)) {
+            return null;
+        }
+        return read(offset + 8 + keyLength, readInt(offset + 4 + keyLength));
+    }
+
+    private class RecordIterator<T> implements Iterator<T> {
+        private final String endExclusive;
+        private final boolean withValues;
+        private long offset;
+        private String nextKey;
+
+        RecordIterator(String startKey, String endExclusive, boolean withValues) {
+            this.endExclusive = endExclusive;
+            this.withValues = withValues;
+            this.offset = seek(startKey);
+            peek();
+        }
+
+        private void peek() {
+            nextKey = null;
+            if (offset >= dataEnd) {
+                return;
+            }
+            String key = new String(read(offset + 4, readInt(offset)), StandardCharsets.UTF_8);
+            if (endExclusive == null || key.compareTo(endExclusive) < 0) {
+                nextKey = key;
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            return nextKey != null;
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public T next() {
+            if (nextKey == null) {
+                throw new NoSuchElementException();
+            }
+            String key = nextKey;
+            int keyLength = readInt(offset);
+            int valueLength = readInt(offset + 4 + keyLength);
+            T result = withValues ? (T) decode(read(offset + 8 + keyLength, valueLength)) : (T) key;
+            offset += 8 + keyLength + valueLength;
+            peek();
+            return result;
+        }
+    }
+
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    @Override
+    public synchronized void setName(String name) {
+        this.name = name;
+    }
+
+    @Override
+    public TableOptions getOptions() {
+        return options;
+    }
+
+    @Override
+    public void setOptions(TableOptions options) {
+        this.options = options;
+    }
+
+    @Override
+    public Row get(String key) {
+        byte[] value = readValue(key);
+        return value == null ? null : decode(value);
+    }
+
+    @Override
+    public void put(String key, Row row) {
+        throw new UnsupportedOperationException("Table " + name + " is frozen");
+    }
+
+    @Override
+    public Iterator<Row> scan(String startRow, String endRowExclusive) {
+        return new RecordIterator<>(startRow, endRowExclusive, true);
+    }
+
+    /**
+     * Sorted, read-only view of the keys backed by the mapped file
+     */
+    @Override
+    public Set<String> getKeys() {
+        return new AbstractSet<>() {
+            @Override
+            public Iterator<String> iterator() {
+                return new RecordIterator<>(null, null, false);
+            }
+
+            @Override
+            public int size() {
+                return countKeys();
+            }
+
+            @Override
+            public boolean contains(Object o) {
+                return o instanceof String key && readValue(key) != null;
+            }
+        };
+    }
+
+    @Override
+    public int countKeys() {
+        return (int) entryCount;
+    }
+
+    @Override
+    public String generateMD5(String rowKey) throws NoSuchAlgorithmException {
+        byte[] value = readValue(rowKey);
+        if (value == null) {
+            return null;
+        }
+        MessageDigest md = MessageDigest.getInstance("MD5");
+        byte[] hashInBytes = md.digest(value);
+        StringBuilder sb = new StringBuilder();
+        for (byte b : hashInBytes) {
+            sb.append(String.format("%02x", b));
+        }
+        return sb.toString();
+    }
+
+    @Override
+    public List<RowMeta> getRowMetas() {
+        List<RowMeta> rowMetas = new ArrayList<>();
+        for (String key : getKeys()) {
+            try {
+                rowMetas.add(new RowMeta(key, generateMD5(key)));
+            } catch (NoSuchAlgorithmException e) {
+                logger.error("Error generating MD5 for row " + key, e);
+                throw new RuntimeException(e);
+            }
+        }
+        return rowMetas;
+    }
+
+    @Override
+    public void destroy() throws IOException {
+        Trash.delete(Paths.get(storageDir, name));
+    }
+
+    private static Row decode(byte[] value) {
+        try {
+            return RowCodec.decode(value);
+        } catch (Exception e) {
+            logger.error("Error while decoding row", e);
+            return null;
+        }
+    }
+}
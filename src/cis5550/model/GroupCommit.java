@@ -0,0 +1,127 @@
+package cis5550.model;
+
+import cis5550.tools.Logger;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Batches fsync calls from many writers into rounds.
+ * A writer registers the file it wrote to and blocks until a round that includes it has been synced;
+ * a round is synced once it is maxDelayMillis old or has collected maxBytes of writes,
+ * so concurrent writers share one fsync per file instead of paying one each.
+ */
+public class GroupCommit {
+    private static final Logger logger = Logger.getLogger(GroupCommit.class);
+
+    public interface Syncable {
+        void sync() throws IOException;
+    }
+
+    private final long maxDelayMillis;
+    private final long maxBytes;
+    private final Set<Syncable> pending = Collections.newSetFromMap(new IdentityHashMap<>());
+    private long pendingBytes;
+    private long firstPendingAt;
+    private long collectingRound = 1;
+    private long completedRound;
+    private long failedRound = -1;
+    private IOException failure;
+    private boolean closed;
+
+    public GroupCommit(String name, long maxDelayMillis, long maxBytes) {
+        this.maxDelayMillis = maxDelayMillis;
+        this.maxBytes = maxBytes;
+        Thread syncer = new Thread(this::run, name + "-group-commit");
+        syncer.setDaemon(true);
+        syncer.start();
+    }
+
+    /**
+     * Block until target has been synced by a round that started after this call
+     */
+    public void commit(Syncable target, long bytes) throws IOException {
+        synchronized (this) {
+            if (closed) {
+                target.sync();
+                return;
+            }
+            if (pending.isEmpty()) {
+                firstPendingAt = System.currentTimeMillis();
+            }
+            pending.add(target);
+            pendingBytes += bytes;
+            long round = collectingRound;
+            notifyAll();
+            while (completedRound < round) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted while waiting for group commit", e);
+                }
+            }
+            if (failedRound == round) {
+                throw failure;
+            }
+        }
+    }
+
+    /**
+     * Sync whatever is pending right away and stop the syncer; later commits sync their target themselves
+     */
+    public synchronized void close() {
+        closed = true;
+        notifyAll();
+    }
+
+    private void run() {
+        while (true) {
+            List<Syncable> batch;
+            long round;
+            synchronized (this) {
+                try {
+                    while (pending.isEmpty()) {
+                        if (closed) {
+                            return;
+                        }
+                        wait();
+                    }
+                    long remaining;
+                    while (!closed && pendingBytes < maxBytes && (remaining = firstPendingAt + maxDelayMillis - System.currentTimeMillis()) > 0) {
+                        wait(remaining);
+                    }
+                } catch (InterruptedException e) {
+                    return;
+                }
+                batch = new ArrayList<>(pending);
+                pending.clear();
+                pendingBytes = 0;
+                round = collectingRound++;
+            }
+
+            IOException error = null;
+            for (Syncable target : batch) {
+                try {
+                    target.sync();
+                } catch (IOException e) {
+                    logger.error("Error while syncing in group commit round " + round, e);
+                    error = e;
+                }
+            }
+
+            synchronized (this) {
+                if (error != null) {
+                    failedRound = round;
+                    failure = error;
+                }
+                completedRound = round;
+                notifyAll();
+            }
+        }
+    }
+}
@@ -0,0 +1,594 @@
+package cis5550.model;
+
+import cis5550.kvs.Row;
+import cis5550.tools.Logger;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Log-structured merge table.
+ * Writes go to a write-ahead log and an in-memory memtable. Full memtables are flushed in the background to
+ * immutable sorted SSTable files, and once enough of them pile up they are merged into one.
+ * All disk writes are sequential, so a put never touches more than the log file.
+ * <p>
+ * Deleting a row writes a tombstone, an empty value, that hides the row's older values. Every compaction merges
+ * all SSTables, so no older value can remain outside it and the compaction drops the tombstone.
+ */
+public class LsmTable implements Table {
+    private static final Logger logger = Logger.getLogger(LsmTable.class);
+    private static final long MEMTABLE_FLUSH_BYTES = 4L << 20;
+    private static final int COMPACTION_TRIGGER = 4;
+    private static final String WAL_PREFIX = "wal-";
+    private static final String WAL_SUFFIX = ".log";
+    private static final String SST_PREFIX = "sst-";
+    private static final String SST_SUFFIX = ".sst";
+    private static final ExecutorService background = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "lsm-background");
+        thread.setDaemon(true);
+        return thread;
+    });
+    // Never a row: an encoded row is at least a magic byte and a version
+    private static final byte[] TOMBSTONE = new byte[0];
+
+    private String name;
+    private volatile TableOptions options;
+    private final String storageDir;
+    private final Object writeLock = new Object();
+    private final AtomicLong nextSequence = new AtomicLong(1);
+    private volatile State state;
+    private volatile boolean destroyed;
+    private final AtomicLong bloomNegatives = new AtomicLong();
+    private final AtomicLong bloomFalsePositives = new AtomicLong();
+    private final ColumnDictionary dictionary;
+
+    private record MemTable(WriteAheadLog wal, ConcurrentSkipListMap<String, byte[]> entries, AtomicLong bytes) {
+        MemTable(WriteAheadLog wal) {
+            this(wal, new ConcurrentSkipListMap<>(), new AtomicLong());
+        }
+    }
+
+    /**
+     * Immutable view of the table's components; memtables and SSTables are ordered newest first
+     */
+    private record State(MemTable active, List<MemTable> immutables, List<SSTable> tables) {
+    }
+
+    public LsmTable(String name, String storageDir) {
+        this.name = name;
+        this.storageDir = storageDir;
+        this.options = TableOptions.load(storageDir, name);
+        this.dictionary = new ColumnDictionary(() -> dir().resolve(ColumnDictionary.FILE_NAME));
+        try {
+            recover();
+        } catch (IOException e) {
+            logger.error("Error while opening LSM table " + name, e);
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private Path dir() {
+        return Paths.get(storageDir, name);
+    }
+
+    private void recover() throws IOException {
+        Path dir = dir();
+        Files.createDirectories(dir);
+
+        List<SSTable> tables = new ArrayList<>();
+        TreeMap<Long, Path> logs = new TreeMap<>();
+        long maxSequence = 0;
+        File[] files = Objects.requireNonNull(dir.toFile().listFiles(File::isFile));
+        for (File file : files) {
+            String fileName = file.getName();
+            if (fileName.endsWith(".tmp")) {
+                Files.delete(file.toPath());
+            } else if (fileName.startsWith(SST_PREFIX) && fileName.endsWith(SST_SUFFIX)) {
+                long sequence = parseSequence(fileName, SST_PREFIX, SST_SUFFIX);
+                tables.add(SSTable.open(file.toPath(), sequence));
+                maxSequence = Math.max(maxSequence, sequence);
+            } else if (fileName.startsWith(WAL_PREFIX) && fileName.endsWith(WAL_SUFFIX)) {
+                long sequence = parseSequence(fileName, WAL_PREFIX, WAL_SUFFIX);
+                logs.put(sequence, file.toPath());
+                maxSequence = Math.max(maxSequence, sequence);
+            }
+        }
+        tables.sort(Comparator.comparingLong(SSTable::getSequence).reversed());
+        nextSequence.set(maxSequence + 1);
+
+        // Whatever is still in a log was never flushed; write it out as the newest SSTable before accepting writes
+        ConcurrentSkipListMap<String, byte[]> recovered = new ConcurrentSkipListMap<>();
+        for (Path log : logs.values()) {
+            try (WriteAheadLog wal = new WriteAheadLog(log)) {
+                int count = wal.replay(record -> {
+                    ByteBuffer buffer = ByteBuffer.wrap(record);
+                    byte[] key = new byte[buffer.getInt()];
+                    buffer.get(key);
+                    byte[] value = new byte[buffer.remaining()];
+                    buffer.get(value);
+                    recovered.put(new String(key, StandardCharsets.UTF_8), value);
+                });
+                logger.info("Replayed " + count + " records from " + log);
+            }
+        }
+        if (!recovered.isEmpty()) {
+            long sequence = nextSequence.getAndIncrement();
+            tables.add(0, SSTable.write(sstPath(sequence), sequence, recovered.entrySet().iterator()));
+        }
+        for (Path log : logs.values()) {
+            Files.delete(log);
+        }
+
+        state = new State(new MemTable(newLog()), List.of(), List.copyOf(tables));
+        if (tables.size() >= COMPACTION_TRIGGER) {
+            background.submit(this::compact);
+        }
+    }
+
+    private static long parseSequence(String fileName, String prefix, String suffix) {
+        return Long.parseLong(fileName.substring(prefix.length(), fileName.length() - suffix.length()));
+    }
+
+    private Path sstPath(long sequence) {
+        return dir().resolve(SST_PREFIX + sequence + SST_SUFFIX);
+    }
+
+    private WriteAheadLog newLog() throws IOException {
+        return new WriteAheadLog(dir().resolve(WAL_PREFIX + nextSequence.getAndIncrement() + WAL_SUFFIX));
+    }
+
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    @Override
+    public TableOptions getOptions() {
+        return options;
+    }
+
+    @Override
+    public void setOptions(TableOptions options) {
+        this.options = options;
+    }
+
+    @Override
+    public void setName(String name) {
+        synchronized (writeLock) {
+            this.name = name;
+            Path dir = dir();
+            State current = state;
+            current.active().wal().moveTo(dir);
+            current.immutables().forEach(memTable -> memTable.wal().moveTo(dir));
+            current.tables().forEach(table -> table.moveTo(dir));
+        }
+    }
+
+    @Override
+    public Row get(String key) {
+        while (true) {
+            State current = state;
+            byte[] value = current.active().entries().get(key);
+            if (value != null) {
+                return decodeLive(value);
+            }
+            for (MemTable memTable : current.immutables()) {
+                value = memTable.entries().get(key);
+                if (value != null) {
+                    return decodeLive(value);
+                }
+            }
+            boolean retired = false;
+            for (SSTable table : current.tables()) {
+                if (!table.mightContain(key)) {
+                    bloomNegatives.incrementAndGet();
+                    continue;
+                }
+                if (!table.tryAcquire()) {
+                    retired = true;
+                    break;
+                }
+                try {
+                    value = table.get(key);
+                } catch (IOException e) {
+                    logger.error("Error while reading row " + key + " from " + table.getPath(), e);
+                } finally {
+                    table.release();
+                }
+                if (value != null) {
+                    return decodeLive(value);
+                }
+                bloomFalsePositives.incrementAndGet();
+            }
+            // A compaction swapped the SSTables underneath us; try again against the new state
+            if (!retired) {
+                return null;
+            }
+        }
+    }
+
+    @Override
+    public void put(String key, Row row) {
+        write(key, dictionary.encode(row));
+    }
+
+    /**
+     * Write a tombstone for the row
+     * @return false if the row doesn't exist
+     */
+    @Override
+    public boolean deleteRow(String key) {
+        if (get(key) == null) {
+            return false;
+        }
+        write(key, TOMBSTONE);
+        return true;
+    }
+
+    private void write(String key, byte[] value) {
+        byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer record = ByteBuffer.allocate(4 + keyBytes.length + value.length);
+        record.putInt(keyBytes.length).put(keyBytes).put(value);
+
+        synchronized (writeLock) {
+            MemTable active = state.active();
+            try {
+                active.wal().append(record.array());
+            } catch (IOException e) {
+                logger.error("Error while appending row " + key + " to the log of " + name, e);
+                throw new UncheckedIOException(e);
+            }
+            active.entries().put(key, value);
+            if (active.bytes().addAndGet(keyBytes.length + value.length) >= MEMTABLE_FLUSH_BYTES) {
+                rotate();
+            }
+        }
+    }
+
+    /**
+     * Swap in a fresh memtable and flush the full one in the background. Must hold writeLock.
+     */
+    private void rotate() {
+        State current = state;
+        MemTable full = current.active();
+        MemTable fresh;
+        try {
+            fresh = new MemTable(newLog());
+        } catch (IOException e) {
+            logger.error("Error while creating a new log for " + name + ", keeping the current memtable", e);
+            return;
+        }
+        List<MemTable> immutables = new ArrayList<>();
+        immutables.add(full);
+        immutables.addAll(current.immutables());
+        state = new State(fresh, List.copyOf(immutables), current.tables());
+        background.submit(() -> flush(full));
+    }
+
+    private void flush(MemTable memTable) {
+        if (destroyed) {
+            return;
+        }
+        try {
+            long sequence = nextSequence.getAndIncrement();
+            SSTable table = SSTable.write(sstPath(sequence), sequence, memTable.entries().entrySet().iterator());
+            int tableCount;
+            synchronized (writeLock) {
+                State current = state;
+                List<MemTable> immutables = new ArrayList<>(current.immutables());
+                immutables.remove(memTable);
+                List<SSTable> tables = new ArrayList<>();
+                tables.add(table);
+                tables.addAll(current.tables());
+                state = new State(current.active(), List.copyOf(immutables), List.copyOf(tables));
+                tableCount = tables.size();
+                memTable.wal().close();
+                Files.deleteIfExists(memTable.wal().getPath());
+            }
+            logger.debug("Flushed memtable of " + name + " to " + table.getPath());
+            if (tableCount >= COMPACTION_TRIGGER) {
+                compact();
+            }
+        } catch (IOException e) {
+            logger.error("Error while flushing memtable of " + name, e);
+        }
+    }
+
+    /**
+     * Merge every SSTable into one, keeping the newest value of each key
+     */
+    private void compact() {
+        if (destroyed) {
+            return;
+        }
+        List<SSTable> inputs = state.tables();
+        if (inputs.size() < 2) {
+            return;
+        }
+        List<SSTable> acquired = acquireAll(inputs);
+        if (acquired == null) {
+            return;
+        }
+        try {
+            List<Iterator<Map.Entry<String, byte[]>>> sources = new ArrayList<>();
+            for (SSTable table : acquired) {
+                sources.add(table.iterator(null));
+            }
+            long sequence = nextSequence.getAndIncrement();
+            SSTable merged = SSTable.write(sstPath(sequence), sequence, new MergingIterator(sources, null));
+            synchronized (writeLock) {
+                State current = state;
+                List<SSTable> tables = new ArrayList<>(current.tables());
+                tables.removeAll(inputs);
+                tables.add(merged);
+                state = new State(current.active(), current.immutables(), List.copyOf(tables));
+            }
+            inputs.forEach(SSTable::retire);
+            logger.debug("Compacted " + inputs.size() + " SSTables of " + name + " into " + merged.getPath());
+        } catch (IOException e) {
+            logger.error("Error while compacting " + name, e);
+        } finally {
+            acquired.forEach(SSTable::release);
+        }
+    }
+
+    /**
+     * @return the acquired tables, or null if one of them was retired in the meantime
+     */
+    private static List<SSTable> acquireAll(List<SSTable> tables) {
+        List<SSTable> acquired = new ArrayList<>();
+        for (SSTable table : tables) {
+            if (!table.tryAcquire()) {
+                acquired.forEach(SSTable::release);
+                return null;
+            }
+            acquired.add(table);
+        }
+        return acquired;
+    }
+
+    /**
+     * Merge the memtables and SSTables into one sorted stream of live entries.
+     * The SSTables stay acquired until the stream is exhausted or closed.
+     */
+    private CloseableIterator<Map.Entry<String, byte[]>> entries(String startRow, String endRowExclusive) {
+        while (true) {
+            State current = state;
+            List<SSTable> acquired = acquireAll(current.tables());
+            if (acquired == null) {
+                continue;
+            }
+            List<Iterator<Map.Entry<String, byte[]>>> sources = new ArrayList<>();
+            sources.add(tail(current.active().entries(), startRow));
+            for (MemTable memTable : current.immutables()) {
+                sources.add(tail(memTable.entries(), startRow));
+            }
+            for (SSTable table : acquired) {
+                sources.add(table.iterator(startRow));
+            }
+            MergingIterator merged = new MergingIterator(sources, endRowExclusive);
+            return new CloseableIterator<>() {
+                private boolean released;
+
+                @Override
+                public synchronized void close() {
+                    if (!released) {
+                        released = true;
+                        acquired.forEach(SSTable::release);
+                    }
+                }
+
+                @Override
+                public boolean hasNext() {
+                    boolean hasNext = merged.hasNext();
+                    if (!hasNext) {
+                        close();
+                    }
+                    return hasNext;
+                }
+
+                @Override
+                public Map.Entry<String, byte[]> next() {
+                    return merged.next();
+                }
+            };
+        }
+    }
+
+    private static Iterator<Map.Entry<String, byte[]>> tail(ConcurrentSkipListMap<String, byte[]> entries, String startRow) {
+        return (startRow == null ? entries : entries.tailMap(startRow)).entrySet().iterator();
+    }
+
+    @Override
+    public Iterator<Row> scan(String startRow, String endRowExclusive) {
+        CloseableIterator<Map.Entry<String, byte[]>> entries = entries(startRow, endRowExclusive);
+        return new CloseableIterator<>() {
+            @Override
+            public void close() {
+                entries.close();
+            }
+
+            @Override
+            public boolean hasNext() {
+                return entries.hasNext();
+            }
+
+            @Override
+            public Row next() {
+                return decode(entries.next().getValue());
+            }
+        };
+    }
+
+    @Override
+    public Set<String> getKeys() {
+        Set<String> keys = new TreeSet<>();
+        entries(null, null).forEachRemaining(entry -> keys.add(entry.getKey()));
+        return keys;
+    }
+
+    @Override
+    public int countKeys() {
+        int count = 0;
+        Iterator<Map.Entry<String, byte[]>> entries = entries(null, null);
+        while (entries.hasNext()) {
+            entries.next();
+            count++;
+        }
+        return count;
+    }
+
+    @Override
+    public String generateMD5(String rowKey) throws NoSuchAlgorithmException {
+        Row row = get(rowKey);
+        if (row == null) {
+            return null;
+        }
+        MessageDigest md = MessageDigest.getInstance("MD5");
+        byte[] hashInBytes = md.digest(row.toByteArray());
+        StringBuilder sb = new StringBuilder();
+        for (byte b : hashInBytes) {
+            sb.append(String.format("%02x", b));
+        }
+        return sb.toString();
+    }
+
+    @Override
+    public List<RowMeta> getRowMetas() {
+        List<RowMeta> rowMetas = new ArrayList<>();
+        try (CloseableIterator<Map.Entry<String, byte[]>> entries = entries(null, null)) {
+            while (entries.hasNext()) {
+                String key = entries.next().getKey();
+                try {
+                    rowMetas.add(new RowMeta(key, generateMD5(key)));
+                } catch (NoSuchAlgorithmException e) {
+                    logger.error("Error generating MD5 for row " + key, e);
+                    throw new RuntimeException(e);
+                }
+            }
+        }
+        return rowMetas;
+    }
+
+    @Override
+    public Map<String, String> stats() {
+        List<SSTable> tables = state.tables();
+        long negatives = bloomNegatives.get();
+        long falsePositives = bloomFalsePositives.get();
+        Map<String, String> stats = new LinkedHashMap<>();
+        stats.put("sstables", String.valueOf(tables.size()));
+        stats.put("bloom bytes", String.valueOf(tables.stream().mapToLong(SSTable::bloomSizeInBytes).sum()));
+        stats.put("bloom negatives", String.valueOf(negatives));
+        stats.put("bloom false positives", String.valueOf(falsePositives));
+        stats.put("bloom false positive rate", negatives + falsePositives == 0 ? "0" :
+                String.format("%.4f", (double) falsePositives / (negatives + falsePositives)));
+        stats.putAll(dictionary.stats());
+        return stats;
+    }
+
+    @Override
+    public void destroy() throws IOException {
+        destroyed = true;
+        synchronized (writeLock) {
+            State current = state;
+            current.active().wal().close();
+            for (MemTable memTable : current.immutables()) {
+                memTable.wal().close();
+            }
+            current.tables().forEach(SSTable::retire);
+        }
+        dictionary.close();
+        Trash.delete(dir());
+    }
+
+    private Row decodeLive(byte[] value) {
+        return value.length == 0 ? null : decode(value);
+    }
+
+    private Row decode(byte[] value) {
+        try {
+            return dictionary.decode(value);
+        } catch (Exception e) {
+            logger.error("Error while decoding row", e);
+            return null;
+        }
+    }
+
+    /**
+     * K-way merge of sorted sources. Sources are ordered newest first; when several hold the same key,
+     * only the entry from the newest one counts, and nothing is returned for the key if that entry is a tombstone.
+     */
+    private static class MergingIterator implements Iterator<Map.Entry<String, byte[]>> {
+        private record Head(Map.Entry<String, byte[]> entry, int rank) {
+        }
+
+        private final List<Iterator<Map.Entry<String, byte[]>>> sources;
+        private final String endExclusive;
+        private final PriorityQueue<Head> heads = new PriorityQueue<>(
+                Comparator.comparing((Head head) -> head.entry().getKey()).thenComparingInt(Head::rank));
+        private Map.Entry<String, byte[]> next;
+
+        MergingIterator(List<Iterator<Map.Entry<String, byte[]>>> sources, String endExclusive) {
+            this.sources = sources;
+            this.endExclusive = endExclusive;
+            for (int i = 0; i < sources.size(); i++) {
+                pull(i);
+            }
+            advance();
+        }
+
+        private void pull(int rank) {
+            Iterator<Map.Entry<String, byte[]>> source = sources.get(rank);
+            if (source.hasNext()) {
+                heads.add(new Head(source.next(), rank));
+            }
+        }
+
+        private void advance() {
+            next = null;
+            while (next == null) {
+                Head winner = heads.peek();
+                if (winner == null || (endExclusive != null && winner.entry().getKey().compareTo(endExclusive) >= 0)) {
+                    return;
+                }
+                heads.poll();
+                pull(winner.rank());
+                String key = winner.entry().getKey();
+                while (!heads.isEmpty() && heads.peek().entry().getKey().equals(key)) {
+                    pull(heads.poll().rank());
+                }
+                if (winner.entry().getValue().length > 0) {
+                    next = winner.entry();
+                }
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            return next != null;
+        }
+
+        @Override
+        public Map.Entry<String, byte[]> next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            Map.Entry<String, byte[]> entry = next;
+            advance();
+            return entry;
+        }
+    }
+}
@@ -0,0 +1,146 @@
+package cis5550.model;
+
+import cis5550.tools.Logger;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Worker-wide heap budget for in-memory tables.
+ * Tables report the size of the rows they hold; once the total passes the high-water mark, rows of the
+ * least recently used tables are spilled to files under the spill directory until the total is back under
+ * the low-water mark. Spilled rows are read back from their file, so callers see the same rows and versions.
+ * A spilled row is never loaded back onto the heap: every read decodes it from the file again, and its place in the
+ * file is only given up when the version is dropped or the table goes away.
+ * <p>
+ * Memory tables are either lost on restart or rebuilt from the memory table log, so spill files are cleared at startup.
+ */
+public class MemoryBudget {
+    private static final Logger logger = Logger.getLogger(MemoryBudget.class);
+    public static final String SPILL_DIR = ".spill";
+    private static final double HIGH_WATER = 0.9;
+    private static final double LOW_WATER = 0.75;
+    private static volatile MemoryBudget shared;
+
+    private final long maxBytes;
+    private final Path spillDir;
+    private final AtomicLong residentBytes = new AtomicLong();
+    private final Set<MemoryTable> tables = ConcurrentHashMap.newKeySet();
+    // Not a lock: the thread that spills also gives bytes back, and must not start another spill while it does
+    private final AtomicBoolean spilling = new AtomicBoolean();
+
+    public MemoryBudget(long maxBytes, Path spillDir) {
+        this.maxBytes = maxBytes;
+        this.spillDir = spillDir;
+    }
+
+    /**
+     * Install the worker's budget; memory tables created afterwards are accounted against it
+     */
+    public static void configure(String storageDir, long maxBytes) {
+        if (maxBytes <= 0) {
+            shared = null;
+            return;
+        }
+        Path spillDir = Paths.get(storageDir, SPILL_DIR);
+        File[] stale = spillDir.toFile().listFiles();
+        if (stale != null) {
+            for (File file : stale) {
+                file.delete();
+            }
+        }
+        shared = new MemoryBudget(maxBytes, spillDir);
+        logger.info("Memory tables may use " + maxBytes + " bytes of heap before spilling to " + spillDir);
+    }
+
+    /**
+     * @return null if no budget is configured
+     */
+    public static MemoryBudget shared() {
+        return shared;
+    }
+
+    void register(MemoryTable table) {
+        tables.add(table);
+    }
+
+    void unregister(MemoryTable table, long bytes) {
+        tables.remove(table);
+        residentBytes.addAndGet(-bytes);
+    }
+
+    Path newSpillFile(String tableName) throws IOException {
+        Files.createDirectories(spillDir);
+        // Table names may hold characters that are not safe in file names
+        return Files.createTempFile(spillDir, tableName.replaceAll("[^A-Za-z0-9_-]", "_") + "-", ".spill");
+    }
+
+    /**
+     * Account for rows added to or dropped from memory, and spill if the budget is exceeded
+     */
+    void add(long bytes) {
+        if (residentBytes.addAndGet(bytes) > maxBytes * HIGH_WATER && spilling.compareAndSet(false, true)) {
+            try {
+                spill();
+            } finally {
+                spilling.set(false);
+            }
+        }
+    }
+
+    /**
+     * Spill from the coldest tables first, going over all of them again until the total is under the low-water
+     * mark or a whole pass frees nothing
+     */
+    private void spill() {
+        record Candidate(MemoryTable table, long lastAccess) {
+        }
+        long target = (long) (maxBytes * LOW_WATER);
+        long start = System.currentTimeMillis();
+        long spilled = 0;
+        long freed = -1;
+        while (freed != 0 && residentBytes.get() > target) {
+            freed = 0;
+            // Take the access times once per pass; they keep changing while the tables are sorted
+            List<Candidate> coldestFirst = new ArrayList<>();
+            for (MemoryTable table : tables) {
+                coldestFirst.add(new Candidate(table, table.lastAccess()));
+            }
+            coldestFirst.sort(Comparator.comparingLong(Candidate::lastAccess));
+            for (Candidate candidate : coldestFirst) {
+                MemoryTable table = candidate.table();
+                long excess = residentBytes.get() - target;
+                if (excess <= 0) {
+                    break;
+                }
+                try {
+                    long bytes = table.spill(excess);
+                    residentBytes.addAndGet(-bytes);
+                    freed += bytes;
+                } catch (IOException e) {
+                    logger.error("Error while spilling memory table " + table.getName(), e);
+                }
+            }
+            spilled += freed;
+        }
+        logger.info("Spilled " + spilled + " bytes of memory tables in " + (System.currentTimeMillis() - start) + " ms");
+    }
+
+    public long residentBytes() {
+        return residentBytes.get();
+    }
+
+    public long maxBytes() {
+        return maxBytes;
+    }
+}
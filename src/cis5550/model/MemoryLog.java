@@ -0,0 +1,270 @@
+package cis5550.model;
+
+import cis5550.kvs.Row;
+import cis5550.kvs.RowCodec;
+import cis5550.tools.Logger;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.*;
+
+/**
+ * Per-worker write-ahead log for in-memory tables.
+ * Every version written to a MemoryTable, including the tombstones of deleted rows, plus table renames and
+ * drops, is appended here and synced with group commit. On startup the last snapshot is loaded and the logs
+ * written after it are replayed, so memory tables come back with the same rows and version numbers.
+ * A checkpoint writes a new snapshot and drops the logs it covers.
+ * <p>
+ * Logs are named memory-N.wal; replaying a record that the snapshot already contains is harmless because
+ * every put carries its version number. A put of a single column only logs that column, and replay rebuilds the
+ * row from the version before it.
+ */
+public class MemoryLog {
+    private static final Logger logger = Logger.getLogger(MemoryLog.class);
+    private static final String LOG_PREFIX = "memory-";
+    private static final String LOG_SUFFIX = ".wal";
+    private static final byte PUT = 1;
+    private static final byte RENAME = 2;
+    private static final byte DROP = 3;
+    private static final byte DELETE = 4;
+    private static final byte COLUMN = 5;
+
+    private final String storageDir;
+    private final GroupCommit groupCommit;
+    private final Object rotateLock = new Object();
+    private volatile WriteAheadLog current;
+    private long currentNumber;
+
+    public MemoryLog(String storageDir, GroupCommit groupCommit) {
+        this.storageDir = storageDir;
+        this.groupCommit = groupCommit;
+    }
+
+    private Path logPath(long number) {
+        return Paths.get(storageDir, LOG_PREFIX + number + LOG_SUFFIX);
+    }
+
+    private TreeMap<Long, Path> existingLogs() {
+        TreeMap<Long, Path> logs = new TreeMap<>();
+        File[] files = new File(storageDir).listFiles(file -> file.isFile() && file.getName().startsWith(LOG_PREFIX) && file.getName().endsWith(LOG_SUFFIX));
+        if (files != null) {
+            for (File file : files) {
+                String fileName = file.getName();
+                logs.put(Long.parseLong(fileName.substring(LOG_PREFIX.length(), fileName.length() - LOG_SUFFIX.length())), file.toPath());
+            }
+        }
+        return logs;
+    }
+
+    /**
+     * Rebuild the memory tables from the snapshot and logs, register them in tables and start a new log
+     */
+    public void recover(Map<String, Table> tables) throws IOException {
+        long start = System.currentTimeMillis();
+        MemorySnapshot.restore(storageDir, tables);
+        TreeMap<Long, Path> logs = existingLogs();
+        int records = 0;
+        for (Path path : logs.values()) {
+            try (WriteAheadLog wal = new WriteAheadLog(path)) {
+                records += wal.replay(record -> apply(record, tables));
+            }
+        }
+        for (Table table : tables.values()) {
+            if (table instanceof MemoryTable memoryTable) {
+                memoryTable.setLog(this);
+            }
+        }
+        currentNumber = logs.isEmpty() ? 1 : logs.lastKey() + 1;
+        current = new WriteAheadLog(logPath(currentNumber));
+        logger.info("Recovered memory tables from " + logs.size() + " logs (" + records + " records) in " + (System.currentTimeMillis() - start) + " ms");
+    }
+
+    private void apply(byte[] record, Map<String, Table> tables) {
+        try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(record))) {
+            byte type = in.readByte();
+            String table = in.readUTF();
+            if (type == PUT) {
+                String key = readString(in);
+                int version = in.readInt();
+                Row row = RowCodec.decode(in.readAllBytes());
+                MemoryTable memoryTable = (MemoryTable) tables.computeIfAbsent(table, MemoryTable::new);
+                memoryTable.restore(key, version, row);
+            } else if (type == RENAME) {
+                String newName = in.readUTF();
+                Table source = tables.remove(table);
+                if (source instanceof MemoryTable memoryTable) {
+                    Table target = tables.get(newName);
+                    if (target instanceof MemoryTable existing) {
+                        // The snapshot already holds the renamed table; fold in what was logged under the old name
+                        existing.restoreAll(memoryTable);
+                    } else {
+                        memoryTable.setName(newName);
+                        tables.put(newName, memoryTable);
+                    }
+                }
+            } else if (type == DROP) {
+                tables.remove(table);
+            } else if (type == COLUMN) {
+                String key = readString(in);
+                int version = in.readInt();
+                String column = readString(in);
+                int length = in.readInt();
+                byte[] value = length < 0 ? null : in.readNBytes(length);
+                MemoryTable memoryTable = (MemoryTable) tables.computeIfAbsent(table, MemoryTable::new);
+                memoryTable.restoreColumn(key, version, column, value);
+            } else if (type == DELETE) {
+                String key = readString(in);
+                int version = in.readInt();
+                MemoryTable memoryTable = (MemoryTable) tables.computeIfAbsent(table, MemoryTable::new);
+                memoryTable.restore(key, version, null);
+            }
+        } catch (Exception e) {
+            logger.error("Skipping unreadable memory log record", e);
+        }
+    }
+
+    public void logPut(String table, String key, int version, Row row) {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeByte(PUT);
+            out.writeUTF(table);
+            writeString(out, key);
+            out.writeInt(version);
+            out.write(RowCodec.encode(row));
+            append(bytes.toByteArray());
+        } catch (IOException e) {
+            logger.error("Error while logging put to " + table, e);
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Log a version that differs from the one before it in one column; a null value means the column was removed
+     */
+    public void logColumn(String table, String key, int version, String column, byte[] value) {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeByte(COLUMN);
+            out.writeUTF(table);
+            writeString(out, key);
+            out.writeInt(version);
+            writeString(out, column);
+            if (value == null) {
+                // Removed columns are written with a length of -1
+                out.writeInt(-1);
+            } else {
+                out.writeInt(value.length);
+                out.write(value);
+            }
+            append(bytes.toByteArray());
+        } catch (IOException e) {
+            logger.error("Error while logging column put to " + table, e);
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Log the tombstone version that deleted a row; the caller syncs like it does after a put
+     */
+    public void logDelete(String table, String key, int version) {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeByte(DELETE);
+            out.writeUTF(table);
+            writeString(out, key);
+            out.writeInt(version);
+            append(bytes.toByteArray());
+        } catch (IOException e) {
+            logger.error("Error while logging delete from " + table, e);
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    public void logRename(String oldName, String newName) {
+        logTableEvent(RENAME, oldName, newName);
+    }
+
+    public void logDrop(String table) {
+        logTableEvent(DROP, table, null);
+    }
+
+    private void logTableEvent(byte type, String table, String newName) {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeByte(type);
+            out.writeUTF(table);
+            if (newName != null) {
+                out.writeUTF(newName);
+            }
+            append(bytes.toByteArray());
+            sync(bytes.size());
+        } catch (IOException e) {
+            logger.error("Error while logging change to table " + table, e);
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private void append(byte[] record) throws IOException {
+        synchronized (rotateLock) {
+            current.append(record);
+        }
+    }
+
+    /**
+     * Wait until everything appended so far is on disk
+     */
+    public void sync(long bytes) {
+        try {
+            groupCommit.commit(current, bytes);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    public long size() throws IOException {
+        return current.size();
+    }
+
+    /**
+     * Write a snapshot of the memory tables and delete the logs it makes redundant.
+     * Writers only pause while the log is switched; records that land in the new log while the snapshot is
+     * written are replayed on top of it.
+     */
+    public synchronized void checkpoint(Map<String, Table> tables) throws IOException {
+        long start = System.currentTimeMillis();
+        long covered;
+        synchronized (rotateLock) {
+            current.sync();
+            current.close();
+            covered = currentNumber;
+            currentNumber++;
+            current = new WriteAheadLog(logPath(currentNumber));
+        }
+
+        MemorySnapshot.write(storageDir, tables);
+
+        for (Map.Entry<Long, Path> log : existingLogs().headMap(covered, true).entrySet()) {
+            Files.deleteIfExists(log.getValue());
+        }
+        logger.info("Checkpointed memory tables in " + (System.currentTimeMillis() - start) + " ms");
+    }
+
+    static void writeString(DataOutputStream out, String s) throws IOException {
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    static String readString(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
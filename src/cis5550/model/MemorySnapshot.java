@@ -0,0 +1,309 @@
+package cis5550.model;
+
+import cis5550.kvs.RowCodec;
+import cis5550.tools.Logger;
+
+import java.io.*;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Checkpoint of the in-memory tables.
+ * Each table, with every version of every row, is written to its own binary file under .memory-snapshot; the
+ * memory.snapshot manifest names the files of the newest complete checkpoint and is replaced atomically once
+ * they are on disk. Tables are written and restored in parallel, and restore reads the files through
+ * memory-mapped windows rather than a stream. A table that has not been written to or renamed since the previous
+ * checkpoint keeps its file from that checkpoint instead of being written again.
+ */
+public class MemorySnapshot {
+    private static final Logger logger = Logger.getLogger(MemorySnapshot.class);
+    public static final String SNAPSHOT_DIR = ".memory-snapshot";
+    private static final String MANIFEST_FILE = "memory.snapshot";
+    private static final int MANIFEST_MAGIC = 0x4D534E31;
+    private static final int TABLE_MAGIC = 0x4D544231;
+    private static final int WINDOW = 64 << 20;
+    private static volatile long checkpointedWrites = -1;
+    // The file each table was last checkpointed to, and what the table looked like then
+    private static final Map<MemoryTable, Written> written = new HashMap<>();
+
+    private record Written(Path file, String name, long writes) {
+    }
+
+    private MemorySnapshot() {
+    }
+
+    /**
+     * Write every memory table in tables to a new checkpoint and drop the files of older ones
+     * @return the number of tables written
+     */
+    public static synchronized int write(String storageDir, Map<String, Table> tables) throws IOException {
+        long start = System.currentTimeMillis();
+        long writes = writes(tables);
+        Path dir = Paths.get(storageDir, SNAPSHOT_DIR);
+        Files.createDirectories(dir);
+        long generation = readGeneration(storageDir) + 1;
+
+        List<MemoryTable> memoryTables = new ArrayList<>();
+        for (Table table : tables.values()) {
+            if (table instanceof MemoryTable memoryTable) {
+                memoryTables.add(memoryTable);
+            }
+        }
+        List<String> fileNames = new ArrayList<>();
+        List<Callable<Void>> tasks = new ArrayList<>();
+        Map<MemoryTable, Written> nowWritten = new HashMap<>();
+        int reused = 0;
+        for (int i = 0; i < memoryTables.size(); i++) {
+            MemoryTable table = memoryTables.get(i);
+            Written previous = written.get(table);
+            // Taken before the rows are written, so a write that lands meanwhile makes the table look changed next time
+            Written current = new Written(null, table.getName(), table.writeCount());
+            if (previous != null && previous.name().equals(current.name()) && previous.writes() == current.writes()
+                    && Files.exists(previous.file())) {
+                fileNames.add(previous.file().getFileName().toString());
+                nowWritten.put(table, previous);
+                reused++;
+                continue;
+            }
+            // Table names may hold characters that are not safe in file names, so files are numbered instead
+            String fileName = generation + "-" + i + ".tbl";
+            fileNames.add(fileName);
+            nowWritten.put(table, new Written(dir.resolve(fileName), current.name(), current.writes()));
+            tasks.add(() -> {
+                writeTable(dir.resolve(fileName), table);
+                return null;
+            });
+        }
+        runAll(tasks);
+
+        Path tmp = Paths.get(storageDir, MANIFEST_FILE + ".tmp");
+        try (FileOutputStream file = new FileOutputStream(tmp.toFile());
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(file))) {
+            out.writeInt(MANIFEST_MAGIC);
+            out.writeLong(generation);
+            out.writeInt(fileNames.size());
+            for (String fileName : fileNames) {
+                out.writeUTF(fileName);
+            }
+            out.flush();
+            file.getFD().sync();
+        }
+        Files.move(tmp, Paths.get(storageDir, MANIFEST_FILE), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        checkpointedWrites = writes;
+        written.clear();
+        written.putAll(nowWritten);
+
+        Set<String> live = new HashSet<>(fileNames);
+        File[] stale = dir.toFile().listFiles(file -> !live.contains(file.getName()));
+        if (stale != null) {
+            for (File file : stale) {
+                file.delete();
+            }
+        }
+        logger.info("Wrote snapshot of " + fileNames.size() + " memory tables (" + reused + " unchanged) in " + (System.currentTimeMillis() - start) + " ms");
+        return fileNames.size();
+    }
+
+    private static void writeTable(Path path, MemoryTable table) throws IOException {
+        try (FileOutputStream file = new FileOutputStream(path.toFile());
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(file, 1 << 16))) {
+            out.writeInt(TABLE_MAGIC);
+            table.writeSnapshot(out);
+            out.flush();
+            file.getFD().sync();
+        }
+    }
+
+    /**
+     * Load the tables of the newest checkpoint into tables; does nothing if no checkpoint was taken
+     */
+    public static void restore(String storageDir, Map<String, Table> tables) throws IOException {
+        Path manifest = Paths.get(storageDir, MANIFEST_FILE);
+        if (!Files.exists(manifest)) {
+            return;
+        }
+        long start = System.currentTimeMillis();
+        List<String> fileNames = new ArrayList<>();
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(manifest)))) {
+            if (in.readInt() != MANIFEST_MAGIC) {
+                throw new IOException("Snapshot manifest " + manifest + " has the wrong format");
+            }
+            in.readLong();
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                fileNames.add(in.readUTF());
+            }
+        }
+
+        Path dir = Paths.get(storageDir, SNAPSHOT_DIR);
+        List<Callable<MemoryTable>> tasks = new ArrayList<>();
+        for (String fileName : fileNames) {
+            tasks.add(() -> readTable(dir.resolve(fileName)));
+        }
+        List<MemoryTable> restored = runAll(tasks);
+        synchronized (MemorySnapshot.class) {
+            written.clear();
+            for (int i = 0; i < restored.size(); i++) {
+                MemoryTable table = restored.get(i);
+                tables.put(table.getName(), table);
+                written.put(table, new Written(dir.resolve(fileNames.get(i)), table.getName(), table.writeCount()));
+            }
+        }
+        checkpointedWrites = writes(tables);
+        logger.info("Restored " + fileNames.size() + " memory tables from snapshot in " + (System.currentTimeMillis() - start) + " ms");
+    }
+
+    private static MemoryTable readTable(Path path) throws IOException {
+        try (MappedReader in = new MappedReader(path)) {
+            if (in.readInt() != TABLE_MAGIC) {
+                throw new IOException("Snapshot file " + path + " has the wrong format");
+            }
+            MemoryTable table = new MemoryTable(in.readUTF());
+            while (in.readBoolean()) {
+                String key = in.readString();
+                int version = in.readInt();
+                int length = in.readInt();
+                if (length < 0) {
+                    table.restore(key, version, null);
+                    continue;
+                }
+                byte[] row = in.readBytes(length);
+                try {
+                    table.restore(key, version, RowCodec.decode(row));
+                } catch (Exception e) {
+                    throw new IOException("Corrupt row " + key + " in snapshot of " + table.getName(), e);
+                }
+            }
+            return table;
+        }
+    }
+
+    private static long readGeneration(String storageDir) {
+        Path manifest = Paths.get(storageDir, MANIFEST_FILE);
+        if (!Files.exists(manifest)) {
+            return 0;
+        }
+        try (DataInputStream in = new DataInputStream(Files.newInputStream(manifest))) {
+            return in.readInt() == MANIFEST_MAGIC ? in.readLong() : 0;
+        } catch (IOException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * @return true if the memory tables were written to since the last checkpoint
+     */
+    public static boolean isStale(Map<String, Table> tables) {
+        return writes(tables) != checkpointedWrites;
+    }
+
+    private static long writes(Map<String, Table> tables) {
+        long writes = 0;
+        for (Table table : tables.values()) {
+            if (table instanceof MemoryTable memoryTable) {
+                writes += memoryTable.writeCount();
+            }
+        }
+        return writes;
+    }
+
+    private static <T> List<T> runAll(List<Callable<T>> tasks) throws IOException {
+        if (tasks.isEmpty()) {
+            return List.of();
+        }
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(tasks.size(), Runtime.getRuntime().availableProcessors()));
+        try {
+            List<T> results = new ArrayList<>();
+            for (Future<T> future : executor.invokeAll(tasks)) {
+                results.add(future.get());
+            }
+            return results;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while processing the memory snapshot");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException ioException) {
+                throw ioException;
+            }
+            throw new IOException(e.getCause());
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * Reads a snapshot file through a window that is remapped as it moves, so files larger than 2GB work too
+     */
+    private static final class MappedReader implements Closeable {
+        private final FileChannel channel;
+        private final long size;
+        private long windowStart;
+        private MappedByteBuffer window;
+
+        MappedReader(Path path) throws IOException {
+            channel = FileChannel.open(path, StandardOpenOption.READ);
+            size = channel.size();
+            window = channel.map(FileChannel.MapMode.READ_ONLY, 0, Math.min(size, WINDOW));
+        }
+
+        private void ensure(int bytes) throws IOException {
+            if (window.remaining() >= bytes) {
+                return;
+            }
+            long position = windowStart + window.position();
+            if (position + bytes > size) {
+                throw new EOFException("Snapshot file ends in the middle of a record");
+            }
+            windowStart = position;
+            window = channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(size - position, Math.max(bytes, WINDOW)));
+        }
+
+        boolean readBoolean() throws IOException {
+            ensure(1);
+            return window.get() != 0;
+        }
+
+        int readInt() throws IOException {
+            ensure(4);
+            return window.getInt();
+        }
+
+        byte[] readBytes(int length) throws IOException {
+            ensure(length);
+            byte[] bytes = new byte[length];
+            window.get(bytes);
+            return bytes;
+        }
+
+        String readString() throws IOException {
+            return new String(readBytes(readInt()), StandardCharsets.UTF_8);
+        }
+
+        /**
+         * Read a string written with DataOutputStream.writeUTF
+         */
+        String readUTF() throws IOException {
+            ensure(2);
+            int length = Short.toUnsignedInt(window.getShort());
+            byte[] encoded = readBytes(length);
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(length + 2);
+            bytes.write(length >>> 8);
+            bytes.write(length);
+            bytes.write(encoded, 0, length);
+            return new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())).readUTF();
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+    }
+}
@@ -1,25 +1,111 @@
 package cis5550.model;
 
 import cis5550.kvs.Row;
+import cis5550.kvs.RowCodec;
 import cis5550.tools.Logger;
+import cis5550.tools.WorkerConfig;
 
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.NavigableMap;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
 
 public class MemoryTable implements Table {
     private static final Logger logger = Logger.getLogger(MemoryTable.class);
-    private final ConcurrentHashMap<String, NavigableMap<Integer, Row>> rows;
+    private static final Set<MemoryTable> retaining = ConcurrentHashMap.newKeySet();
+    private static final ScheduledExecutorService reaper = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "version-reaper");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    static {
+        long period = Math.max(1, WorkerConfig.versionReapMillis());
+        reaper.scheduleWithFixedDelay(() -> retaining.forEach(MemoryTable::reapVersions), period, period, TimeUnit.MILLISECONDS);
+    }
+
+    private final ConcurrentHashMap<String, NavigableMap<Integer, Slot>> rows;
     private  String name;
+    private volatile MemoryLog log;
+    private final MemoryBudget budget;
+    private final AtomicLong residentBytes = new AtomicLong();
+    private final AtomicLong spilledBytes = new AtomicLong();
+    private final AtomicLong writeCount = new AtomicLong();
+    private final AtomicInteger deletedRows = new AtomicInteger();
+    private volatile long lastAccess = System.nanoTime();
+    private volatile TableOptions options;
+    private volatile int maxVersions;
+    private volatile long versionRetentionMillis;
+    // Rows that may hold versions the retention policy doesn't keep; only tracked while there is a policy
+    private final Set<String> reapable = ConcurrentHashMap.newKeySet();
+    private final AtomicLong reapedVersions = new AtomicLong();
+    // Newest version of any row the reaper forgot; rows created after it start above it, so no version is reused
+    private final AtomicInteger forgottenVersion = new AtomicInteger();
+    // Column names of all versions, and the numbers that stand for them in the spill file
+    private final ColumnDictionary dictionary = new ColumnDictionary();
+    private FileChannel spillFile;
+    private Path spillPath;
+
+    /**
+     * One version of a row. The row is either held in memory or, once spilled, read back from the spill file.
+     * A version without a row is a tombstone: the row was deleted at that version.
+     */
+    private static final class Slot {
+        private volatile Row row;
+        private final int size;
+        private final boolean deleted;
+        private final long created = System.currentTimeMillis();
+        private volatile long spillOffset = -1;
+        private volatile int spillLength;
+        // Set once the version is dropped; spilling and releasing a version both hold its lock
+        private boolean released;
+
+        /**
+         * @param firstVersion whether the row has no other version, so this one holds the key's only copy
+         */
+        Slot(Row row, boolean firstVersion) {
+            this.row = row;
+            this.deleted = row == null;
+            // A version that shares columns with the previous one only costs what it added, plus the key if it is new
+            if (deleted) {
+                this.size = 0;
+            } else if (row instanceof SharedRow shared && shared.addedBytes() >= 0) {
+                this.size = shared.addedBytes() + (firstVersion ? keySize(row.key()) : 0);
+            } else {
+                this.size = estimateSize(row);
+            }
+        }
+    }
 
     public MemoryTable(String name) {
         this.name = name;
         this.rows = new ConcurrentHashMap<>();
+        this.budget = MemoryBudget.shared();
+        if (budget != null) {
+            budget.register(this);
+        }
+        setOptions(TableOptions.defaults());
     }
 
     public String getName() {
@@ -31,6 +117,98 @@ public class MemoryTable implements Table {
         this.name = name;
     }
 
+    /**
+     * Options of a memory table live only as long as the table object; they are not checkpointed or logged
+     */
+    @Override
+    public TableOptions getOptions() {
+        return options;
+    }
+
+    /**
+     * Switching on a retention policy hands every row that has old versions to the reaper
+     */
+    @Override
+    public synchronized void setOptions(TableOptions options) {
+        this.options = options;
+        maxVersions = options.maxVersions();
+        versionRetentionMillis = TimeUnit.SECONDS.toMillis(options.versionRetentionSeconds());
+        if (keepsAllVersions()) {
+            retaining.remove(this);
+            reapable.clear();
+            return;
+        }
+        rows.forEach((key, versions) -> {
+            synchronized (versions) {
+                markReapable(key, versions);
+            }
+        });
+        retaining.add(this);
+    }
+
+    private boolean keepsAllVersions() {
+        return maxVersions <= 0 && versionRetentionMillis <= 0;
+    }
+
+    /**
+     * Call with the row's versions locked
+     */
+    private void markReapable(String key, NavigableMap<Integer, Slot> versions) {
+        if (!keepsAllVersions() && (versions.size() > 1 || (!versions.isEmpty() && versions.lastEntry().getValue().deleted))) {
+            reapable.add(key);
+        }
+    }
+
+    /**
+     * Drop the versions the retention policy no longer keeps. The newest version of a row always stays, unless
+     * it is a tombstone with nothing behind it, in which case the row is forgotten. A row written under the same key
+     * later starts above the newest version of every forgotten row.
+     */
+    void reapVersions() {
+        int keep = maxVersions;
+        long retention = versionRetentionMillis;
+        if (keep <= 0 && retention <= 0) {
+            return;
+        }
+        long cutoff = retention > 0 ? System.currentTimeMillis() - retention : Long.MIN_VALUE;
+        for (String key : reapable) {
+            NavigableMap<Integer, Slot> versions = rows.get(key);
+            if (versions == null) {
+                reapable.remove(key);
+                continue;
+            }
+            synchronized (versions) {
+                while (versions.size() > 1) {
+                    Slot oldest = versions.firstEntry().getValue();
+                    if ((keep <= 0 || versions.size() <= keep) && oldest.created >= cutoff) {
+                        break;
+                    }
+                    versions.pollFirstEntry();
+                    release(oldest);
+                    reapedVersions.incrementAndGet();
+                }
+                if (versions.size() == 1 && versions.lastEntry().getValue().deleted) {
+                    forgottenVersion.accumulateAndGet(versions.lastKey(), Math::max);
+                    versions.clear();
+                    rows.remove(key, versions);
+                    deletedRows.decrementAndGet();
+                }
+                if (versions.size() <= 1) {
+                    reapable.remove(key);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return true if the version existed but the retention policy has dropped it
+     */
+    public boolean isVersionExpired(String key, int version) {
+        NavigableMap<Integer, Slot> versions = rows.get(key);
+        Map.Entry<Integer, Slot> oldest = versions == null ? null : versions.firstEntry();
+        return oldest != null && version >= 1 && version < oldest.getKey();
+    }
+
     /**
      * Get the row with the given key and version
      * @param key the key of the row
@@ -38,16 +216,343 @@ public class MemoryTable implements Table {
      * @return the row with the given key and version
      */
     public Row get(String key, Integer version) {
-        NavigableMap<Integer, Row> versions = rows.get(key);
+        lastAccess = System.nanoTime();
+        NavigableMap<Integer, Slot> versions = rows.get(key);
         if (versions == null) return null;
-        return version == null ? versions.lastEntry().getValue() : versions.get(version);
+        Map.Entry<Integer, Slot> newest = versions.lastEntry();
+        Slot slot = version == null ? (newest == null ? null : newest.getValue()) : versions.get(version);
+        return slot == null ? null : read(slot);
+    }
+
+    private Row read(Slot slot) {
+        Row row = slot.row;
+        if (row != null || slot.deleted) {
+            return row;
+        }
+        // The offset is published before the row is dropped, so it is set whenever the row is gone
+        try {
+            ByteBuffer buffer = ByteBuffer.allocate(slot.spillLength);
+            FileChannel file;
+            synchronized (this) {
+                file = spillFile;
+            }
+            while (buffer.hasRemaining()) {
+                if (file.read(buffer, slot.spillOffset + buffer.position()) < 0) {
+                    throw new IOException("Spill file of " + name + " is truncated");
+                }
+            }
+            return dictionary.decode(buffer.array());
+        } catch (Exception e) {
+            logger.error("Error while reading a spilled row of " + name, e);
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Heap size of a row: its key, column names and values plus per-entry overhead
+     */
+    private static int estimateSize(Row row) {
+        int size = 64 + keySize(row.key());
+        for (String column : row.columns()) {
+            byte[] value = row.getBytes(column);
+            size += 48 + column.length() * 2 + (value == null ? 0 : value.length);
+        }
+        return size;
+    }
+
+    /**
+     * Heap size of a key's characters, two bytes each as in {@link SharedRow}
+     */
+    private static int keySize(String key) {
+        return key.length() * 2;
+    }
+
+    private void account(Slot slot) {
+        residentBytes.addAndGet(slot.size);
+        if (budget != null) {
+            budget.add(slot.size);
+        }
+    }
+
+    long lastAccess() {
+        return lastAccess;
+    }
+
+    /**
+     * Move resident rows to the spill file until about bytes have been freed. Only called by the budget, which
+     * takes the freed bytes off its own total.
+     * @return the number of bytes freed
+     */
+    synchronized long spill(long bytes) throws IOException {
+        if (spillFile == null) {
+            spillPath = budget.newSpillFile(name);
+            spillFile = FileChannel.open(spillPath, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        }
+        long freed = 0;
+        for (NavigableMap<Integer, Slot> versions : rows.values()) {
+            for (Slot slot : versions.values()) {
+                // A version the reaper is releasing at the same time is counted by one of the two, never both
+                synchronized (slot) {
+                    Row row = slot.row;
+                    if (row == null || slot.released) {
+                        continue;
+                    }
+                    byte[] data = dictionary.encode(row);
+                    long offset = spillFile.size();
+                    ByteBuffer buffer = ByteBuffer.wrap(data);
+                    while (buffer.hasRemaining()) {
+                        spillFile.write(buffer, offset + buffer.position());
+                    }
+                    slot.spillLength = data.length;
+                    slot.spillOffset = offset;
+                    slot.row = null;
+                    freed += slot.size;
+                    spilledBytes.addAndGet(data.length);
+                }
+                if (freed >= bytes) {
+                    break;
+                }
+            }
+            if (freed >= bytes) {
+                break;
+            }
+        }
+        residentBytes.addAndGet(-freed);
+        return freed;
+    }
+
+    /**
+     * Log every version written from now on, so the table can be rebuilt after a restart
+     */
+    public void setLog(MemoryLog log) {
+        this.log = log;
     }
 
     public void put(String key, Row row) {
-        NavigableMap<Integer, Row> versions = rows.computeIfAbsent(key, k -> new ConcurrentSkipListMap<>());
-        int nextVersion = versions.isEmpty() ? 1 : versions.lastKey() + 1;
-        versions.put(nextVersion, row);
-        logger.debug("Added row with key " + key + " and version " + nextVersion + " row content " + row);
+        Row interned = dictionary.intern(row);
+        append(key, newest -> interned, null, null);
+    }
+
+    /**
+     * Write one column as a new version that shares all other columns with the previous version
+     */
+    @Override
+    public void putColumn(String key, String column, byte[] value) {
+        String name = dictionary.intern(column);
+        append(key, newest -> (newest == null ? new SharedRow(key, ColumnTrie.EMPTY) : SharedRow.of(newest)).with(name, value), name, value);
+    }
+
+    @Override
+    public boolean deleteColumn(String key, String column) {
+        if (!rows.containsKey(key)) {
+            return false;
+        }
+        return append(key, newest -> newest == null || newest.getBytes(column) == null ? null : SharedRow.of(newest).without(column), column, null) > 0;
+    }
+
+    /**
+     * Add the row that next makes from the newest version as the row's next version
+     * @param next gets null if the row doesn't exist or is deleted, and returns null to add nothing
+     * @param column the only column next changes, which is all that gets logged, or null if next replaces the row
+     * @param value the column's new value, or null if next removes it
+     * @return the new version, or -1 if nothing was added
+     */
+    private int append(String key, Function<Row, Row> next, String column, byte[] value) {
+        lastAccess = System.nanoTime();
+        MemoryLog currentLog = log;
+        Row row;
+        Slot slot;
+        int nextVersion;
+        while (true) {
+            NavigableMap<Integer, Slot> versions = rows.computeIfAbsent(key, k -> new ConcurrentSkipListMap<>());
+            synchronized (versions) {
+                if (versions.isEmpty() && rows.get(key) != versions) {
+                    // The reaper forgot this row while we waited for the lock
+                    continue;
+                }
+                Map.Entry<Integer, Slot> newest = versions.lastEntry();
+                row = next.apply(newest == null ? null : read(newest.getValue()));
+                if (row == null) {
+                    if (versions.isEmpty()) {
+                        rows.remove(key, versions);
+                    }
+                    return -1;
+                }
+                slot = new Slot(row, newest == null);
+                nextVersion = newest == null ? forgottenVersion.get() + 1 : newest.getKey() + 1;
+                if (newest != null && newest.getValue().deleted) {
+                    deletedRows.decrementAndGet();
+                }
+                versions.put(nextVersion, slot);
+                markReapable(key, versions);
+                // Counted before it is logged, so a checkpoint that drops the log sees the table as changed
+                writeCount.incrementAndGet();
+                if (currentLog != null && column != null) {
+                    currentLog.logColumn(name, key, nextVersion, column, value);
+                } else if (currentLog != null) {
+                    currentLog.logPut(name, key, nextVersion, row);
+                }
+                break;
+            }
+        }
+        account(slot);
+        if (currentLog != null) {
+            currentLog.sync(slot.size);
+        }
+        logger.debug("Added row with key " + key + " and version " + nextVersion);
+        return nextVersion;
+    }
+
+    /**
+     * Delete the row by adding a tombstone as its newest version; older versions stay readable
+     * @return false if the row doesn't exist or is already deleted
+     */
+    @Override
+    public boolean deleteRow(String key) {
+        lastAccess = System.nanoTime();
+        NavigableMap<Integer, Slot> versions = rows.get(key);
+        if (versions == null) {
+            return false;
+        }
+        MemoryLog currentLog = log;
+        synchronized (versions) {
+            if (versions.isEmpty() || versions.lastEntry().getValue().deleted) {
+                return false;
+            }
+            int nextVersion = versions.lastKey() + 1;
+            versions.put(nextVersion, new Slot(null, false));
+            deletedRows.incrementAndGet();
+            markReapable(key, versions);
+            writeCount.incrementAndGet();
+            if (currentLog != null) {
+                currentLog.logDelete(name, key, nextVersion);
+            }
+        }
+        if (currentLog != null) {
+            // What the log record holds of the key is its UTF-8 encoding
+            currentLog.sync(key.getBytes(StandardCharsets.UTF_8).length);
+        }
+        return true;
+    }
+
+    /**
+     * Put a row back at the version it had before a restart; a null row restores a tombstone
+     */
+    public void restore(String key, int version, Row row) {
+        restoreVersion(key, version, row == null ? null : dictionary.intern(row));
+    }
+
+    /**
+     * Put back a version that changed one column of the version before it; a null value restores a removed column
+     */
+    public void restoreColumn(String key, int version, String column, byte[] value) {
+        NavigableMap<Integer, Slot> versions = rows.get(key);
+        if (versions != null && versions.containsKey(version)) {
+            // The snapshot already holds this version
+            return;
+        }
+        Row base = null;
+        if (version > 1) {
+            Slot previous = versions == null ? null : versions.get(version - 1);
+            if (previous == null) {
+                // The snapshot holds a later version, and the retention policy dropped the one this was based on
+                return;
+            }
+            base = read(previous);
+        }
+        SharedRow shared = base == null ? new SharedRow(key, ColumnTrie.EMPTY) : SharedRow.of(base);
+        restoreVersion(key, version, value == null ? shared.without(column) : shared.with(dictionary.intern(column), value));
+    }
+
+    private void restoreVersion(String key, int version, Row row) {
+        Slot slot;
+        while (true) {
+            NavigableMap<Integer, Slot> versions = rows.computeIfAbsent(key, k -> new ConcurrentSkipListMap<>());
+            synchronized (versions) {
+                if (versions.isEmpty() && rows.get(key) != versions) {
+                    continue;
+                }
+                // Versions come back in order, so each one can share the columns it has in common with the one before
+                Slot previous = versions.get(version - 1);
+                if (row != null && !(row instanceof SharedRow) && previous != null && previous.row instanceof SharedRow base) {
+                    row = SharedRow.rebase(base, row);
+                } else if (row != null) {
+                    row = SharedRow.of(row);
+                }
+                slot = new Slot(row, versions.isEmpty());
+                boolean wasDeleted = !versions.isEmpty() && versions.lastEntry().getValue().deleted;
+                Slot replaced = versions.put(version, slot);
+                if (replaced != null) {
+                    release(replaced);
+                }
+                boolean isDeleted = versions.lastEntry().getValue().deleted;
+                if (wasDeleted != isDeleted) {
+                    deletedRows.addAndGet(isDeleted ? 1 : -1);
+                }
+                markReapable(key, versions);
+                break;
+            }
+        }
+        account(slot);
+        writeCount.incrementAndGet();
+    }
+
+    /**
+     * Number of versions written to the table, used to tell whether it changed since a checkpoint
+     */
+    long writeCount() {
+        return writeCount.get();
+    }
+
+    /**
+     * Take a dropped version off the resident or spilled total; releasing a version again does nothing
+     */
+    private void release(Slot slot) {
+        synchronized (slot) {
+            if (slot.released) {
+                return;
+            }
+            slot.released = true;
+            if (slot.row == null) {
+                if (slot.spillOffset >= 0) {
+                    spilledBytes.addAndGet(-slot.spillLength);
+                }
+                return;
+            }
+            residentBytes.addAndGet(-slot.size);
+        }
+        if (budget != null) {
+            budget.add(-slot.size);
+        }
+    }
+
+    /**
+     * Copy every version of every row of other into this table
+     */
+    public void restoreAll(MemoryTable other) {
+        other.rows.forEach((key, versions) -> versions.forEach((version, slot) -> restore(key, version, other.read(slot))));
+        other.destroy();
+    }
+
+    public void writeSnapshot(DataOutputStream out) throws IOException {
+        out.writeUTF(name);
+        for (Map.Entry<String, NavigableMap<Integer, Slot>> entry : rows.entrySet()) {
+            for (Map.Entry<Integer, Slot> version : entry.getValue().entrySet()) {
+                Row row = read(version.getValue());
+                out.writeBoolean(true);
+                MemoryLog.writeString(out, entry.getKey());
+                out.writeInt(version.getKey());
+                if (row == null) {
+                    // Tombstones are written with a length of -1
+                    out.writeInt(-1);
+                    continue;
+                }
+                byte[] bytes = RowCodec.encode(row);
+                out.writeInt(bytes.length);
+                out.write(bytes);
+            }
+        }
+        out.writeBoolean(false);
     }
 
     /**
@@ -60,18 +565,31 @@ public class MemoryTable implements Table {
     }
 
     public int newestVersion(String key) {
-        NavigableMap<Integer, Row> versions = rows.get(key);
-        if (versions == null) return -1;
-        return versions.lastKey();
+        NavigableMap<Integer, Slot> versions = rows.get(key);
+        Map.Entry<Integer, Slot> newest = versions == null ? null : versions.lastEntry();
+        return newest == null ? -1 : newest.getKey();
     }
 
+    /**
+     * Keys of the rows that are not deleted
+     */
     public Set<String> getKeys() {
-        return rows.keySet();
+        if (deletedRows.get() == 0) {
+            return rows.keySet();
+        }
+        Set<String> keys = new HashSet<>();
+        rows.forEach((key, versions) -> {
+            Map.Entry<Integer, Slot> newest = versions.lastEntry();
+            if (newest != null && !newest.getValue().deleted) {
+                keys.add(key);
+            }
+        });
+        return keys;
     }
 
     @Override
     public int countKeys() {
-        return rows.size();
+        return rows.size() - deletedRows.get();
     }
 
     @Override
@@ -92,7 +610,7 @@ public class MemoryTable implements Table {
     @Override
     public List<RowMeta> getRowMetas() {
         List<RowMeta> rowMetas = new ArrayList<>();
-        for(String key : rows.keySet()) {
+        for(String key : getKeys()) {
             try {
                 rowMetas.add(new RowMeta(key, generateMD5(key)));
             } catch (NoSuchAlgorithmException e) {
@@ -102,4 +620,36 @@ public class MemoryTable implements Table {
         }
         return rowMetas;
     }
+
+    @Override
+    public Map<String, String> stats() {
+        Map<String, String> stats = new LinkedHashMap<>();
+        stats.put("resident bytes", String.valueOf(residentBytes.get()));
+        stats.put("spilled bytes", String.valueOf(spilledBytes.get()));
+        if (!keepsAllVersions()) {
+            stats.put("reaped versions", String.valueOf(reapedVersions.get()));
+        }
+        stats.putAll(dictionary.stats());
+        return stats;
+    }
+
+    /**
+     * Give the table's share of the memory budget back and remove its spill file
+     */
+    @Override
+    public synchronized void destroy() {
+        retaining.remove(this);
+        if (budget != null) {
+            budget.unregister(this, residentBytes.getAndSet(0));
+        }
+        if (spillFile != null) {
+            try {
+                spillFile.close();
+                Files.deleteIfExists(spillPath);
+            } catch (IOException e) {
+                logger.error("Error while removing the spill file of " + name, e);
+            }
+            spillFile = null;
+        }
+    }
 }
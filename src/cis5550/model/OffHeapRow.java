@@ -0,0 +1,165 @@
+package cis5550.model;
+
+import cis5550.kvs.Row;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.function.BiConsumer;
+
+/**
+ * Flyweight view of a row record in an {@link OffHeapTable} slab. Columns are read from the slab when asked for,
+ * so a scan that looks at one column never copies the others onto the heap. The first change through
+ * {@link #put} copies the row into the inherited map and the view then behaves like a plain row.
+ */
+final class OffHeapRow extends Row {
+    private static final long serialVersionUID = 1L;
+    private final transient ByteBuffer slab;
+    private final transient int offset;
+    private final transient ColumnDictionary dictionary;
+
+    OffHeapRow(String key, ByteBuffer slab, int offset, ColumnDictionary dictionary) {
+        super(key);
+        // The map is only filled in once the row is changed
+        this.values = null;
+        this.slab = slab;
+        this.offset = offset;
+        this.dictionary = dictionary;
+    }
+
+    static String readKey(ByteBuffer slab, int offset) {
+        byte[] key = new byte[slab.getInt(offset + 4)];
+        slab.get(offset + 8, key);
+        return new String(key, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @return a copy of the value of the column with the given number, or null if the record has no such column
+     */
+    static byte[] readColumn(ByteBuffer slab, int offset, int column) {
+        int position = offset + 8 + slab.getInt(offset + 4);
+        int count = slab.getInt(position);
+        position += 4;
+        for (int i = 0; i < count; i++) {
+            int valueLength = slab.getInt(position + 4);
+            if (slab.getInt(position) == column) {
+                byte[] value = new byte[valueLength];
+                slab.get(position + 8, value);
+                return value;
+            }
+            position += 8 + valueLength;
+        }
+        return null;
+    }
+
+    private void forEachColumn(BiConsumer<String, byte[]> action) {
+        int position = offset + 8 + slab.getInt(offset + 4);
+        int count = slab.getInt(position);
+        position += 4;
+        for (int i = 0; i < count; i++) {
+            String name = dictionary.name(slab.getInt(position));
+            byte[] value = new byte[slab.getInt(position + 4)];
+            slab.get(position + 8, value);
+            position += 8 + value.length;
+            action.accept(name, value);
+        }
+    }
+
+    private void materialize() {
+        if (values == null) {
+            HashMap<String, byte[]> copy = new HashMap<>();
+            forEachColumn(copy::put);
+            values = copy;
+        }
+    }
+
+    @Override
+    public synchronized Row clone() {
+        Row theClone = new Row(key);
+        if (values != null) {
+            values.forEach(theClone::put);
+        } else {
+            forEachColumn(theClone::put);
+        }
+        return theClone;
+    }
+
+    /**
+     * Serialized as a plain copy of the row; the slab it views stays behind
+     */
+    private Object writeReplace() {
+        return clone();
+    }
+
+    @Override
+    public synchronized Set<String> columns() {
+        if (values != null) {
+            return values.keySet();
+        }
+        Set<String> columns = new LinkedHashSet<>();
+        forEachColumn((name, value) -> columns.add(name));
+        return columns;
+    }
+
+    @Override
+    public synchronized void put(String key, byte[] value) {
+        materialize();
+        values.put(key, value);
+    }
+
+    @Override
+    public synchronized void put(String key, String value) {
+        put(key, value.getBytes());
+    }
+
+    @Override
+    public synchronized String get(String key) {
+        byte[] value = getBytes(key);
+        return value == null ? null : new String(value);
+    }
+
+    @Override
+    public synchronized byte[] getBytes(String key) {
+        if (values != null) {
+            return values.get(key);
+        }
+        int id = dictionary.find(key);
+        return id < 0 ? null : readColumn(slab, offset, id);
+    }
+
+    @Override
+    public synchronized String toString() {
+        if (values != null) {
+            return super.toString();
+        }
+        StringBuilder s = new StringBuilder(key).append(" {");
+        boolean[] isFirst = {true};
+        forEachColumn((name, value) -> {
+            s.append(isFirst[0] ? " " : ", ").append(name).append(": ").append(new String(value));
+            isFirst[0] = false;
+        });
+        return s.append(" }").toString();
+    }
+
+    @Override
+    public synchronized byte[] toByteArray() {
+        if (values != null) {
+            return super.toByteArray();
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.writeBytes(key.getBytes());
+        out.write(' ');
+        forEachColumn((name, value) -> {
+            out.writeBytes(name.getBytes());
+            out.write(' ');
+            out.writeBytes(String.valueOf(value.length).getBytes(StandardCharsets.US_ASCII));
+            out.write(' ');
+            out.writeBytes(value);
+            out.write(' ');
+        });
+        return out.toByteArray();
+    }
+}
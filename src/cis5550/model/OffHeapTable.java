@@ -0,0 +1,459 @@
+package cis5550.model;
+
+import cis5550.kvs.Row;
+import cis5550.tools.Logger;
+import cis5550.tools.WorkerConfig;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * In-memory table that keeps its rows outside the Java heap, so that tables of millions of small values don't
+ * give the garbage collector millions of objects to trace.
+ * <p>
+ * Each row is one record, [length][keyLength][key][columnCount] then [columnNumber][valueLength][value] per
+ * column, where the number comes from the table's {@link ColumnDictionary}, appended to direct ByteBuffer slabs with a bump pointer. A record is never changed once written: a put
+ * appends a new one and leaves the old one dead. The index is an open-addressing hash table of record addresses
+ * held in two primitive arrays, so the heap holds a handful of objects however many rows there are. Once dead
+ * records outweigh live ones the live records are copied to fresh slabs and the old slabs are left to the
+ * collector. Reads return an {@link OffHeapRow} that reads columns straight from the slab.
+ * <p>
+ * Like a memory table without the log, an off-heap table only keeps the newest version of a row and is lost on
+ * restart. Slabs count against -XX:MaxDirectMemorySize.
+ */
+public class OffHeapTable implements Table {
+    private static final Logger logger = Logger.getLogger(OffHeapTable.class);
+    private static final int MIN_CAPACITY = 1 << 10;
+    private static final double MAX_LOAD = 0.6;
+
+    private String name;
+    private final int slabBytes;
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private List<ByteBuffer> slabs = new ArrayList<>();
+    private int slabEnd;
+    // Record address + 1 per slot, 0 for an empty slot, and the hash of the slot's key
+    private long[] addresses = new long[MIN_CAPACITY];
+    private int[] hashes = new int[MIN_CAPACITY];
+    private int size;
+    private long liveBytes;
+    private long deadBytes;
+    private long compactions;
+    private volatile TableOptions options = TableOptions.defaults();
+    private final ColumnDictionary dictionary = new ColumnDictionary();
+
+    public OffHeapTable(String name) {
+        this.name = name;
+        this.slabBytes = WorkerConfig.offHeapSlabBytes();
+    }
+
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    @Override
+    public synchronized void setName(String name) {
+        this.name = name;
+    }
+
+    @Override
+    public TableOptions getOptions() {
+        return options;
+    }
+
+    @Override
+    public void setOptions(TableOptions options) {
+        this.options = options;
+    }
+
+    private static int slabOf(long address) {
+        return (int) (address >>> 32);
+    }
+
+    private static int offsetOf(long address) {
+        return (int) address;
+    }
+
+    private static int spread(int hash) {
+        return hash ^ (hash >>> 16);
+    }
+
+    /**
+     * @return the slot holding key, or -(empty slot + 1) if the key is not in the table; call with the lock held
+     */
+    private int find(byte[] key, int hash) {
+        int mask = addresses.length - 1;
+        int slot = spread(hash) & mask;
+        while (addresses[slot] != 0) {
+            if (hashes[slot] == hash) {
+                long address = addresses[slot] - 1;
+                if (keyEquals(slabs.get(slabOf(address)), offsetOf(address), key)) {
+                    return slot;
+                }
+            }
+            slot = (slot + 1) & mask;
+        }
+        return -(slot + 1);
+    }
+
+    private static boolean keyEquals(ByteBuffer slab, int offset, byte[] key) {
+        if (slab.getInt(offset + 4) != key.length) {
+            return false;
+        }
+        int start = offset + 8;
+        for (int i = 0; i < key.length; i++) {
+            if (slab.get(start + i) != key[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Empty a slot, moving later entries of its probe run back so lookups never stop early
+     */
+    private void clearSlot(int slot) {
+        int mask = addresses.length - 1;
+        int next = slot;
+        while (true) {
+            next = (next + 1) & mask;
+            if (addresses[next] == 0) {
+                break;
+            }
+            int home = spread(hashes[next]) & mask;
+            boolean stays = slot <= next ? slot < home && home <= next : slot < home || home <= next;
+            if (stays) {
+                continue;
+            }
+            addresses[slot] = addresses[next];
+            hashes[slot] = hashes[next];
+            slot = next;
+        }
+        addresses[slot] = 0;
+        hashes[slot] = 0;
+    }
+
+    private void grow() {
+        long[] oldAddresses = addresses;
+        int[] oldHashes = hashes;
+        addresses = new long[oldAddresses.length * 2];
+        hashes = new int[oldAddresses.length * 2];
+        int mask = addresses.length - 1;
+        for (int i = 0; i < oldAddresses.length; i++) {
+            if (oldAddresses[i] == 0) {
+                continue;
+            }
+            int slot = spread(oldHashes[i]) & mask;
+            while (addresses[slot] != 0) {
+                slot = (slot + 1) & mask;
+            }
+            addresses[slot] = oldAddresses[i];
+            hashes[slot] = oldHashes[i];
+        }
+    }
+
+    /**
+     * Copy a record into the slabs; call with the write lock held
+     * @return its address
+     */
+    private long append(byte[] record) {
+        ByteBuffer slab = slabs.isEmpty() ? null : slabs.get(slabs.size() - 1);
+        if (slab == null || slabEnd + record.length > slab.capacity()) {
+            // Records larger than a slab get a slab of their own
+            slab = ByteBuffer.allocateDirect(Math.max(slabBytes, record.length));
+            slabs.add(slab);
+            slabEnd = 0;
+        }
+        slab.put(slabEnd, record);
+        long address = ((long) (slabs.size() - 1) << 32) | slabEnd;
+        slabEnd += record.length;
+        return address;
+    }
+
+    private byte[] encode(byte[] key, Row row) {
+        int count = row.columns().size();
+        int[] ids = new int[count];
+        byte[][] values = new byte[count][];
+        int length = 12 + key.length;
+        long saved = 0;
+        int i = 0;
+        for (String column : row.columns()) {
+            ids[i] = dictionary.id(column);
+            values[i] = row.getBytes(column);
+            length += 8 + values[i].length;
+            saved += column.length();
+            i++;
+        }
+        ByteBuffer record = ByteBuffer.allocate(length);
+        record.putInt(length).putInt(key.length).put(key).putInt(count);
+        for (i = 0; i < count; i++) {
+            record.putInt(ids[i]).putInt(values[i].length).put(values[i]);
+        }
+        dictionary.saved(saved);
+        return record.array();
+    }
+
+    private void compact() {
+        long start = System.currentTimeMillis();
+        List<ByteBuffer> oldSlabs = slabs;
+        slabs = new ArrayList<>();
+        slabEnd = 0;
+        for (int slot = 0; slot < addresses.length; slot++) {
+            if (addresses[slot] == 0) {
+                continue;
+            }
+            long address = addresses[slot] - 1;
+            ByteBuffer slab = oldSlabs.get(slabOf(address));
+            byte[] record = new byte[slab.getInt(offsetOf(address))];
+            slab.get(offsetOf(address), record);
+            addresses[slot] = append(record) + 1;
+        }
+        deadBytes = 0;
+        compactions++;
+        logger.info("Compacted off-heap table " + name + " from " + oldSlabs.size() + " to " + slabs.size() + " slabs in " +
+                (System.currentTimeMillis() - start) + " ms");
+    }
+
+    @Override
+    public Row get(String key) {
+        byte[] encoded = key.getBytes(StandardCharsets.UTF_8);
+        lock.readLock().lock();
+        try {
+            int slot = find(encoded, key.hashCode());
+            if (slot < 0) {
+                return null;
+            }
+            long address = addresses[slot] - 1;
+            return new OffHeapRow(key, slabs.get(slabOf(address)), offsetOf(address), dictionary);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Copy out one value without making a row view
+     */
+    @Override
+    public byte[] getColumn(String key, String column) {
+        int id = dictionary.find(column);
+        if (id < 0) {
+            return null;
+        }
+        byte[] encoded = key.getBytes(StandardCharsets.UTF_8);
+        lock.readLock().lock();
+        try {
+            int slot = find(encoded, key.hashCode());
+            if (slot < 0) {
+                return null;
+            }
+            long address = addresses[slot] - 1;
+            return OffHeapRow.readColumn(slabs.get(slabOf(address)), offsetOf(address), id);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public void put(String key, Row row) {
+        byte[] encoded = key.getBytes(StandardCharsets.UTF_8);
+        byte[] record = encode(encoded, row);
+        int hash = key.hashCode();
+        lock.writeLock().lock();
+        try {
+            int slot = find(encoded, hash);
+            if (slot >= 0) {
+                long old = addresses[slot] - 1;
+                int oldLength = slabs.get(slabOf(old)).getInt(offsetOf(old));
+                deadBytes += oldLength;
+                liveBytes -= oldLength;
+                addresses[slot] = append(record) + 1;
+            } else {
+                slot = -slot - 1;
+                addresses[slot] = append(record) + 1;
+                hashes[slot] = hash;
+                if (++size > addresses.length * MAX_LOAD) {
+                    grow();
+                }
+            }
+            liveBytes += record.length;
+            if (deadBytes > liveBytes && deadBytes > slabBytes) {
+                compact();
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public boolean deleteRow(String key) {
+        byte[] encoded = key.getBytes(StandardCharsets.UTF_8);
+        lock.writeLock().lock();
+        try {
+            int slot = find(encoded, key.hashCode());
+            if (slot < 0) {
+                return false;
+            }
+            long address = addresses[slot] - 1;
+            int length = slabs.get(slabOf(address)).getInt(offsetOf(address));
+            deadBytes += length;
+            liveBytes -= length;
+            clearSlot(slot);
+            size--;
+            return true;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public Set<String> getKeys() {
+        Set<String> keys = new HashSet<>();
+        scan(null, null).forEachRemaining(row -> keys.add(row.key()));
+        return keys;
+    }
+
+    /**
+     * Rows in no particular order, as in a memory table. The addresses are copied up front; the views stay
+     * readable after later writes because records are never overwritten.
+     */
+    @Override
+    public Iterator<Row> scan(String startRow, String endRowExclusive) {
+        List<ByteBuffer> slabsAtStart;
+        long[] live;
+        lock.readLock().lock();
+        try {
+            slabsAtStart = slabs;
+            live = new long[size];
+            int count = 0;
+            for (long address : addresses) {
+                if (address != 0) {
+                    live[count++] = address - 1;
+                }
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        return new Iterator<>() {
+            private int index;
+            private Row next = advance();
+
+            private Row advance() {
+                while (index < live.length) {
+                    long address = live[index++];
+                    ByteBuffer slab = slabsAtStart.get(slabOf(address));
+                    String key = OffHeapRow.readKey(slab, offsetOf(address));
+                    if ((startRow == null || key.compareTo(startRow) >= 0) &&
+                            (endRowExclusive == null || key.compareTo(endRowExclusive) < 0)) {
+                        return new OffHeapRow(key, slab, offsetOf(address), dictionary);
+                    }
+                }
+                return null;
+            }
+
+            @Override
+            public boolean hasNext() {
+                return next != null;
+            }
+
+            @Override
+            public Row next() {
+                if (next == null) {
+                    throw new NoSuchElementException();
+                }
+                Row current = next;
+                next = advance();
+                return current;
+            }
+        };
+    }
+
+    @Override
+    public int countKeys() {
+        lock.readLock().lock();
+        try {
+            return size;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public String generateMD5(String rowKey) throws NoSuchAlgorithmException {
+        Row row = get(rowKey);
+        if (row == null) {
+            return null;
+        }
+        MessageDigest md = MessageDigest.getInstance("MD5");
+        byte[] hashInBytes = md.digest(row.toByteArray());
+        StringBuilder sb = new StringBuilder();
+        for (byte b : hashInBytes) {
+            sb.append(String.format("%02x", b));
+        }
+        return sb.toString();
+    }
+
+    @Override
+    public List<RowMeta> getRowMetas() {
+        List<RowMeta> rowMetas = new ArrayList<>();
+        for (String key : getKeys()) {
+            try {
+                rowMetas.add(new RowMeta(key, generateMD5(key)));
+            } catch (NoSuchAlgorithmException e) {
+                logger.error("Error generating MD5 for row " + key, e);
+                throw new RuntimeException(e);
+            }
+        }
+        return rowMetas;
+    }
+
+    @Override
+    public Map<String, String> stats() {
+        lock.readLock().lock();
+        try {
+            long allocated = 0;
+            for (ByteBuffer slab : slabs) {
+                allocated += slab.capacity();
+            }
+            Map<String, String> stats = new LinkedHashMap<>();
+            stats.put("slabs", String.valueOf(slabs.size()));
+            stats.put("off-heap bytes", String.valueOf(allocated));
+            stats.put("live bytes", String.valueOf(liveBytes));
+            stats.put("dead bytes", String.valueOf(deadBytes));
+            stats.put("compactions", String.valueOf(compactions));
+            stats.putAll(dictionary.stats());
+            return stats;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Drop the slabs; their memory is returned once no row view refers to them
+     */
+    @Override
+    public void destroy() {
+        lock.writeLock().lock();
+        try {
+            slabs = new ArrayList<>();
+            slabEnd = 0;
+            addresses = new long[MIN_CAPACITY];
+            hashes = new int[MIN_CAPACITY];
+            size = 0;
+            liveBytes = 0;
+            deadBytes = 0;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+}
@@ -1,22 +1,37 @@
 package cis5550.model;
 
+import cis5550.kvs.ImmutableRow;
 import cis5550.kvs.Row;
 import cis5550.tools.KeyEncoder;
 import cis5550.tools.Logger;
 
-import java.io.File;
-import java.io.FileOutputStream;
-import java.io.IOException;
-import java.io.RandomAccessFile;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BiConsumer;
 import java.util.stream.Collectors;
+import java.util.zip.CRC32C;
 
 /**
  * Just store metadata in memory.
@@ -26,11 +41,81 @@ public class PersistentTable implements Table {
     private String name;
     private final String storageDir;
     private static final Logger logger = Logger.getLogger(PersistentTable.class);
-    private final ConcurrentMap<String, Object> locks = new ConcurrentHashMap<>();
+    // Held while a row file is written; an entry is dropped once no thread holds or waits for it
+    private final ConcurrentMap<String, RowLock> locks = new ConcurrentHashMap<>();
+    private static final String MANIFEST_FILE = "keys.manifest";
+    private static final String TMP_SUFFIX = ".tmp";
+    private static final byte[] ROW_MAGIC = {0, 'T', 'D', 'R'};
+    private static final int ROW_HEADER_SIZE = ROW_MAGIC.length + 4 + 4;
+    private static final int COMPACT_MIN_BYTES = 4096;
+    private static final int COMPACT_DEAD_RECORDS = 64;
+    private static final int DIRECTORY_CACHE_ROWS = 4096;
+    private static final String DELETED_SUFFIX = ".deleted";
+    private static final long CLEANUP_DELAY_SECONDS = 5;
+    private static final ScheduledExecutorService cleaner = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "tombstone-cleaner");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final Object manifestLock = new Object();
+    private final AtomicInteger keyCount = new AtomicInteger();
+    private volatile ConcurrentSkipListSet<String> keyIndex;
+    private FileChannel manifest;
+    private final AtomicLong indexMisses = new AtomicLong();
+    private final RowCache cache = RowCache.shared();
+    private final AtomicLong writeEpoch = new AtomicLong();
+    private volatile TableOptions options;
+    private volatile GroupCommit groupCommit;
+    private final Set<Path> unsynced = ConcurrentHashMap.newKeySet();
+    private final GroupCommit.Syncable unsyncedWrites = this::syncWrites;
+    private volatile WriteBackBuffer writeBack;
+    private final AtomicInteger tombstones = new AtomicInteger();
+    private final AtomicBoolean cleanupScheduled = new AtomicBoolean();
+    private volatile ScheduledFuture<?> cleanup;
+    private volatile boolean destroyed;
+    private final ColumnDictionary dictionary;
+    // Column directories of recently used row files in the column layout, least recently used first
+    private final LinkedHashMap<String, ColumnLog.Directory> directories = new LinkedHashMap<>(16, 0.75f, true);
+
+    private static final class RowLock {
+        private final ReentrantLock lock = new ReentrantLock();
+        // Threads holding or waiting for the lock; only changed inside locks.compute
+        private int holders;
+    }
 
     public PersistentTable(String name, String storageDir) {
         this.name = name;
         this.storageDir = storageDir;
+        this.dictionary = new ColumnDictionary(() -> Paths.get(storageDir, this.name, ColumnDictionary.FILE_NAME));
+        setOptions(TableOptions.load(storageDir, name));
+    }
+
+    @Override
+    public TableOptions getOptions() {
+        return options;
+    }
+
+    /**
+     * Rows written from now on use the new compression; existing row files are read as they are
+     */
+    @Override
+    public synchronized void setOptions(TableOptions options) {
+        TableOptions previousOptions = this.options;
+        this.options = options;
+        GroupCommit previous = groupCommit;
+        groupCommit = options.durability() == TableOptions.Durability.BATCH
+                ? new GroupCommit(name, options.batchMillis(), options.batchBytes())
+                : null;
+        if (previous != null) {
+            previous.close();
+        }
+        if (previousOptions == null || previousOptions.writeBackMillis() != options.writeBackMillis()) {
+            WriteBackBuffer previousBuffer = writeBack;
+            writeBack = options.writeBackMillis() > 0 ? new WriteBackBuffer(name, options.writeBackMillis(), this::flushRow) : null;
+            if (previousBuffer != null) {
+                previousBuffer.close();
+            }
+        }
     }
 
     @Override
@@ -41,54 +126,465 @@ public class PersistentTable implements Table {
     @Override
     public synchronized void setName(String name) {
         this.name = name;
+        forgetDirectories();
     }
 
     @Override
     public Row get(String rowKey) {
-        return readRowFromDisk(name, rowKey);
+        WriteBackBuffer buffer = writeBack;
+        return buffer == null ? getStored(rowKey) : buffer.get(rowKey, this::getStored);
+    }
+
+    private Row getStored(String rowKey) {
+        // The key index is exact, so a miss is answered without touching the disk
+        if (!keys().contains(rowKey)) {
+            indexMisses.incrementAndGet();
+            return null;
+        }
+        if (cache == null) {
+            return readRowFromDisk(name, rowKey);
+        }
+        Row cached = cache.get(this, rowKey);
+        if (cached != null) {
+            return cached;
+        }
+        // A put that lands while the file is read bumps the epoch, so the row read here is not cached
+        long epoch = writeEpoch.get();
+        return readRowFromDisk(name, rowKey, (row, size) -> cache.put(this, rowKey, row, size, () -> writeEpoch.get() == epoch));
     }
 
     @Override
     public void put(String rowKey, Row row) {
-        writeRowToDisk(name, rowKey, row);
+        // A later putColumn rewrites the row in the per-column layout, so its names must fit there as well
+        for (String column : row.columns()) {
+            ColumnLog.checkName(column);
+        }
+        WriteBackBuffer buffer = writeBack;
+        if (buffer != null) {
+            buffer.put(rowKey, row, addKey(rowKey));
+            return;
+        }
+        // Record the key before the row so a crash can't leave a row file the index doesn't know about
+        if (keys().add(rowKey)) {
+            keyCount.incrementAndGet();
+            appendToManifest(rowKey);
+        }
+        afterWrite(rowKey, writeRowToDisk(name, rowKey, row));
     }
 
+    /**
+     * Append the column to the row file instead of rewriting the row. A row file in the whole-row layout is
+     * converted once; after that, replacing a column writes only that column.
+     */
     @Override
-    public Set<String> getKeys() {
-        File tableDir = new File(storageDir, name);
+    public void putColumn(String rowKey, String column, byte[] value) {
+        ColumnLog.checkName(column);
+        WriteBackBuffer buffer = writeBack;
+        if (buffer != null) {
+            buffer.putColumn(rowKey, column, value, addKey(rowKey));
+            return;
+        }
+        if (keys().add(rowKey)) {
+            keyCount.incrementAndGet();
+            appendToManifest(rowKey);
+        }
+        Map<String, byte[]> columns = new HashMap<>();
+        columns.put(column, value);
+        afterWrite(rowKey, appendColumnsToDisk(rowKey, columns));
+    }
+
+    /**
+     * Add a key to the in-memory index only; the manifest entry is written when the row is flushed
+     * @return whether the key is new
+     */
+    private boolean addKey(String rowKey) {
+        if (keys().add(rowKey)) {
+            keyCount.incrementAndGet();
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Write a row that the write-back buffer held back
+     */
+    private void flushRow(String rowKey, Row row, Map<String, byte[]> columns, boolean newKey) {
+        if (newKey) {
+            appendToManifest(rowKey);
+        }
+        if (row != null) {
+            afterWrite(rowKey, writeRowToDisk(name, rowKey, withColumns(rowKey, row, columns)));
+        } else {
+            afterWrite(rowKey, appendColumnsToDisk(rowKey, columns));
+        }
+    }
+
+    @Override
+    public void flush() {
+        WriteBackBuffer buffer = writeBack;
+        if (buffer != null) {
+            buffer.flush(true);
+        }
+    }
+
+    /**
+     * Read just the column: from the row cache if the row is there, else with a positioned read of the
+     * column's record
+     */
+    @Override
+    public byte[] getColumn(String rowKey, String column) {
+        WriteBackBuffer buffer = writeBack;
+        if (buffer != null) {
+            return buffer.getColumn(rowKey, column, key -> getStoredColumn(key, column));
+        }
+        return getStoredColumn(rowKey, column);
+    }
+
+    private byte[] getStoredColumn(String rowKey, String column) {
+        if (!keys().contains(rowKey)) {
+            indexMisses.incrementAndGet();
+            return null;
+        }
+        if (cache != null) {
+            Row cached = cache.get(this, rowKey);
+            if (cached != null) {
+                return cached.getBytes(column);
+            }
+        }
+        Path rowFile = Paths.get(storageDir, name, KeyEncoder.encode(rowKey));
+        try (FileChannel channel = FileChannel.open(rowFile, StandardOpenOption.READ)) {
+            if (ColumnLog.isColumnLog(channel)) {
+                ColumnLog.Entry entry = columnDirectory(rowKey, channel).columns().get(column);
+                try {
+                    return entry == null ? null : ColumnLog.readValue(channel, entry);
+                } catch (IOException e) {
+                    // The file was replaced after its directory was cached; look at the file itself
+                    forgetDirectory(rowKey);
+                    entry = ColumnLog.scan(channel).columns().get(column);
+                    return entry == null ? null : ColumnLog.readValue(channel, entry);
+                }
+            }
+        } catch (NoSuchFileException e) {
+            return null;
+        } catch (IOException e) {
+            logger.error("Error while reading column " + column + " of row " + rowKey, e);
+            return null;
+        }
+        Row row = getStored(rowKey);
+        return row == null ? null : row.getBytes(column);
+    }
+
+    /**
+     * A copy of base with columns applied on top; a null value removes the column
+     */
+    static Row withColumns(String rowKey, Row base, Map<String, byte[]> columns) {
+        ImmutableRow.Builder row = ImmutableRow.builder(rowKey);
+        if (base != null) {
+            for (String column : base.columns()) {
+                if (!columns.containsKey(column)) {
+                    row.put(column, base.getBytes(column));
+                }
+            }
+        }
+        columns.forEach((column, value) -> {
+            if (value != null) {
+                row.put(column, value);
+            }
+        });
+        return new Row(row.build());
+    }
+
+    /**
+     * Record the column's removal the same way a column put is recorded, as a record without a value
+     */
+    @Override
+    public boolean deleteColumn(String rowKey, String column) {
+        if (getColumn(rowKey, column) == null) {
+            return false;
+        }
+        putColumn(rowKey, column, null);
+        return true;
+    }
+
+    /**
+     * Drop the key from the index, log a tombstone for it in the manifest and rename the row file out of the way.
+     * A background task deletes the renamed files and rewrites the manifest without its tombstones.
+     */
+    @Override
+    public boolean deleteRow(String rowKey) {
+        WriteBackBuffer buffer = writeBack;
+        if (buffer != null) {
+            buffer.drop(rowKey);
+        }
+        boolean removed;
+        RowLock lock = lockRow(rowKey);
+        try {
+            removed = keys().remove(rowKey);
+            if (removed) {
+                keyCount.decrementAndGet();
+                appendToManifest(rowKey, true);
+                String fileName = KeyEncoder.encode(rowKey);
+                Path rowFile = Paths.get(storageDir, name, fileName);
+                try {
+                    Files.move(rowFile, rowFile.resolveSibling(fileName + "." + System.nanoTime() + DELETED_SUFFIX), StandardCopyOption.ATOMIC_MOVE);
+                    tombstones.incrementAndGet();
+                } catch (NoSuchFileException e) {
+                    // Only ever buffered, or already gone
+                } catch (IOException e) {
+                    logger.error("Error while deleting row " + rowKey + " of " + name, e);
+                }
+                forgetDirectory(rowKey);
+            }
+        } finally {
+            unlockRow(rowKey, lock);
+        }
+        if (!removed) {
+            return false;
+        }
+        TableOptions.Durability durability = options.durability();
+        try {
+            if (durability == TableOptions.Durability.ALWAYS) {
+                syncDirectoryAndManifest();
+            }
+        } catch (IOException e) {
+            logger.error("Error while syncing delete of row " + rowKey + " of " + name, e);
+            throw new UncheckedIOException(e);
+        }
+        afterWrite(rowKey, durability == TableOptions.Durability.BATCH ? rowKey.length() : 0);
+        if (cleanupScheduled.compareAndSet(false, true)) {
+            cleanup = cleaner.schedule(this::purgeTombstones, CLEANUP_DELAY_SECONDS, TimeUnit.SECONDS);
+        }
+        return true;
+    }
+
+    /**
+     * Delete the files of deleted rows and rewrite the manifest without the tombstones.
+     * Holds the table's lock so a rename or destroy can't happen halfway through.
+     */
+    private synchronized void purgeTombstones() {
+        cleanupScheduled.set(false);
+        if (destroyed) {
+            return;
+        }
+        File[] deleted = new File(storageDir, name).listFiles(file -> file.getName().endsWith(DELETED_SUFFIX));
+        if (deleted == null) {
+            return;
+        }
+        for (File file : deleted) {
+            if (file.delete()) {
+                tombstones.decrementAndGet();
+            }
+        }
+        removeFromIndex(List.of());
+        logger.debug("Purged " + deleted.length + " deleted rows of " + name);
+    }
+
+    private void afterWrite(String rowKey, long bytes) {
+        if (cache != null) {
+            writeEpoch.incrementAndGet();
+            cache.invalidate(this, rowKey);
+        }
+        GroupCommit batch = groupCommit;
+        if (batch != null && bytes > 0) {
+            // Hold the write until a group commit has synced it
+            try {
+                batch.commit(unsyncedWrites, bytes);
+            } catch (IOException e) {
+                logger.error("Error while syncing row " + rowKey + " of " + name, e);
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
 
-        if (!tableDir.exists() || !tableDir.isDirectory()) {
-            return new HashSet<>();
+    /**
+     * Force every row file written since the last sync, the table directory that holds their names,
+     * and the key manifest to disk
+     */
+    private void syncWrites() throws IOException {
+        List<Path> paths = new ArrayList<>(unsynced);
+        unsynced.removeAll(paths);
+        for (Path path : paths) {
+            try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+                channel.force(true);
+            } catch (NoSuchFileException e) {
+                // Renamed or deleted since it was written; whatever replaced it is synced on its own
+            }
         }
+        syncDirectoryAndManifest();
+    }
 
-        return Arrays.stream(Objects.requireNonNull(tableDir.listFiles()))
-                .filter(File::isFile)
-                .map(File::getName)
-                .map(KeyEncoder::decode)
-                .collect(Collectors.toSet());
+    private void syncDirectoryAndManifest() throws IOException {
+        try (FileChannel dir = FileChannel.open(Paths.get(storageDir, name), StandardOpenOption.READ)) {
+            dir.force(true);
+        }
+        synchronized (manifestLock) {
+            if (manifest != null) {
+                manifest.force(false);
+            }
+        }
+    }
+
+    /**
+     * Sorted, read-only view of the key index
+     */
+    @Override
+    public Set<String> getKeys() {
+        return Collections.unmodifiableSortedSet(keys());
     }
 
     @Override
     public int countKeys() {
-        File tableDir = new File(storageDir, name);
+        keys();
+        return keyCount.get();
+    }
 
-        if (!tableDir.exists() || !tableDir.isDirectory()) {
-            return 0;
+    @Override
+    public Map<String, String> stats() {
+        Map<String, String> stats = new LinkedHashMap<>();
+        stats.put("index misses", String.valueOf(indexMisses.get()));
+        stats.put("compression", options.compression().name().toLowerCase());
+        stats.put("durability", options.durability().name().toLowerCase());
+        stats.put("tombstones", String.valueOf(tombstones.get()));
+        WriteBackBuffer buffer = writeBack;
+        if (buffer != null) {
+            stats.putAll(buffer.stats());
+        }
+        stats.putAll(dictionary.stats());
+        return stats;
+    }
+
+    @Override
+    public Iterator<Row> scan(String startRow, String endRowExclusive) {
+        NavigableSet<String> range = keys();
+        if (startRow != null && endRowExclusive != null) {
+            range = range.subSet(startRow, true, endRowExclusive, false);
+        } else if (startRow != null) {
+            range = range.tailSet(startRow, true);
+        } else if (endRowExclusive != null) {
+            range = range.headSet(endRowExclusive, false);
+        }
+        return range.stream().map(this::get).filter(Objects::nonNull).iterator();
+    }
+
+    /**
+     * The key index, loaded from the manifest the first time it is needed.
+     * A table written before the manifest existed gets one built from its directory listing.
+     */
+    private ConcurrentSkipListSet<String> keys() {
+        ConcurrentSkipListSet<String> index = keyIndex;
+        if (index != null) {
+            return index;
+        }
+        synchronized (manifestLock) {
+            if (keyIndex == null) {
+                long start = System.currentTimeMillis();
+                ConcurrentSkipListSet<String> loaded = new ConcurrentSkipListSet<>();
+                Path manifestPath = Paths.get(storageDir, name, MANIFEST_FILE);
+                try {
+                    if (Files.exists(manifestPath)) {
+                        readManifest(manifestPath, loaded);
+                    } else {
+                        File tableDir = new File(storageDir, name);
+                        File[] files = tableDir.listFiles(File::isFile);
+                        if (files != null) {
+                            for (File file : files) {
+                                if (isRowFile(file.getName())) {
+                                    loaded.add(KeyEncoder.decode(file.getName()));
+                                }
+                            }
+                            writeManifest(manifestPath, loaded);
+                        }
+                    }
+                } catch (IOException e) {
+                    logger.error("Error while loading the key index of " + name, e);
+                }
+                keyCount.set(loaded.size());
+                keyIndex = loaded;
+                logger.debug("Loaded " + loaded.size() + " keys of " + name + " in " + (System.currentTimeMillis() - start) + " ms");
+            }
+            return keyIndex;
+        }
+    }
+
+    /**
+     * Row files are named with KeyEncoder, which never produces a '.', so anything else is table metadata
+     */
+    static boolean isRowFile(String fileName) {
+        return fileName.indexOf('.') < 0;
+    }
+
+    private static void readManifest(Path manifestPath, Set<String> keys) throws IOException {
+        long position = 0;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(manifestPath), 1 << 16))) {
+            while (true) {
+                int length = in.readInt();
+                // A negative length marks the tombstone of a deleted key
+                byte[] key = new byte[Math.abs(length)];
+                in.readFully(key);
+                if (length < 0) {
+                    keys.remove(new String(key, StandardCharsets.UTF_8));
+                } else {
+                    keys.add(new String(key, StandardCharsets.UTF_8));
+                }
+                position += 4 + key.length;
+            }
+        } catch (EOFException e) {
+            // End of the manifest, or of the last entry that was written completely
+        }
+        if (position < Files.size(manifestPath)) {
+            // Cut off the torn entry so that keys appended from now on are read back
+            logger.warn("Dropping torn entry at the end of " + manifestPath);
+            try (FileChannel channel = FileChannel.open(manifestPath, StandardOpenOption.WRITE)) {
+                channel.truncate(position);
+            }
         }
+    }
+
+    private static void writeManifest(Path manifestPath, Set<String> keys) throws IOException {
+        Path tmp = manifestPath.resolveSibling(MANIFEST_FILE + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp), 1 << 16))) {
+            for (String key : keys) {
+                byte[] bytes = key.getBytes(StandardCharsets.UTF_8);
+                out.writeInt(bytes.length);
+                out.write(bytes);
+            }
+        }
+        Files.move(tmp, manifestPath, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    private void appendToManifest(String rowKey) {
+        appendToManifest(rowKey, false);
+    }
 
-        return (int) Arrays.stream(Objects.requireNonNull(tableDir.listFiles()))
-                .filter(File::isFile)
-                .count();
+    private void appendToManifest(String rowKey, boolean tombstone) {
+        byte[] bytes = rowKey.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer entry = ByteBuffer.allocate(4 + bytes.length);
+        entry.putInt(tombstone ? -bytes.length : bytes.length).put(bytes).flip();
+        synchronized (manifestLock) {
+            try {
+                if (manifest == null) {
+                    File tableDir = new File(storageDir, name);
+                    if (!tableDir.exists()) {
+                        tableDir.mkdir();
+                    }
+                    manifest = FileChannel.open(Paths.get(storageDir, name, MANIFEST_FILE),
+                            StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+                }
+                while (entry.hasRemaining()) {
+                    manifest.write(entry);
+                }
+            } catch (IOException e) {
+                logger.error("Error while adding " + rowKey + " to the key manifest of " + name, e);
+            }
+        }
     }
 
     @Override
     public String generateMD5(String rowKey) throws NoSuchAlgorithmException {
-        File tableDir = new File(storageDir, name);
-        File rowFile = new File(tableDir, KeyEncoder.encode(rowKey));
-        if (!rowFile.exists()) {
+        if (!keys().contains(rowKey)) {
             return null;
         }
-        Row row = readRowFromDisk(name, rowKey);
+        Row row = get(rowKey);
         if(row == null) {
             throw new RuntimeException("Row " + rowKey + " does not exist");
         }
@@ -101,65 +597,371 @@ public class PersistentTable implements Table {
         return sb.toString();
     }
 
+    @Override
     public synchronized void destroy() throws IOException {
-        Path tableDir = Paths.get(storageDir, name);
-//        logger.debug("Deleting all files in " + tableDir.toAbsolutePath());
+        // A purge still pending would otherwise rewrite the manifest of a new table created under the same name
+        destroyed = true;
+        ScheduledFuture<?> pending = cleanup;
+        if (pending != null) {
+            pending.cancel(false);
+        }
+        // Rows still buffered belong to the table being deleted, so they are dropped rather than written
+        if (writeBack != null) {
+            writeBack.discard();
+        }
+        if (groupCommit != null) {
+            groupCommit.close();
+        }
+        if (cache != null) {
+            cache.invalidateAll(this);
+        }
+        synchronized (manifestLock) {
+            if (manifest != null) {
+                manifest.close();
+                manifest = null;
+            }
+        }
+        forgetDirectories();
+        dictionary.close();
+        Trash.delete(Paths.get(storageDir, name));
+    }
+
+    /**
+     * @return the number of bytes written, or 0 if the write failed
+     */
+    private long writeRowToDisk(String table, String rowKey, Row rowObj) {
+        long written = 0;
+        RowLock lock = lockRow(rowKey);
+        try {
+            written = writeRowFile(table, rowKey, encodeRowFile(options.compression().encode(dictionary.encode(rowObj))));
+        } catch (IOException e) {
+            logger.error("Error while writing row to disk", e);
+        } finally {
+            unlockRow(rowKey, lock);
+        }
+        return written;
+    }
+
+    /**
+     * Take the row's lock, waiting while another thread writes the row
+     */
+    private RowLock lockRow(String rowKey) {
+        // Count this thread in before waiting, so the holder can't drop the entry and let a third thread make a new one
+        RowLock lock = locks.compute(rowKey, (key, current) -> {
+            RowLock counted = current == null ? new RowLock() : current;
+            counted.holders++;
+            return counted;
+        });
+        lock.lock.lock();
+        return lock;
+    }
+
+    private void unlockRow(String rowKey, RowLock lock) {
+        lock.lock.unlock();
+        locks.compute(rowKey, (key, current) -> --current.holders == 0 ? null : current);
+    }
+
+    /**
+     * Write a complete file next to the row and rename it over the old one, so a crash never leaves a torn row
+     * @return the number of bytes written
+     */
+    private long writeRowFile(String table, String rowKey, byte[] bytes) throws IOException {
+        TableOptions.Durability durability = options.durability();
+        File tableDir = new File(storageDir, table);
+        if (!tableDir.exists()) {
+            tableDir.mkdir();
+        }
+        String fileName = KeyEncoder.encode(rowKey);
+        logger.debug("Row " + rowKey + " will be written as " + fileName);
+        Path rowFile = tableDir.toPath().resolve(fileName);
+        Path tmp = tableDir.toPath().resolve(fileName + "." + Thread.currentThread().getId() + TMP_SUFFIX);
+        try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer buffer = ByteBuffer.wrap(bytes);
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            if (durability == TableOptions.Durability.ALWAYS) {
+                channel.force(true);
+            }
+        }
+        Files.move(tmp, rowFile, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        forgetDirectory(rowKey);
+        if (durability == TableOptions.Durability.ALWAYS) {
+            syncDirectoryAndManifest();
+        } else if (durability == TableOptions.Durability.BATCH) {
+            unsynced.add(rowFile);
+        }
+        return bytes.length;
+    }
+
+    /**
+     * Replace columns of a row file in the column layout by appending records at the end of its last
+     * complete record. Once superseded records pile up the file is rewritten without them.
+     * @return the number of bytes written, or 0 if the write failed
+     */
+    private long appendColumnsToDisk(String rowKey, Map<String, byte[]> columns) {
+        long written = 0;
+        RowLock lock = lockRow(rowKey);
+        try {
+            Path rowFile = Paths.get(storageDir, name, KeyEncoder.encode(rowKey));
+            Compression compression = options.compression();
+            if (!Files.exists(rowFile) || !isColumnLog(rowFile)) {
+                // New rows, and rows still in the whole-row layout, are written out in full once
+                Row row = Files.exists(rowFile) ? readRowFromDisk(name, rowKey) : null;
+                written = writeRowFile(name, rowKey, ColumnLog.encode(withColumns(rowKey, row, columns), compression));
+            } else {
+                written = appendColumns(rowFile, rowKey, columns, compression);
+            }
+        } catch (IOException e) {
+            logger.error("Error while writing columns " + columns.keySet() + " of row " + rowKey + " to disk", e);
+        } finally {
+            unlockRow(rowKey, lock);
+        }
+        return written;
+    }
+
+    private static boolean isColumnLog(Path rowFile) throws IOException {
+        try (FileChannel channel = FileChannel.open(rowFile, StandardOpenOption.READ)) {
+            return ColumnLog.isColumnLog(channel);
+        }
+    }
+
+    private long appendColumns(Path rowFile, String rowKey, Map<String, byte[]> columns, Compression compression) throws IOException {
+        List<byte[]> records = new ArrayList<>();
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        for (Map.Entry<String, byte[]> column : columns.entrySet()) {
+            byte[] encoded = ColumnLog.record(column.getKey(), column.getValue(), compression);
+            records.add(encoded);
+            bytes.write(encoded, 0, encoded.length);
+        }
+        byte[] record = bytes.toByteArray();
+        try (FileChannel channel = FileChannel.open(rowFile, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            ColumnLog.Directory directory = columnDirectory(rowKey, channel);
+            ColumnLog.Directory appended = directory.append(records);
+            if (!needsCompaction(appended)) {
+                ByteBuffer buffer = ByteBuffer.wrap(record);
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer, directory.end() + buffer.position());
+                }
+                // Drop whatever a crash left behind the last complete record
+                channel.truncate(appended.end());
+                TableOptions.Durability durability = options.durability();
+                if (durability == TableOptions.Durability.ALWAYS) {
+                    channel.force(true);
+                } else if (durability == TableOptions.Durability.BATCH) {
+                    unsynced.add(rowFile);
+                }
+                cacheDirectory(rowKey, appended);
+                return record.length;
+            }
+        }
+        Row row = readRowFromDisk(name, rowKey);
+        if (row == null) {
+            throw new IOException("Row file of " + rowKey + " can't be compacted");
+        }
+        return writeRowFile(name, rowKey, ColumnLog.encode(withColumns(rowKey, row, columns), compression));
+    }
+
+    /**
+     * Rewrite a row file without its superseded records once they make up most of it, or once there are enough of
+     * them that reading the directory from the file gets slow
+     */
+    private static boolean needsCompaction(ColumnLog.Directory directory) {
+        long dead = directory.deadBytes();
+        return (dead > COMPACT_MIN_BYTES && dead * 2 > directory.end()) || directory.deadRecords() >= COMPACT_DEAD_RECORDS;
+    }
+
+    /**
+     * The column directory of a row file in the column layout, from the cache if it still matches the file
+     */
+    private ColumnLog.Directory columnDirectory(String rowKey, FileChannel channel) throws IOException {
+        ColumnLog.Directory cached;
+        synchronized (directories) {
+            cached = directories.get(rowKey);
+        }
+        if (cached != null && cached.end() == channel.size()) {
+            return cached;
+        }
+        ColumnLog.Directory directory = ColumnLog.scan(channel);
+        cacheDirectory(rowKey, directory);
+        return directory;
+    }
+
+    private void cacheDirectory(String rowKey, ColumnLog.Directory directory) {
+        synchronized (directories) {
+            directories.put(rowKey, directory);
+            if (directories.size() > DIRECTORY_CACHE_ROWS) {
+                Iterator<String> eldest = directories.keySet().iterator();
+                eldest.next();
+                eldest.remove();
+            }
+        }
+    }
+
+    private void forgetDirectory(String rowKey) {
+        synchronized (directories) {
+            directories.remove(rowKey);
+        }
+    }
+
+    private void forgetDirectories() {
+        synchronized (directories) {
+            directories.clear();
+        }
+    }
+
+    /**
+     * Frame a row file as [ROW_MAGIC][payloadLength][crc32c][payload]
+     */
+    static byte[] encodeRowFile(byte[] payload) {
+        CRC32C crc = new CRC32C();
+        crc.update(payload);
+        return ByteBuffer.allocate(ROW_HEADER_SIZE + payload.length)
+                .put(ROW_MAGIC)
+                .putInt(payload.length)
+                .putInt((int) crc.getValue())
+                .put(payload)
+                .array();
+    }
+
+    /**
+     * Check the header of a row file and return its payload.
+     * Files written before row files had a header are returned as they are.
+     * @throws IOException if the file is torn or its checksum doesn't match
+     */
+    static byte[] decodeRowFile(byte[] file) throws IOException {
+        if (file.length < ROW_MAGIC.length || !Arrays.equals(file, 0, ROW_MAGIC.length, ROW_MAGIC, 0, ROW_MAGIC.length)) {
+            return file;
+        }
+        if (file.length < ROW_HEADER_SIZE) {
+            throw new IOException("Row file header is torn");
+        }
+        ByteBuffer header = ByteBuffer.wrap(file, ROW_MAGIC.length, 8);
+        int length = header.getInt();
+        int expectedCrc = header.getInt();
+        if (length != file.length - ROW_HEADER_SIZE) {
+            throw new IOException("Row file holds " + (file.length - ROW_HEADER_SIZE) + " bytes, header says " + length);
+        }
+        CRC32C crc = new CRC32C();
+        crc.update(file, ROW_HEADER_SIZE, length);
+        if ((int) crc.getValue() != expectedCrc) {
+            throw new IOException("Row file checksum mismatch");
+        }
+        return Arrays.copyOfRange(file, ROW_HEADER_SIZE, file.length);
+    }
 
-        // Delete all files in the table directory
-        Files.list(tableDir).forEach(file -> {
+    /**
+     * Check every row file of the table, moving the ones that fail into quarantineDir and dropping their keys
+     * from the index. Leftover temporary files from interrupted writes, and files of deleted rows not yet purged, are deleted.
+     * Files are checked in parallel on the common fork-join pool.
+     * @return the number of quarantined files
+     */
+    public int verifyRowFiles(Path quarantineDir) {
+        File[] files = new File(storageDir, name).listFiles(File::isFile);
+        if (files == null) {
+            return 0;
+        }
+        List<String> corrupt = Arrays.stream(files).parallel().filter(this::isCorrupt).map(File::getName).collect(Collectors.toList());
+        if (corrupt.isEmpty()) {
+            return 0;
+        }
+        Path tableQuarantine = quarantineDir.resolve(name);
+        List<String> keys = new ArrayList<>();
+        for (String fileName : corrupt) {
             try {
-//                logger.debug("Deleting file " + file.toAbsolutePath());
-                Files.delete(file);
+                Files.createDirectories(tableQuarantine);
+                Files.move(Paths.get(storageDir, name, fileName), tableQuarantine.resolve(fileName), StandardCopyOption.REPLACE_EXISTING);
+                keys.add(KeyEncoder.decode(fileName));
+                logger.warn("Quarantined corrupt row file " + fileName + " of " + name);
             } catch (IOException e) {
-                logger.error("Error while deleting file " + file.toAbsolutePath(), e);
-                throw new RuntimeException(e);
+                logger.error("Error while quarantining row file " + fileName + " of " + name, e);
             }
-        });
-        Files.delete(tableDir);
+        }
+        removeFromIndex(keys);
+        return keys.size();
     }
 
-    private void writeRowToDisk(String table, String rowKey, Row rowObj) {
-        Object lock = locks.computeIfAbsent(rowKey, k -> new Object());
-        synchronized (lock) {
+    /**
+     * @return whether the file is a row file that can't be read; leftover files that aren't rows are deleted
+     */
+    private boolean isCorrupt(File file) {
+        String fileName = file.getName();
+        if (fileName.endsWith(TMP_SUFFIX) || fileName.endsWith(DELETED_SUFFIX)) {
+            file.delete();
+            return false;
+        }
+        if (!isRowFile(fileName)) {
+            return false;
+        }
+        try {
+            return decodeRow(KeyEncoder.decode(fileName), Files.readAllBytes(file.toPath())) == null;
+        } catch (Exception e) {
+            return true;
+        }
+    }
 
-            File tableDir = new File(storageDir, table);
-            if (!tableDir.exists()) {
-                tableDir.mkdir();
+    /**
+     * Drop keys whose row files are gone and rewrite the manifest without them
+     */
+    private void removeFromIndex(Collection<String> removed) {
+        ConcurrentSkipListSet<String> index = keys();
+        synchronized (manifestLock) {
+            if (destroyed) {
+                return;
+            }
+            for (String key : removed) {
+                if (index.remove(key)) {
+                    keyCount.decrementAndGet();
+                }
+                forgetDirectory(key);
             }
-            File rowFile = new File(tableDir, KeyEncoder.encode(rowKey));
-            logger.debug("Row " + rowKey + " will be written as " + KeyEncoder.encode(rowKey));
-            try (FileOutputStream fos = new FileOutputStream(rowFile)) {
-                fos.write(rowObj.toByteArray());
+            try {
+                if (manifest != null) {
+                    manifest.close();
+                    manifest = null;
+                }
+                writeManifest(Paths.get(storageDir, name, MANIFEST_FILE), index);
             } catch (IOException e) {
-                logger.error("Error while writing row to disk", e);
+                logger.error("Error while rewriting the key manifest of " + name, e);
             }
         }
-        locks.remove(rowKey);
+    }
+
+    /**
+     * Decode a row file in either layout: one record per column, or the whole row in one checksummed frame
+     */
+    Row decodeRow(String rowKey, byte[] file) throws Exception {
+        if (ColumnLog.isColumnLog(file)) {
+            return ColumnLog.decode(rowKey, file);
+        }
+        return dictionary.decode(Compression.decode(decodeRowFile(file)));
     }
 
     private Row readRowFromDisk(String tableName, String rowKey) {
-        File tableDir = new File(storageDir, tableName);
-        File rowFile = new File(tableDir, KeyEncoder.encode(rowKey));
-        if (!rowFile.exists()) {
+        return readRowFromDisk(tableName, rowKey, (row, size) -> {});
+    }
+
+    /**
+     * Read the whole row file in one call and decode it from memory
+     * @param onRead receives the decoded row and the size of its file
+     */
+    private Row readRowFromDisk(String tableName, String rowKey, BiConsumer<Row, Integer> onRead) {
+        Path rowFile = Paths.get(storageDir, tableName, KeyEncoder.encode(rowKey));
+        try {
+            byte[] bytes = Files.readAllBytes(rowFile);
+            Row row = decodeRow(rowKey, bytes);
+            if (row != null) {
+                onRead.accept(row, bytes.length);
+            }
+            return row;
+        } catch (NoSuchFileException e) {
             return null;
-        }
-        try (RandomAccessFile raf = new RandomAccessFile(rowFile, "r")) {
-            return Row.readFrom(raf);
         } catch (Exception e) {
             logger.error("Error while reading row from disk", e);
             return null;
         }
     }
 
-    private static boolean fileExistsInDirectory(String directoryPath, String fileName) {
-        File directory = new File(directoryPath);
-        if (!directory.isDirectory()) {
-            throw new IllegalArgumentException(directoryPath + " is not a directory");
-        }
-        File fileToCheck = new File(directory, fileName);
-        return fileToCheck.exists();
-    }
-
     @Override
     public List<RowMeta> getRowMetas() {
         List<RowMeta> rowMetas = new ArrayList<>();
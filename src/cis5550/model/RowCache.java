@@ -0,0 +1,267 @@
+package cis5550.model;
+
+import cis5550.kvs.Row;
+import cis5550.tools.WorkerConfig;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Worker-wide cache of decoded rows with a global byte budget.
+ * Admission follows W-TinyLFU: new rows enter a small LRU window, and a row leaving the window only replaces
+ * the least recently used row of the main area if it has been accessed more often, according to a
+ * count-min sketch of recent accesses. A scan therefore passes through the window without flushing hot rows.
+ * The main area is a segmented LRU: rows hit while on probation move to the protected segment.
+ * <p>
+ * Cached rows are shared, so callers must not modify a row they got from the cache.
+ */
+public class RowCache {
+    private static final double WINDOW_FRACTION = 0.01;
+    private static final double PROTECTED_FRACTION = 0.8;
+    private static final long ENTRY_OVERHEAD = 64;
+    private static volatile RowCache shared;
+
+    private record Key(Table table, String rowKey) {
+    }
+
+    private static final class Entry {
+        final Key key;
+        final Row row;
+        final long weight;
+
+        Entry(Key key, Row row, long weight) {
+            this.key = key;
+            this.row = row;
+            this.weight = weight;
+        }
+    }
+
+    private final long maxBytes;
+    private final long windowMaxBytes;
+    private final long protectedMaxBytes;
+    private final LinkedHashMap<Key, Entry> window = new LinkedHashMap<>(16, 0.75f, true);
+    private final LinkedHashMap<Key, Entry> probation = new LinkedHashMap<>(16, 0.75f, true);
+    private final LinkedHashMap<Key, Entry> protectedSegment = new LinkedHashMap<>(16, 0.75f, true);
+    private final FrequencySketch sketch;
+    private long windowBytes;
+    private long probationBytes;
+    private long protectedBytes;
+    private long hits;
+    private long misses;
+    private long evictions;
+
+    public RowCache(long maxBytes) {
+        this.maxBytes = maxBytes;
+        this.windowMaxBytes = (long) (maxBytes * WINDOW_FRACTION);
+        this.protectedMaxBytes = (long) ((maxBytes - windowMaxBytes) * PROTECTED_FRACTION);
+        // Size the sketch for rows of about 1 KB
+        this.sketch = new FrequencySketch((int) Math.min(1 << 22, Math.max(1024, maxBytes >> 10)));
+    }
+
+    /**
+     * The cache shared by all tables of this worker, sized by kvs.rowCacheBytes
+     * @return null if the cache is disabled
+     */
+    public static RowCache shared() {
+        RowCache cache = shared;
+        if (cache == null) {
+            synchronized (RowCache.class) {
+                if (shared == null && WorkerConfig.rowCacheBytes() > 0) {
+                    shared = new RowCache(WorkerConfig.rowCacheBytes());
+                }
+                cache = shared;
+            }
+        }
+        return cache;
+    }
+
+    public synchronized Row get(Table table, String rowKey) {
+        Key key = new Key(table, rowKey);
+        sketch.increment(key.hashCode());
+        Entry entry = window.get(key);
+        if (entry == null) {
+            entry = protectedSegment.get(key);
+        }
+        if (entry == null) {
+            entry = probation.remove(key);
+            if (entry != null) {
+                probationBytes -= entry.weight;
+                protectedSegment.put(key, entry);
+                protectedBytes += entry.weight;
+                demoteProtected();
+            }
+        }
+        if (entry == null) {
+            misses++;
+            return null;
+        }
+        hits++;
+        return entry.row;
+    }
+
+    /**
+     * Cache a row that was just read from disk.
+     * stillCurrent is checked under the cache lock, so a writer that changes the row and then calls
+     * {@link #invalidate(Table, String)} can't have its invalidation overtaken by a stale fill.
+     */
+    public synchronized void put(Table table, String rowKey, Row row, long size, BooleanSupplier stillCurrent) {
+        long weight = size + rowKey.length() + ENTRY_OVERHEAD;
+        if (weight > maxBytes - windowMaxBytes || !stillCurrent.getAsBoolean()) {
+            return;
+        }
+        Key key = new Key(table, rowKey);
+        remove(key);
+        window.put(key, new Entry(key, row, weight));
+        windowBytes += weight;
+        while (windowBytes > windowMaxBytes && !window.isEmpty()) {
+            Entry candidate = pollEldest(window);
+            windowBytes -= candidate.weight;
+            admit(candidate);
+        }
+    }
+
+    /**
+     * Move a row leaving the window into probation if it is accessed more often than the rows it would push out
+     */
+    private void admit(Entry candidate) {
+        long mainMaxBytes = maxBytes - windowMaxBytes;
+        int candidateFrequency = sketch.frequency(candidate.key.hashCode());
+        while (probationBytes + protectedBytes + candidate.weight > mainMaxBytes) {
+            LinkedHashMap<Key, Entry> victims = probation.isEmpty() ? protectedSegment : probation;
+            Entry victim = victims.values().iterator().next();
+            if (sketch.frequency(victim.key.hashCode()) >= candidateFrequency) {
+                evictions++;
+                return;
+            }
+            victims.remove(victim.key);
+            if (victims == probation) {
+                probationBytes -= victim.weight;
+            } else {
+                protectedBytes -= victim.weight;
+            }
+            evictions++;
+        }
+        probation.put(candidate.key, candidate);
+        probationBytes += candidate.weight;
+    }
+
+    private void demoteProtected() {
+        while (protectedBytes > protectedMaxBytes && protectedSegment.size() > 1) {
+            Entry demoted = pollEldest(protectedSegment);
+            protectedBytes -= demoted.weight;
+            probation.put(demoted.key, demoted);
+            probationBytes += demoted.weight;
+        }
+    }
+
+    private static Entry pollEldest(LinkedHashMap<Key, Entry> segment) {
+        Iterator<Entry> iterator = segment.values().iterator();
+        Entry eldest = iterator.next();
+        iterator.remove();
+        return eldest;
+    }
+
+    public synchronized void invalidate(Table table, String rowKey) {
+        remove(new Key(table, rowKey));
+    }
+
+    /**
+     * Drop every cached row of a table that is going away
+     */
+    public synchronized void invalidateAll(Table table) {
+        windowBytes -= removeTable(window, table);
+        probationBytes -= removeTable(probation, table);
+        protectedBytes -= removeTable(protectedSegment, table);
+    }
+
+    private static long removeTable(LinkedHashMap<Key, Entry> segment, Table table) {
+        long removed = 0;
+        Iterator<Entry> iterator = segment.values().iterator();
+        while (iterator.hasNext()) {
+            Entry entry = iterator.next();
+            if (entry.key.table() == table) {
+                removed += entry.weight;
+                iterator.remove();
+            }
+        }
+        return removed;
+    }
+
+    private void remove(Key key) {
+        Entry entry;
+        if ((entry = window.remove(key)) != null) {
+            windowBytes -= entry.weight;
+        } else if ((entry = probation.remove(key)) != null) {
+            probationBytes -= entry.weight;
+        } else if ((entry = protectedSegment.remove(key)) != null) {
+            protectedBytes -= entry.weight;
+        }
+    }
+
+    public synchronized Map<String, String> stats() {
+        Map<String, String> stats = new LinkedHashMap<>();
+        stats.put("capacity bytes", String.valueOf(maxBytes));
+        stats.put("used bytes", String.valueOf(windowBytes + probationBytes + protectedBytes));
+        stats.put("rows", String.valueOf(window.size() + probation.size() + protectedSegment.size()));
+        stats.put("hits", String.valueOf(hits));
+        stats.put("misses", String.valueOf(misses));
+        stats.put("evictions", String.valueOf(evictions));
+        stats.put("hit rate", hits + misses == 0 ? "0" : String.format("%.4f", (double) hits / (hits + misses)));
+        return stats;
+    }
+
+    /**
+     * Count-min sketch of 4-bit counters, four per key. Once the number of recorded accesses reaches ten times
+     * the width every counter is halved, so the counts follow the recent access pattern.
+     */
+    private static class FrequencySketch {
+        private static final long[] SEEDS = {0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L};
+        private final long[] table;
+        private final int mask;
+        private final int sampleSize;
+        private int additions;
+
+        FrequencySketch(int width) {
+            int size = Integer.highestOneBit(Math.max(16, width) - 1) << 1;
+            table = new long[size >> 4];
+            mask = size - 1;
+            sampleSize = size * 10;
+        }
+
+        private int index(int hash, int i) {
+            long h = (hash + SEEDS[i]) * SEEDS[i];
+            h ^= h >>> 32;
+            return (int) h & mask;
+        }
+
+        void increment(int hash) {
+            boolean added = false;
+            for (int i = 0; i < 4; i++) {
+                int counter = index(hash, i);
+                int word = counter >>> 4;
+                int shift = (counter & 15) << 2;
+                if (((table[word] >>> shift) & 0xfL) < 15) {
+                    table[word] += 1L << shift;
+                    added = true;
+                }
+            }
+            if (added && ++additions >= sampleSize) {
+                for (int i = 0; i < table.length; i++) {
+                    table[i] = (table[i] >>> 1) & 0x7777777777777777L;
+                }
+                additions /= 2;
+            }
+        }
+
+        int frequency(int hash) {
+            int frequency = 15;
+            for (int i = 0; i < 4; i++) {
+                int counter = index(hash, i);
+                frequency = (int) Math.min(frequency, (table[counter >>> 4] >>> ((counter & 15) << 2)) & 0xfL);
+            }
+            return frequency;
+        }
+    }
+}
@@ -0,0 +1,352 @@
+package cis5550.model;
+
+import cis5550.tools.Logger;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Immutable sorted file of (row key, serialized row) entries.
+ * Entries are grouped into blocks of roughly BLOCK_SIZE bytes; the first key of every block is kept in memory,
+ * so a point lookup costs one binary search and one positioned read. A Bloom filter over the keys is kept in
+ * memory as well, so most lookups for keys the table doesn't hold never touch the file.
+ * <p>
+ * Layout: [block]* [index] [bloom] [footer], where a block is a run of [keyLen][key][valueLen][value],
+ * the index is [blockCount] then [keyLen][firstKey][offset][length] per block,
+ * and the footer is [indexOffset][bloomOffset][entryCount][MAGIC].
+ */
+public class SSTable implements Closeable {
+    private static final Logger logger = Logger.getLogger(SSTable.class);
+    private static final int BLOCK_SIZE = 16 * 1024;
+    private static final int FOOTER_SIZE = 8 + 8 + 8 + 4;
+    private static final int MAGIC = 0x55AB1E02;
+    private static final double BLOOM_FALSE_POSITIVE_RATE = 0.01;
+
+    private volatile Path path;
+    private final long sequence;
+    private final FileChannel channel;
+    private final String[] firstKeys;
+    private final long[] blockOffsets;
+    private final int[] blockLengths;
+    private final long entryCount;
+    private final BloomFilter bloom;
+    private final AtomicInteger refs = new AtomicInteger(1);
+
+    private SSTable(Path path, long sequence) throws IOException {
+        this.path = path;
+        this.sequence = sequence;
+        this.channel = FileChannel.open(path, StandardOpenOption.READ);
+
+        long size = channel.size();
+        if (size < FOOTER_SIZE) {
+            channel.close();
+            throw new IOException("SSTable " + path + " is too short");
+        }
+        if (readFully(size - 4, 4).getInt() != MAGIC) {
+            channel.close();
+            throw new IOException("SSTable " + path + " has a corrupt footer");
+        }
+        ByteBuffer footer = readFully(size - FOOTER_SIZE, FOOTER_SIZE);
+        long indexOffset = footer.getLong();
+        long bloomOffset = footer.getLong();
+        entryCount = footer.getLong();
+
+        ByteBuffer index = readFully(indexOffset, (int) (bloomOffset - indexOffset));
+        int blockCount = index.getInt();
+        firstKeys = new String[blockCount];
+        blockOffsets = new long[blockCount];
+        blockLengths = new int[blockCount];
+        for (int i = 0; i < blockCount; i++) {
+            firstKeys[i] = readString(index);
+            blockOffsets[i] = index.getLong();
+            blockLengths[i] = index.getInt();
+        }
+
+        bloom = BloomFilter.readFrom(readFully(bloomOffset, (int) (size - FOOTER_SIZE - bloomOffset)));
+    }
+
+    public static SSTable open(Path path, long sequence) throws IOException {
+        return new SSTable(path, sequence);
+    }
+
+    /**
+     * Write the sorted entries to a new table at path and open it.
+     * The file is written under a temporary name and renamed into place once it is complete.
+     */
+    public static SSTable write(Path path, long sequence, Iterator<Map.Entry<String, byte[]>> sortedEntries) throws IOException {
+        Path tmp = path.resolveSibling(path.getFileName() + ".tmp");
+        List<String> firstKeys = new ArrayList<>();
+        List<long[]> blocks = new ArrayList<>();
+        long[] keyHashes = new long[1024];
+        long entryCount = 0;
+
+        try (OutputStream fileOut = Files.newOutputStream(tmp);
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fileOut, 1 << 16))) {
+            ByteArrayOutputStream blockBytes = new ByteArrayOutputStream(BLOCK_SIZE * 2);
+            DataOutputStream block = new DataOutputStream(blockBytes);
+            String blockFirstKey = null;
+            long offset = 0;
+
+            while (sortedEntries.hasNext()) {
+                Map.Entry<String, byte[]> entry = sortedEntries.next();
+                if (blockFirstKey == null) {
+                    blockFirstKey = entry.getKey();
+                }
+                writeString(block, entry.getKey());
+                block.writeInt(entry.getValue().length);
+                block.write(entry.getValue());
+                if (entryCount == keyHashes.length) {
+                    keyHashes = Arrays.copyOf(keyHashes, keyHashes.length * 2);
+                }
+                keyHashes[(int) entryCount] = BloomFilter.hash(entry.getKey());
+                entryCount++;
+
+                if (blockBytes.size() >= BLOCK_SIZE) {
+                    firstKeys.add(blockFirstKey);
+                    blocks.add(new long[]{offset, blockBytes.size()});
+                    offset += blockBytes.size();
+                    blockBytes.writeTo(out);
+                    blockBytes.reset();
+                    blockFirstKey = null;
+                }
+            }
+            if (blockBytes.size() > 0) {
+                firstKeys.add(blockFirstKey);
+                blocks.add(new long[]{offset, blockBytes.size()});
+                offset += blockBytes.size();
+                blockBytes.writeTo(out);
+            }
+
+            long indexOffset = offset;
+            out.writeInt(firstKeys.size());
+            offset += 4;
+            for (int i = 0; i < firstKeys.size(); i++) {
+                byte[] firstKey = firstKeys.get(i).getBytes(StandardCharsets.UTF_8);
+                out.writeInt(firstKey.length);
+                out.write(firstKey);
+                out.writeLong(blocks.get(i)[0]);
+                out.writeInt((int) blocks.get(i)[1]);
+                offset += 4 + firstKey.length + 8 + 4;
+            }
+            long bloomOffset = offset;
+
+            BloomFilter bloom = BloomFilter.create(entryCount, BLOOM_FALSE_POSITIVE_RATE);
+            for (int i = 0; i < entryCount; i++) {
+                bloom.addHash(keyHashes[i]);
+            }
+            bloom.writeTo(out);
+            out.writeLong(indexOffset);
+            out.writeLong(bloomOffset);
+            out.writeLong(entryCount);
+            out.writeInt(MAGIC);
+            out.flush();
+            try (FileChannel syncChannel = FileChannel.open(tmp, StandardOpenOption.WRITE)) {
+                syncChannel.force(true);
+            }
+        }
+        Files.move(tmp, path, StandardCopyOption.ATOMIC_MOVE);
+        return new SSTable(path, sequence);
+    }
+
+    public long getSequence() {
+        return sequence;
+    }
+
+    public long getEntryCount() {
+        return entryCount;
+    }
+
+    public long bloomSizeInBytes() {
+        return bloom.sizeInBytes();
+    }
+
+    /**
+     * @return false if the key is certainly not in this table
+     */
+    public boolean mightContain(String key) {
+        return bloom.mightContain(key);
+    }
+
+    public Path getPath() {
+        return path;
+    }
+
+    public long sizeOnDisk() {
+        try {
+            return channel.size();
+        } catch (IOException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * Point the table at its new location after the directory holding it was moved
+     */
+    public void moveTo(Path dir) {
+        path = dir.resolve(path.getFileName());
+    }
+
+    /**
+     * Take a reference so the file is not closed while it is being read
+     * @return false if the table has already been retired
+     */
+    public boolean tryAcquire() {
+        while (true) {
+            int current = refs.get();
+            if (current <= 0) {
+                return false;
+            }
+            if (refs.compareAndSet(current, current + 1)) {
+                return true;
+            }
+        }
+    }
+
+    public void release() {
+        if (refs.decrementAndGet() == 0) {
+            try {
+                channel.close();
+                Files.deleteIfExists(path);
+            } catch (IOException e) {
+                logger.error("Error while removing retired SSTable " + path, e);
+            }
+        }
+    }
+
+    /**
+     * Drop the owner's reference; the file is deleted once the last reader is done with it
+     */
+    public void retire() {
+        release();
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    /**
+     * Look up a single key
+     * @return the stored value, or null if the key is not in this table
+     */
+    public byte[] get(String key) throws IOException {
+        int blockIndex = floorBlock(key);
+        if (blockIndex < 0) {
+            return null;
+        }
+        ByteBuffer block = readFully(blockOffsets[blockIndex], blockLengths[blockIndex]);
+        while (block.hasRemaining()) {
+            String entryKey = readString(block);
+            int valueLength = block.getInt();
+            int cmp = entryKey.compareTo(key);
+            if (cmp == 0) {
+                byte[] value = new byte[valueLength];
+                block.get(value);
+                return value;
+            }
+            if (cmp > 0) {
+                return null;
+            }
+            block.position(block.position() + valueLength);
+        }
+        return null;
+    }
+
+    /**
+     * Iterate over the entries whose keys are >= startKey, in key order
+     */
+    public Iterator<Map.Entry<String, byte[]>> iterator(String startKey) {
+        int startBlock = startKey == null ? 0 : Math.max(0, floorBlock(startKey));
+        return new Iterator<>() {
+            private int blockIndex = startBlock;
+            private ByteBuffer block;
+            private Map.Entry<String, byte[]> next = advance();
+
+            private Map.Entry<String, byte[]> advance() {
+                try {
+                    while (true) {
+                        if (block == null || !block.hasRemaining()) {
+                            if (blockIndex >= firstKeys.length) {
+                                return null;
+                            }
+                            block = readFully(blockOffsets[blockIndex], blockLengths[blockIndex]);
+                            blockIndex++;
+                        }
+                        String key = readString(block);
+                        byte[] value = new byte[block.getInt()];
+                        block.get(value);
+                        if (startKey == null || key.compareTo(startKey) >= 0) {
+                            return new AbstractMap.SimpleImmutableEntry<>(key, value);
+                        }
+                    }
+                } catch (IOException e) {
+                    logger.error("Error while scanning SSTable " + path, e);
+                    return null;
+                }
+            }
+
+            @Override
+            public boolean hasNext() {
+                return next != null;
+            }
+
+            @Override
+            public Map.Entry<String, byte[]> next() {
+                if (next == null) {
+                    throw new NoSuchElementException();
+                }
+                Map.Entry<String, byte[]> current = next;
+                next = advance();
+                return current;
+            }
+        };
+    }
+
+    private int floorBlock(String key) {
+        int pos = Arrays.binarySearch(firstKeys, key);
+        return pos >= 0 ? pos : -pos - 2;
+    }
+
+    private ByteBuffer readFully(long position, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining()) {
+            int n = channel.read(buffer, position + buffer.position());
+            if (n < 0) {
+                throw new IOException("Unexpected end of SSTable " + path);
+            }
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    private static void writeString(DataOutputStream out, String s) throws IOException {
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.getInt()];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,173 @@
+package cis5550.model;
+
+import cis5550.kvs.Row;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * A row whose columns live in a {@link ColumnTrie}, so that a new version made with {@link #with} shares every
+ * column but the changed one with the version it came from, and {@link #clone} copies nothing.
+ * It behaves like any other row; changing it through {@link #put} only affects this object.
+ */
+final class SharedRow extends Row {
+    private static final long serialVersionUID = 1L;
+    // Rough heap cost of a new column's entry and the trie nodes copied on the way to it
+    private static final int COLUMN_OVERHEAD = 48 + 96;
+
+    private transient volatile ColumnTrie columns;
+    private final int addedBytes;
+
+    SharedRow(String key, ColumnTrie columns) {
+        this(key, columns, -1);
+    }
+
+    private SharedRow(String key, ColumnTrie columns, int addedBytes) {
+        super(key);
+        // The inherited map is never used
+        this.values = null;
+        this.columns = columns;
+        this.addedBytes = addedBytes;
+    }
+
+    /**
+     * Estimated heap this row holds that the row it was derived from doesn't, or -1 if it wasn't derived from one
+     */
+    int addedBytes() {
+        return addedBytes;
+    }
+
+    static SharedRow of(Row row) {
+        if (row instanceof SharedRow shared) {
+            return shared;
+        }
+        ColumnTrie columns = ColumnTrie.EMPTY;
+        for (String column : row.columns()) {
+            columns = columns.with(column, row.getBytes(column));
+        }
+        return new SharedRow(row.key(), columns);
+    }
+
+    /**
+     * The row as a new version of base: columns whose values are equal to base's reuse base's copy
+     */
+    static SharedRow rebase(SharedRow base, Row row) {
+        ColumnTrie columns = base.columns;
+        int added = 64;
+        for (String column : row.columns()) {
+            byte[] value = row.getBytes(column);
+            byte[] previous = columns.get(column);
+            if (previous == null || !Arrays.equals(previous, value)) {
+                columns = columns.with(column, value);
+                added += COLUMN_OVERHEAD + column.length() * 2 + (value == null ? 0 : value.length);
+            }
+        }
+        if (columns.size() != row.columns().size()) {
+            for (String column : base.columns()) {
+                if (!row.columns().contains(column)) {
+                    columns = columns.without(column);
+                }
+            }
+        }
+        return new SharedRow(row.key(), columns, added);
+    }
+
+    SharedRow with(String column, byte[] value) {
+        return new SharedRow(key, columns.with(column, value), 64 + COLUMN_OVERHEAD + column.length() * 2 + (value == null ? 0 : value.length));
+    }
+
+    SharedRow without(String column) {
+        return new SharedRow(key, columns.without(column), 64 + COLUMN_OVERHEAD);
+    }
+
+    @Override
+    public Row clone() {
+        return new SharedRow(key, columns);
+    }
+
+    /**
+     * Serialized as a plain row; the trie only exists to share columns between versions in memory
+     */
+    private Object writeReplace() {
+        Row plain = new Row(key);
+        columns.forEach(plain::put);
+        return plain;
+    }
+
+    @Override
+    public Set<String> columns() {
+        ColumnTrie current = columns;
+        return new AbstractSet<>() {
+            @Override
+            public Iterator<String> iterator() {
+                List<String> names = new ArrayList<>(current.size());
+                current.forEach((name, value) -> names.add(name));
+                return names.iterator();
+            }
+
+            @Override
+            public int size() {
+                return current.size();
+            }
+
+            @Override
+            public boolean contains(Object o) {
+                return o instanceof String name && current.contains(name);
+            }
+        };
+    }
+
+    @Override
+    public synchronized void put(String key, String value) {
+        put(key, value.getBytes());
+    }
+
+    @Override
+    public synchronized void put(String key, byte[] value) {
+        columns = columns.with(key, value);
+    }
+
+    @Override
+    public String get(String key) {
+        byte[] value = columns.get(key);
+        return value == null ? null : new String(value);
+    }
+
+    @Override
+    public byte[] getBytes(String key) {
+        return columns.get(key);
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder s = new StringBuilder(key).append(" {");
+        boolean[] isFirst = {true};
+        columns.forEach((name, value) -> {
+            s.append(isFirst[0] ? " " : ", ").append(name).append(": ").append(new String(value));
+            isFirst[0] = false;
+        });
+        return s.append(" }").toString();
+    }
+
+    @Override
+    public byte[] toByteArray() {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.writeBytes(key.getBytes());
+        out.write(' ');
+        columns.forEach((name, value) -> {
+            out.writeBytes(name.getBytes());
+            out.write(' ');
+            out.writeBytes(String.valueOf(value.length).getBytes(StandardCharsets.US_ASCII));
+            out.write(' ');
+            out.writeBytes(value);
+            out.write(' ');
+        });
+        return out.toByteArray();
+    }
+}
@@ -1,9 +1,14 @@
 package cis5550.model;
 
+import cis5550.kvs.ImmutableRow;
 import cis5550.kvs.Row;
 
+import java.io.IOException;
 import java.security.NoSuchAlgorithmException;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.Objects;
 import java.util.Set;
 
 public interface Table {
@@ -17,8 +22,145 @@ public interface Table {
 
     Set<String> getKeys();
 
+    /**
+     * Set one column of a row, keeping its other columns. Engines that can store a column on its own should
+     * override this so the rest of the row is not rewritten.
+     */
+    default void putColumn(String key, String column, byte[] value) {
+        Row row = get(key);
+        row = row == null ? new Row(key) : row.clone();
+        row.put(column, value);
+        put(key, row);
+    }
+
+    /**
+     * @return the value of one column of a row, or null if the row or column doesn't exist
+     */
+    default byte[] getColumn(String key, String column) {
+        Row row = get(key);
+        return row == null ? null : row.getBytes(column);
+    }
+
     int countKeys();
 
     String generateMD5(String rowKey) throws NoSuchAlgorithmException;
     List<RowMeta> getRowMetas();
+
+    /**
+     * Iterate over the rows whose keys are in [startRow, endRowExclusive).
+     * Either bound may be null. Engines that keep their keys sorted should override this.
+     * The iterator may be a {@link CloseableIterator}; a caller that can stop early should {@link #close} it.
+     */
+    default Iterator<Row> scan(String startRow, String endRowExclusive) {
+        return getKeys().stream()
+                .filter(key -> (startRow == null || key.compareTo(startRow) >= 0) &&
+                        (endRowExclusive == null || key.compareTo(endRowExclusive) < 0))
+                .map(this::get)
+                .filter(Objects::nonNull)
+                .iterator();
+    }
+
+    /**
+     * Settings from the table's options file; engines that take no options report the defaults
+     */
+    default TableOptions getOptions() {
+        return TableOptions.defaults();
+    }
+
+    /**
+     * Apply new options. The caller has already validated and saved them.
+     */
+    default void setOptions(TableOptions options) {
+    }
+
+    /**
+     * Engine-specific counters shown on the worker's admin page
+     */
+    default Map<String, String> stats() {
+        return Map.of();
+    }
+
+    /**
+     * Like {@link #scan(String, String)}, but the rows only hold the given columns.
+     * A null set means all columns. Engines that store columns separately should override this
+     * so that the other columns are never read.
+     */
+    default Iterator<Row> scan(String startRow, String endRowExclusive, Set<String> columns) {
+        Iterator<Row> rows = scan(startRow, endRowExclusive);
+        if (columns == null) {
+            return rows;
+        }
+        return new CloseableIterator<>() {
+            @Override
+            public void close() {
+                Table.close(rows);
+            }
+
+            @Override
+            public boolean hasNext() {
+                return rows.hasNext();
+            }
+
+            @Override
+            public Row next() {
+                Row row = rows.next();
+                ImmutableRow.Builder projected = ImmutableRow.builder(row.key());
+                for (String column : row.columns()) {
+                    if (columns.contains(column)) {
+                        projected.put(column, row.getBytes(column));
+                    }
+                }
+                return new Row(projected.build());
+            }
+        };
+    }
+
+    /**
+     * Remove a row. Engines that support it override this.
+     * @return false if the row doesn't exist
+     * @throws UnsupportedOperationException if the engine can't delete rows
+     */
+    default boolean deleteRow(String key) {
+        throw new UnsupportedOperationException(getClass().getSimpleName() + " does not support deleting rows");
+    }
+
+    /**
+     * Remove one column of a row, keeping its other columns
+     * @return false if the row or column doesn't exist
+     */
+    default boolean deleteColumn(String key, String column) {
+        Row row = get(key);
+        if (row == null || row.getBytes(column) == null) {
+            return false;
+        }
+        Row updated = new Row(key);
+        for (String other : row.columns()) {
+            if (!other.equals(column)) {
+                updated.put(other, row.getBytes(other));
+            }
+        }
+        put(key, updated);
+        return true;
+    }
+
+    /**
+     * Write out anything the table holds back in memory. Called before the table is renamed and at shutdown.
+     */
+    default void flush() {
+    }
+
+    /**
+     * Release the resources held by the table and remove its data from disk
+     */
+    default void destroy() throws IOException {
+    }
+
+    /**
+     * Let go of the files a scan holds, if it holds any
+     */
+    static void close(Iterator<?> rows) {
+        if (rows instanceof CloseableIterator<?> closeable) {
+            closeable.close();
+        }
+    }
 }
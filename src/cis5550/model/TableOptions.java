@@ -0,0 +1,216 @@
+package cis5550.model;
+
+import cis5550.tools.Logger;
+import cis5550.tools.WorkerConfig;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+
+/**
+ * Per-table settings, kept as a properties file in the table directory.
+ * The file name contains a '.', so it is never mistaken for a row file.
+ */
+public class TableOptions {
+    private static final Logger logger = Logger.getLogger(TableOptions.class);
+    public static final String FILE_NAME = "table.options";
+    public static final String COMPRESSION = "compression";
+    public static final String DURABILITY = "durability";
+    public static final String BATCH_MILLIS = "batchMillis";
+    public static final String BATCH_BYTES = "batchBytes";
+    public static final String WRITE_BACK_MILLIS = "writeBackMillis";
+    public static final String ROW_TTL_SECONDS = "rowTtlSeconds";
+    public static final String TABLE_TTL_SECONDS = "tableTtlSeconds";
+    public static final String MAX_VERSIONS = "maxVersions";
+    public static final String VERSION_RETENTION_SECONDS = "versionRetentionSeconds";
+
+    /**
+     * When a write is forced to disk before it is acknowledged: never, in a shared group commit, or on every write
+     */
+    public enum Durability {
+        NONE, BATCH, ALWAYS
+    }
+
+    private final Properties properties;
+
+    private TableOptions(Properties properties) {
+        this.properties = properties;
+    }
+
+    public static TableOptions defaults() {
+        return new TableOptions(new Properties());
+    }
+
+    /**
+     * Read the options of a table; a table without an options file gets the defaults
+     */
+    public static TableOptions load(String storageDir, String table) {
+        Properties properties = new Properties();
+        Path path = Paths.get(storageDir, table, FILE_NAME);
+        if (Files.exists(path)) {
+            try (Reader reader = Files.newBufferedReader(path)) {
+                properties.load(reader);
+            } catch (IOException e) {
+                logger.error("Error while reading options of table " + table + ", using defaults", e);
+            }
+        }
+        return new TableOptions(properties);
+    }
+
+    /**
+     * Parse options sent as properties text, one key=value per line
+     */
+    public static TableOptions parse(String text) throws IOException {
+        Properties properties = new Properties();
+        properties.load(new StringReader(text == null ? "" : text));
+        return new TableOptions(properties);
+    }
+
+    public void save(String storageDir, String table) throws IOException {
+        Path dir = Paths.get(storageDir, table);
+        Files.createDirectories(dir);
+        Path tmp = dir.resolve(FILE_NAME + ".tmp");
+        try (Writer writer = Files.newBufferedWriter(tmp)) {
+            properties.store(writer, null);
+        }
+        Files.move(tmp, dir.resolve(FILE_NAME), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /**
+     * A copy of these options with the given ones added on top
+     */
+    public TableOptions merge(TableOptions overrides) {
+        Properties merged = new Properties();
+        merged.putAll(properties);
+        merged.putAll(overrides.properties);
+        return new TableOptions(merged);
+    }
+
+    public String get(String key, String defaultValue) {
+        return properties.getProperty(key, defaultValue);
+    }
+
+    public Compression compression() {
+        return Compression.fromName(get(COMPRESSION, Compression.NONE.name()));
+    }
+
+    public Durability durability() {
+        return Durability.valueOf(get(DURABILITY, Durability.NONE.name()).trim().toUpperCase());
+    }
+
+    /**
+     * How long a batch-durable write may wait for others to share its sync
+     */
+    public long batchMillis() {
+        return Long.parseLong(get(BATCH_MILLIS, String.valueOf(WorkerConfig.groupCommitMillis())).trim());
+    }
+
+    /**
+     * How many bytes of batch-durable writes trigger a sync before batchMillis is up
+     */
+    public long batchBytes() {
+        return Long.parseLong(get(BATCH_BYTES, String.valueOf(1 << 20)).trim());
+    }
+
+    /**
+     * How long a row may stay dirty in memory before it is written out; 0 writes every put straight through
+     */
+    public long writeBackMillis() {
+        return Long.parseLong(get(WRITE_BACK_MILLIS, "0").trim());
+    }
+
+    /**
+     * How long a row lives after its last write unless the write set its own TTL; 0 keeps rows forever
+     */
+    public long rowTtlSeconds() {
+        return Long.parseLong(get(ROW_TTL_SECONDS, "0").trim());
+    }
+
+    /**
+     * How long the whole table lives without being written to before it is dropped; 0 keeps it forever
+     */
+    public long tableTtlSeconds() {
+        return Long.parseLong(get(TABLE_TTL_SECONDS, "0").trim());
+    }
+
+    /**
+     * How many versions of a row an in-memory table keeps; 1 keeps only the latest and 0 keeps them all
+     */
+    public int maxVersions() {
+        return Integer.parseInt(get(MAX_VERSIONS, String.valueOf(WorkerConfig.memoryMaxVersions())).trim());
+    }
+
+    /**
+     * How long an in-memory table keeps versions that are no longer the latest; 0 keeps them forever
+     */
+    public long versionRetentionSeconds() {
+        return Long.parseLong(get(VERSION_RETENTION_SECONDS, "0").trim());
+    }
+
+    /**
+     * Check that every known option has a usable value
+     * @throws IllegalArgumentException naming the first bad option
+     */
+    public void validate() {
+        try {
+            compression();
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Unknown compression " + get(COMPRESSION, null));
+        }
+        try {
+            durability();
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Unknown durability " + get(DURABILITY, null));
+        }
+        try {
+            if (batchMillis() <= 0 || batchBytes() <= 0) {
+                throw new IllegalArgumentException("Batch limits must be positive");
+            }
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Batch limits must be numbers");
+        }
+        try {
+            if (writeBackMillis() < 0) {
+                throw new IllegalArgumentException("Write-back interval can't be negative");
+            }
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Write-back interval must be a number");
+        }
+        try {
+            if (rowTtlSeconds() < 0 || tableTtlSeconds() < 0) {
+                throw new IllegalArgumentException("TTLs can't be negative");
+            }
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("TTLs must be numbers");
+        }
+        try {
+            if (maxVersions() < 0 || versionRetentionSeconds() < 0) {
+                throw new IllegalArgumentException("Version retention can't be negative");
+            }
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Version retention must be a number");
+        }
+    }
+
+    public Map<String, String> asMap() {
+        Map<String, String> map = new TreeMap<>();
+        properties.stringPropertyNames().forEach(key -> map.put(key, properties.getProperty(key)));
+        return map;
+    }
+
+    @Override
+    public String toString() {
+        StringWriter writer = new StringWriter();
+        asMap().forEach((key, value) -> writer.append(key).append('=').append(value).append('\n'));
+        return writer.toString();
+    }
+}
@@ -1,12 +1,79 @@
 package cis5550.model;
 
 public enum TableType {
-    MEMORY,
-    PERSISTENT;
+    MEMORY(null),
+    PERSISTENT("pt-"),
+    LSM("lsm-"),
+    BITCASK("bc-"),
+    BTREE("bt-"),
+    COLUMNAR("col-"),
+    OFF_HEAP("oh-"),
+    FROZEN(null);
+
+    private final String prefix;
+
+    TableType(String prefix) {
+        this.prefix = prefix;
+    }
+
     public static TableType getType(String name) {
-        return name.startsWith("pt-") ? PERSISTENT : MEMORY;
+        for (TableType type : values()) {
+            if (type.prefix != null && name.startsWith(type.prefix)) {
+                return type;
+            }
+        }
+        return MEMORY;
     }
     public static TableType getType(Table table) {
-        return table instanceof PersistentTable ? PERSISTENT : MEMORY;
+        if (table instanceof PersistentTable) {
+            return PERSISTENT;
+        }
+        if (table instanceof LsmTable) {
+            return LSM;
+        }
+        if (table instanceof BitcaskTable) {
+            return BITCASK;
+        }
+        if (table instanceof BTreeTable) {
+            return BTREE;
+        }
+        if (table instanceof ColumnarTable) {
+            return COLUMNAR;
+        }
+        if (table instanceof OffHeapTable) {
+            return OFF_HEAP;
+        }
+        return table instanceof FrozenTable ? FROZEN : MEMORY;
+    }
+
+    /**
+     * Create an empty table of the type implied by its name
+     */
+    public static Table newTable(String name, String storageDir) {
+        return switch (getType(name)) {
+            case PERSISTENT -> new PersistentTable(name, storageDir);
+            case LSM -> new LsmTable(name, storageDir);
+            case BITCASK -> new BitcaskTable(name, storageDir);
+            case BTREE -> new BTreeTable(name, storageDir);
+            case COLUMNAR -> new ColumnarTable(name, storageDir);
+            case OFF_HEAP -> new OffHeapTable(name);
+            case MEMORY, FROZEN -> new MemoryTable(name);
+        };
+    }
+
+    /**
+     * Open a table that was found on disk when the worker started
+     */
+    public static Table openTable(String name, String storageDir) {
+        if (FrozenTable.isFrozen(name, storageDir)) {
+            return new FrozenTable(name, storageDir);
+        }
+        return switch (getType(name)) {
+            case LSM -> new LsmTable(name, storageDir);
+            case BITCASK -> new BitcaskTable(name, storageDir);
+            case BTREE -> new BTreeTable(name, storageDir);
+            case COLUMNAR -> new ColumnarTable(name, storageDir);
+            default -> new PersistentTable(name, storageDir);
+        };
     }
 }
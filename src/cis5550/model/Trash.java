@@ -0,0 +1,143 @@
+package cis5550.model;
+
+import cis5550.tools.Logger;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+/**
+ * Deleted table directories waiting to be removed.
+ * Deleting a table renames its directory into the trash, which is a single metadata operation, and a background
+ * thread removes the files afterwards at a bounded rate so a large delete doesn't flood the disk. Whatever is
+ * still in the trash when the worker starts is picked up again.
+ */
+public class Trash {
+    private static final Logger logger = Logger.getLogger(Trash.class);
+    public static final String TRASH_DIR = ".trash";
+    private static volatile Trash shared;
+
+    private final Path trashDir;
+    private final long filesPerSecond;
+    private final LinkedBlockingQueue<Path> pending = new LinkedBlockingQueue<>();
+    private final AtomicLong reclaimedFiles = new AtomicLong();
+    private final AtomicLong reclaimedBytes = new AtomicLong();
+
+    private Trash(Path trashDir, long filesPerSecond) {
+        this.trashDir = trashDir;
+        this.filesPerSecond = filesPerSecond;
+    }
+
+    /**
+     * Install the worker's trash and start reclaiming what an earlier run left in it
+     */
+    public static void configure(String storageDir, long filesPerSecond) {
+        Trash trash = new Trash(Paths.get(storageDir, TRASH_DIR), filesPerSecond);
+        File[] leftovers = trash.trashDir.toFile().listFiles();
+        if (leftovers != null) {
+            for (File leftover : leftovers) {
+                trash.pending.add(leftover.toPath());
+            }
+            logger.info("Resuming reclamation of " + leftovers.length + " deleted tables");
+        }
+        Thread reclaimer = new Thread(trash::reclaim, "trash-reclaimer");
+        reclaimer.setDaemon(true);
+        reclaimer.start();
+        shared = trash;
+    }
+
+    /**
+     * @return null if no trash is configured
+     */
+    public static Trash shared() {
+        return shared;
+    }
+
+    /**
+     * Remove a table directory: into the trash if there is one, otherwise right away
+     */
+    static void delete(Path dir) throws IOException {
+        if (!Files.exists(dir)) {
+            return;
+        }
+        Trash trash = shared;
+        if (trash == null) {
+            deleteRecursively(dir);
+            return;
+        }
+        Files.createDirectories(trash.trashDir);
+        // The trash name keeps the table name readable and stays unique if a table is deleted more than once
+        Path target = trash.trashDir.resolve(System.nanoTime() + "-" + dir.getFileName());
+        Files.move(dir, target, StandardCopyOption.ATOMIC_MOVE);
+        trash.pending.add(target);
+    }
+
+    static void deleteRecursively(Path dir) throws IOException {
+        try (Stream<Path> paths = Files.walk(dir)) {
+            for (Path path : paths.sorted(Comparator.reverseOrder()).toList()) {
+                Files.deleteIfExists(path);
+            }
+        }
+    }
+
+    private void reclaim() {
+        long intervalNanos = filesPerSecond > 0 ? TimeUnit.SECONDS.toNanos(1) / filesPerSecond : 0;
+        while (true) {
+            Path dir;
+            try {
+                dir = pending.take();
+            } catch (InterruptedException e) {
+                return;
+            }
+            long start = System.currentTimeMillis();
+            List<Path> paths;
+            try (Stream<Path> walk = Files.walk(dir)) {
+                paths = walk.sorted(Comparator.reverseOrder()).toList();
+            } catch (IOException | UncheckedIOException e) {
+                logger.error("Error while listing deleted table " + dir, e);
+                continue;
+            }
+            long next = System.nanoTime();
+            for (Path path : paths) {
+                long wait = next - System.nanoTime();
+                if (wait > 0) {
+                    try {
+                        TimeUnit.NANOSECONDS.sleep(wait);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                try {
+                    long size = Files.isRegularFile(path) ? Files.size(path) : 0;
+                    Files.deleteIfExists(path);
+                    reclaimedFiles.incrementAndGet();
+                    reclaimedBytes.addAndGet(size);
+                } catch (IOException e) {
+                    logger.error("Error while deleting " + path, e);
+                }
+                next = Math.max(next, System.nanoTime() - intervalNanos) + intervalNanos;
+            }
+            logger.info("Reclaimed deleted table " + dir + " (" + paths.size() + " files) in " + (System.currentTimeMillis() - start) + " ms");
+        }
+    }
+
+    public Map<String, String> stats() {
+        Map<String, String> stats = new LinkedHashMap<>();
+        stats.put("pending tables", String.valueOf(pending.size()));
+        stats.put("reclaimed files", String.valueOf(reclaimedFiles.get()));
+        stats.put("reclaimed bytes", String.valueOf(reclaimedBytes.get()));
+        return stats;
+    }
+}
@@ -2,10 +2,91 @@ package cis5550.model;
 
 import cis5550.tools.WorkerChecker;
 
+import java.io.IOException;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 public record WorkerContext(Map<String, Table> tables, String storageDir, WorkerChecker checker,
-                            NavigableMap<String, WorkerMeta> workers, String workerId) {
+                            NavigableMap<String, WorkerMeta> workers, String workerId, MemoryLog memoryLog) {
+    // Writes to a table share its gate; a freeze holds it alone, so no write lands between its copy and the swap
+    private static final Map<String, ReentrantReadWriteLock> gates = new ConcurrentHashMap<>();
+
+    private static ReentrantReadWriteLock gate(String name) {
+        return gates.computeIfAbsent(name, k -> new ReentrantReadWriteLock());
+    }
+
+    /**
+     * Apply a write to a table, or to the table it creates, under the table's gate
+     * @return false, without running the write, if the table is frozen
+     */
+    public boolean write(String name, Runnable write) {
+        Lock lock = gate(name).readLock();
+        lock.lock();
+        try {
+            if (tables.get(name) instanceof FrozenTable) {
+                return false;
+            }
+            write.run();
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Freeze a table, holding off writes to it until the frozen table has taken its place
+     * @return the frozen table, or null if there is no such table
+     */
+    public Table freezeTable(String name) throws IOException {
+        Lock lock = gate(name).writeLock();
+        lock.lock();
+        try {
+            Table table = tables.get(name);
+            if (table == null || table instanceof FrozenTable) {
+                return table;
+            }
+            synchronized (table) {
+                FrozenTable frozen = FrozenTable.freeze(table, storageDir, memoryLog);
+                tables.put(name, frozen);
+                return frozen;
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+    /**
+     * Snapshot the in-memory tables; with the memory table log on, this also drops the logs it covers
+     */
+    public void checkpoint() throws IOException {
+        if (memoryLog != null) {
+            memoryLog.checkpoint(tables);
+        } else {
+            MemorySnapshot.write(storageDir, tables);
+        }
+    }
+
+    /**
+     * Delete a table and forget it; its files go to the trash
+     * @return false if there is no such table
+     */
+    public boolean dropTable(String name) throws IOException {
+        Table table = tables.get(name);
+        if (table == null) {
+            return false;
+        }
+        synchronized (table) {
+            if (table instanceof MemoryTable && memoryLog != null) {
+                memoryLog.logDrop(name);
+            }
+            table.destroy();
+            tables.remove(name, table);
+        }
+        Expiry.dropped(name);
+        return true;
+    }
+
     public List<WorkerMeta> getReplicaList(String workerId) {
         Set<WorkerMeta> workerSet = new HashSet<>();
         WorkerMeta next = getNextLower(workerId);
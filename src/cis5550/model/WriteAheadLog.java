@@ -0,0 +1,131 @@
+package cis5550.model;
+
+import cis5550.tools.Logger;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only log of opaque records.
+ * Every record is framed as [length][crc32][payload] so a torn tail left by a crash can be detected and cut off.
+ */
+public class WriteAheadLog implements Closeable, GroupCommit.Syncable {
+    private static final Logger logger = Logger.getLogger(WriteAheadLog.class);
+    private static final int HEADER_SIZE = 8;
+    private static final int MAX_RECORD_SIZE = 1 << 30;
+
+    private volatile Path path;
+    private final FileChannel channel;
+
+    public WriteAheadLog(Path path) throws IOException {
+        this.path = path;
+        this.channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        channel.position(channel.size());
+    }
+
+    public Path getPath() {
+        return path;
+    }
+
+    /**
+     * Point the log at its new location after the directory holding it was moved
+     */
+    public void moveTo(Path dir) {
+        path = dir.resolve(path.getFileName());
+    }
+
+    public synchronized void append(byte[] payload) throws IOException {
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + payload.length);
+        buffer.putInt(payload.length);
+        buffer.putInt((int) crc.getValue());
+        buffer.put(payload);
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    @Override
+    public void sync() throws IOException {
+        // A log is synced before it is closed, so a late sync of a closed log has nothing left to do
+        if (channel.isOpen()) {
+            channel.force(false);
+        }
+    }
+
+    public synchronized long size() throws IOException {
+        return channel.size();
+    }
+
+    /**
+     * Feed every intact record to the consumer, then cut off anything after the last intact record
+     * @return the number of records replayed
+     */
+    public synchronized int replay(Consumer<byte[]> consumer) throws IOException {
+        long validLength = 0;
+        int count = 0;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path)))) {
+            while (true) {
+                int length;
+                try {
+                    length = in.readInt();
+                } catch (EOFException e) {
+                    break;
+                }
+                if (length < 0 || length > MAX_RECORD_SIZE) {
+                    logger.warn("Invalid record length " + length + " in " + path + ", truncating log");
+                    break;
+                }
+                int expectedCrc;
+                byte[] payload = new byte[length];
+                try {
+                    expectedCrc = in.readInt();
+                    in.readFully(payload);
+                } catch (EOFException e) {
+                    logger.warn("Torn record at the end of " + path + ", truncating log");
+                    break;
+                }
+                CRC32 crc = new CRC32();
+                crc.update(payload);
+                if ((int) crc.getValue() != expectedCrc) {
+                    logger.warn("Checksum mismatch in " + path + ", truncating log");
+                    break;
+                }
+                consumer.accept(payload);
+                validLength += HEADER_SIZE + length;
+                count++;
+            }
+        }
+        if (validLength < channel.size()) {
+            channel.truncate(validLength);
+        }
+        channel.position(validLength);
+        return count;
+    }
+
+    /**
+     * Drop every record in the log
+     */
+    public synchronized void truncate() throws IOException {
+        channel.truncate(0);
+        channel.position(0);
+        channel.force(true);
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        channel.close();
+    }
+}
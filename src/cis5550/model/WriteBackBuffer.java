@@ -0,0 +1,262 @@
+package cis5550.model;
+
+import cis5550.kvs.Row;
+import cis5550.tools.Logger;
+import cis5550.tools.WorkerConfig;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+/**
+ * Dirty rows of a persistent table held in memory so that bursts of writes to the same row reach the disk once.
+ * Full-row puts replace what is buffered for the row, column puts (and column deletes, buffered as null values)
+ * are coalesced on top of it. A row is written
+ * out once it has been dirty for the flush interval, or straight away when the buffers of all tables together
+ * pass the worker's write-back budget. Reads see buffered writes, including ones that are being flushed.
+ * <p>
+ * Buffered writes are lost if the worker dies, so the buffer is opt-in per table.
+ */
+class WriteBackBuffer {
+    private static final Logger logger = Logger.getLogger(WriteBackBuffer.class);
+    private static final AtomicLong totalDirtyBytes = new AtomicLong();
+    private static final Set<WriteBackBuffer> buffers = ConcurrentHashMap.newKeySet();
+    private static final ScheduledExecutorService flusher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "write-back");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * Writes a buffered row to the table's files
+     */
+    interface Sink {
+        /**
+         * @param row the full row to write, or null to apply columns on top of what is stored
+         * @param newKey whether the key was new when it was first buffered
+         */
+        void write(String key, Row row, Map<String, byte[]> columns, boolean newKey);
+    }
+
+    private static final class Pending {
+        private Row row;
+        private final Map<String, byte[]> columns = new HashMap<>();
+        private final long since = System.nanoTime();
+        private boolean newKey;
+        private long bytes;
+
+        private long size() {
+            long size = 0;
+            if (row != null) {
+                for (String column : row.columns()) {
+                    byte[] value = row.getBytes(column);
+                    size += column.length() + (value == null ? 0 : value.length);
+                }
+            }
+            for (Map.Entry<String, byte[]> column : columns.entrySet()) {
+                size += column.getKey().length() + (column.getValue() == null ? 0 : column.getValue().length);
+            }
+            return size;
+        }
+    }
+
+    private final String table;
+    private final long intervalMillis;
+    private final Sink sink;
+    private final ConcurrentHashMap<String, Pending> dirty = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, Pending> flushing = new ConcurrentHashMap<>();
+    private final AtomicLong dirtyBytes = new AtomicLong();
+    private final AtomicLong flushedRows = new AtomicLong();
+    private final Object flushLock = new Object();
+    private final ScheduledFuture<?> flushTask;
+    private volatile boolean closed;
+
+    WriteBackBuffer(String table, long intervalMillis, Sink sink) {
+        this.table = table;
+        this.intervalMillis = intervalMillis;
+        this.sink = sink;
+        long period = Math.max(1, intervalMillis / 4);
+        this.flushTask = flusher.scheduleWithFixedDelay(() -> flush(false), period, period, TimeUnit.MILLISECONDS);
+        buffers.add(this);
+    }
+
+    void put(String key, Row row, boolean newKey) {
+        update(key, pending -> {
+            pending.row = row;
+            pending.columns.clear();
+        }, newKey);
+    }
+
+    void putColumn(String key, String column, byte[] value, boolean newKey) {
+        update(key, pending -> pending.columns.put(column, value), newKey);
+    }
+
+    private void update(String key, Consumer<Pending> change, boolean newKey) {
+        long[] delta = new long[1];
+        dirty.compute(key, (k, pending) -> {
+            if (pending == null) {
+                pending = new Pending();
+            }
+            synchronized (pending) {
+                change.accept(pending);
+                pending.newKey |= newKey;
+                long size = pending.size();
+                delta[0] = size - pending.bytes;
+                pending.bytes = size;
+            }
+            return pending;
+        });
+        dirtyBytes.addAndGet(delta[0]);
+        if (totalDirtyBytes.addAndGet(delta[0]) > WorkerConfig.writeBackBytes()) {
+            // Writers wait for the flush, which keeps the buffers from growing without bound
+            for (WriteBackBuffer buffer : buffers) {
+                buffer.flush(true);
+            }
+        } else if (closed) {
+            flush(true);
+        }
+    }
+
+    /**
+     * The row with its buffered writes applied, or the stored row if nothing is buffered for it
+     */
+    Row get(String key, Function<String, Row> stored) {
+        // A flush puts the row in flushing before taking it out of dirty, so reading dirty first can't miss it
+        Pending buffered = dirty.get(key);
+        Pending inFlight = flushing.get(key);
+        if (inFlight == null && buffered == null) {
+            return stored.apply(key);
+        }
+        Row result = null;
+        // Both are the same when the flush took the row in between the two reads
+        for (Pending pending : inFlight == buffered ? new Pending[]{buffered} : new Pending[]{inFlight, buffered}) {
+            if (pending == null) {
+                continue;
+            }
+            synchronized (pending) {
+                if (pending.row != null) {
+                    result = pending.row;
+                } else if (result == null) {
+                    result = stored.apply(key);
+                }
+                result = PersistentTable.withColumns(key, result, pending.columns);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return the buffered value of the column, or stored's answer if it has no buffered write
+     */
+    byte[] getColumn(String key, String column, Function<String, byte[]> stored) {
+        for (Pending pending : new Pending[]{dirty.get(key), flushing.get(key)}) {
+            if (pending == null) {
+                continue;
+            }
+            synchronized (pending) {
+                if (pending.columns.containsKey(column)) {
+                    return pending.columns.get(column);
+                }
+                if (pending.row != null) {
+                    return pending.row.getBytes(column);
+                }
+            }
+        }
+        return stored.apply(key);
+    }
+
+    /**
+     * Forget what is buffered for a row that is being deleted; returns once no flush of it is in progress
+     */
+    void drop(String key) {
+        synchronized (flushLock) {
+            Pending pending = dirty.remove(key);
+            if (pending != null) {
+                dirtyBytes.addAndGet(-pending.bytes);
+                totalDirtyBytes.addAndGet(-pending.bytes);
+            }
+        }
+    }
+
+    /**
+     * Write out the rows that have been dirty for the flush interval, or all of them
+     */
+    void flush(boolean all) {
+        synchronized (flushLock) {
+            long now = System.nanoTime();
+            for (Map.Entry<String, Pending> entry : dirty.entrySet()) {
+                if (!all && now - entry.getValue().since < TimeUnit.MILLISECONDS.toNanos(intervalMillis)) {
+                    continue;
+                }
+                String key = entry.getKey();
+                Pending[] taken = new Pending[1];
+                // Readers find the row in flushing until it is on disk
+                dirty.computeIfPresent(key, (k, pending) -> {
+                    flushing.put(k, pending);
+                    taken[0] = pending;
+                    return null;
+                });
+                Pending pending = taken[0];
+                if (pending == null) {
+                    continue;
+                }
+                try {
+                    sink.write(key, pending.row, pending.columns, pending.newKey);
+                    flushedRows.incrementAndGet();
+                } catch (RuntimeException e) {
+                    logger.error("Error while flushing row " + key + " of " + table, e);
+                } finally {
+                    flushing.remove(key, pending);
+                    dirtyBytes.addAndGet(-pending.bytes);
+                    totalDirtyBytes.addAndGet(-pending.bytes);
+                }
+            }
+        }
+    }
+
+    /**
+     * Stop the flush timer and write out everything that is buffered
+     */
+    void close() {
+        closed = true;
+        flushTask.cancel(false);
+        buffers.remove(this);
+        flush(true);
+    }
+
+    /**
+     * Stop the flush timer and drop everything that is buffered, for a table that is being deleted
+     */
+    void discard() {
+        closed = true;
+        flushTask.cancel(false);
+        buffers.remove(this);
+        synchronized (flushLock) {
+            dirty.clear();
+            totalDirtyBytes.addAndGet(-dirtyBytes.getAndSet(0));
+        }
+    }
+
+    Map<String, String> stats() {
+        long oldest = Long.MAX_VALUE;
+        for (Pending pending : dirty.values()) {
+            oldest = Math.min(oldest, pending.since);
+        }
+        long lagMillis = oldest == Long.MAX_VALUE ? 0 : TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - oldest);
+        Map<String, String> stats = new LinkedHashMap<>();
+        stats.put("dirty rows", String.valueOf(dirty.size()));
+        stats.put("dirty bytes", String.valueOf(dirtyBytes.get()));
+        stats.put("flush lag ms", String.valueOf(lagMillis));
+        stats.put("flushed rows", String.valueOf(flushedRows.get()));
+        return stats;
+    }
+}
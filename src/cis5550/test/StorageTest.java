@@ -0,0 +1,1313 @@
+package cis5550.test;
+
+import cis5550.kvs.Row;
+import cis5550.kvs.RowCodec;
+import cis5550.tools.KeyEncoder;
+import cis5550.model.*;
+
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+
+/**
+ * Round-trip and recovery checks for the storage engines and row formats. Unlike the HW tests this one needs no
+ * running coordinator or worker: every test opens its tables directly in a scratch directory, and a "restart" is
+ * a second table object opened on the same files.
+ */
+public class StorageTest extends GenericTest {
+    File scratch;
+
+    StorageTest() throws IOException {
+        super();
+        setTimeoutMillis(60000);
+        scratch = Files.createTempDirectory("storage-test").toFile();
+    }
+
+    String dir(String test) {
+        File f = new File(scratch, test);
+        f.mkdirs();
+        return f.getAbsolutePath();
+    }
+
+    static Row row(String key, String... columnsAndValues) {
+        Row r = new Row(key);
+        for (int i = 0; i < columnsAndValues.length; i += 2)
+            r.put(columnsAndValues[i], columnsAndValues[i + 1]);
+        return r;
+    }
+
+    static String pad(int i) {
+        return String.format("%06d", i);
+    }
+
+    /**
+     * @return null if the table holds exactly the expected rows, or a description of the first difference
+     */
+    static String compare(Map<String, String> expected, Table table, String column) {
+        for (Map.Entry<String, String> e : expected.entrySet()) {
+            Row r = table.get(e.getKey());
+            if (r == null)
+                return "Row " + e.getKey() + " is missing";
+            if (!e.getValue().equals(r.get(column)))
+                return "Row " + e.getKey() + " has " + column + "=" + r.get(column) + " instead of " + e.getValue();
+        }
+        int scanned = 0;
+        String previous = null;
+        boolean sorted = table.getKeys() instanceof SortedSet;
+        Iterator<Row> it = table.scan(null, null);
+        while (it.hasNext()) {
+            Row r = it.next();
+            if (!expected.containsKey(r.key()))
+                return "Scan returned unexpected row " + r.key();
+            if (sorted && previous != null && previous.compareTo(r.key()) >= 0)
+                return "Scan returned " + r.key() + " after " + previous;
+            previous = r.key();
+            scanned++;
+        }
+        if (scanned != expected.size())
+            return "Scan returned " + scanned + " rows instead of " + expected.size();
+        if (table.countKeys() != expected.size())
+            return "countKeys() returned " + table.countKeys() + " instead of " + expected.size();
+        return null;
+    }
+
+    /**
+     * @return null if actual holds the same rows as expected, or a description of the first difference
+     */
+    static String compare(Table expected, Table actual) {
+        for (String key : expected.getKeys()) {
+            String problem = compare(expected.get(key), actual.get(key));
+            if (problem != null)
+                return problem;
+        }
+        if (actual.countKeys() != expected.countKeys())
+            return "The table has " + actual.countKeys() + " rows instead of " + expected.countKeys();
+        return null;
+    }
+
+    /**
+     * @return null if got has the same key, columns and values as want, or a description of the first difference
+     */
+    static String compare(Row want, Row got) {
+        if (got == null)
+            return "Row " + want.key() + " is missing";
+        if (!want.key().equals(got.key()))
+            return "Row " + want.key() + " came back as " + got.key();
+        if (!want.columns().equals(got.columns()))
+            return "Row " + want.key() + " has columns " + got.columns() + " instead of " + want.columns();
+        for (String column : want.columns())
+            if (!Arrays.equals(want.getBytes(column), got.getBytes(column)))
+                return "Row " + want.key() + " has " + column + "=" + got.get(column) + " instead of " + want.get(column);
+        return null;
+    }
+
+    /**
+     * The row after a trip through Java serialization
+     */
+    static Row serialize(Row row) throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+            out.writeObject(row);
+        }
+        try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()))) {
+            return (Row) in.readObject();
+        }
+    }
+
+    static void deleteRecursively(File f) {
+        File[] children = f.listFiles();
+        if (children != null)
+            for (File child : children)
+                deleteRecursively(child);
+        f.delete();
+    }
+
+    void cleanup() {
+        deleteRecursively(scratch);
+    }
+
+    void runTests(Set<String> tests) throws Exception {
+        System.out.printf("\n%-10s%-40sResult\n", "Test", "Description");
+        System.out.println("--------------------------------------------------------");
+
+        if (tests.contains("lsm")) try {
+            startTest("lsm", "LSM table round trip and recovery", 5);
+            String storageDir = dir("lsm");
+            LsmTable table = new LsmTable("lsm-t", storageDir);
+            TreeMap<String, String> expected = new TreeMap<>();
+            String filler = "x".repeat(1000);
+            // Enough data for several memtable flushes and a compaction
+            for (int i = 0; i < 20000; i++) {
+                String key = pad(random(0, 15000));
+                String value = key + "-" + i;
+                table.put(key, row(key, "value", value, "filler", filler));
+                expected.put(key, value);
+            }
+            String problem = compare(expected, table, "value");
+            if (problem != null)
+                testFailed("Before the restart: " + problem, true);
+            Thread.sleep(1000);
+            LsmTable reopened = new LsmTable("lsm-t", storageDir);
+            problem = compare(expected, reopened, "value");
+            if (problem != null)
+                testFailed("After the restart: " + problem, true);
+            // A scan that is given up on must still let a compaction delete the SSTables it was reading
+            Set<String> scanned = new HashSet<>();
+            for (File f : new File(storageDir, "lsm-t").listFiles())
+                if (f.getName().endsWith(".sst"))
+                    scanned.add(f.getName());
+            Iterator<Row> abandoned = reopened.scan(null, null);
+            abandoned.next();
+            Table.close(abandoned);
+            for (int i = 0; i < 20000; i++) {
+                String key = pad(random(0, 15000));
+                reopened.put(key, row(key, "value", key + "-" + i, "filler", filler));
+            }
+            for (int wait = 0; wait < 100 && scanned.stream().anyMatch(f -> new File(storageDir, "lsm-t/" + f).exists()); wait++)
+                Thread.sleep(100);
+            for (String f : scanned)
+                if (new File(storageDir, "lsm-t/" + f).exists())
+                    testFailed("SSTable " + f + " was still on disk after a compaction; a closed scan still holds it", true);
+            testSucceeded();
+        } catch (Exception e) {
+            if (!currentTestFailed) {
+                testFailed("An exception occurred: " + e, false);
+                e.printStackTrace();
+            }
+        }
+
+        if (tests.contains("bloom")) try {
+            startTest("bloom", "Bloom filters of SSTables", 5);
+            String storageDir = dir("bloom");
+            BloomFilter filter = BloomFilter.create(10000, 0.01);
+            for (int i = 0; i < 10000; i++)
+                filter.add("in-" + i);
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            filter.writeTo(new DataOutputStream(bytes));
+            BloomFilter reread = BloomFilter.readFrom(java.nio.ByteBuffer.wrap(bytes.toByteArray()));
+            for (int i = 0; i < 10000; i++)
+                if (!filter.mightContain("in-" + i) || !reread.mightContain("in-" + i))
+                    testFailed("The filter said in-" + i + " was absent after it was added", true);
+            int falsePositives = 0;
+            for (int i = 0; i < 10000; i++) {
+                if (filter.mightContain("out-" + i))
+                    falsePositives++;
+                if (filter.mightContain("out-" + i) != reread.mightContain("out-" + i))
+                    testFailed("The filter read back from its bytes disagrees with the original about out-" + i, true);
+            }
+            // Sized for 1%; three times that is far outside what chance allows for 10000 lookups
+            if (falsePositives > 300)
+                testFailed(falsePositives + " of 10000 absent keys were false positives for a filter sized for 1%", true);
+
+            // An SSTable keeps the filter of its keys, and a reopened one reads it back rather than rebuilding it
+            TreeMap<String, byte[]> entries = new TreeMap<>();
+            for (int i = 0; i < 5000; i++)
+                entries.put(pad(i * 2), ("v" + i).getBytes());
+            Path path = Paths.get(storageDir, "bloom.sst");
+            Files.createDirectories(path.getParent());
+            SSTable.write(path, 1, entries.entrySet().iterator()).close();
+            SSTable sst = SSTable.open(path, 1);
+            falsePositives = 0;
+            for (int i = 0; i < 5000; i++) {
+                if (!sst.mightContain(pad(i * 2)) || sst.get(pad(i * 2)) == null)
+                    testFailed("The reopened SSTable lost key " + pad(i * 2), true);
+                if (sst.mightContain(pad(i * 2 + 1)))
+                    falsePositives++;
+                if (sst.get(pad(i * 2 + 1)) != null)
+                    testFailed("The reopened SSTable returned a value for " + pad(i * 2 + 1), true);
+            }
+            if (falsePositives > 150)
+                testFailed(falsePositives + " of 5000 absent keys got past the reopened SSTable's filter", true);
+            sst.close();
+            testSucceeded();
+        } catch (Exception e) {
+            if (!currentTestFailed) {
+                testFailed("An exception occurred: " + e, false);
+                e.printStackTrace();
+            }
+        }
+
+        if (tests.contains("bitcask")) try {
+            startTest("bitcask", "Bitcask table recovery and torn tail", 5);
+            String storageDir = dir("bitcask");
+            BitcaskTable table = new BitcaskTable("bitcask-t", storageDir);
+            TreeMap<String, String> expected = new TreeMap<>();
+            for (int i = 0; i < 5000; i++) {
+                String key = pad(random(0, 2000));
+                String value = key + "-" + i;
+                table.put(key, row(key, "value", value));
+                expected.put(key, value);
+            }
+            String problem = compare(expected, table, "value");
+            if (problem != null)
+                testFailed("Before the restart: " + problem, true);
+            // A crash in the middle of an append leaves part of a record at the end of the active segment
+            File active = null;
+            for (File f : new File(storageDir, "bitcask-t").listFiles())
+                if (f.getName().endsWith(".data") && f.length() > 0)
+                    active = f;
+            try (FileOutputStream out = new FileOutputStream(active, true)) {
+                out.write(new byte[]{0, 0, 0, 1, 0, 0, 0, 5, 0});
+            }
+            long length = active.length();
+            BitcaskTable reopened = new BitcaskTable("bitcask-t", storageDir);
+            problem = compare(expected, reopened, "value");
+            if (problem != null)
+                testFailed("After a torn write: " + problem, true);
+            if (active.length() != length - 9)
+                testFailed("The torn record was not cut off the segment", true);
+            // This time the segment has a hint file
+            reopened = new BitcaskTable("bitcask-t", storageDir);
+            problem = compare(expected, reopened, "value");
+            if (problem != null)
+                testFailed("After a second restart: " + problem, true);
+            testSucceeded();
+        } catch (Exception e) {
+            if (!currentTestFailed) {
+                testFailed("An exception occurred: " + e, false);
+                e.printStackTrace();
+            }
+        }
+
+        if (tests.contains("btree")) try {
+            startTest("btree", "B+tree splits, overflow pages, reopen", 5);
+            String storageDir = dir("btree");
+            BTreeTable table = new BTreeTable("btree-t", storageDir);
+            TreeMap<String, String> expected = new TreeMap<>();
+            for (int i = 0; i < 5000; i++) {
+                String key = pad(random(0, 3000));
+                // Every tenth value is too big to keep in the leaf
+                String value = key + "-" + i + (i % 10 == 0 ? "y".repeat(3000) : "");
+                table.put(key, row(key, "value", value));
+                expected.put(key, value);
+            }
+            String problem = compare(expected, table, "value");
+            if (problem != null)
+                testFailed("Before the restart: " + problem, true);
+            // Pages are only written back on eviction and flush, as at shutdown
+            table.flush();
+            BTreeTable reopened = new BTreeTable("btree-t", storageDir);
+            problem = compare(expected, reopened, "value");
+            if (problem != null)
+                testFailed("After the restart: " + problem, true);
+            // Bounds that are keys, bounds between keys, open ends and an empty range
+            String[][] ranges = {{pad(1000), pad(2000)}, {pad(1000) + "x", pad(2000) + "x"}, {null, pad(500)},
+                    {pad(2500), null}, {null, null}, {pad(1500), pad(1500)}};
+            for (String[] bounds : ranges) {
+                Iterator<Row> range = reopened.scan(bounds[0], bounds[1]);
+                SortedMap<String, String> inRange = bounds[0] == null ? (bounds[1] == null ? expected : expected.headMap(bounds[1]))
+                        : bounds[1] == null ? expected.tailMap(bounds[0]) : expected.subMap(bounds[0], bounds[1]);
+                for (String key : inRange.keySet())
+                    if (!range.hasNext() || !range.next().key().equals(key))
+                        testFailed("The scan of [" + bounds[0] + ", " + bounds[1] + ") did not return " + key + " in order", true);
+                if (range.hasNext())
+                    testFailed("The scan of [" + bounds[0] + ", " + bounds[1] + ") returned a key past the end of the range", true);
+            }
+
+            // Keys written in descending order split the leftmost leaf every time; enough leaves split the root
+            // and the internal pages under it
+            BTreeTable split = new BTreeTable("btree-split", storageDir);
+            TreeMap<String, String> splitExpected = new TreeMap<>();
+            String filler = "s".repeat(900);
+            for (int i = 20000; i > 0; i--) {
+                String value = pad(i) + filler;
+                split.put(pad(i), row(pad(i), "value", value));
+                splitExpected.put(pad(i), value);
+            }
+            split.flush();
+            BTreeTable splitReopened = new BTreeTable("btree-split", storageDir);
+            problem = compare(splitExpected, splitReopened, "value");
+            if (problem != null)
+                testFailed("After splits and a restart: " + problem, true);
+            Iterator<Row> range = splitReopened.scan(pad(9990), pad(10010));
+            for (String key : splitExpected.subMap(pad(9990), pad(10010)).keySet())
+                if (!range.hasNext() || !range.next().key().equals(key))
+                    testFailed("After splits and a restart, a range scan did not return " + key + " in order", true);
+            testSucceeded();
+        } catch (Exception e) {
+            if (!currentTestFailed) {
+                testFailed("An exception occurred: " + e, false);
+                e.printStackTrace();
+            }
+        }
+
+        if (tests.contains("frozen")) try {
+            startTest("frozen", "Freezing a table and reopening it", 5);
+            String storageDir = dir("frozen");
+            MemoryTable source = new MemoryTable("frozen-t");
+            TreeMap<String, String> expected = new TreeMap<>();
+            for (int i = 0; i < 1000; i++) {
+                String key = pad(random(0, 100000));
+                String value = key + "-" + i;
+                source.put(key, row(key, "value", value));
+                expected.put(key, value);
+            }
+            FrozenTable table = FrozenTable.freeze(source, storageDir, null);
+            String problem = compare(expected, table, "value");
+            if (problem != null)
+                testFailed("After freezing: " + problem, true);
+            if (table.get(pad(100001)) != null)
+                testFailed("get() returned a row for a key that was never written", true);
+            if (!FrozenTable.isFrozen("frozen-t", storageDir))
+                testFailed("isFrozen() does not see the frozen table", true);
+            problem = compare(expected, new FrozenTable("frozen-t", storageDir), "value");
+            if (problem != null)
+                testFailed("After reopening: " + problem, true);
+
+            // Freezing while writes keep coming must keep every write that was acknowledged
+            GroupCommit groupCommit = new GroupCommit("test", 1, 1 << 20);
+            MemoryLog log = new MemoryLog(storageDir, groupCommit);
+            log.recover(new HashMap<>());
+            Map<String, Table> tables = new java.util.concurrent.ConcurrentHashMap<>();
+            WorkerContext context = new WorkerContext(tables, storageDir, null, new TreeMap<>(), "test", log);
+            MemoryTable busy = new MemoryTable("frozen-busy");
+            busy.setLog(log);
+            busy.setOptions(busy.getOptions().merge(TableOptions.parse("rowTtlSeconds=3600")));
+            tables.put("frozen-busy", busy);
+            Set<String> acknowledged = java.util.concurrent.ConcurrentHashMap.newKeySet();
+            List<Thread> writers = new ArrayList<>();
+            for (int t = 0; t < 4; t++) {
+                int writer = t;
+                writers.add(new Thread(() -> {
+                    for (int i = 0; ; i++) {
+                        String key = writer + "-" + pad(i);
+                        if (!context.write("frozen-busy", () -> tables.get("frozen-busy").putColumn(key, "value", key.getBytes())))
+                            return;
+                        acknowledged.add(key);
+                    }
+                }));
+            }
+            for (Thread writer : writers)
+                writer.start();
+            Thread.sleep(200);
+            Table frozen = context.freezeTable("frozen-busy");
+            for (Thread writer : writers)
+                writer.join();
+            if (!(frozen instanceof FrozenTable) || tables.get("frozen-busy") != frozen)
+                testFailed("freezeTable() did not put a frozen table in place", true);
+            if (acknowledged.isEmpty())
+                testFailed("No write was acknowledged before the freeze", true);
+            for (String key : acknowledged)
+                if (frozen.get(key) == null)
+                    testFailed("Row " + key + " was acknowledged but is not in the frozen table", true);
+            if (frozen.countKeys() != acknowledged.size())
+                testFailed("The frozen table has " + frozen.countKeys() + " rows, but " + acknowledged.size() + " writes were acknowledged", true);
+            if (frozen.getOptions().rowTtlSeconds() != 3600)
+                testFailed("The table's options were lost in the freeze", true);
+            Map<String, Table> recovered = new HashMap<>();
+            new MemoryLog(storageDir, groupCommit).recover(recovered);
+            if (recovered.containsKey("frozen-busy"))
+                testFailed("The memory table log brings the frozen table back as a memory table", true);
+            testSucceeded();
+        } catch (Exception e) {
+            if (!currentTestFailed) {
+                testFailed("An exception occurred: " + e, false);
+                e.printStackTrace();
+            }
+        }
+
+        if (tests.contains("memwal")) try {
+            startTest("memwal", "Memory table recovery from the log", 5);
+            String storageDir = dir("memwal");
+            GroupCommit groupCommit = new GroupCommit("test", 1, 1 << 20);
+            MemoryLog log = new MemoryLog(storageDir, groupCommit);
+            log.recover(new HashMap<>());
+            MemoryTable table = new MemoryTable("memwal-t");
+            table.setLog(log);
+            for (int i = 0; i < 500; i++)
+                table.put(pad(i), row(pad(i), "a", "a" + i, "b", "b" + i));
+            for (int i = 0; i < 1000; i++) {
+                int k = random(0, 499);
+                table.putColumn(pad(k), "a", ("a" + k + "-" + i).getBytes());
+            }
+            for (int i = 0; i < 50; i++)
+                table.deleteColumn(pad(i), "b");
+            for (int i = 50; i < 60; i++)
+                table.deleteRow(pad(i));
+            // A column put on a deleted row starts a new row
+            table.putColumn(pad(55), "c", "c55".getBytes());
+
+            Map<String, Table> recovered = new HashMap<>();
+            new MemoryLog(storageDir, groupCommit).recover(recovered);
+            Table copy = recovered.get("memwal-t");
+            if (copy == null)
+                testFailed("The table was not recovered", true);
+            String problem = compare(table, copy);
+            if (problem != null)
+                testFailed(problem, true);
+            for (int i = 0; i < 500; i++)
+                if (table.newestVersion(pad(i)) != ((MemoryTable) copy).newestVersion(pad(i)))
+                    testFailed("Row " + pad(i) + " came back at version " + ((MemoryTable) copy).newestVersion(pad(i)) + " instead of " + table.newestVersion(pad(i)), true);
+            testSucceeded();
+        } catch (Exception e) {
+            if (!currentTestFailed) {
+                testFailed("An exception occurred: " + e, false);
+                e.printStackTrace();
+            }
+        }
+
+        if (tests.contains("manifest")) try {
+            startTest("manifest", "Persistent table key manifest recovery", 5);
+            String storageDir = dir("manifest");
+            PersistentTable table = new PersistentTable("manifest-t", storageDir);
+            TreeMap<String, String> expected = new TreeMap<>();
+            for (int i = 0; i < 300; i++) {
+                String key = pad(random(0, 1000));
+                table.put(key, row(key, "value", "v" + i));
+                expected.put(key, "v" + i);
+            }
+            String problem = compare(expected, new PersistentTable("manifest-t", storageDir), "value");
+            if (problem != null)
+                testFailed("After the restart: " + problem, true);
+            // A crash while a key was appended leaves part of an entry at the end
+            File manifest = new File(storageDir, "manifest-t/keys.manifest");
+            try (FileOutputStream out = new FileOutputStream(manifest, true)) {
+                out.write(new byte[]{0, 0, 0, 20, 'x'});
+            }
+            PersistentTable reopened = new PersistentTable("manifest-t", storageDir);
+            problem = compare(expected, reopened, "value");
+            if (problem != null)
+                testFailed("After a torn manifest write: " + problem, true);
+            // Keys added after the torn entry must still be readable on the next start
+            reopened.put(pad(1001), row(pad(1001), "value", "new"));
+            expected.put(pad(1001), "new");
+            problem = compare(expected, new PersistentTable("manifest-t", storageDir), "value");
+            if (problem != null)
+                testFailed("After writing past a torn manifest entry: " + problem, true);
+            // A table without a manifest gets one built from its row files
+            if (!manifest.delete())
+                testFailed("Could not delete the manifest", true);
+            problem = compare(expected, new PersistentTable("manifest-t", storageDir), "value");
+            if (problem != null)
+                testFailed("After losing the manifest: " + problem, true);
+            if (!manifest.exists())
+                testFailed("The manifest was not rebuilt", true);
+            testSucceeded();
+        } catch (Exception e) {
+            if (!currentTestFailed) {
+                testFailed("An exception occurred: " + e, false);
+                e.printStackTrace();
+            }
+        }
+
+        if (tests.contains("compress")) try {
+            startTest("compress", "Row compression codec", 5);
+            byte[] text = "the quick brown fox jumps over the lazy dog ".repeat(200).getBytes();
+            byte[] encoded = Compression.DEFLATE.encode(text);
+            if (!Compression.isEncoded(encoded) || encoded.length >= text.length)
+                testFailed("Compressible data was not compressed", true);
+            if (!Arrays.equals(Compression.decode(encoded), text))
+                testFailed("Compressed data did not decode to the original", true);
+            byte[] noise = new byte[4096];
+            new Random(1).nextBytes(noise);
+            if (Compression.DEFLATE.encode(noise) != noise || Compression.decode(noise) != noise)
+                testFailed("Data that doesn't shrink should be stored and read as it is", true);
+            if (Compression.NONE.encode(text) != text)
+                testFailed("NONE changed the data", true);
+            try {
+                Compression.decode(Arrays.copyOf(encoded, encoded.length / 2));
+                testFailed("Decoding truncated data did not fail", true);
+            } catch (IOException e) {
+            }
+
+            // Rows written before and after switching compression on are both readable after a restart
+            String storageDir = dir("compress");
+            PersistentTable table = new PersistentTable("compress-t", storageDir);
+            TreeMap<String, String> expected = new TreeMap<>();
+            for (int i = 0; i < 200; i++) {
+                if (i == 100)
+                    table.setOptions(TableOptions.parse(TableOptions.COMPRESSION + "=deflate"));
+                String value = ("value " + i + " ").repeat(50);
+                table.put(pad(i), row(pad(i), "value", value));
+                expected.put(pad(i), value);
+            }
+            String problem = compare(expected, new PersistentTable("compress-t", storageDir), "value");
+            if (problem != null)
+                testFailed(problem, true);
+            testSucceeded();
+        } catch (Exception e) {
+            if (!currentTestFailed) {
+                testFailed("An exception occurred: " + e, false);
+                e.printStackTrace();
+            }
+        }
+
+        if (tests.contains("columnar")) try {
+            startTest("columnar", "Columnar stripes, projection and reopen", 5);
+            String storageDir = dir("columnar");
+            ColumnarTable table = new ColumnarTable("columnar-t", storageDir);
+            TreeMap<String, String> expected = new TreeMap<>();
+            String filler = "z".repeat(500);
+            // Enough data for several stripes; "color" has few distinct values and "value" has many
+            for (int i = 0; i < 40000; i++) {
+                String key = pad(random(0, 30000));
+                String value = key + "-" + i;
+                table.put(key, row(key, "value", value, "color", "c" + (i % 5), "filler", filler));
+                expected.put(key, value);
+            }
+            String problem = compare(expected, table, "value");
+            if (problem != null)
+                testFailed("Before the restart: " + problem, true);
+            Thread.sleep(1000);
+            ColumnarTable reopened = new ColumnarTable("columnar-t", storageDir);
+            problem = compare(expected, reopened, "value");
+            if (problem != null)
+                testFailed("After the restart: " + problem, true);
+            Iterator<Row> projected = reopened.scan(pad(100), pad(200), Set.of("value"));
+            Iterator<Map.Entry<String, String>> want = expected.subMap(pad(100), pad(200)).entrySet().iterator();
+            while (want.hasNext()) {
+                Map.Entry<String, String> e = want.next();
+                if (!projected.hasNext())
+                    testFailed("A projected scan ended before " + e.getKey(), true);
+                Row r = projected.next();
+                if (!r.key().equals(e.getKey()) || !e.getValue().equals(r.get("value")) || !r.columns().equals(Set.of("value")))
+                    testFailed("A projected scan returned " + r + " instead of row " + e.getKey() + " with only its value column", true);
+            }
+            if (projected.hasNext())
+                testFailed("A projected scan returned a row past the end of the range", true);
+            // A scan that is given up on must still let a merge delete the stripes it was reading
+            Set<String> scanned = new HashSet<>();
+            for (File f : new File(storageDir, "columnar-t").listFiles())
+                if (f.getName().startsWith("stripe-"))
+                    scanned.add(f.getName());
+            Iterator<Row> abandoned = reopened.scan(null, null, Set.of("value"));
+            abandoned.next();
+            Table.close(abandoned);
+            for (int i = 0; i < 60000; i++) {
+                String key = pad(random(0, 30000));
+                reopened.put(key, row(key, "value", key + "-" + i, "color", "c" + (i % 5), "filler", filler));
+            }
+            for (int wait = 0; wait < 100 && scanned.stream().anyMatch(f -> new File(storageDir, "columnar-t/" + f).exists()); wait++)
+                Thread.sleep(100);
+            for (String f : scanned)
+                if (new File(storageDir, "columnar-t/" + f).exists())
+                    testFailed("Stripe " + f + " was still on disk after a merge; a closed scan still holds it", true);
+            testSucceeded();
+        } catch (Exception e) {
+            if (!currentTestFailed) {
+                testFailed("An exception occurred: " + e, false);
+                e.printStackTrace();
+            }
+        }
+
+        if (tests.contains("verify")) try {
+            startTest("verify", "Row file checksums and quarantine", 5);
+            String storageDir = dir("verify");
+            PersistentTable table = new PersistentTable("verify-t", storageDir);
+            TreeMap<String, String> expected = new TreeMap<>();
+            for (int i = 0; i < 100; i++) {
+                table.put(pad(i), row(pad(i), "value", "v" + i));
+                expected.put(pad(i), "v" + i);
+            }
+            File tableDir = new File(storageDir, "verify-t");
+            // One row file with a flipped bit, one cut short, and a temporary file left by an interrupted write
+            File flipped = new File(tableDir, KeyEncoder.encode(pad(10)));
+            byte[] bytes = Files.readAllBytes(flipped.toPath());
+            bytes[bytes.length - 1] ^= 1;
+            Files.write(flipped.toPath(), bytes);
+            File torn = new File(tableDir, KeyEncoder.encode(pad(20)));
+            bytes = Files.readAllBytes(torn.toPath());
+            Files.write(torn.toPath(), Arrays.copyOf(bytes, bytes.length - 3));
+            File leftover = new File(tableDir, KeyEncoder.encode(pad(30)) + ".tmp");
+            Files.write(leftover.toPath(), "partial".getBytes());
+            expected.remove(pad(10));
+            expected.remove(pad(20));
+
+            PersistentTable reopened = new PersistentTable("verify-t", storageDir);
+            if (reopened.get(pad(10)) != null)
+                testFailed("A row file with a bad checksum was read", true);
+            File quarantine = new File(scratch, "verify-quarantine");
+            int quarantined = reopened.verifyRowFiles(quarantine.toPath());
+            if (quarantined != 2)
+                testFailed("verifyRowFiles() quarantined " + quarantined + " files instead of 2", true);
+            if (!new File(quarantine, "verify-t/" + flipped.getName()).exists() || !new File(quarantine, "verify-t/" + torn.getName()).exists())
+                testFailed("The corrupt row files are not in the quarantine directory", true);
+            if (leftover.exists())
+                testFailed("The leftover temporary file was not deleted", true);
+            String problem = compare(expected, reopened, "value");
+            if (problem != null)
+                testFailed(problem, true);
+            testSucceeded();
+        } catch (Exception e) {
+            if (!currentTestFailed) {
+                testFailed("An exception occurred: " + e, false);
+                e.printStackTrace();
+            }
+        }
+
+        if (tests.contains("budget")) try {
+            startTest("budget", "Memory budget spills cold rows", 5);
+            // Rows started by putColumn hold their keys too, at two bytes a character
+            MemoryTable longKeys = new MemoryTable("budget-keys");
+            for (int i = 0; i < 100; i++)
+                longKeys.putColumn(pad(i) + "k".repeat(1000), "value", "v".getBytes());
+            long resident = Long.parseLong(longKeys.stats().get("resident bytes"));
+            if (resident < 100 * 2000)
+                testFailed("100 rows with 1,000-character keys are counted as " + resident + " resident bytes", true);
+            MemoryBudget.configure(dir("budget"), 1 << 20);
+            try {
+                MemoryTable cold = new MemoryTable("budget-cold");
+                for (int i = 0; i < 10; i++)
+                    cold.put(pad(i), row(pad(i), "value", "cold" + i));
+                Thread.sleep(10);
+                MemoryTable hot = new MemoryTable("budget-hot");
+                String filler = "h".repeat(1024);
+                for (int i = 0; i < 2000; i++)
+                    hot.put(pad(i), row(pad(i), "value", "hot" + i, "filler", filler));
+                MemoryBudget budget = MemoryBudget.shared();
+                if (budget.residentBytes() > budget.maxBytes())
+                    testFailed("The tables hold " + budget.residentBytes() + " bytes, more than the budget of " + budget.maxBytes(), true);
+                for (int i = 0; i < 10; i++)
+                    if (!("cold" + i).equals(cold.get(pad(i)).get("value")))
+                        testFailed("Cold row " + pad(i) + " did not come back from the spill file", true);
+                for (int i = 0; i < 2000; i++)
+                    if (!("hot" + i).equals(hot.get(pad(i)).get("value")))
+                        testFailed("Hot row " + pad(i) + " did not come back from the spill file", true);
+                testSucceeded();
+            } finally {
+                MemoryBudget.configure(dir("budget"), 0);
+            }
+        } catch (Exception | StackOverflowError e) {
+            if (!currentTestFailed) {
+                testFailed("An exception occurred: " + e, false);
+                e.printStackTrace();
+            }
+        }
+
+        if (tests.contains("retention")) try {
+            startTest("retention", "Version retention and the reaper", 10);
+            // The reaper runs once a second
+            MemoryTable capped = new MemoryTable("retention-capped");
+            capped.setOptions(capped.getOptions().merge(TableOptions.parse("maxVersions=3")));
+            MemoryTable timed = new MemoryTable("retention-timed");
+            timed.setOptions(timed.getOptions().merge(TableOptions.parse("versionRetentionSeconds=1")));
+            for (int v = 1; v <= 10; v++) {
+                capped.put("row", row("row", "value", "v" + v));
+                timed.put("row", row("row", "value", "v" + v));
+            }
+            // A row whose only version left is a tombstone is forgotten altogether
+            timed.put("gone", row("gone", "value", "v1"));
+            timed.put("gone", row("gone", "value", "v2"));
+            timed.deleteRow("gone");
+            for (int wait = 0; wait < 50 && (capped.get("row", 7) != null || timed.get("row", 9) != null || timed.newestVersion("gone") >= 0); wait++)
+                Thread.sleep(100);
+            for (int v = 1; v <= 10; v++) {
+                Row kept = capped.get("row", v);
+                if (v <= 7 && (kept != null || !capped.isVersionExpired("row", v)))
+                    testFailed("With maxVersions=3, version " + v + " of 10 is still there", true);
+                if (v > 7 && (kept == null || !("v" + v).equals(kept.get("value"))))
+                    testFailed("With maxVersions=3, version " + v + " of 10 is " + kept, true);
+                if (v < 10 && timed.get("row", v) != null)
+                    testFailed("Version " + v + " is still there a second after it was replaced", true);
+            }
+            if (timed.get("row") == null || !"v10".equals(timed.get("row").get("value")))
+                testFailed("The newest version is gone once it is older than the retention period", true);
+            if (timed.newestVersion("gone") >= 0)
+                testFailed("A deleted row with no other versions left was not forgotten", true);
+            // Version numbers are not handed out again once the row is forgotten
+            timed.put("gone", row("gone", "value", "again"));
+            if (timed.newestVersion("gone") <= 3)
+                testFailed("The row written again after it was forgotten got version " + timed.newestVersion("gone") + ", which it had before", true);
+
+            // Reaping versions while the budget spills them must take each one off the total exactly once
+            MemoryBudget.configure(dir("retention"), 1 << 20);
+            try {
+                MemoryTable churn = new MemoryTable("retention-churn");
+                churn.setOptions(churn.getOptions().merge(TableOptions.parse("maxVersions=1")));
+                String filler = "r".repeat(1024);
+                long until = System.currentTimeMillis() + 3000;
+                List<Thread> writers = new ArrayList<>();
+                for (int t = 0; t < 4; t++) {
+                    int first = t;
+                    writers.add(new Thread(() -> {
+                        for (int i = first; System.currentTimeMillis() < until; i += 4)
+                            churn.putColumn(pad(i % 400), "value", (filler + i).getBytes());
+                    }));
+                }
+                for (Thread writer : writers)
+                    writer.start();
+                for (Thread writer : writers)
+                    writer.join();
+                Thread.sleep(1500);
+                long resident = Long.parseLong(churn.stats().get("resident bytes"));
+                long spilled = Long.parseLong(churn.stats().get("spilled bytes"));
+                if (resident < 0 || spilled < 0)
+                    testFailed("After reaping and spilling, the table counts " + resident + " resident and " + spilled + " spilled bytes", true);
+                for (int i = 0; i < 400; i++)
+                    if (churn.get(pad(i)) == null || !new String(churn.get(pad(i)).getBytes("value")).startsWith(filler))
+                        testFailed("Row " + pad(i) + " lost its newest version", true);
+                churn.destroy();
+                if (MemoryBudget.shared().residentBytes() != 0)
+                    testFailed("With every table gone, the budget still counts " + MemoryBudget.shared().residentBytes() + " bytes", true);
+            } finally {
+                MemoryBudget.configure(dir("retention"), 0);
+            }
+            testSucceeded();
+        } catch (Exception e) {
+            if (!currentTestFailed) {
+                testFailed("An exception occurred: " + e, false);
+                e.printStackTrace();
+            }
+        }
+
+        if (tests.contains("snapshot")) try {
+            startTest("snapshot", "Memory table checkpoint and recovery", 5);
+            String storageDir = dir("snapshot");
+            GroupCommit groupCommit = new GroupCommit("test", 1, 1 << 20);
+            MemoryLog log = new MemoryLog(storageDir, groupCommit);
+            Map<String, Table> tables = new HashMap<>();
+            log.recover(tables);
+            MemoryTable changing = new MemoryTable("snapshot-changing");
+            MemoryTable idle = new MemoryTable("snapshot-idle");
+            for (MemoryTable table : List.of(changing, idle)) {
+                table.setLog(log);
+                tables.put(table.getName(), table);
+                for (int i = 0; i < 200; i++)
+                    table.put(pad(i), row(pad(i), "value", table.getName() + i));
+            }
+            log.checkpoint(tables);
+            File snapshotDir = new File(storageDir, MemorySnapshot.SNAPSHOT_DIR);
+            Set<String> first = new HashSet<>(Arrays.asList(snapshotDir.list()));
+            for (int i = 0; i < 50; i++)
+                changing.putColumn(pad(i), "value", ("changed" + i).getBytes());
+            changing.deleteRow(pad(199));
+            log.checkpoint(tables);
+            Set<String> second = new HashSet<>(Arrays.asList(snapshotDir.list()));
+            Set<String> kept = new HashSet<>(first);
+            kept.retainAll(second);
+            if (second.size() != 2 || kept.size() != 1)
+                testFailed("The second checkpoint should rewrite only the changed table, but went from " + first + " to " + second, true);
+            // Writes after the last checkpoint come back from the log
+            for (int i = 50; i < 60; i++)
+                changing.put(pad(i), row(pad(i), "value", "logged" + i));
+
+            Map<String, Table> recovered = new HashMap<>();
+            new MemoryLog(storageDir, groupCommit).recover(recovered);
+            for (MemoryTable table : List.of(changing, idle)) {
+                if (recovered.get(table.getName()) == null)
+                    testFailed("Table " + table.getName() + " was not recovered", true);
+                String problem = compare(table, recovered.get(table.getName()));
+                if (problem != null)
+                    testFailed("In " + table.getName() + ": " + problem, true);
+            }
+            testSucceeded();
+        } catch (Exception e) {
+            if (!currentTestFailed) {
+                testFailed("An exception occurred: " + e, false);
+                e.printStackTrace();
+            }
+        }
+
+        if (tests.contains("columns")) try {
+            startTest("columns", "Column records of persistent rows", 5);
+            String storageDir = dir("columns");
+            PersistentTable table = new PersistentTable("columns-t", storageDir);
+            table.put("row", row("row", "base", "whole row layout"));
+            Map<String, String> expected = new HashMap<>();
+            expected.put("base", "whole row layout");
+            // Updates from several threads at once must all land, with no record overwriting another
+            List<Thread> writers = new ArrayList<>();
+            for (int t = 0; t < 8; t++) {
+                String column = "c" + t;
+                expected.put(column, column + "-499");
+                writers.add(new Thread(() -> {
+                    for (int i = 0; i < 500; i++)
+                        table.putColumn("row", column, (column + "-" + i).getBytes());
+                }));
+            }
+            for (Thread writer : writers)
+                writer.start();
+            for (Thread writer : writers)
+                writer.join();
+            table.deleteColumn("row", "c7");
+            expected.remove("c7");
+
+            for (PersistentTable t : List.of(table, new PersistentTable("columns-t", storageDir))) {
+                Row r = t.get("row");
+                if (r == null || !r.columns().equals(expected.keySet()))
+                    testFailed("The row has columns " + (r == null ? null : r.columns()) + " instead of " + expected.keySet(), true);
+                for (Map.Entry<String, String> e : expected.entrySet()) {
+                    if (!e.getValue().equals(r.get(e.getKey())))
+                        testFailed("Column " + e.getKey() + " is " + r.get(e.getKey()) + " instead of " + e.getValue(), true);
+                    byte[] column = t.getColumn("row", e.getKey());
+                    if (column == null || !e.getValue().equals(new String(column)))
+                        testFailed("getColumn() returned " + (column == null ? null : new String(column)) + " for " + e.getKey(), true);
+                }
+                if (t.getColumn("row", "c7") != null)
+                    testFailed("getColumn() returned a deleted column", true);
+            }
+            long size = new File(storageDir, "columns-t/" + KeyEncoder.encode("row")).length();
+            if (size > 16384)
+                testFailed("After 4,000 column updates the row file holds " + size + " bytes; superseded records are not compacted", true);
+            // A record stores the name's length in two bytes; a longer name is refused before anything is written
+            String longest = "n".repeat(65535);
+            table.putColumn("row", longest, "fits".getBytes());
+            String tooLong = "\u00e9".repeat(32768);
+            for (Runnable write : List.<Runnable>of(() -> table.putColumn("row", tooLong, "x".getBytes()),
+                    () -> table.put("other", row("other", tooLong, "x")))) {
+                try {
+                    write.run();
+                    testFailed("A column name of 65,536 UTF-8 bytes was accepted", true);
+                } catch (IllegalArgumentException e) {
+                }
+            }
+            Row reread = new PersistentTable("columns-t", storageDir).get("row");
+            if (reread == null || !"fits".equals(reread.get(longest)) || reread.columns().contains(tooLong))
+                testFailed("After long column names, the row is " + (reread == null ? null : reread.columns().size() + " columns"), true);
+            if (table.get("other") != null)
+                testFailed("A row with a column name that is too long was stored", true);
+            testSucceeded();
+        } catch (Exception e) {
+            if (!currentTestFailed) {
+                testFailed("An exception occurred: " + e, false);
+                e.printStackTrace();
+            }
+        }
+
+        if (tests.contains("delete")) try {
+            startTest("delete", "Deleting rows from every engine", 5);
+            String storageDir = dir("delete");
+            Map<String, java.util.function.Supplier<Table>> engines = new LinkedHashMap<>();
+            engines.put("lsm", () -> new LsmTable("delete-lsm", storageDir));
+            engines.put("bitcask", () -> new BitcaskTable("delete-bitcask", storageDir));
+            engines.put("btree", () -> new BTreeTable("delete-btree", storageDir));
+            engines.put("columnar", () -> new ColumnarTable("delete-columnar", storageDir));
+            for (Map.Entry<String, java.util.function.Supplier<Table>> engine : engines.entrySet()) {
+                Table table = engine.getValue().get();
+                TreeMap<String, String> expected = new TreeMap<>();
+                // Every restart leaves the LSM and columnar tables another run on disk, so later rounds compact
+                for (int round = 0; round < 5; round++) {
+                    for (int i = 0; i < 1500; i++) {
+                        String key = pad(random(0, 2000));
+                        String value = key + "-" + round + "-" + i + (i % 50 == 0 ? "z".repeat(3000) : "");
+                        table.put(key, row(key, "value", value));
+                        expected.put(key, value);
+                    }
+                    for (int i = 0; i < 500; i++) {
+                        String key = pad(random(0, 2000));
+                        if (table.deleteRow(key) != (expected.remove(key) != null))
+                            testFailed("In " + engine.getKey() + ", deleteRow(" + key + ") did not say whether the row existed", true);
+                    }
+                    String problem = compare(expected, table, "value");
+                    if (problem != null)
+                        testFailed("In " + engine.getKey() + " before restart " + round + ": " + problem, true);
+                    table.flush();
+                    table = engine.getValue().get();
+                    problem = compare(expected, table, "value");
+                    if (problem != null)
+                        testFailed("In " + engine.getKey() + " after restart " + round + ": " + problem, true);
+                }
+            }
+
+            // A table created under the name of a destroyed one must not get the old table's keys back
+            PersistentTable old = new PersistentTable("delete-persistent", storageDir);
+            for (int i = 0; i < 20; i++)
+                old.put(pad(i), row(pad(i), "value", "old"));
+            old.deleteRow(pad(0));
+            old.destroy();
+            PersistentTable table = new PersistentTable("delete-persistent", storageDir);
+            table.put(pad(100), row(pad(100), "value", "new"));
+            Thread.sleep(6000);
+            String problem = compare(Map.of(pad(100), "new"), new PersistentTable("delete-persistent", storageDir), "value");
+            if (problem != null)
+                testFailed("After recreating a destroyed table: " + problem, true);
+            testSucceeded();
+        } catch (Exception e) {
+            if (!currentTestFailed) {
+                testFailed("An exception occurred: " + e, false);
+                e.printStackTrace();
+            }
+        }
+
+        if (tests.contains("serial")) try {
+            startTest("serial", "Java serialization of stored rows", 5);
+            MemoryTable memory = new MemoryTable("serial-memory");
+            for (int i = 0; i < 100; i++) {
+                memory.put(pad(i), row(pad(i), "a", "a" + i, "b", "b" + i));
+                memory.putColumn(pad(i), "c", ("c" + i).getBytes());
+            }
+            for (String key : memory.getKeys()) {
+                Row r = memory.get(key);
+                String problem = compare(r, serialize(r));
+                if (problem != null)
+                    testFailed("A " + r.getClass().getSimpleName() + " of a memory table: " + problem, true);
+            }
+            OffHeapTable offHeap = new OffHeapTable("serial-offheap");
+            for (int i = 0; i < 100; i++)
+                offHeap.put(pad(i), row(pad(i), "a", "a" + i, "b", "b" + i));
+            Iterator<Row> rows = offHeap.scan(null, null);
+            while (rows.hasNext()) {
+                Row r = rows.next();
+                String problem = compare(r, serialize(r));
+                if (problem != null)
+                    testFailed("A " + r.getClass().getSimpleName() + " of an off-heap table: " + problem, true);
+            }
+            // Rows read back from disk are backed by an ImmutableRow until they are changed
+            LsmTable lsm = new LsmTable("serial-lsm", dir("serial"));
+            for (int i = 0; i < 100; i++)
+                lsm.put(pad(i), row(pad(i), "a", "a" + i, "b", "b" + i));
+            for (int i = 0; i < 100; i++) {
+                Row r = lsm.get(pad(i));
+                Row copy = serialize(r);
+                String problem = compare(r, copy);
+                if (problem != null)
+                    testFailed("A row backed by an ImmutableRow: " + problem, true);
+                copy.put("c", "c" + i);
+                r.put("c", "c" + i);
+                problem = compare(r, copy);
+                if (problem != null)
+                    testFailed("A row backed by an ImmutableRow, changed after serialization: " + problem, true);
+            }
+            testSucceeded();
+        } catch (Exception e) {
+            if (!currentTestFailed) {
+                testFailed("An exception occurred: " + e, false);
+                e.printStackTrace();
+            }
+        }
+
+        if (tests.contains("dict")) try {
+            startTest("dict", "Column dictionary persistence", 5);
+            Path file = Paths.get(dir("dictionary"), ColumnDictionary.FILE_NAME);
+            ColumnDictionary dictionary = new ColumnDictionary(() -> file);
+            List<Row> rows = new ArrayList<>();
+            List<byte[]> encoded = new ArrayList<>();
+            for (int i = 0; i < 200; i++) {
+                Row r = row(pad(i), "col" + (i % 37), "v" + i, "shared", "s" + i);
+                rows.add(r);
+                encoded.add(dictionary.encode(r));
+            }
+            dictionary.close();
+            // A crash while a new name was appended leaves part of it at the end of the file
+            long length = Files.size(file);
+            Files.write(file, new byte[]{0, 0, 0, 9, 'n', 'e'}, StandardOpenOption.APPEND);
+            ColumnDictionary reopened = new ColumnDictionary(() -> file);
+            if (reopened.size() != 38)
+                testFailed("The reopened dictionary has " + reopened.size() + " names instead of 38", true);
+            if (Files.size(file) != length)
+                testFailed("The partly written name was not cut off the dictionary", true);
+            for (int i = 0; i < rows.size(); i++) {
+                String problem = compare(rows.get(i), reopened.decode(encoded.get(i)));
+                if (problem != null)
+                    testFailed("After reopening: " + problem, true);
+            }
+            // Names numbered after the reopen continue where the file left off
+            Row added = row("added", "newcol", "x", "shared", "y");
+            byte[] addedBytes = reopened.encode(added);
+            reopened.close();
+            String problem = compare(added, new ColumnDictionary(() -> file).decode(addedBytes));
+            if (problem != null)
+                testFailed("A name added after reopening: " + problem, true);
+            // Rows written before the dictionary are in the text format
+            problem = compare(rows.get(0), reopened.decode(rows.get(0).toByteArray()));
+            if (problem != null)
+                testFailed("A row in the text format: " + problem, true);
+            testSucceeded();
+        } catch (Exception e) {
+            if (!currentTestFailed) {
+                testFailed("An exception occurred: " + e, false);
+                e.printStackTrace();
+            }
+        }
+
+        if (tests.contains("codec")) try {
+            startTest("codec", "Binary row format", 5);
+            List<Row> rows = new ArrayList<>();
+            rows.add(row("empty"));
+            rows.add(row("key", "a", "1", "b", "two words", "c", ""));
+            Row binary = row("binary");
+            binary.put("bytes", new byte[]{0, (byte) 0xC0, (byte) 0xFF, ' ', '\n'});
+            binary.put("big", "x".repeat(70000).getBytes());
+            rows.add(binary);
+            ByteArrayOutputStream stream = new ByteArrayOutputStream();
+            for (Row r : rows) {
+                byte[] encoded = RowCodec.encode(r);
+                if (!RowCodec.isBinary(encoded) || RowCodec.isBinary(r.toByteArray()))
+                    testFailed("isBinary() does not tell the binary format from the text format", true);
+                for (byte[] bytes : List.of(encoded, r.toByteArray())) {
+                    String problem = compare(r, RowCodec.decode(bytes));
+                    if (problem != null)
+                        testFailed((bytes == encoded ? "Binary: " : "Text: ") + problem, true);
+                }
+                stream.writeBytes(encoded);
+            }
+            // Rows read back one after another from a stream, then null at its end
+            InputStream in = new ByteArrayInputStream(stream.toByteArray());
+            for (Row r : rows) {
+                String problem = compare(r, RowCodec.read(in));
+                if (problem != null)
+                    testFailed("From a stream: " + problem, true);
+            }
+            if (RowCodec.read(in) != null)
+                testFailed("read() did not return null at the end of the stream", true);
+
+            List<String> names = List.of("a", "b", "c");
+            byte[] numbered = RowCodec.encode(rows.get(1), names::indexOf);
+            if (numbered.length >= RowCodec.encode(rows.get(1)).length)
+                testFailed("Column numbers did not make the row smaller", true);
+            String problem = compare(rows.get(1), RowCodec.decode(numbered, i -> i < names.size() ? names.get(i) : null));
+            if (problem != null)
+                testFailed("With column numbers: " + problem, true);
+            for (java.util.function.IntFunction<String> columnNames : Arrays.<java.util.function.IntFunction<String>>asList(null, i -> null)) {
+                try {
+                    RowCodec.decode(numbered, columnNames);
+                    testFailed("A row with unknown column numbers was decoded", true);
+                } catch (IOException e) {
+                    // Expected
+                }
+            }
+            byte[] encoded = RowCodec.encode(binary);
+            for (int length : new int[]{1, 2, 5, encoded.length / 2, encoded.length - 1}) {
+                try {
+                    RowCodec.decode(Arrays.copyOf(encoded, length));
+                    testFailed("A row cut off after " + length + " of " + encoded.length + " bytes was decoded", true);
+                } catch (EOFException e) {
+                    // Expected
+                }
+            }
+            byte[] future = RowCodec.encode(binary);
+            future[1] = (byte) (RowCodec.VERSION + 1);
+            try {
+                RowCodec.decode(future);
+                testFailed("A row in a newer format version was decoded", true);
+            } catch (IOException e) {
+                // Expected
+            }
+            if (!RowCodec.accepts(String.valueOf(RowCodec.VERSION)) || !RowCodec.accepts(" " + (RowCodec.VERSION + 1)) || RowCodec.accepts(null)
+                    || RowCodec.accepts("0") || RowCodec.accepts("binary"))
+                testFailed("accepts() misreads the " + RowCodec.HEADER + " header", true);
+            testSucceeded();
+        } catch (Exception e) {
+            if (!currentTestFailed) {
+                testFailed("An exception occurred: " + e, false);
+                e.printStackTrace();
+            }
+        }
+
+        if (tests.contains("writeback")) try {
+            startTest("writeback", "Write-back buffer read-your-writes", 5);
+            String storageDir = dir("writeback");
+            PersistentTable table = new PersistentTable("writeback-t", storageDir);
+            table.setOptions(table.getOptions().merge(TableOptions.parse("writeBackMillis=1000")));
+            // Readers spin on the rows while one writer moves them forward, so some reads overlap a flush taking a row
+            int rows = 20;
+            int rounds = 1500;
+            java.util.concurrent.atomic.AtomicInteger acknowledged = new java.util.concurrent.atomic.AtomicInteger(-1);
+            List<String> problems = Collections.synchronizedList(new ArrayList<>());
+            Thread writer = new Thread(() -> {
+                for (int i = 0; i < rounds && problems.isEmpty(); i++) {
+                    for (int k = 0; k < rows; k++) {
+                        String key = "row" + k;
+                        if (i % 100 == 0)
+                            table.put(key, row(key, "value", pad(i), "whole", pad(i)));
+                        else
+                            table.putColumn(key, "value", pad(i).getBytes());
+                    }
+                    acknowledged.set(i);
+                }
+            });
+            List<Thread> readers = new ArrayList<>();
+            for (int t = 0; t < 4; t++) {
+                readers.add(new Thread(() -> {
+                    while (writer.isAlive() && problems.isEmpty()) {
+                        int floor = acknowledged.get();
+                        if (floor < 0)
+                            continue;
+                        String key = "row" + java.util.concurrent.ThreadLocalRandom.current().nextInt(rows);
+                        Row r = table.get(key);
+                        if (r == null || r.get("value").compareTo(pad(floor)) < 0)
+                            problems.add("get() returned " + r + " after " + key + " was given value=" + pad(floor));
+                        byte[] column = table.getColumn(key, "value");
+                        if (column == null || new String(column).compareTo(pad(floor)) < 0)
+                            problems.add("getColumn() returned " + (column == null ? null : new String(column)) + " after " + key + " was given value=" + pad(floor));
+                    }
+                }));
+            }
+            // Flushing all the time, not just once a row has been dirty for the interval, makes the overlap common
+            Thread flusher = new Thread(() -> {
+                while (writer.isAlive())
+                    table.flush();
+            });
+            writer.start();
+            flusher.start();
+            for (Thread reader : readers)
+                reader.start();
+            writer.join();
+            flusher.join();
+            for (Thread reader : readers)
+                reader.join();
+            if (!problems.isEmpty())
+                testFailed(problems.get(0), true);
+            // Everything reaches the disk once the buffer is closed
+            table.flush();
+            PersistentTable reopened = new PersistentTable("writeback-t", storageDir);
+            for (int k = 0; k < rows; k++) {
+                Row r = reopened.get("row" + k);
+                if (r == null || !pad(rounds - 1).equals(r.get("value")) || !pad(rounds - 100).equals(r.get("whole")))
+                    testFailed("After a flush, row" + k + " is " + r + " on disk", true);
+            }
+            testSucceeded();
+        } catch (Exception e) {
+            if (!currentTestFailed) {
+                testFailed("An exception occurred: " + e, false);
+                e.printStackTrace();
+            }
+        }
+
+        if (tests.contains("expiry")) try {
+            startTest("expiry", "Row and table TTLs and the sweeper", 15);
+            String storageDir = dir("expiry");
+            Map<String, Table> tables = new java.util.concurrent.ConcurrentHashMap<>();
+            WorkerContext context = new WorkerContext(tables, storageDir, null, new TreeMap<>(), "test", null);
+            MemoryTable rows = new MemoryTable("expiry-rows");
+            rows.setOptions(rows.getOptions().merge(TableOptions.parse("rowTtlSeconds=2")));
+            tables.put(rows.getName(), rows);
+            // Slow enough that the sweep of the short-lived rows takes a couple of seconds
+            Expiry.configure(context, 25);
+            for (int i = 0; i < 50; i++) {
+                Expiry.written(rows.getName(), "short" + i, 1L);
+                rows.put("short" + i, row("short" + i, "value", "v"));
+            }
+            // Without a TTL of its own a row gets the table's
+            Expiry.written(rows.getName(), "default", null);
+            rows.put("default", row("default", "value", "v"));
+            Expiry.written(rows.getName(), "long", 3600L);
+            rows.put("long", row("long", "value", "v"));
+            if (Expiry.isExpired(rows.getName(), "short0") || Expiry.expiredRows(rows.getName()) != 0)
+                testFailed("Rows expired as soon as they were written", true);
+            Thread.sleep(1100);
+            for (int i = 0; i < 50; i++)
+                if (!Expiry.isExpired(rows.getName(), "short" + i) && rows.get("short" + i) != null)
+                    testFailed("Row short" + i + " is neither hidden nor swept once its 1 s TTL has passed", true);
+            if (Expiry.isExpired(rows.getName(), "default"))
+                testFailed("A row with the table's 2 s TTL expired after 1 s", true);
+            int pending = Expiry.expiredRows(rows.getName());
+            if (pending <= 0 || pending > 50)
+                testFailed(pending + " rows are counted as expired but not swept, out of 50", true);
+            for (int wait = 0; wait < 100 && (rows.get("default") != null || rows.getKeys().stream().anyMatch(k -> k.startsWith("short"))); wait++)
+                Thread.sleep(100);
+            if (rows.get("default") != null || rows.getKeys().stream().anyMatch(k -> k.startsWith("short")))
+                testFailed("The sweeper left expired rows in the table: " + rows.getKeys(), true);
+            if (rows.get("long") == null || Expiry.isExpired(rows.getName(), "long"))
+                testFailed("The sweeper removed a row whose TTL has not passed", true);
+            if (Expiry.expiredRows(rows.getName()) != 0)
+                testFailed("With every expired row swept, " + Expiry.expiredRows(rows.getName()) + " are still counted", true);
+
+            // Deadlines are kept on disk, so a row still expires after a restart
+            Expiry.written(rows.getName(), "restart", 1L);
+            rows.put("restart", row("restart", "value", "v"));
+            Expiry.configure(context, 25);
+            for (int wait = 0; wait < 50 && rows.get("restart") != null; wait++)
+                Thread.sleep(100);
+            if (rows.get("restart") != null)
+                testFailed("A row written before a restart did not expire after it", true);
+
+            // A table that hasn't been written to for its tableTtlSeconds is dropped
+            MemoryTable idle = new MemoryTable("expiry-idle");
+            idle.setOptions(idle.getOptions().merge(TableOptions.parse("tableTtlSeconds=1")));
+            idle.put("row", row("row", "value", "v"));
+            tables.put(idle.getName(), idle);
+            for (int wait = 0; wait < 50 && tables.containsKey(idle.getName()); wait++)
+                Thread.sleep(100);
+            if (tables.containsKey(idle.getName()))
+                testFailed("A table with tableTtlSeconds=1 was not dropped after seconds without writes", true);
+            if (!tables.containsKey(rows.getName()))
+                testFailed("A table without a table TTL was dropped", true);
+            context.dropTable(rows.getName());
+            testSucceeded();
+        } catch (Exception e) {
+            if (!currentTestFailed) {
+                testFailed("An exception occurred: " + e, false);
+                e.printStackTrace();
+            }
+        }
+
+        // Last, since the trash it installs stays in place for any test that runs after it
+        if (tests.contains("trash")) try {
+            startTest("trash", "Deleted tables go through the trash", 10);
+            String storageDir = dir("trash");
+            // A table deleted by an earlier run whose files were not all removed yet
+            File leftover = new File(storageDir, Trash.TRASH_DIR + "/1-leftover-t");
+            leftover.mkdirs();
+            for (int i = 0; i < 10; i++)
+                Files.write(new File(leftover, "file" + i).toPath(), "left".getBytes());
+            PersistentTable table = new PersistentTable("trash-t", storageDir);
+            for (int i = 0; i < 300; i++)
+                table.put(pad(i), row(pad(i), "value", "v" + i));
+            Trash.configure(storageDir, 200);
+            long start = System.currentTimeMillis();
+            table.destroy();
+            long took = System.currentTimeMillis() - start;
+            if (new File(storageDir, "trash-t").exists())
+                testFailed("The table's directory is still there after it was deleted", true);
+            if (took > 200)
+                testFailed("Deleting a table of 300 rows took " + took + " ms; its files should be removed in the background", true);
+            // The name is free again right away, while the old files are still being removed
+            PersistentTable again = new PersistentTable("trash-t", storageDir);
+            again.put("new", row("new", "value", "fresh"));
+            File trashDir = new File(storageDir, Trash.TRASH_DIR);
+            Thread.sleep(300);
+            String[] waiting = trashDir.list();
+            if (waiting == null || waiting.length == 0)
+                testFailed("The trash was already empty 300 ms after 310 files went into it, at 200 files per second", true);
+            for (int wait = 0; wait < 100 && trashDir.list().length > 0; wait++)
+                Thread.sleep(100);
+            if (trashDir.list().length > 0)
+                testFailed("The trash still holds " + Arrays.toString(trashDir.list()) + " after 10 s", true);
+            long reclaimed = Long.parseLong(Trash.shared().stats().get("reclaimed files"));
+            if (reclaimed < 310)
+                testFailed("The trash reports " + reclaimed + " reclaimed files, fewer than the leftover's and the table's", true);
+            if (again.get("new") == null || again.getKeys().size() != 1)
+                testFailed("Reclaiming the deleted table disturbed the new table of the same name: " + again.getKeys(), true);
+            testSucceeded();
+        } catch (Exception e) {
+            if (!currentTestFailed) {
+                testFailed("An exception occurred: " + e, false);
+                e.printStackTrace();
+            }
+        }
+
+        System.out.println("--------------------------------------------------------\n");
+        if (numTestsFailed == 0)
+            System.out.println("Looks like the storage engines passed all of the selected tests.");
+        else
+            System.out.println(numTestsFailed + " test(s) failed.");
+        closeOutputFile();
+    }
+
+    public static void main(String args[]) throws Exception {
+        Set<String> tests = new TreeSet<String>();
+        if ((args.length == 0) || args[0].equals("all")) {
+            tests.add("lsm");
+            tests.add("bloom");
+            tests.add("bitcask");
+            tests.add("btree");
+            tests.add("frozen");
+            tests.add("memwal");
+            tests.add("manifest");
+            tests.add("compress");
+            tests.add("columnar");
+            tests.add("verify");
+            tests.add("budget");
+            tests.add("retention");
+            tests.add("snapshot");
+            tests.add("columns");
+            tests.add("delete");
+            tests.add("serial");
+            tests.add("dict");
+            tests.add("codec");
+            tests.add("writeback");
+            tests.add("expiry");
+            tests.add("trash");
+        }
+        for (int i = 0; i < args.length; i++)
+            if (!args[i].equals("all"))
+                tests.add(args[i]);
+
+        StorageTest t = new StorageTest();
+        t.setExitUponFailure(false);
+        t.runTests(tests);
+        t.cleanup();
+        System.exit(t.numTestsFailed == 0 ? 0 : 1);
+    }
+}
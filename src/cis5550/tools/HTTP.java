@@ -72,7 +72,15 @@ public class HTTP {
         return doRequestWithTimeout(method, urlArg, uploadOrNull, -1, false);
     }
 
+    public static Response doRequest(String method, String urlArg, byte uploadOrNull[], Map<String, String> headersOrNull) throws IOException {
+        return doRequestWithTimeout(method, urlArg, uploadOrNull, -1, false, headersOrNull);
+    }
+
     public static Response doRequestWithTimeout(String method, String urlArg, byte uploadOrNull[], int timeoutMillis, boolean isHeadRequest) throws IOException {
+        return doRequestWithTimeout(method, urlArg, uploadOrNull, timeoutMillis, isHeadRequest, null);
+    }
+
+    public static Response doRequestWithTimeout(String method, String urlArg, byte uploadOrNull[], int timeoutMillis, boolean isHeadRequest, Map<String, String> headersOrNull) throws IOException {
         String protocol = "http";
         int pos = urlArg.indexOf("://");
         if (pos >= 0) {
@@ -122,6 +130,9 @@ public class HTTP {
 //  System.out.println((usingCached ? "[CACHED]" : "[FRESH]")+request);
                 if (uploadOrNull != null)
                     request = request + "Content-Length: " + uploadOrNull.length + "\r\n";
+                if (headersOrNull != null)
+                    for (Map.Entry<String, String> header : headersOrNull.entrySet())
+                        request = request + header.getKey() + ": " + header.getValue() + "\r\n";
                 request = request + "Connection: keep-alive\r\n\r\n";
                 out.write(request.getBytes());
                 if (uploadOrNull != null)
@@ -0,0 +1,92 @@
+package cis5550.tools;
+
+/**
+ * Optional worker settings. They are read from system properties (java -Dkvs.memoryWal=true ...)
+ * so the worker's command line stays the same.
+ */
+public class WorkerConfig {
+    /**
+     * Log writes to in-memory tables so they survive a restart
+     */
+    public static boolean memoryWalEnabled() {
+        return Boolean.getBoolean("kvs.memoryWal");
+    }
+
+    /**
+     * How long a write may wait for other writes to share its fsync
+     */
+    public static long groupCommitMillis() {
+        return Long.getLong("kvs.groupCommitMillis", 5);
+    }
+
+    /**
+     * Size of the memory table log at which a checkpoint is taken
+     */
+    public static long memoryWalCheckpointBytes() {
+        return Long.getLong("kvs.memoryWalCheckpointBytes", 256L << 20);
+    }
+
+    /**
+     * Byte budget of the row cache shared by the worker's persistent tables; 0 turns the cache off
+     */
+    public static long rowCacheBytes() {
+        return Long.getLong("kvs.rowCacheBytes", 64L << 20);
+    }
+
+    /**
+     * Heap that in-memory tables may fill before their coldest rows are spilled to disk; 0 turns spilling off
+     */
+    public static long memoryTableBudgetBytes() {
+        return Long.getLong("kvs.memoryTableBudgetBytes", Runtime.getRuntime().maxMemory() / 2);
+    }
+
+    /**
+     * How often in-memory tables that changed are checkpointed to a snapshot; 0 leaves it to /checkpoint
+     * and, with the memory table log on, to the log size
+     */
+    public static long memoryCheckpointSeconds() {
+        return Long.getLong("kvs.memoryCheckpointSeconds", 300);
+    }
+
+    /**
+     * Bytes of dirty rows that write-back tables may buffer together before writers have to wait for a flush
+     */
+    public static long writeBackBytes() {
+        return Long.getLong("kvs.writeBackBytes", 64L << 20);
+    }
+
+    /**
+     * How many files of deleted tables the background reclaimer removes per second; 0 means no limit
+     */
+    public static long trashFilesPerSecond() {
+        return Long.getLong("kvs.trashFilesPerSecond", 2000);
+    }
+
+    /**
+     * How many expired rows the background sweeper deletes per second; 0 means no limit
+     */
+    public static long expiryRowsPerSecond() {
+        return Long.getLong("kvs.expiryRowsPerSecond", 1000);
+    }
+
+    /**
+     * How many versions of a row in-memory tables keep unless their maxVersions option says otherwise; 0 keeps all
+     */
+    public static int memoryMaxVersions() {
+        return Integer.getInteger("kvs.memoryMaxVersions", 0);
+    }
+
+    /**
+     * How often in-memory tables drop the versions their retention policy no longer keeps
+     */
+    public static long versionReapMillis() {
+        return Long.getLong("kvs.versionReapMillis", 1000);
+    }
+
+    /**
+     * Size of the direct memory slabs that off-heap tables allocate their rows from
+     */
+    public static int offHeapSlabBytes() {
+        return Integer.getInteger("kvs.offHeapSlabBytes", 8 << 20);
+    }
+}
@@ -1,12 +1,11 @@
 package cis5550.tools;
 
 import cis5550.kvs.Row;
+import cis5550.kvs.RowCodec;
 import cis5550.model.*;
 import cis5550.webserver.Request;
 import cis5550.webserver.Response;
 
-import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.net.HttpURLConnection;
@@ -15,8 +14,12 @@ import java.net.URL;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 
 public class WorkerRoutes {
@@ -39,6 +42,20 @@ public class WorkerRoutes {
         String ifColumn = request.queryParams("ifcolumn");
         String equals = request.queryParams("equals");
 
+        String ttlParam = request.queryParams("ttl");
+        Long ttl = null;
+        if (ttlParam != null) {
+            try {
+                ttl = Long.parseLong(ttlParam);
+            } catch (NumberFormatException e) {
+                ttl = -1L;
+            }
+            if (ttl <= 0) {
+                response.status(400, "BAD REQUEST");
+                return "TTL must be a positive number of seconds";
+            }
+        }
+
         if (ifColumn != null && equals != null) {
             logger.debug("Trying conditional PUT");
             Row rowObj = WorkerUtils.getRow(table, row, null);
@@ -54,7 +71,15 @@ public class WorkerRoutes {
         }
         byte[] data = request.bodyAsBytes();
         logger.debug("PUT data: " + new String(data));
-        String returnVal = WorkerUtils.putRow(table, row, column, data);
+        Long rowTtl = ttl;
+        if (!workerContext.write(table, () -> {
+            Expiry.written(table, row, rowTtl);
+            WorkerUtils.putRow(table, row, column, data);
+        })) {
+            response.status(403, "FORBIDDEN");
+            return "Table " + table + " is frozen";
+        }
+        String returnVal = "OK";
 
         Table tableObj = workerContext.tables().get(table);
         if (tableObj instanceof MemoryTable) {
@@ -68,21 +93,28 @@ public class WorkerRoutes {
 
         //Replication
         logger.debug("Replication put, executing replication");
+        String path = String.format("/data/%s/%s/%s?end=1", table, row, column);
+        replicate("PUT", ttl == null ? path : path + "&ttl=" + ttl, data);
+        return returnVal;
+    }
+
+
+    /**
+     * Send a write on to this worker's replicas; the path carries end=1 so they don't forward it again
+     */
+    private static void replicate(String method, String path, byte[] data) {
         workerContext.checker().checkAndRemoveInactiveWorkers();
         List<WorkerMeta> replicationList = workerContext.getReplicaList(workerContext.workerId());
         logger.debug("Replication list: " + replicationList);
         for (WorkerMeta worker : replicationList) {
             HttpURLConnection connection = null;
             try {
-                String urlStr = String.format("http://%s:%d/data/%s/%s/%s?end=1",
-                        worker.getIp(),
-                        worker.getPort(),
-                        table, row, column);
+                String urlStr = String.format("http://%s:%d%s", worker.getIp(), worker.getPort(), path);
                 logger.debug("Replicating data to " + urlStr);
 
                 URL url = URI.create(urlStr).toURL();
                 connection = (HttpURLConnection) url.openConnection();
-                connection.setRequestMethod("PUT");
+                connection.setRequestMethod(method);
                 connection.setRequestProperty("Content-Type", "application/octet-stream");
                 connection.setDoOutput(true);
 
@@ -92,7 +124,7 @@ public class WorkerRoutes {
                 }
 
                 int responseCode = connection.getResponseCode();
-                if (responseCode != HttpURLConnection.HTTP_OK) {
+                if (responseCode != HttpURLConnection.HTTP_OK && responseCode != HttpURLConnection.HTTP_NOT_FOUND) {
                     logger.error("Failed to replicate data to worker. HTTP Response Code: " + responseCode);
                 }
 
@@ -104,9 +136,51 @@ public class WorkerRoutes {
                 }
             }
         }
-        return returnVal;
     }
 
+    /**
+     * PUT /delete/:table/:row and PUT /delete/:table/:row/:column; the web server has no DELETE method
+     */
+    public static String deleteData(Request request, Response response) {
+        String table = request.params("table");
+        String row = request.params("row");
+        String column = request.params("column");
+        Table tableObj = workerContext.tables().get(table);
+        if (tableObj == null) {
+            response.status(404, "NOT FOUND");
+            return "Table NOT FOUND";
+        }
+        boolean[] deleted = new boolean[1];
+        try {
+            if (!workerContext.write(table, () -> {
+                deleted[0] = column == null ? tableObj.deleteRow(row) : tableObj.deleteColumn(row, column);
+                if (column == null) {
+                    Expiry.deleted(table, row);
+                }
+            })) {
+                response.status(403, "FORBIDDEN");
+                return "Table " + table + " is frozen";
+            }
+        } catch (UnsupportedOperationException e) {
+            response.status(501, "NOT IMPLEMENTED");
+            return e.getMessage();
+        }
+        if (tableObj instanceof MemoryTable memoryTable) {
+            response.header("Version", memoryTable.newestVersion(row) + "");
+        }
+
+        if (request.queryParams("end") == null) {
+            String path = column == null
+                    ? String.format("/delete/%s/%s?end=1", table, row)
+                    : String.format("/delete/%s/%s/%s?end=1", table, row, column);
+            replicate("PUT", path, new byte[0]);
+        }
+        if (!deleted[0]) {
+            response.status(404, "NOT FOUND");
+            return column == null ? "Row NOT FOUND" : "Column NOT FOUND";
+        }
+        return "OK";
+    }
 
     public static String getData(Request request, Response response) {
         String table = request.params("table");
@@ -132,24 +206,31 @@ public class WorkerRoutes {
             return "Table NOT FOUND";
         }
 
-        Row rowObj;
+        if (version != null && tables.get(table) instanceof MemoryTable memoryTable && memoryTable.isVersionExpired(row, version)) {
+            response.status(410, "GONE");
+            return "Version " + version + " of row " + row + " has expired";
+        }
+
+        byte[] data;
         try {
-            rowObj = WorkerUtils.getRow(table, row, version);
+            if (Expiry.isExpired(table, row)) {
+                data = null;
+            } else if (version == null) {
+                data = tables.get(table).getColumn(row, column);
+            } else {
+                Row rowObj = WorkerUtils.getRow(table, row, version);
+                data = rowObj == null ? null : rowObj.getBytes(column);
+            }
         } catch (NullPointerException e) {
             response.status(404, "NOT FOUND");
             return "Table NOT FOUND";
         }
-        if (rowObj == null) {
-            response.status(404, "NOT FOUND");
-            return "Row NOT FOUND";
-        }
-        byte[] data = rowObj.getBytes(column);
         if (data == null) {
             response.status(404, "NOT FOUND");
-            return "Column NOT FOUND";
+            return WorkerUtils.getRow(table, row, version) == null ? "Row NOT FOUND" : "Column NOT FOUND";
         }
-        if (!table.startsWith("pt-") && tables.get(table) != null) {
-            response.header("Version", version == null ? ((MemoryTable) tables.get(table)).newestVersion(row) + "" : version + "s");
+        if (tables.get(table) instanceof MemoryTable memoryTable) {
+            response.header("Version", version == null ? memoryTable.newestVersion(row) + "" : version + "s");
         }
         logger.debug("GET data: " + new String(data));
         response.bodyAsBytes(data);
@@ -163,7 +244,7 @@ public class WorkerRoutes {
 
         Row row = null;
         Table tableObj = workerContext.tables().get(tableName);
-        if (tableObj != null) {
+        if (tableObj != null && !Expiry.isExpired(tableName, rowKey)) {
             row = tableObj.get(rowKey);
         }
 
@@ -177,8 +258,13 @@ public class WorkerRoutes {
         }
 
         //logger.debug("[worker] Row found: " + row);
-        byte[] serializedRow = row.toByteArray();
-        logger.debug("[worker] Serialized row: " + new String(serializedRow));
+        byte[] serializedRow;
+        if (RowCodec.accepts(request.headers(RowCodec.HEADER))) {
+            response.header(RowCodec.HEADER, String.valueOf(RowCodec.VERSION));
+            serializedRow = RowCodec.encode(row);
+        } else {
+            serializedRow = row.toByteArray();
+        }
         response.type("application/octet-stream");
         response.bodyAsBytes(serializedRow);
         return null;
@@ -189,60 +275,53 @@ public class WorkerRoutes {
         String table = req.params("table");
         String startRow = req.queryParams("startRow");
         String endRowExclusive = req.queryParams("endRowExclusive");
+        String columnList = req.queryParams("columns");
+        Set<String> columns = columnList == null ? null : new HashSet<>(Arrays.asList(columnList.split(",")));
 
-        Map<String, Table> tables = workerContext.tables();
-        if (!table.startsWith("pt-") && tables.get(table) != null) {
-            logger.debug("Table: " + table + " exists in memory");
-            Table tableObj = tables.get(table);
-            for (String rowKey : tableObj.getKeys()) {
-                if ((startRow == null || rowKey.compareTo(startRow) >= 0) &&
-                        (endRowExclusive == null || rowKey.compareTo(endRowExclusive) < 0)) {
-                    Row row = tableObj.get(rowKey);
-                    res.write(row.toByteArray());
-                    res.write("\n".getBytes());
-                }
-            }
-            res.write("\n".getBytes());
-            return null;
-        }
-
-        File tableDir = new File(workerContext.storageDir(), table);
-        if (!tableDir.exists() || !tableDir.isDirectory()) {
+        Table tableObj = workerContext.tables().get(table);
+        if (tableObj == null) {
             res.status(404, "NOT FOUND");
             return "NOT FOUND";
         }
+        if (tableObj instanceof MemoryTable) {
+            logger.debug("Table: " + table + " exists in memory");
+        } else {
+            res.type("text/plain");
+        }
 
-        //logger.debug("Table dir: " + tableDir.getAbsolutePath());
-        File[] files = tableDir.listFiles();
-        if (files == null) {
-            logger.error("Error to open directory " + tableDir.getAbsolutePath());
-            res.status(404, "NOT FOUND");
-            return null;
+        // Binary rows delimit themselves; text rows are each followed by a newline
+        boolean binary = RowCodec.accepts(req.headers(RowCodec.HEADER));
+        if (binary) {
+            res.header(RowCodec.HEADER, String.valueOf(RowCodec.VERSION));
         }
-        res.type("text/plain");
-        int fileCount = 0;
-        //TODO: Notice that row is loaded into memory entirely. Improve it to load name first, and only load the row when it will be sent
-        for (File file : files) {
-            Row row = Row.readFrom(new FileInputStream(file));
-            //logger.debug("Row: " + row);
-            if (row == null) {
-                logger.warn("Row " + file.getName() + " is null");
-                continue;
-            }
-            String rowKey = row.key();
-            if ((startRow == null || rowKey.compareTo(startRow) >= 0) &&
-                    (endRowExclusive == null || rowKey.compareTo(endRowExclusive) < 0)) {
-                res.write(row.toByteArray());
-                res.write("\n".getBytes());
-                fileCount++;
+        int rowCount = 0;
+        Iterator<Row> rows = tableObj.scan(startRow, endRowExclusive, columns);
+        try {
+            while (rows.hasNext()) {
+                Row row = rows.next();
+                if (Expiry.isExpired(table, row.key())) {
+                    continue;
+                }
+                if (binary) {
+                    res.write(RowCodec.encode(row));
+                } else {
+                    res.write(row.toByteArray());
+                    res.write("\n".getBytes());
+                }
+                rowCount++;
             }
+        } finally {
+            // A client that hangs up mid-scan would otherwise keep the scanned files from being deleted
+            Table.close(rows);
         }
-        if (fileCount == 0) {
-            logger.error("No files found " + tableDir.getAbsolutePath() + " startRow: " + startRow + " endRowExclusive: " + endRowExclusive);
+        if (rowCount == 0 && !(tableObj instanceof MemoryTable)) {
+            logger.error("No rows found in " + table + " startRow: " + startRow + " endRowExclusive: " + endRowExclusive);
             res.status(404, "NOT FOUND");
             return null;
         }
-        res.write("\n".getBytes());
+        if (!binary) {
+            res.write("\n".getBytes());
+        }
         return null;
     }
 
@@ -257,7 +336,7 @@ public class WorkerRoutes {
             response.status(404, "NOT FOUND");
             return "Table not found.";
         }
-        return String.valueOf(tableObj.countKeys());
+        return String.valueOf(Math.max(0, tableObj.countKeys() - Expiry.expiredRows(tableName)));
     }
 
     public static String renameTable(Request req, Response res) {
@@ -287,15 +366,21 @@ public class WorkerRoutes {
         Object lock = locks.computeIfAbsent(oldName, k -> new Object());
         synchronized (lock) {
             Table oldTable = tables.get(oldName);
-            if (oldTable instanceof MemoryTable) {
+            if (oldTable instanceof MemoryTable || oldTable instanceof OffHeapTable) {
                 logger.debug("Renaming in-memory table " + oldName + " to " + newName);
+                if (oldTable instanceof MemoryTable && workerContext.memoryLog() != null) {
+                    workerContext.memoryLog().logRename(oldName, newName);
+                }
                 tables.put(newName, oldTable);
                 tables.remove(oldName);
                 oldTable.setName(newName);
+                Expiry.renamed(oldName, newName);
                 res.status(200, "OK");
                 return "OK";
             }
 
+            // Buffered rows are written under the old name before the directory moves
+            oldTable.flush();
             String storageDir = workerContext.storageDir();
             Path oldPath = Paths.get(storageDir, oldName);
             Path newPath = Paths.get(storageDir, newName);
@@ -309,6 +394,7 @@ public class WorkerRoutes {
                 tables.put(newName, oldTable);
                 tables.remove(oldName);
                 oldTable.setName(newName);
+                Expiry.renamed(oldName, newName);
                 res.status(200, "OK");
                 return "OK";
             } catch (IOException e) {
@@ -320,26 +406,91 @@ public class WorkerRoutes {
     }
 
     public static String deleteTable(Request req, Response res) {
-        Map<String, Table> tables = workerContext.tables();
         String tableName = req.params("table");
-        Table table = tables.get(tableName);
+        try {
+            if (!workerContext.dropTable(tableName)) {
+                res.status(404, "NOT FOUND");
+                return "Table " + tableName + " not found";
+            }
+        } catch (IOException e) {
+            logger.error("Error while deleting table " + tableName, e);
+            res.status(500, "INTERNAL SERVER ERROR");
+            return "Error while deleting table " + tableName;
+        }
+        return null;
+    }
+
+    public static String freezeTable(Request req, Response res) {
+        String tableName = req.params("table");
+        try {
+            if (workerContext.freezeTable(tableName) == null) {
+                res.status(404, "NOT FOUND");
+                return "Table " + tableName + " not found";
+            }
+        } catch (IOException e) {
+            logger.error("Error while freezing table " + tableName, e);
+            res.status(500, "INTERNAL SERVER ERROR");
+            return "Error while freezing table " + tableName;
+        }
+        return "OK";
+    }
+
+    public static String checkpoint(Request req, Response res) {
+        long start = System.currentTimeMillis();
+        try {
+            workerContext.checkpoint();
+        } catch (IOException e) {
+            logger.error("Error while checkpointing in-memory tables", e);
+            res.status(500, "INTERNAL SERVER ERROR");
+            return "Error while checkpointing in-memory tables";
+        }
+        return "OK " + (System.currentTimeMillis() - start) + " ms";
+    }
+
+    public static String getOptions(Request req, Response res) {
+        String tableName = req.params("table");
+        Table table = workerContext.tables().get(tableName);
         if (table == null) {
             res.status(404, "NOT FOUND");
             return "Table " + tableName + " not found";
         }
+        res.type("text/plain");
+        return table.getOptions().toString();
+    }
+
+    /**
+     * Merge the key=value lines in the body into the table's options, creating the table if needed,
+     * so a table can be configured before its first row is written
+     */
+    public static String setOptions(Request req, Response res) {
+        String tableName = req.params("table");
+        TableOptions overrides;
+        try {
+            overrides = TableOptions.parse(req.body());
+        } catch (IOException | IllegalArgumentException e) {
+            res.status(400, "BAD REQUEST");
+            return "Options must be key=value lines";
+        }
+        try {
+            overrides.validate();
+        } catch (IllegalArgumentException e) {
+            res.status(400, "BAD REQUEST");
+            return e.getMessage();
+        }
+        Table table = WorkerUtils.getOrCreateTable(tableName);
         synchronized (table) {
-            if (table instanceof PersistentTable) {
+            TableOptions options = table.getOptions().merge(overrides);
+            if (!(table instanceof MemoryTable) && !(table instanceof OffHeapTable)) {
                 try {
-                    ((PersistentTable) table).destroy();
+                    options.save(workerContext.storageDir(), table.getName());
                 } catch (IOException e) {
-                    logger.error("Error while deleting table " + tableName, e);
+                    logger.error("Error while saving options of table " + tableName, e);
                     res.status(500, "INTERNAL SERVER ERROR");
-                    return "Error while deleting table " + tableName;
+                    return "Error while saving options of table " + tableName;
                 }
             }
-            tables.remove(tableName);
+            table.setOptions(options);
         }
-        return null;
+        return "OK";
     }
-
 }
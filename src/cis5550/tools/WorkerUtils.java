@@ -1,5 +1,6 @@
 package cis5550.tools;
 
+import cis5550.kvs.ImmutableRow;
 import cis5550.kvs.Row;
 import cis5550.model.*;
 import cis5550.webserver.Request;
@@ -25,9 +26,28 @@ public class WorkerUtils {
         sb.append("</head>");
         sb.append("<body>");
 
+        RowCache rowCache = RowCache.shared();
+        if (rowCache != null) {
+            sb.append("<p>Row cache: ");
+            rowCache.stats().forEach((stat, value) -> sb.append(stat).append(" ").append(value).append("; "));
+            sb.append("</p>");
+        }
+        Trash trash = Trash.shared();
+        if (trash != null) {
+            sb.append("<p>Trash: ");
+            trash.stats().forEach((stat, value) -> sb.append(stat).append(" ").append(value).append("; "));
+            sb.append("</p>");
+        }
+        Expiry expiry = Expiry.shared();
+        if (expiry != null) {
+            sb.append("<p>Expiry: ");
+            expiry.stats().forEach((stat, value) -> sb.append(stat).append(" ").append(value).append("; "));
+            sb.append("</p>");
+        }
+
         sb.append("<table border='1'>");
         sb.append("<thead>");
-        sb.append("<tr><th>Table name</th><th>Number of keys</th></tr>");
+        sb.append("<tr><th>Table name</th><th>Number of keys</th><th>Stats</th></tr>");
         sb.append("</thead>");
         sb.append("<tbody>");
 
@@ -38,6 +58,9 @@ public class WorkerUtils {
             sb.append("<tr>");
             sb.append("<td><a href='/view/").append(tableName).append("'>").append(tableName).append("</a></td>");
             sb.append("<td>").append(numberOfKeys).append("</td>");
+            sb.append("<td>");
+            entry.getValue().stats().forEach((stat, value) -> sb.append(stat).append(": ").append(value).append("<br>"));
+            sb.append("</td>");
             sb.append("</tr>");
         }
 
@@ -58,14 +81,22 @@ public class WorkerUtils {
 
     public static String generateTableView(Table table, int start, int end) {
         logger.debug("Generating table view for table " + table.getName() + " from " + start + " to " + end);
-        List<String> keys = new ArrayList<>(table.getKeys());
-        Collections.sort(keys);
-        keys = keys.subList(start, Math.min(end, keys.size()));
-
+        Set<String> allKeys = table.getKeys();
+        List<String> keys = (allKeys instanceof SortedSet ? allKeys.stream() : allKeys.stream().sorted())
+                .skip(start)
+                .limit(Math.max(0, end - start))
+                .toList();
+
+        // Read each row once; a snapshot is read without locking the row
+        List<ImmutableRow> rows = new ArrayList<>(keys.size());
         Set<String> uniqueColumns = new TreeSet<>();
         for (String key : keys) {
             Row row = table.get(key);
-            uniqueColumns.addAll(row.columns());
+            if (row != null) {
+                ImmutableRow snapshot = row.toImmutable();
+                rows.add(snapshot);
+                uniqueColumns.addAll(snapshot.columns());
+            }
         }
 
         String tableName = table.getName();
@@ -79,12 +110,12 @@ public class WorkerUtils {
         }
         html.append("        </tr>\n    </thead>\n    <tbody>\n");
 
-        for (String key : keys) {
-            Row row = table.get(key);
+        for (ImmutableRow row : rows) {
             html.append("        <tr>\n");
-            html.append("            <td>").append(key).append("</td>\n");
+            html.append("            <td>").append(row.key()).append("</td>\n");
             for (String column : uniqueColumns) {
-                html.append("            <td>").append(row.get(column)).append("</td>\n");
+                byte[] value = row.get(column);
+                html.append("            <td>").append(value == null ? null : new String(value)).append("</td>\n");
             }
             html.append("        </tr>\n");
         }
@@ -99,22 +130,30 @@ public class WorkerUtils {
     }
 
 
+    public static Table getOrCreateTable(String table) {
+        return workerContext.tables().computeIfAbsent(table, name -> {
+            Table created = TableType.newTable(name, workerContext.storageDir());
+            if (created instanceof MemoryTable memoryTable) {
+                memoryTable.setLog(workerContext.memoryLog());
+            }
+            return created;
+        });
+    }
+
     public static String putRow(String table, String rowKey, String column, byte[] data) {
-        Map<String, Table> tables = workerContext.tables();
-        tables.putIfAbsent(table, table.startsWith("pt-") ? new PersistentTable(table, workerContext.storageDir()) : new MemoryTable(table));
-        Row rowObj = tables.get(table).get(rowKey);
-        rowObj = rowObj == null ? new Row(rowKey) : rowObj.clone();
-        rowObj.put(column, data);
-        tables.get(table).put(rowKey, rowObj);
+        getOrCreateTable(table).putColumn(rowKey, column, data);
         return "OK";
     }
 
     public static Row getRow(String tableName, String rowKey, Integer version) throws NullPointerException {
-        if (tableName.startsWith("pt-")) {
-            return workerContext.tables().get(tableName).get(rowKey);
-        } else {
-            return ((MemoryTable) workerContext.tables().get(tableName)).get(rowKey, version);
+        Table table = workerContext.tables().get(tableName);
+        if (Expiry.isExpired(tableName, rowKey)) {
+            return null;
+        }
+        if (table instanceof MemoryTable memoryTable) {
+            return memoryTable.get(rowKey, version);
         }
+        return table.get(rowKey);
     }
 
 